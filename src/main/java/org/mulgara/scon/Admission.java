@@ -0,0 +1,174 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * A place for one request under the circuit breaker and the concurrency limit of an endpoint.
+ * The place is held until the response has been read, either into results held in memory
+ * or through to the end of a stream of results, so that the limit covers the whole of the
+ * work the endpoint does for the request. The outcome is reported once, when the place is
+ * given back. Responses that failed, and errors while reading a response, count as failures.
+ */
+class Admission {
+
+  /** The breaker for the endpoint, or <code>null</code> if there is none. */
+  private final CircuitBreaker breaker;
+
+  /** The limiter for the endpoint, or <code>null</code> if there is none. */
+  private final ConcurrencyLimiter limiter;
+
+  /** The outcome of the request, or <code>null</code> if no outcome has been seen. */
+  private Boolean failed = null;
+
+  /** Set when the place has been given back. */
+  private boolean ended = false;
+
+  /**
+   * Creates a place that has been allowed by the breaker and the limiter.
+   * @param breaker The breaker for the endpoint, or <code>null</code> if there is none.
+   * @param limiter The limiter for the endpoint, or <code>null</code> if there is none.
+   */
+  private Admission(CircuitBreaker breaker, ConcurrencyLimiter limiter) {
+    this.breaker = breaker;
+    this.limiter = limiter;
+  }
+
+  /**
+   * Takes a place for a request, waiting for the limiter if needed.
+   * @param breaker The breaker for the endpoint, or <code>null</code> if there is none.
+   * @param limiter The limiter for the endpoint, or <code>null</code> if there is none.
+   * @param exec The execution of the query the request is for.
+   * @param endpoint The endpoint, for describing a refusal.
+   * @return The place for the request.
+   * @throws RejectedException If the circuit is open, or the limiter refused the request.
+   * @throws SparqlException If the query was cancelled or timed out while waiting.
+   */
+  static Admission acquire(CircuitBreaker breaker, ConcurrencyLimiter limiter, Execution exec, String endpoint) throws SparqlException {
+    if (breaker != null && !breaker.allow()) throw new RejectedException("Circuit breaker is open for <" + endpoint + ">");
+    if (limiter != null) {
+      try {
+        limiter.acquire(exec);
+      } catch (SparqlException e) {
+        if (breaker != null) breaker.abandoned();
+        throw e;
+      }
+    }
+    return new Admission(breaker, limiter);
+  }
+
+  /**
+   * Takes a place for an optional request, such as a hedged duplicate, only if the
+   * breaker allows it and the limiter has a place free right away.
+   * @param breaker The breaker for the endpoint, or <code>null</code> if there is none.
+   * @param limiter The limiter for the endpoint, or <code>null</code> if there is none.
+   * @return The place for the request, or <code>null</code> if the request should not be sent.
+   */
+  static Admission tryAcquire(CircuitBreaker breaker, ConcurrencyLimiter limiter) {
+    if (breaker != null && !breaker.allow()) return null;
+    if (limiter != null && !limiter.tryAcquire()) {
+      if (breaker != null) breaker.abandoned();
+      return null;
+    }
+    return new Admission(breaker, limiter);
+  }
+
+  /**
+   * Records the outcome of the request. A failure is kept, even if a later outcome succeeds.
+   * @param failure <code>true</code> if the request failed, or the endpoint was overloaded.
+   */
+  synchronized void record(boolean failure) {
+    failed = failure || (failed != null && failed);
+  }
+
+  /**
+   * Gives back the place, reporting the outcome. A request with no outcome is abandoned,
+   * and does not count towards the breaker or adapt the limit. This may be called more
+   * than once, and only the first call has any effect.
+   */
+  void end() {
+    Boolean outcome;
+    synchronized (this) {
+      if (ended) return;
+      ended = true;
+      outcome = failed;
+    }
+    if (outcome == null) {
+      if (breaker != null) breaker.abandoned();
+      if (limiter != null) limiter.abandon();
+    } else {
+      if (breaker != null) {
+        if (outcome) breaker.failed();
+        else breaker.succeeded();
+      }
+      if (limiter != null) limiter.release(outcome);
+    }
+  }
+
+  /**
+   * Wraps the body of a response so that the place is given back once the body has been
+   * read to the end or closed. Errors while reading the body are recorded as failures,
+   * unless they were caused by the query being cancelled or timing out.
+   * @param entity The body of the response.
+   * @param exec The execution of the query the request is for.
+   * @return The wrapped body.
+   */
+  HttpEntity hold(HttpEntity entity, final Execution exec) {
+    return new HttpEntityWrapper(entity) {
+      public InputStream getContent() throws IOException {
+        return new FilterInputStream(wrappedEntity.getContent()) {
+          public int read() throws IOException {
+            try {
+              int b = super.read();
+              if (b < 0) end();
+              return b;
+            } catch (IOException e) {
+              throw broken(e);
+            }
+          }
+          public int read(byte[] b, int off, int len) throws IOException {
+            try {
+              int n = super.read(b, off, len);
+              if (n < 0) end();
+              return n;
+            } catch (IOException e) {
+              throw broken(e);
+            }
+          }
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              end();
+            }
+          }
+          private IOException broken(IOException e) {
+            if (exec.explain(e) == null) record(true);
+            end();
+            return e;
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon;
+
+/**
+ * Indicates that a query was cancelled before it completed.
+ */
+public class CancelledException extends SparqlException {
+
+  private static final long serialVersionUID = -4213178590517622310L;
+
+  public CancelledException() { }
+
+  public CancelledException(String msg) { super(msg); }
+
+  public CancelledException(Throwable cause) { super(cause); }
+
+  public CancelledException(String msg, Throwable cause) { super(msg, cause); }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops requests to an endpoint that is failing, so that callers fail fast instead
+ * of waiting on an endpoint that cannot answer them. The outcomes of recent requests
+ * are kept, and once enough of them have failed the circuit opens, and requests are
+ * refused with a {@link RejectedException}. After a while a single trial request is
+ * allowed. If it succeeds the circuit closes again, and otherwise it stays open.
+ * Communication errors, server errors and requests refused with 429 (Too Many Requests)
+ * count as failures. A breaker may be shared
+ * by every connection to an endpoint.
+ */
+public class CircuitBreaker {
+
+  /** The states of a circuit. */
+  public enum State {
+    /** Requests are allowed. */
+    CLOSED,
+    /** Requests are refused. */
+    OPEN,
+    /** A trial request is allowed, to see if the endpoint has recovered. */
+    HALF_OPEN
+  };
+
+  /** The default proportion of failures that opens the circuit. */
+  public static final double DEFAULT_FAILURE_RATE = 0.5;
+
+  /** The default number of recent requests to consider. */
+  public static final int DEFAULT_WINDOW = 20;
+
+  /** The default number of requests needed before the circuit can open. */
+  public static final int DEFAULT_MIN_REQUESTS = 10;
+
+  /** The default time the circuit stays open, in milliseconds. */
+  public static final long DEFAULT_OPEN_TIME = 5000;
+
+  /** The proportion of failures that opens the circuit. */
+  private final double failureRate;
+
+  /** The number of requests needed before the circuit can open. */
+  private final int minRequests;
+
+  /** The time the circuit stays open, in nanoseconds. */
+  private final long openTime;
+
+  /** The outcomes of recent requests, in a ring. <code>true</code> for a failure. */
+  private final boolean[] outcomes;
+
+  /** The number of outcomes in the ring. */
+  private int size = 0;
+
+  /** The position of the next outcome in the ring. */
+  private int next = 0;
+
+  /** The number of failures in the ring. */
+  private int failures = 0;
+
+  /** The current state of the circuit. */
+  private State state = State.CLOSED;
+
+  /** The time the circuit last opened, from {@link System#nanoTime()}. */
+  private long openedAt = 0;
+
+  /** Set while a trial request is in flight. */
+  private boolean trial = false;
+
+  /**
+   * Creates a breaker with the default thresholds.
+   */
+  public CircuitBreaker() {
+    this(DEFAULT_FAILURE_RATE, DEFAULT_WINDOW, DEFAULT_MIN_REQUESTS, DEFAULT_OPEN_TIME, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Creates a breaker.
+   * @param failureRate The proportion of recent requests that must fail to open the circuit.
+   * @param window The number of recent requests to consider.
+   * @param minRequests The number of requests needed before the circuit can open.
+   * @param openTime The time the circuit stays open before a trial request.
+   * @param unit The unit for the open time.
+   */
+  public CircuitBreaker(double failureRate, int window, int minRequests, long openTime, TimeUnit unit) {
+    if (failureRate <= 0 || failureRate > 1) throw new IllegalArgumentException("Failure rate must be in the range (0, 1]");
+    if (window < 1 || minRequests < 1 || minRequests > window) throw new IllegalArgumentException("Invalid window");
+    if (openTime < 0) throw new IllegalArgumentException("Open time may not be negative");
+    this.failureRate = failureRate;
+    this.minRequests = minRequests;
+    this.openTime = unit.toNanos(openTime);
+    outcomes = new boolean[window];
+  }
+
+  /**
+   * Gets the state of the circuit.
+   * @return The current state.
+   */
+  public synchronized State getState() {
+    if (state == State.OPEN && System.nanoTime() - openedAt >= openTime) return State.HALF_OPEN;
+    return state;
+  }
+
+  /**
+   * Asks to send a request. If this is allowed, then the outcome of the request must be
+   * reported with {@link #succeeded()}, {@link #failed()} or {@link #abandoned()}.
+   * @return <code>true</code> if the request may be sent.
+   */
+  public synchronized boolean allow() {
+    if (state == State.CLOSED) return true;
+    if (state == State.OPEN) {
+      if (System.nanoTime() - openedAt < openTime) return false;
+      state = State.HALF_OPEN;
+      trial = false;
+    }
+    if (trial) return false;
+    trial = true;
+    return true;
+  }
+
+  /**
+   * Reports that a request succeeded. This closes the circuit after a trial.
+   */
+  public synchronized void succeeded() {
+    if (state == State.HALF_OPEN) {
+      state = State.CLOSED;
+      trial = false;
+      size = next = failures = 0;
+    } else if (state == State.CLOSED) {
+      record(false);
+    }
+  }
+
+  /**
+   * Reports that a request failed. This opens the circuit after a trial, or
+   * once the failure rate has been reached.
+   */
+  public synchronized void failed() {
+    if (state == State.HALF_OPEN) {
+      open();
+    } else if (state == State.CLOSED) {
+      record(true);
+      if (size >= minRequests && failures >= failureRate * size) open();
+    }
+  }
+
+  /**
+   * Reports that a request was abandoned, without learning anything about the endpoint.
+   */
+  public synchronized void abandoned() {
+    if (state == State.HALF_OPEN) trial = false;
+  }
+
+  /**
+   * Adds an outcome to the window of recent requests.
+   * @param failure <code>true</code> if the request failed.
+   */
+  private void record(boolean failure) {
+    if (size == outcomes.length) {
+      if (outcomes[next]) failures--;
+    } else {
+      size++;
+    }
+    outcomes[next] = failure;
+    if (failure) failures++;
+    next = (next + 1) % outcomes.length;
+  }
+
+  /**
+   * Opens the circuit.
+   */
+  private void open() {
+    state = State.OPEN;
+    openedAt = System.nanoTime();
+    trial = false;
+    size = next = failures = 0;
+  }
+}
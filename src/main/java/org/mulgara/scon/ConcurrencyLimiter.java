@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of requests in flight to an endpoint. Requests over the limit wait
+ * in a bounded queue, and are refused with a {@link RejectedException} if the queue is
+ * full or they wait too long. This sheds load from an overloaded endpoint, rather than
+ * adding to it. The limit adapts to the endpoint: it grows slowly while requests succeed
+ * with the limit in use, and is cut back when requests fail or the endpoint reports it
+ * is overloaded. A limiter with equal minimum and maximum limits does not adapt.
+ * A limiter may be shared by every connection to an endpoint.
+ */
+public class ConcurrencyLimiter {
+
+  /** The default longest time to wait in the queue, in milliseconds. */
+  public static final long DEFAULT_MAX_WAIT = 1000;
+
+  /** The proportion of the limit kept when a request fails. */
+  private static final double BACKOFF = 0.9;
+
+  /** The time between checks on a waiting query, in milliseconds. */
+  private static final long WAIT_SLICE = 50;
+
+  /** The lowest the limit can fall to. */
+  private final int minLimit;
+
+  /** The highest the limit can grow to. */
+  private final int maxLimit;
+
+  /** The most requests that may wait for the limit. */
+  private final int maxQueue;
+
+  /** The longest time to wait in the queue, in milliseconds. */
+  private final long maxWait;
+
+  /** The current limit. This is fractional, so that it can grow by less than one request. */
+  private double limit;
+
+  /** The number of requests in flight. */
+  private int inFlight = 0;
+
+  /** The number of requests waiting for the limit. */
+  private int waiting = 0;
+
+  /**
+   * Creates a fixed limit, with a queue as long as the limit.
+   * @param limit The most requests in flight.
+   */
+  public ConcurrencyLimiter(int limit) {
+    this(limit, limit, limit, limit, DEFAULT_MAX_WAIT, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Creates a limit that adapts between a minimum and a maximum.
+   * @param initialLimit The starting limit.
+   * @param minLimit The lowest the limit can fall to.
+   * @param maxLimit The highest the limit can grow to.
+   * @param maxQueue The most requests that may wait for the limit.
+   * @param maxWait The longest time to wait in the queue.
+   * @param unit The unit for the wait.
+   */
+  public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueue, long maxWait, TimeUnit unit) {
+    if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) throw new IllegalArgumentException("Invalid limits");
+    if (maxQueue < 0 || maxWait < 0) throw new IllegalArgumentException("Queue limits may not be negative");
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.maxQueue = maxQueue;
+    this.maxWait = unit.toMillis(maxWait);
+  }
+
+  /**
+   * Gets the current limit.
+   * @return The most requests currently allowed in flight.
+   */
+  public synchronized int getLimit() {
+    return (int)limit;
+  }
+
+  /**
+   * Gets the number of requests in flight.
+   * @return The number of requests holding a place in the limit.
+   */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * Gets the number of requests waiting for the limit.
+   * @return The length of the queue.
+   */
+  public synchronized int getWaiting() {
+    return waiting;
+  }
+
+  /**
+   * Takes a place in the limit, waiting for one if needed. The place must be given back
+   * with {@link #release(boolean)} or {@link #abandon()}.
+   * @param exec The execution of the query the request is for.
+   * @throws RejectedException If the queue is full, or no place was free in time.
+   * @throws SparqlException If the query was cancelled or timed out while waiting.
+   */
+  synchronized void acquire(Execution exec) throws SparqlException {
+    if (inFlight < (int)limit) {
+      inFlight++;
+      return;
+    }
+    if (waiting >= maxQueue) throw new RejectedException("Too many queries waiting for the endpoint");
+    waiting++;
+    try {
+      long end = System.currentTimeMillis() + maxWait;
+      while (inFlight >= (int)limit) {
+        long left = end - System.currentTimeMillis();
+        if (left <= 0) throw new RejectedException("Timed out waiting for a free request to the endpoint");
+        wait(Math.min(left, WAIT_SLICE));
+        exec.check();
+      }
+      inFlight++;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SparqlException("Interrupted while waiting for a free request to the endpoint", e);
+    } finally {
+      waiting--;
+    }
+  }
+
+  /**
+   * Takes a place in the limit if one is free, without waiting or joining the queue.
+   * A place that is taken must be given back in the same way as for {@link #acquire(Execution)}.
+   * @return <code>true</code> if a place was taken.
+   */
+  synchronized boolean tryAcquire() {
+    if (inFlight >= (int)limit) return false;
+    inFlight++;
+    return true;
+  }
+
+  /**
+   * Gives back a place in the limit after a request is complete, and adapts the limit.
+   * @param overloaded <code>true</code> if the request failed, or the endpoint was overloaded.
+   */
+  synchronized void release(boolean overloaded) {
+    int used = inFlight--;
+    if (overloaded) {
+      limit = Math.max(minLimit, limit * BACKOFF);
+    } else if (used * 2 >= limit) {
+      // only grow while the limit is in use
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Gives back a place in the limit without adapting the limit, such as for a request that was cancelled.
+   */
+  synchronized void abandon() {
+    inFlight--;
+    notifyAll();
+  }
+}
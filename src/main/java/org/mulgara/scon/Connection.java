@@ -38,42 +38,50 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Struct;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // HTTP Client 4.0
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
-import org.apache.http.conn.routing.HttpRoute;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 
 // HTTP Core 4.1-alpha1
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.CoreConnectionPNames;
-import org.apache.http.params.CoreProtocolPNames;
-import org.apache.http.params.HttpParams;
 import static org.apache.http.protocol.HTTP.UTF_8;
 
+import org.mulgara.scon.impl.QueryEntity;
+import org.mulgara.scon.cache.QueryCache;
+import org.mulgara.scon.cache.SingleFlight;
+import org.mulgara.scon.impl.CachedResult;
+import org.mulgara.scon.impl.ConnectionPools;
+import org.mulgara.scon.impl.ReplicaSet;
+import org.mulgara.scon.impl.ReplicaSet.Replica;
 import org.mulgara.scon.impl.ResultBuilder;
+import org.mulgara.scon.impl.StreamingBindingsResultSet;
+import org.mulgara.scon.impl.TermDictionary;
+import org.mulgara.scon.transport.HttpClientTransport;
+import org.mulgara.scon.transport.Transport;
 
 /**
  * This class represents a virtual connection to a SPARQL endpoint.
@@ -82,8 +90,38 @@ import org.mulgara.scon.impl.ResultBuilder;
  */
 public class Connection implements GraphURILists, java.sql.Connection {
 
-  /** The maximum length of a GET request */
-  private static final int QUERY_LIMIT = 1024;
+  /** The header for requesting result formats. */
+  private static final String ACCEPT = "Accept";
+
+  /** The header for validating results with an entity tag. */
+  private static final String ETAG = "ETag";
+
+  /** The header for validating results with a modification date. */
+  private static final String LAST_MODIFIED = "Last-Modified";
+
+  /** The header for a request conditional on an entity tag. */
+  private static final String IF_NONE_MATCH = "If-None-Match";
+
+  /** The header for a request conditional on a modification date. */
+  private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+  /** The header for the time to wait before retrying a request. */
+  private static final String RETRY_AFTER = "Retry-After";
+
+  /** The header for requesting compressed results. */
+  private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+  /** The default maximum length of a GET request */
+  public static final int DEFAULT_GET_LIMIT = 1024;
+
+  /** The name of the query parameter, with its separator. */
+  private static final String QUERY_PARAM = "query=";
+
+  /** The query sent to test that the endpoint can be reached. */
+  private static final String VALIDATION_QUERY = "ASK {}";
+
+  /** The media type of an HTML form. */
+  private static final String FORM_ENCODED = "application/x-www-form-urlencoded";
 
   @SuppressWarnings("unused")
   private static final int INFORMATIONAL_MIN = 100;
@@ -100,15 +138,60 @@ public class Connection implements GraphURILists, java.sql.Connection {
   private static final int SERVER_ERROR_MIN = 500;
   private static final int SERVER_ERROR_MAX = 599;
 
-  /** The endpoint that this represents a connection to. */
+  /** The executor for asynchronous queries, shared by connections that do not set their own. */
+  private static Executor sharedExecutor = null;
+
+  /** The endpoint that this represents a connection to. With replicas, this is the first replica. */
   private final URL endpoint;
 
+  /** The replicas that requests are spread across, or null if there is only one endpoint. */
+  private final ReplicaSet replicas;
+
   /** Continuations are not expected by default */
   private boolean expectContinue = false;
 
+  /** Compressed results are not requested by default. */
+  private boolean compression = false;
+
+  /** The maximum length of a GET request. Longer requests are sent with POST. */
+  private int getLimit = DEFAULT_GET_LIMIT;
+
+  /** POST requests send the query in an HTML form by default. */
+  private boolean directPost = false;
+
+  /** The executor for asynchronous queries on this connection, or null for the shared executor. */
+  private Executor executor = null;
+
+  /** The cache for query results, or null if results are not cached. */
+  private volatile QueryCache cache = null;
+
+  /** Identical queries in flight at the same time are collapsed by default. */
+  private boolean coalescing = true;
+
+  /** The queries in flight on this connection, when there is no cache to share them through. */
+  private final SingleFlight flights = new SingleFlight();
+
+  /** The policy for retrying failed queries, or null if queries are not retried. */
+  private volatile RetryPolicy retryPolicy = null;
+
+  /** The policy for hedging slow requests, or null if requests are not hedged. */
+  private volatile HedgePolicy hedgePolicy = null;
+
+  /** The breaker that stops requests to a failing endpoint, or null if there is none. */
+  private volatile CircuitBreaker circuitBreaker = null;
+
+  /** The limit on requests in flight to the endpoint, or null if there is none. */
+  private volatile ConcurrencyLimiter limiter = null;
+
+  /** The dictionary shared by all results, or null if each result has its own. */
+  private volatile TermDictionary termDictionary = null;
+
   /** The socket timeout, set to 5000 by default. */
   private int soTimeout = 5000;
 
+  /** The timeout for establishing connections, set to 5000 by default. */
+  private int connectTimeout = 5000;
+
   /**
    * The list of default graphs to use by default. Always overridden by
    * any default graphs in a Statement.
@@ -121,8 +204,8 @@ public class Connection implements GraphURILists, java.sql.Connection {
    */
   private List<URI> namedGraphs = new ArrayList<URI>();
 
-  /** A Connection Manager for HTTP connections. Once set, this will not change. */
-  private ClientConnectionManager conManager = null;
+  /** The transport for HTTP requests. Once set, this will not change. */
+  private final Transport transport;
 
   /** A stream responding to the server. */
   private InputStream contentStream = null;
@@ -133,13 +216,71 @@ public class Connection implements GraphURILists, java.sql.Connection {
   /** A collection of key/values that can be set by the client to control the HTTP headers */
   private Properties clientParams = new Properties();
 
+  /**
+   * The result formats to request ahead of all others. Always overridden by
+   * any preferred formats in a Statement.
+   */
+  private List<String> preferredFormats = Collections.emptyList();
+
+  /** The Accept header built from the preferred formats. */
+  private String acceptHeader = ResultBuilder.acceptHeader(preferredFormats);
+
   /**
    * Creates a new virtual connection. This is called from the DriverManager.
    * @param endpoint The endpoint this is a connection for.
    */
   Connection(URL endpoint) {
-    this.endpoint = endpoint;
-    conManager = getConnectionManager();
+    this(endpoint, ConnectionPools.DEFAULT_MAX_TOTAL, ConnectionPools.DEFAULT_MAX_PER_ROUTE);
+  }
+
+  /**
+   * Creates a new virtual connection with limits on the shared connection pool.
+   * The limits only apply if no other connection is using the pool for this host.
+   * @param endpoint The endpoint this is a connection for.
+   * @param maxTotal The maximum number of HTTP connections in the pool.
+   * @param maxPerRoute The maximum number of HTTP connections to the endpoint.
+   */
+  Connection(URL endpoint, int maxTotal, int maxPerRoute) {
+    this(endpoint, new HttpClientTransport(endpoint, maxTotal, maxPerRoute));
+  }
+
+  /**
+   * Creates a new virtual connection that sends requests through a given transport.
+   * The transport will be closed when this connection is closed.
+   * @param endpoint The endpoint this is a connection for.
+   * @param transport The means of sending requests to the endpoint.
+   */
+  Connection(URL endpoint, Transport transport) {
+    this(Collections.singletonList(endpoint), transport);
+  }
+
+  /**
+   * Creates a new virtual connection to a set of identical replicas, with limits on the
+   * shared connection pools. Each replica host has a pool of its own, and the limits only
+   * apply to pools that no other connection is using.
+   * @param endpoints The endpoints of the replicas.
+   * @param maxTotal The maximum number of HTTP connections in each pool.
+   * @param maxPerRoute The maximum number of HTTP connections to each replica.
+   */
+  Connection(List<URL> endpoints, int maxTotal, int maxPerRoute) {
+    this(endpoints, new HttpClientTransport(endpoints, maxTotal, maxPerRoute));
+  }
+
+  /**
+   * Creates a new virtual connection to a set of identical replicas. Each request is
+   * sent to one of the replicas, and replicas that keep failing are avoided for a time.
+   * The first replica is used to identify the connection, such as in cache keys.
+   * @param endpoints The endpoints of the replicas.
+   * @param transport The means of sending requests to the replicas.
+   */
+  Connection(List<URL> endpoints, Transport transport) {
+    if (endpoints.isEmpty()) throw new IllegalArgumentException("At least one endpoint is required");
+    this.endpoint = endpoints.get(0);
+    this.replicas = endpoints.size() > 1 ? new ReplicaSet(endpoints) : null;
+    this.transport = transport;
+    transport.setExpectContinue(expectContinue);
+    transport.setSoTimeout(soTimeout);
+    transport.setConnectTimeout(connectTimeout);
   }
 
   /**
@@ -155,6 +296,7 @@ public class Connection implements GraphURILists, java.sql.Connection {
    * @param expectContinue The new value for the setting.
    */
   public void setExpectContinue(boolean expectContinue) {
+    transport.setExpectContinue(expectContinue);
     this.expectContinue = expectContinue;
   }
 
@@ -163,9 +305,233 @@ public class Connection implements GraphURILists, java.sql.Connection {
    * @param the new socket timeout in milliseconds.
    */
   public void setSoTimeout(int soTimeout) {
+    transport.setSoTimeout(soTimeout);
     this.soTimeout = soTimeout;
   }
 
+  /**
+   * Change the timeout for establishing connections to the endpoint.
+   * @param connectTimeout the new connection timeout in milliseconds.
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    transport.setConnectTimeout(connectTimeout);
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Change the compression setting. When set, the endpoint is asked to compress
+   * results with gzip or deflate, and these are decompressed as they are parsed.
+   * @param compression The new value for the setting.
+   */
+  public void setCompression(boolean compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * Retrieve the compression setting.
+   * @return <code>true</code> if compressed results are requested.
+   */
+  public boolean getCompression() {
+    return compression;
+  }
+
+  /**
+   * Change the longest URL that will be sent in a GET request.
+   * Queries that need a longer URL are sent with POST.
+   * @param getLimit The maximum length of a GET request URL.
+   *        0 sends every query with POST.
+   */
+  public void setGetLimit(int getLimit) {
+    if (getLimit < 0) throw new IllegalArgumentException("GET limit may not be negative");
+    this.getLimit = getLimit;
+  }
+
+  /**
+   * Retrieve the longest URL that will be sent in a GET request.
+   * @return The maximum length of a GET request URL.
+   */
+  public int getGetLimit() {
+    return getLimit;
+  }
+
+  /**
+   * Change how queries are sent with POST. When set, the query is sent
+   * unencoded as the body of the request, as application/sparql-query,
+   * with any graph URIs in the URL. Otherwise the query and graph URIs
+   * are sent in an HTML form.
+   * @param directPost The new value for the setting.
+   */
+  public void setDirectPost(boolean directPost) {
+    this.directPost = directPost;
+  }
+
+  /**
+   * Retrieve the setting for how queries are sent with POST.
+   * @return <code>true</code> if queries are sent directly in the body of a POST.
+   */
+  public boolean getDirectPost() {
+    return directPost;
+  }
+
+  /**
+   * Sets the executor that runs asynchronous queries on this connection.
+   * @param executor The executor to use, or <code>null</code> to use the
+   *        executor that is shared by all connections.
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Gets the executor that runs asynchronous queries on this connection.
+   * Unless one has been set, this is a pool of daemon threads shared by all
+   * connections, which grows as needed and drops threads that are idle.
+   * @return The executor for asynchronous queries.
+   */
+  public Executor getExecutor() {
+    Executor e = executor;
+    return e != null ? e : getSharedExecutor();
+  }
+
+  /**
+   * Sets a cache for the results of queries on this connection. A cache may be
+   * shared by several connections. Results that are streamed are not stored in
+   * the cache, but are still read from it. Expired results are revalidated with
+   * a conditional request if the endpoint sent an ETag or Last-Modified header.
+   * @param cache The cache to use, or <code>null</code> to not cache results.
+   */
+  public void setCache(QueryCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Gets the cache for the results of queries on this connection.
+   * @return The cache, or <code>null</code> if results are not cached.
+   */
+  public QueryCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Changes whether identical queries are collapsed. When set, a query that is
+   * already being executed, with the same graphs, is not sent again. Instead the
+   * caller waits for the results of the first query, and gets its own cursor over
+   * them. Queries are collapsed across all connections sharing a cache.
+   * Statements with forward-only results always send their own queries.
+   * @param coalescing The new value for the setting.
+   */
+  public void setCoalescing(boolean coalescing) {
+    this.coalescing = coalescing;
+  }
+
+  /**
+   * Retrieve whether identical queries are collapsed.
+   * @return <code>true</code> if identical queries in flight share a single request.
+   */
+  public boolean getCoalescing() {
+    return coalescing;
+  }
+
+  /**
+   * Sets the policy for retrying queries after transient failures.
+   * Retries share the query timeout of the statement.
+   * @param retryPolicy The policy to use, or <code>null</code> to not retry queries.
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
+  }
+
+  /**
+   * Gets the policy for retrying queries after transient failures.
+   * @return The policy, or <code>null</code> if queries are not retried.
+   */
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  /**
+   * Sets the policy for hedging requests that are slow to respond. When set, a
+   * duplicate request is sent for a query that has not received a response within
+   * a percentile of recent response times, and the first response is used. This
+   * lowers the tail latency of queries, at the cost of more requests to the endpoint.
+   * Requests are sent from the executor for the connection while hedging is on.
+   * @param hedgePolicy The policy to use, or <code>null</code> to not hedge requests.
+   */
+  public void setHedgePolicy(HedgePolicy hedgePolicy) {
+    this.hedgePolicy = hedgePolicy;
+  }
+
+  /**
+   * Gets the policy for hedging requests that are slow to respond.
+   * @return The policy, or <code>null</code> if requests are not hedged.
+   */
+  public HedgePolicy getHedgePolicy() {
+    return hedgePolicy;
+  }
+
+  /**
+   * Sets a circuit breaker for the endpoint. While the circuit is open, queries fail
+   * immediately with a {@link RejectedException} instead of being sent. A breaker may
+   * be shared by every connection to the same endpoint.
+   * @param circuitBreaker The breaker to use, or <code>null</code> for no breaker.
+   */
+  public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Gets the circuit breaker for the endpoint.
+   * @return The breaker, or <code>null</code> if there is none.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * Sets a limit on the requests in flight to the endpoint. Requests over the limit wait
+   * for a place, and fail with a {@link RejectedException} if there is no place in time.
+   * A limiter may be shared by every connection to the same endpoint.
+   * @param limiter The limiter to use, or <code>null</code> for no limit.
+   */
+  public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+    this.limiter = limiter;
+  }
+
+  /**
+   * Gets the limit on the requests in flight to the endpoint.
+   * @return The limiter, or <code>null</code> if there is no limit.
+   */
+  public ConcurrencyLimiter getConcurrencyLimiter() {
+    return limiter;
+  }
+
+  /**
+   * Sets a dictionary to share identical terms across all the results of this connection.
+   * This saves memory when many results are held at once, such as in a result cache, and
+   * repeat the same terms. By default each result only shares terms within itself.
+   * @param termDictionary The dictionary to use, or <code>null</code> for a dictionary per result.
+   */
+  public void setTermDictionary(TermDictionary termDictionary) {
+    this.termDictionary = termDictionary;
+  }
+
+  /**
+   * Gets the dictionary that shares identical terms across all the results of this connection.
+   * @return The dictionary, or <code>null</code> if each result has its own.
+   */
+  public TermDictionary getTermDictionary() {
+    return termDictionary;
+  }
+
+  /**
+   * Gets the replicas that requests are spread across. This can be used to change
+   * how replicas are chosen, and when failing replicas are ejected.
+   * @return The replicas, or <code>null</code> if this connection has a single endpoint.
+   */
+  public ReplicaSet getReplicaSet() {
+    return replicas;
+  }
+
   /**
    * Retrieve the expect-continue value.
    * @return The boolean flag that indicates this state.
@@ -182,6 +548,35 @@ public class Connection implements GraphURILists, java.sql.Connection {
     return soTimeout;
   }
 
+  /**
+   * Retrieve the current connection timeout value.
+   * @return the connection timeout value in milliseconds.
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Sets the result formats to request ahead of all others. All other formats that
+   * can be parsed are still accepted, ranked by how quickly they can be parsed.
+   * Statements with their own preferred formats override these.
+   * @param mimeTypes The media types to prefer, most preferred first.
+   * @throws IllegalArgumentException If one of the media types cannot be parsed.
+   */
+  public void setPreferredFormats(String... mimeTypes) {
+    List<String> formats = Arrays.asList(mimeTypes);
+    acceptHeader = ResultBuilder.acceptHeader(formats);
+    preferredFormats = formats;
+  }
+
+  /**
+   * Get the result formats that are requested ahead of all others.
+   * @return The preferred media types, most preferred first.
+   */
+  public List<String> getPreferredFormats() {
+    return Collections.unmodifiableList(preferredFormats);
+  }
+
   /**
    * Set the default graph for the connection to use.
    * @param u the default graph to use.
@@ -333,9 +728,10 @@ public class Connection implements GraphURILists, java.sql.Connection {
   }
 
   /**
-   * Closes any held resources.
+   * Closes any held resources, including the transport.
    */
-  public void close() throws SparqlException {
+  public synchronized void close() throws SparqlException {
+    if (closed) return;
     try {
       if (contentStream != null) {
         contentStream.close();
@@ -345,6 +741,7 @@ public class Connection implements GraphURILists, java.sql.Connection {
       throw new SparqlException("Error closing connection", e);
     } finally {
       closed = true;
+      transport.close();
     }
   }
 
@@ -358,33 +755,372 @@ public class Connection implements GraphURILists, java.sql.Connection {
 
   /**
    * Execute a statement on the endpoint represented by this connection.
+   * The query can be cancelled, and is limited by the query timeout of the statement,
+   * until the result set is returned. Forward only results are streamed after this,
+   * and reading them is only limited by the socket timeout.
    * @param The statement to execute.
+   * @param query The query to execute.
+   * @param exec The execution of the query, begun on the statement. This is ended when the query returns.
    * @return The ResultSet for the query.
+   * @throws QueryTimeoutException If the query timeout passed before the results were available.
+   * @throws CancelledException If the statement was cancelled before the results were available.
    */
-  ResultSet executeQuery(Statement stmt, String query) throws SparqlException, IOException {
-    HttpClient client = getHttpClient();
+  ResultSet executeQuery(Statement stmt, String query, Execution exec) throws SparqlException, IOException {
+    try {
+      if (closed) throw new SparqlException("Connection is closed");
+      return executeTracked(stmt, query, exec);
+    } catch (SparqlException e) {
+      SparqlException reason = exec.explain(e);
+      throw reason != null ? reason : e;
+    } catch (IOException e) {
+      SparqlException reason = exec.explain(e);
+      if (reason != null) throw reason;
+      throw e;
+    } finally {
+      stmt.end(exec);
+    }
+  }
 
-    HttpUriRequest req;
+  /**
+   * Execute a statement, tracking the requests it sends.
+   * @param stmt The statement to execute.
+   * @param query The query to execute.
+   * @param exec The execution of the query on the statement.
+   * @return The ResultSet for the query.
+   */
+  private ResultSet executeTracked(final Statement stmt, final String query, final Execution exec) throws SparqlException, IOException {
+    final String graphs = graphParams(stmt);
+    final QueryCache cache = this.cache;
+    boolean coalesce = coalescing && !stmt.isForwardOnly();
+    if (cache == null) {
+      if (!coalesce) return fetch(null, null, null, stmt, graphs, query, exec);
+      final Execution shared = new Execution(0);
+      CachedResult result = flights.execute(QueryCache.key(endpoint, graphs, query), new Callable<CachedResult>() {
+        public CachedResult call() throws Exception {
+          return share(fetch(null, null, null, stmt, graphs, query, shared));
+        }
+      }, exec, getExecutor(), abandon(shared));
+      return result.newResultSet(stmt);
+    }
+
+    final String key = QueryCache.key(endpoint, graphs, query);
+    final QueryCache.Entry entry = cache.get(key);
+    if (entry != null && !entry.isExpired()) {
+      if (entry.isStale() && entry.startRefresh()) refresh(cache, key, entry, stmt, graphs, query);
+      return entry.getResult().newResultSet(stmt);
+    }
+    if (!coalesce) return fetch(cache, key, entry, stmt, graphs, query, exec);
+    final Execution shared = new Execution(0);
+    CachedResult result = cache.getInFlight().execute(key, new Callable<CachedResult>() {
+      public CachedResult call() throws Exception {
+        return share(fetch(cache, key, entry, stmt, graphs, query, shared));
+      }
+    }, exec, getExecutor(), abandon(shared));
+    return result.newResultSet(stmt);
+  }
+
+  /**
+   * Copies results so they can be shared by several callers.
+   * @param rs The results to share.
+   * @return An immutable copy of the results.
+   * @throws InternalException If the results are not held in memory.
+   */
+  private static CachedResult share(ResultSet rs) throws SparqlException {
+    CachedResult shared = CachedResult.of(rs);
+    if (shared == null) {
+      rs.close();
+      throw new InternalException("Unable to share results that are not in memory");
+    }
+    return shared;
+  }
+
+  /**
+   * Creates the operation that stops a shared query once none of its callers are waiting for it.
+   * The shared query is not owned by any one caller, so each caller's own cancellation and
+   * timeout only end that caller's wait.
+   * @param shared The execution of the shared query.
+   * @return An operation that cancels the shared execution.
+   */
+  private static Runnable abandon(final Execution shared) {
+    return new Runnable() {
+      public void run() { shared.cancel(); }
+    };
+  }
+
+  /**
+   * Fetches the results of a query in the background, and stores them in the cache.
+   * Until this is complete, the stale results will continue to be used.
+   * @param cache The cache to store the results in.
+   * @param key The key for the query.
+   * @param entry The stale entry being refreshed.
+   * @param stmt The statement the query was executed on.
+   * @param graphs The graph parameters for the statement.
+   * @param query The query to send.
+   */
+  private void refresh(final QueryCache cache, final String key, final QueryCache.Entry entry,
+                       final Statement stmt, final String graphs, final String query) {
+    getExecutor().execute(new Runnable() {
+      public void run() {
+        try {
+          // results that were cached are in memory, so closing them only releases streamed results
+          fetch(cache, key, entry, stmt, graphs, query, new Execution(0)).close();
+        } catch (Exception e) {
+          // the stale results are used until a refresh succeeds
+        } finally {
+          entry.endRefresh();
+        }
+      }
+    });
+  }
 
-    String params = calcParams(stmt, query);
-    String u = endpoint.toString() + "?" + params;
-    if (u.length() > QUERY_LIMIT) {
-      // POST connection
-      URL url = endpoint;
+  /**
+   * Fetches the results of a query, retrying transient failures under the retry policy.
+   * If there are cached results with a validator then the request is made conditional,
+   * and the cached results are used again if the endpoint reports that they have not been
+   * modified. Requests can be aborted by the execution until the result set has been built.
+   * @param cache The cache to store the results in, or <code>null</code> if results are not cached.
+   * @param key The key for the query in the cache.
+   * @param entry The cached results for the query, or <code>null</code> if there are none.
+   * @param stmt The statement the query was executed on.
+   * @param graphs The graph parameters for the statement.
+   * @param query The query to send.
+   * @param exec The execution to track requests in.
+   * @return The ResultSet for the query.
+   */
+  private ResultSet fetch(QueryCache cache, String key, QueryCache.Entry entry, Statement stmt,
+                          String graphs, String query, Execution exec) throws SparqlException, IOException {
+    RetryPolicy policy = retryPolicy;
+    HedgePolicy hedging = hedgePolicy;
+    for (int attempt = 1; ; attempt++) {
+      boolean last = policy == null || attempt >= policy.getMaxAttempts();
+      Replica replica = replicas == null ? null : replicas.choose();
+      HttpUriRequest req = createRequest(replica, stmt, graphs, query, entry);
+      long delay = -1;
+      exec.track(req);
+      Admission admission = null;
+      ResultSet result = null;
       try {
-        req = new HttpPost(url.toURI());
-      } catch (URISyntaxException e) {
-        throw new SparqlException("Endpoint <" + url + "> not in an acceptable format", e);
+        admission = Admission.acquire(circuitBreaker, limiter, exec, endpoint.toString());
+        HttpResponse response = null;
+        try {
+          response = attempt(req, replica, stmt, graphs, query, entry, admission, exec, hedging);
+        } catch (IOException e) {
+          if (!last && exec.explain(e) == null && policy.isRetryable(e)) delay = policy.getBackoff(attempt);
+          if (delay < 0 || delay >= exec.remaining()) throw e;
+        }
+        if (response != null) {
+          if (!last) delay = policy.getDelay(response.getStatusLine().getStatusCode(), headerValue(response, RETRY_AFTER), attempt);
+          if (delay < 0 || delay >= exec.remaining()) {
+            result = respond(cache, key, entry, response, stmt, admission, exec);
+            return result;
+          }
+          HttpEntity body = response.getEntity();
+          if (body != null) body.consumeContent();
+        }
+      } finally {
+        // streamed results keep their place until the stream is read or closed
+        if (admission != null && !(result instanceof StreamingBindingsResultSet)) admission.end();
+        exec.untrackAll();
       }
-      ((HttpPost)req).setEntity((HttpEntity)new StringEntity(calcParams(stmt, query)));
-    } else {
-      // GET connection
-      req = new HttpGet(u);
+      exec.pause(delay);
+    }
+  }
+
+  /**
+   * Makes one attempt at sending a request, and records the outcome for the circuit breaker
+   * and the concurrency limit. Communication errors, server errors and 429 responses count
+   * as failures, and aborted requests are not counted.
+   * @param req The request to send. This is already tracked in the execution.
+   * @param replica The replica the request is for, or <code>null</code> if there are no replicas.
+   * @param stmt The statement the query was executed on.
+   * @param graphs The graph parameters for the statement.
+   * @param query The query to send.
+   * @param entry The cached results for the query, or <code>null</code> if there are none.
+   * @param admission The place for the request under the breaker and the limit.
+   * @param exec The execution to track requests in.
+   * @param hedging The policy for hedging, or <code>null</code> if requests are not hedged.
+   * @return The response from the endpoint.
+   */
+  private HttpResponse attempt(HttpUriRequest req, Replica replica, Statement stmt, String graphs, String query,
+                               QueryCache.Entry entry, Admission admission, Execution exec, HedgePolicy hedging) throws SparqlException, IOException {
+    try {
+      HttpResponse response = hedging == null ? execute(req, replica) : hedge(req, replica, stmt, graphs, query, entry, exec, hedging);
+      int code = response.getStatusLine().getStatusCode();
+      admission.record(code >= SERVER_ERROR_MIN || code == 429);
+      return response;
+    } catch (IOException e) {
+      if (exec.explain(e) == null) admission.record(true);
+      throw e;
+    }
+  }
+
+  /**
+   * Sends a request, and a duplicate request if there is no response by the delay of the
+   * hedging policy. The first response is returned, and any other request is aborted.
+   * Requests are tracked in the execution until the attempt is complete. The duplicate is
+   * only sent if the circuit breaker allows it and the concurrency limit has a place free
+   * right away, and it goes to a different replica from the first request. Its place is
+   * given back once the race is over, and the response that wins is read under the place
+   * of the first request.
+   * @param req The first request to send. This is already tracked in the execution.
+   * @param replica The replica the first request is for, or <code>null</code> if there are no replicas.
+   * @param stmt The statement the query was executed on.
+   * @param graphs The graph parameters for the statement.
+   * @param query The query to send.
+   * @param entry The cached results for the query, or <code>null</code> if there are none.
+   * @param exec The execution to track requests in.
+   * @param policy The policy for hedging.
+   * @return The first response from the endpoint.
+   */
+  private HttpResponse hedge(HttpUriRequest req, Replica replica, Statement stmt, String graphs, String query,
+                             QueryCache.Entry entry, Execution exec, HedgePolicy policy) throws SparqlException, IOException {
+    CompletionService<HttpResponse> race = new ExecutorCompletionService<HttpResponse>(getExecutor());
+    List<HttpUriRequest> sent = new ArrayList<HttpUriRequest>(2);
+    List<Future<HttpResponse>> responses = new ArrayList<Future<HttpResponse>>(2);
+    sent.add(req);
+    responses.add(race.submit(timed(req, replica, policy)));
+    Throwable failure = null;
+    Admission extra = null;
+    try {
+      Future<HttpResponse> done = race.poll(policy.getDelay(), TimeUnit.MILLISECONDS);
+      if (done == null) extra = Admission.tryAcquire(circuitBreaker, limiter);
+      Replica other = extra == null || replicas == null ? null : replicas.choose(replica);
+      if (extra != null && replicas != null && other == null) {
+        // no other replica to send the duplicate to
+        extra.end();
+        extra = null;
+      }
+      if (extra != null) {
+        HttpUriRequest duplicate = createRequest(other, stmt, graphs, query, entry);
+        exec.track(duplicate);
+        sent.add(duplicate);
+        responses.add(race.submit(timed(duplicate, other, policy)));
+      }
+      for (int pending = sent.size(); pending > 0; pending--) {
+        if (done == null) done = race.take();
+        try {
+          HttpResponse response = done.get();
+          // the first response wins, and the other request is abandoned
+          HttpUriRequest winner = sent.get(responses.indexOf(done));
+          for (HttpUriRequest r: sent) {
+            if (r != winner) r.abort();
+          }
+          return response;
+        } catch (ExecutionException e) {
+          if (failure == null) failure = e.getCause();
+        }
+        done = null;
+      }
+    } catch (InterruptedException e) {
+      for (HttpUriRequest r: sent) r.abort();
+      Thread.currentThread().interrupt();
+      throw new SparqlException("Interrupted while waiting for a response", e);
+    } finally {
+      if (extra != null) extra.end();
+    }
+    if (failure instanceof SparqlException) throw (SparqlException)failure;
+    if (failure instanceof IOException) throw (IOException)failure;
+    if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+    if (failure instanceof Error) throw (Error)failure;
+    throw new InternalException("Unexpected error sending request", failure);
+  }
+
+  /**
+   * Wraps a request to be sent from another thread, recording how long it takes to respond.
+   * @param req The request to send.
+   * @param replica The replica the request is for, or <code>null</code> if there are no replicas.
+   * @param policy The policy that tracks response times.
+   * @return An operation that sends the request.
+   */
+  private Callable<HttpResponse> timed(final HttpUriRequest req, final Replica replica, final HedgePolicy policy) {
+    return new Callable<HttpResponse>() {
+      public HttpResponse call() throws Exception {
+        long start = System.nanoTime();
+        HttpResponse response = execute(req, replica);
+        policy.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return response;
+      }
+    };
+  }
+
+  /**
+   * Builds the results of a query from a response, and stores them in the cache.
+   * The body of the response is read under the place the request holds, which is given
+   * back when a streamed result has been read or closed.
+   * @param cache The cache to store the results in, or <code>null</code> if results are not cached.
+   * @param key The key for the query in the cache.
+   * @param entry The cached results for the query, or <code>null</code> if there are none.
+   * @param response The response from the endpoint.
+   * @param stmt The statement the query was executed on.
+   * @param admission The place for the request under the breaker and the limit.
+   * @param exec The execution of the query.
+   * @return The ResultSet for the query.
+   */
+  private ResultSet respond(QueryCache cache, String key, QueryCache.Entry entry, HttpResponse response,
+                            Statement stmt, Admission admission, Execution exec) throws SparqlException, IOException {
+    if (entry != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+      HttpEntity body = response.getEntity();
+      if (body != null) body.consumeContent();
+      cache.revalidated(key, entry);
+      return entry.getResult().newResultSet(stmt);
     }
+    HttpEntity body = response.getEntity();
+    if (body != null) response.setEntity(admission.hold(body, exec));
+    ResultSet result = createResult(response, stmt);
+    if (cache != null) cache.put(key, result, headerValue(response, ETAG), headerValue(response, LAST_MODIFIED));
+    return result;
+  }
 
-    addHeaders(req);
+  /**
+   * Sends a request to a replica, and reports the outcome to the replica. Server errors
+   * and communication errors count against the replica, while aborted requests do not.
+   * @param req The request to send.
+   * @param replica The replica the request is for, or <code>null</code> if there are no replicas.
+   * @return The response from the replica.
+   */
+  private HttpResponse execute(HttpUriRequest req, Replica replica) throws SparqlException, IOException {
+    if (replica == null) return execute(req);
+    replica.started();
+    long start = System.nanoTime();
+    boolean reported = false;
+    try {
+      HttpResponse response = execute(req);
+      if (response.getStatusLine().getStatusCode() >= SERVER_ERROR_MIN) replica.failed();
+      else replica.succeeded(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      reported = true;
+      return response;
+    } catch (IOException e) {
+      if (!req.isAborted()) {
+        replica.failed();
+        reported = true;
+      }
+      throw e;
+    } finally {
+      if (!reported) replica.abandoned();
+    }
+  }
+
+  /**
+   * Sends a request through the transport.
+   * @param req The request to send.
+   * @return The response from the endpoint.
+   */
+  private HttpResponse execute(HttpUriRequest req) throws SparqlException, IOException {
+    try {
+      return transport.execute(req);
+    } catch (ClientProtocolException cpe) {
+      throw new InternalException("Error in protocol", cpe);
+    }
+  }
+
+  /**
+   * Builds a result set from a response, or throws an exception describing the failure.
+   * @param response The response from the endpoint.
+   * @param stmt The statement the query was executed on.
+   * @return The ResultSet for the query.
+   */
+  private ResultSet createResult(HttpResponse response, Statement stmt) throws SparqlException, IOException {
     try {
-      HttpResponse response = client.execute(req);
       StatusLine status = response.getStatusLine();
       int code = status.getStatusCode();
 
@@ -392,20 +1128,29 @@ public class Connection implements GraphURILists, java.sql.Connection {
         ResultBuilder builder = new ResultBuilder(response, stmt);
         return builder.createResult();
 
-      } else if (code >= CLIENT_ERROR_MIN && code >= CLIENT_ERROR_MAX) {
+      } else if (code >= CLIENT_ERROR_MIN && code <= CLIENT_ERROR_MAX) {
         throw new ClientException(status.getReasonPhrase(), code);
-      } else if (code >= SERVER_ERROR_MIN && code >= SERVER_ERROR_MAX) {
+      } else if (code >= SERVER_ERROR_MIN && code <= SERVER_ERROR_MAX) {
         throw new ServerException(status.getReasonPhrase(), code);
       } else {
         throw new UnhandledException(status.getReasonPhrase(), code);
       }
     } catch (UnsupportedEncodingException e) {
       throw new InternalException("Unabled to encode data", e);
-    } catch (ClientProtocolException cpe) {
-      throw new InternalException("Error in protocol", cpe);
     }
   }
 
+  /**
+   * Gets the value of a header in a response.
+   * @param response The response to read.
+   * @param name The name of the header.
+   * @return The value of the first header with the name, or <code>null</code> if there is none.
+   */
+  private static String headerValue(HttpResponse response, String name) {
+    Header h = response.getFirstHeader(name);
+    return h == null ? null : h.getValue();
+  }
+
   /**
    * Execute an update statement on the endpoint represented by this connection.
    * @param The statement to execute.
@@ -416,20 +1161,97 @@ public class Connection implements GraphURILists, java.sql.Connection {
   }
 
   /**
-   * Establish a client connection in HTTP
-   * @return A new client connection with parameters set for this object
+   * Creates the request for a query, made conditional on any validators for cached results.
+   * @param replica The replica to send the request to, or <code>null</code> if there are no replicas.
+   * @param stmt The statement being executed.
+   * @param graphs The graph parameters for the statement.
+   * @param query The query to send.
+   * @param entry The cached results for the query, or <code>null</code> if there are none.
+   * @return A new request.
+   */
+  private HttpUriRequest createRequest(Replica replica, Statement stmt, String graphs, String query, QueryCache.Entry entry) throws SparqlException, UnsupportedEncodingException {
+    HttpUriRequest req = createRequest(replica == null ? endpoint : replica.getEndpoint(), stmt, graphs, query);
+    if (entry != null) {
+      if (entry.getETag() != null) req.setHeader(IF_NONE_MATCH, entry.getETag());
+      if (entry.getLastModified() != null) req.setHeader(IF_MODIFIED_SINCE, entry.getLastModified());
+    }
+    return req;
+  }
+
+  /**
+   * Creates the request for a query. A GET is used if the URL will be short enough,
+   * otherwise the query is sent with POST.
+   * @param target The endpoint to send the request to.
+   * @param stmt The statement being executed.
+   * @param graphs The graph parameters for the statement.
+   * @param query The query to send.
+   * @return A new request.
+   */
+  private HttpUriRequest createRequest(URL target, Statement stmt, String graphs, String query) throws SparqlException, UnsupportedEncodingException {
+    String base = target.toString() + "?";
+    // encoding never shortens the query, so long queries are not encoded to find their length
+    if (base.length() + graphs.length() + QUERY_PARAM.length() + query.length() <= getLimit) {
+      String u = base + graphs + QUERY_PARAM + encode(query);
+      if (u.length() <= getLimit) {
+        HttpGet get = new HttpGet(u);
+        addHeaders(get, stmt);
+        return get;
+      }
+    }
+
+    HttpPost post;
+    if (directPost) {
+      // graph URIs go in the URL, without the trailing separator
+      String u = graphs.length() == 0 ? target.toString() : base + graphs.substring(0, graphs.length() - 1);
+      post = new HttpPost(toUri(u));
+      post.setEntity(new QueryEntity(query));
+    } else {
+      post = new HttpPost(toUri(target.toString()));
+      StringEntity form = new StringEntity(graphs + QUERY_PARAM + encode(query));
+      form.setContentType(FORM_ENCODED);
+      post.setEntity(form);
+    }
+    addHeaders(post, stmt);
+    return post;
+  }
+
+  /**
+   * Gets the executor shared by connections, creating it on first use.
+   * @return The shared executor.
    */
-  private HttpClient getHttpClient() {
-    HttpParams params = new BasicHttpParams();
-    params.setBooleanParameter(CoreProtocolPNames.USE_EXPECT_CONTINUE, expectContinue);
-    params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, soTimeout);
-    return new DefaultHttpClient(conManager, params);
+  private static synchronized Executor getSharedExecutor() {
+    if (sharedExecutor == null) {
+      sharedExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "scon-query-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return sharedExecutor;
+  }
+
+  /**
+   * Converts a URL into a URI.
+   * @param u The text of the URL.
+   * @return The URI for the URL.
+   * @throws SparqlException If the URL is not a valid URI.
+   */
+  private static URI toUri(String u) throws SparqlException {
+    try {
+      return new URI(u);
+    } catch (URISyntaxException e) {
+      throw new SparqlException("Endpoint <" + u + "> not in an acceptable format", e);
+    }
   }
 
   /**
-   * Calculate the string that will contain all the parameters.
+   * Calculate the string that will contain all the graph parameters.
+   * Each parameter is followed by a separator, so the query parameter can be appended.
    */
-  private String calcParams(Statement stmt, String query) {
+  private String graphParams(Statement stmt) {
     StringBuilder params = new StringBuilder();
     List<URI> graphURIs = stmt.getDefaultGraphs();
     if (!graphURIs.isEmpty()) {
@@ -444,39 +1266,27 @@ public class Connection implements GraphURILists, java.sql.Connection {
     } else if (!namedGraphs.isEmpty()) {
       for (URI u: namedGraphs) params.append("named-graph-uri=").append(enc(u)).append("&");
     }
-    params.append("query=").append(encode(query));
     return params.toString();
   }
 
   /**
-   * Set up some basic properties for a thread-safe client connection factory.
-   * @return A new connection manager
-   */
-  private ClientConnectionManager getConnectionManager() {
-    HttpParams params = new BasicHttpParams();
-    ConnManagerParams.setMaxTotalConnections(params, 200);
-    ConnPerRouteBean connPerRoute = new ConnPerRouteBean(20);
-
-    int port = endpoint.getPort();
-    if (port == -1) port = endpoint.getDefaultPort();
-    HttpHost host = new HttpHost(endpoint.getHost(), port);
-
-    connPerRoute.setMaxForRoute(new HttpRoute(host), 50);
-    ConnManagerParams.setMaxConnectionsPerRoute(params, connPerRoute);
-    SchemeRegistry schemeRegistry = new SchemeRegistry();
-    schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-    schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
-    return new ThreadSafeClientConnManager(params, schemeRegistry);
-  }
-
-  /**
-   * Adds all client headers to the request
+   * Adds all client headers to the request, and an Accept header
+   * if the client has not provided one. An Accept-Encoding header
+   * is also added if compression is on, and the client has not provided one.
    * @param r The request to set the headers on.
+   * @param stmt The statement the request is for.
    */
-  private void addHeaders(HttpRequest r) {
+  private void addHeaders(HttpRequest r, Statement stmt) {
     for (Map.Entry<Object,Object> kv: clientParams.entrySet()) {
       r.addHeader(kv.getKey().toString(), kv.getValue().toString());
     }
+    if (!clientParams.containsKey(ACCEPT)) {
+      String accept = stmt.getAcceptHeader();
+      r.addHeader(ACCEPT, accept != null ? accept : acceptHeader);
+    }
+    if (compression && !clientParams.containsKey(ACCEPT_ENCODING)) {
+      r.addHeader(ACCEPT_ENCODING, ResultBuilder.ACCEPT_ENCODING);
+    }
   }
 
   /**
@@ -610,9 +1420,21 @@ public class Connection implements GraphURILists, java.sql.Connection {
     // no-op
   }
 
+  /**
+   * Creates a statement for a given type of result set. Forward only statements
+   * stream their results from the endpoint as the cursor is moved.
+   * @param resultSetType Either {@link java.sql.ResultSet#TYPE_FORWARD_ONLY} or
+   *        {@link java.sql.ResultSet#TYPE_SCROLL_INSENSITIVE}.
+   * @param resultSetConcurrency Must be {@link java.sql.ResultSet#CONCUR_READ_ONLY}.
+   * @return the new statement.
+   */
   @Override
-  public java.sql.Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
-    throw new SQLFeatureNotSupportedException();
+  public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+    if (resultSetConcurrency != ResultSet.CONCUR_READ_ONLY) throw new SQLFeatureNotSupportedException("Results are read only");
+    if (resultSetType != ResultSet.TYPE_FORWARD_ONLY && resultSetType != ResultSet.TYPE_SCROLL_INSENSITIVE) {
+      throw new SQLFeatureNotSupportedException("Unsupported result set type: " + resultSetType);
+    }
+    return new Statement(this, resultSetType);
   }
 
   @Override
@@ -666,8 +1488,9 @@ public class Connection implements GraphURILists, java.sql.Connection {
   }
 
   @Override
-  public java.sql.Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-    throw new SQLFeatureNotSupportedException();
+  public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+    if (resultSetHoldability != ResultSet.HOLD_CURSORS_OVER_COMMIT) throw new SQLFeatureNotSupportedException();
+    return createStatement(resultSetType, resultSetConcurrency);
   }
 
   @Override
@@ -719,9 +1542,27 @@ public class Connection implements GraphURILists, java.sql.Connection {
     throw new SQLFeatureNotSupportedException();
   }
 
+  /**
+   * Tests if the endpoint can be reached, by sending it a trivial ASK query.
+   * The query is always sent, and never answered from the cache.
+   * @param timeout The time to wait for the endpoint, in seconds. 0 for no limit.
+   * @return <code>true</code> if the connection is open and the endpoint answered.
+   */
   @Override
   public boolean isValid(int timeout) throws SQLException {
-    return !closed && contentStream != null;
+    if (timeout < 0) throw new SparqlException("Timeout may not be negative");
+    if (closed) return false;
+    Execution exec = new Execution(timeout * 1000L);
+    try {
+      fetch(null, null, null, createStatement(), "", VALIDATION_QUERY, exec).close();
+      return true;
+    } catch (SQLException e) {
+      return false;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      exec.end();
+    }
   }
 
   /**
@@ -773,4 +1614,124 @@ public class Connection implements GraphURILists, java.sql.Connection {
     throw new SQLFeatureNotSupportedException();
   }
 
+  /**
+   * A copy of the settings on a connection, so they can be put back after other
+   * code has changed them. Pooled connections use this to give each borrower
+   * the settings the physical connection was created with.
+   */
+  static class Settings {
+
+    /** The expect-continue setting. */
+    private final boolean expectContinue;
+
+    /** The compression setting. */
+    private final boolean compression;
+
+    /** The maximum length of a GET request. */
+    private final int getLimit;
+
+    /** The direct POST setting. */
+    private final boolean directPost;
+
+    /** The executor set on the connection, or null for the shared executor. */
+    private final Executor executor;
+
+    /** The query cache, or null. */
+    private final QueryCache cache;
+
+    /** The coalescing setting. */
+    private final boolean coalescing;
+
+    /** The retry policy, or null. */
+    private final RetryPolicy retryPolicy;
+
+    /** The hedge policy, or null. */
+    private final HedgePolicy hedgePolicy;
+
+    /** The circuit breaker, or null. */
+    private final CircuitBreaker circuitBreaker;
+
+    /** The concurrency limiter, or null. */
+    private final ConcurrencyLimiter limiter;
+
+    /** The shared term dictionary, or null. */
+    private final TermDictionary termDictionary;
+
+    /** The socket timeout. */
+    private final int soTimeout;
+
+    /** The connection timeout. */
+    private final int connectTimeout;
+
+    /** The default graphs. */
+    private final List<URI> defaultGraphs;
+
+    /** The named graphs. */
+    private final List<URI> namedGraphs;
+
+    /** The client headers. */
+    private final Properties clientParams;
+
+    /** The preferred result formats. */
+    private final List<String> preferredFormats;
+
+    /** The Accept header built from the preferred formats. */
+    private final String acceptHeader;
+
+    /**
+     * Copies the current settings of a connection.
+     * @param c The connection to copy the settings from.
+     */
+    Settings(Connection c) {
+      expectContinue = c.expectContinue;
+      compression = c.compression;
+      getLimit = c.getLimit;
+      directPost = c.directPost;
+      executor = c.executor;
+      cache = c.cache;
+      coalescing = c.coalescing;
+      retryPolicy = c.retryPolicy;
+      hedgePolicy = c.hedgePolicy;
+      circuitBreaker = c.circuitBreaker;
+      limiter = c.limiter;
+      termDictionary = c.termDictionary;
+      soTimeout = c.soTimeout;
+      connectTimeout = c.connectTimeout;
+      defaultGraphs = new ArrayList<URI>(c.defaultGraphs);
+      namedGraphs = new ArrayList<URI>(c.namedGraphs);
+      clientParams = new Properties();
+      clientParams.putAll(c.clientParams);
+      preferredFormats = c.preferredFormats;
+      acceptHeader = c.acceptHeader;
+    }
+
+    /**
+     * Puts the copied settings back on a connection.
+     * @param c The connection to restore the settings on.
+     */
+    void restore(Connection c) {
+      if (c.expectContinue != expectContinue) c.setExpectContinue(expectContinue);
+      if (c.soTimeout != soTimeout) c.setSoTimeout(soTimeout);
+      if (c.connectTimeout != connectTimeout) c.setConnectTimeout(connectTimeout);
+      c.compression = compression;
+      c.getLimit = getLimit;
+      c.directPost = directPost;
+      c.executor = executor;
+      c.cache = cache;
+      c.coalescing = coalescing;
+      c.retryPolicy = retryPolicy;
+      c.hedgePolicy = hedgePolicy;
+      c.circuitBreaker = circuitBreaker;
+      c.limiter = limiter;
+      c.termDictionary = termDictionary;
+      c.defaultGraphs = new ArrayList<URI>(defaultGraphs);
+      c.namedGraphs = new ArrayList<URI>(namedGraphs);
+      Properties params = new Properties();
+      params.putAll(clientParams);
+      c.clientParams = params;
+      c.preferredFormats = preferredFormats;
+      c.acceptHeader = acceptHeader;
+    }
+  }
+
 }
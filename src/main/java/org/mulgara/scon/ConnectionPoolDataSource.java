@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon;
+
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * A source of physical connections to an endpoint, for connection pools such as
+ * those in application servers. Each physical connection borrows the HTTP connection
+ * pool shared by every connection to the same host, so creating one is cheap.
+ * The connection properties are those read by {@link Driver#connect(String, Properties)}.
+ */
+public class ConnectionPoolDataSource implements javax.sql.ConnectionPoolDataSource {
+
+  /** The URL of the endpoint. */
+  private String url = null;
+
+  /** The properties for new connections. */
+  private Properties properties = new Properties();
+
+  /** The writer for log messages, or null if there is none. */
+  private PrintWriter logWriter = null;
+
+  /** The time to wait for a connection, in seconds. This is not used, as connecting does not wait. */
+  private int loginTimeout = 0;
+
+  /**
+   * Creates a source with no endpoint. The endpoint must be set before connecting.
+   */
+  public ConnectionPoolDataSource() {
+  }
+
+  /**
+   * Creates a source of connections to an endpoint.
+   * @param url The URL of the endpoint.
+   */
+  public ConnectionPoolDataSource(String url) {
+    this.url = url;
+  }
+
+  /**
+   * Sets the endpoint to connect to.
+   * @param url The URL of the endpoint.
+   */
+  public void setUrl(String url) {
+    this.url = url;
+  }
+
+  /**
+   * Gets the endpoint to connect to.
+   * @return The URL of the endpoint.
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * Sets a property for new connections, such as {@link Driver#MAX_CONNECTIONS} or {@link Driver#REPLICAS}.
+   * @param name The name of the property.
+   * @param value The value of the property.
+   */
+  public void setProperty(String name, String value) {
+    properties.setProperty(name, value);
+  }
+
+  /**
+   * Sets all of the properties for new connections.
+   * @param properties The properties. These are copied.
+   */
+  public void setProperties(Properties properties) {
+    Properties p = new Properties();
+    p.putAll(properties);
+    this.properties = p;
+  }
+
+  /**
+   * Gets the properties for new connections.
+   * @return A copy of the properties.
+   */
+  public Properties getProperties() {
+    Properties p = new Properties();
+    p.putAll(properties);
+    return p;
+  }
+
+  /**
+   * Creates a physical connection to the endpoint.
+   * @see javax.sql.ConnectionPoolDataSource#getPooledConnection()
+   */
+  public PooledConnection getPooledConnection() throws SQLException {
+    return new PooledConnection(connect(properties));
+  }
+
+  /**
+   * Creates a physical connection to the endpoint, with a user and password.
+   * These are passed to the driver as the <code>user</code> and <code>password</code> properties.
+   * @see javax.sql.ConnectionPoolDataSource#getPooledConnection(java.lang.String, java.lang.String)
+   */
+  public PooledConnection getPooledConnection(String user, String password) throws SQLException {
+    Properties p = getProperties();
+    if (user != null) p.setProperty("user", user);
+    if (password != null) p.setProperty("password", password);
+    return new PooledConnection(connect(p));
+  }
+
+  /** @see javax.sql.CommonDataSource#getLogWriter() */
+  public PrintWriter getLogWriter() throws SQLException {
+    return logWriter;
+  }
+
+  /** @see javax.sql.CommonDataSource#setLogWriter(java.io.PrintWriter) */
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    logWriter = out;
+  }
+
+  /** @see javax.sql.CommonDataSource#setLoginTimeout(int) */
+  public void setLoginTimeout(int seconds) throws SQLException {
+    loginTimeout = seconds;
+  }
+
+  /** @see javax.sql.CommonDataSource#getLoginTimeout() */
+  public int getLoginTimeout() throws SQLException {
+    return loginTimeout;
+  }
+
+  /**
+   * Connects to the endpoint.
+   * @param info The properties for the connection.
+   * @return A new physical connection.
+   * @throws SparqlException If no endpoint has been set.
+   */
+  private Connection connect(Properties info) throws SQLException {
+    if (url == null) throw new SparqlException("No endpoint has been set");
+    return new Driver().connect(url, info);
+  }
+}
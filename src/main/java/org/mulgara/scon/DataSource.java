@@ -0,0 +1,658 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon;
+
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+
+/**
+ * A pool of connections to an endpoint. Physical connections are taken from a
+ * {@link javax.sql.ConnectionPoolDataSource}, and lightweight logical connections are
+ * handed out over them. Closing a logical connection puts its physical connection back
+ * in the pool. Connections that have been idle for a while are checked with a trivial
+ * ASK query before they are handed out, and connections that are held for too long can
+ * be reported as leaks, along with where they were borrowed.
+ * <p>
+ * Settings made on a borrowed connection, such as graphs, timeouts or a cache or retry
+ * policy, are undone when it is returned, so each borrower starts with the settings
+ * the physical connection was created with.
+ * </p>
+ */
+public class DataSource implements javax.sql.DataSource {
+
+  /** The logger for connections that may have leaked. */
+  private static final Logger logger = Logger.getLogger(DataSource.class.getName());
+
+  /** The default maximum number of connections, in use or idle. */
+  public static final int DEFAULT_MAX_TOTAL = 8;
+
+  /** The default maximum number of idle connections. */
+  public static final int DEFAULT_MAX_IDLE = 8;
+
+  /** The default time to wait for a connection, in milliseconds. */
+  public static final long DEFAULT_MAX_WAIT = 30000;
+
+  /** The default time a connection may be idle before it is checked, in milliseconds. */
+  public static final long DEFAULT_VALIDATION_INTERVAL = 5000;
+
+  /** The default time a connection may be idle before it is closed, in milliseconds. */
+  public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+  /** The source of physical connections. */
+  private final javax.sql.ConnectionPoolDataSource source;
+
+  /** Hears when logical connections are closed. */
+  private final ConnectionEventListener listener = new Listener();
+
+  /** The idle physical connections, most recently used first. */
+  private final LinkedList<Idle> idle = new LinkedList<Idle>();
+
+  /** The physical connections in use, and when they were borrowed. */
+  private final Map<javax.sql.PooledConnection,Borrow> active = new IdentityHashMap<javax.sql.PooledConnection,Borrow>();
+
+  /** The number of physical connections, in use, idle or being created. */
+  private int total = 0;
+
+  /** The maximum number of physical connections. */
+  private int maxTotal = DEFAULT_MAX_TOTAL;
+
+  /** The maximum number of idle physical connections. */
+  private int maxIdle = DEFAULT_MAX_IDLE;
+
+  /** The number of idle physical connections that are kept, regardless of how long they are idle. */
+  private int minIdle = 0;
+
+  /** The time to wait for a connection, in milliseconds. */
+  private long maxWait = DEFAULT_MAX_WAIT;
+
+  /** The time a connection may be idle before it is checked, in milliseconds. */
+  private long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+
+  /** The time to wait for the endpoint when checking a connection, in seconds. */
+  private int validationTimeout = 1;
+
+  /** The time a connection may be idle before it is closed, in milliseconds. */
+  private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+  /** The time a connection may be held before it is reported as a leak, in milliseconds. 0 for no reports. */
+  private long leakThreshold = 0;
+
+  /** The number of connections that have been reported as leaks. */
+  private int leaks = 0;
+
+  /** The writer for log messages, or null if there is none. */
+  private PrintWriter logWriter = null;
+
+  /** Set when the pool has been closed. */
+  private boolean closed = false;
+
+  /**
+   * Creates a pool with no endpoint. The endpoint must be set before connecting.
+   */
+  public DataSource() {
+    this(new ConnectionPoolDataSource());
+  }
+
+  /**
+   * Creates a pool of connections to an endpoint.
+   * @param url The URL of the endpoint.
+   */
+  public DataSource(String url) {
+    this(new ConnectionPoolDataSource(url));
+  }
+
+  /**
+   * Creates a pool of connections from a source of physical connections.
+   * @param source The source of physical connections.
+   */
+  public DataSource(javax.sql.ConnectionPoolDataSource source) {
+    this.source = source;
+  }
+
+  /**
+   * Sets the endpoint to connect to.
+   * @param url The URL of the endpoint.
+   * @throws IllegalStateException If the pool was created over a different source of connections.
+   */
+  public void setUrl(String url) {
+    sconSource().setUrl(url);
+  }
+
+  /**
+   * Gets the endpoint to connect to.
+   * @return The URL of the endpoint.
+   * @throws IllegalStateException If the pool was created over a different source of connections.
+   */
+  public String getUrl() {
+    return sconSource().getUrl();
+  }
+
+  /**
+   * Sets a property for new connections, such as {@link Driver#REPLICAS}.
+   * @param name The name of the property.
+   * @param value The value of the property.
+   * @throws IllegalStateException If the pool was created over a different source of connections.
+   */
+  public void setProperty(String name, String value) {
+    sconSource().setProperty(name, value);
+  }
+
+  /**
+   * Sets the maximum number of connections, in use or idle.
+   * @param maxTotal The maximum number of physical connections.
+   */
+  public synchronized void setMaxTotal(int maxTotal) {
+    if (maxTotal < 1) throw new IllegalArgumentException("Pool must allow at least one connection");
+    this.maxTotal = maxTotal;
+    notifyAll();
+  }
+
+  /**
+   * Gets the maximum number of connections, in use or idle.
+   * @return The maximum number of physical connections.
+   */
+  public synchronized int getMaxTotal() {
+    return maxTotal;
+  }
+
+  /**
+   * Sets the maximum number of idle connections. Connections returned to a full pool are closed.
+   * @param maxIdle The maximum number of idle connections.
+   */
+  public synchronized void setMaxIdle(int maxIdle) {
+    if (maxIdle < 0) throw new IllegalArgumentException("Maximum idle connections may not be negative");
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * Gets the maximum number of idle connections.
+   * @return The maximum number of idle connections.
+   */
+  public synchronized int getMaxIdle() {
+    return maxIdle;
+  }
+
+  /**
+   * Sets the number of connections to keep, even when they are idle for longer than the idle timeout.
+   * The pool is filled to this size when the first connection is requested.
+   * @param minIdle The minimum number of idle connections.
+   */
+  public synchronized void setMinIdle(int minIdle) {
+    if (minIdle < 0) throw new IllegalArgumentException("Minimum idle connections may not be negative");
+    this.minIdle = minIdle;
+  }
+
+  /**
+   * Gets the number of connections kept when they are idle.
+   * @return The minimum number of idle connections.
+   */
+  public synchronized int getMinIdle() {
+    return minIdle;
+  }
+
+  /**
+   * Sets the time to wait for a connection when the pool is exhausted.
+   * @param maxWait The time to wait, in milliseconds.
+   */
+  public synchronized void setMaxWait(long maxWait) {
+    if (maxWait < 0) throw new IllegalArgumentException("Wait may not be negative");
+    this.maxWait = maxWait;
+  }
+
+  /**
+   * Gets the time to wait for a connection when the pool is exhausted.
+   * @return The time to wait, in milliseconds.
+   */
+  public synchronized long getMaxWait() {
+    return maxWait;
+  }
+
+  /**
+   * Sets how long a connection may be idle before it is checked when it is borrowed.
+   * @param validationInterval The idle time, in milliseconds. 0 checks every connection.
+   */
+  public synchronized void setValidationInterval(long validationInterval) {
+    if (validationInterval < 0) throw new IllegalArgumentException("Interval may not be negative");
+    this.validationInterval = validationInterval;
+  }
+
+  /**
+   * Gets how long a connection may be idle before it is checked when it is borrowed.
+   * @return The idle time, in milliseconds.
+   */
+  public synchronized long getValidationInterval() {
+    return validationInterval;
+  }
+
+  /**
+   * Sets the time to wait for the endpoint when checking a connection.
+   * @param validationTimeout The time to wait, in seconds.
+   */
+  public synchronized void setValidationTimeout(int validationTimeout) {
+    if (validationTimeout < 0) throw new IllegalArgumentException("Timeout may not be negative");
+    this.validationTimeout = validationTimeout;
+  }
+
+  /**
+   * Gets the time to wait for the endpoint when checking a connection.
+   * @return The time to wait, in seconds.
+   */
+  public synchronized int getValidationTimeout() {
+    return validationTimeout;
+  }
+
+  /**
+   * Sets how long a connection may be idle before it is closed.
+   * @param idleTimeout The idle time, in milliseconds.
+   */
+  public synchronized void setIdleTimeout(long idleTimeout) {
+    if (idleTimeout < 0) throw new IllegalArgumentException("Timeout may not be negative");
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Gets how long a connection may be idle before it is closed.
+   * @return The idle time, in milliseconds.
+   */
+  public synchronized long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Sets how long a connection may be held before it is reported as a possible leak.
+   * Leaks are logged as warnings, with the stack where the connection was borrowed.
+   * Connections are checked for leaks whenever a connection is borrowed.
+   * @param leakThreshold The time, in milliseconds. 0 to not report leaks.
+   */
+  public synchronized void setLeakThreshold(long leakThreshold) {
+    if (leakThreshold < 0) throw new IllegalArgumentException("Threshold may not be negative");
+    this.leakThreshold = leakThreshold;
+  }
+
+  /**
+   * Gets how long a connection may be held before it is reported as a possible leak.
+   * @return The time, in milliseconds, or 0 if leaks are not reported.
+   */
+  public synchronized long getLeakThreshold() {
+    return leakThreshold;
+  }
+
+  /**
+   * Gets the number of connections that have been reported as possible leaks.
+   * @return The number of leaks reported.
+   */
+  public synchronized int getLeakCount() {
+    return leaks;
+  }
+
+  /**
+   * Gets the number of connections in use.
+   * @return The number of physical connections that are borrowed.
+   */
+  public synchronized int getActiveCount() {
+    return active.size();
+  }
+
+  /**
+   * Gets the number of idle connections.
+   * @return The number of physical connections waiting in the pool.
+   */
+  public synchronized int getIdleCount() {
+    return idle.size();
+  }
+
+  /**
+   * Borrows a connection from the pool, creating one if none is idle and the pool is
+   * not full, or waiting for one to be returned otherwise.
+   * @return A logical connection. Closing it returns the physical connection to the pool.
+   * @throws SparqlException If the pool is closed, or no connection was free in time.
+   */
+  public java.sql.Connection getConnection() throws SQLException {
+    fill();
+    long end = System.currentTimeMillis() + getMaxWait();
+    while (true) {
+      Idle next = null;
+      List<javax.sql.PooledConnection> expired;
+      synchronized (this) {
+        if (closed) throw new SparqlException("Connection pool is closed");
+        detectLeaks();
+        expired = expire();
+        if (!idle.isEmpty()) {
+          next = idle.removeFirst();
+        } else if (total < maxTotal) {
+          total++;
+        } else {
+          long left = end - System.currentTimeMillis();
+          if (left <= 0) throw new SparqlException("Timed out waiting for a connection from the pool");
+          try {
+            wait(left);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SparqlException("Interrupted while waiting for a connection from the pool", e);
+          }
+          continue;
+        }
+      }
+      for (javax.sql.PooledConnection pc: expired) destroy(pc);
+
+      javax.sql.PooledConnection pc;
+      if (next == null) {
+        pc = create();
+      } else {
+        pc = next.connection;
+        if (System.currentTimeMillis() - next.since >= validationInterval && !validate(pc)) {
+          destroy(pc);
+          continue;
+        }
+      }
+      return borrow(pc);
+    }
+  }
+
+  /**
+   * Pools hold connections for a single identity, so other users are not supported.
+   * @see javax.sql.DataSource#getConnection(java.lang.String, java.lang.String)
+   */
+  public java.sql.Connection getConnection(String username, String password) throws SQLException {
+    throw new SQLFeatureNotSupportedException("Connection pools do not support switching users");
+  }
+
+  /**
+   * Closes the pool, and all of its idle connections. Connections in use are closed when they are returned.
+   */
+  public void close() throws SQLException {
+    List<Idle> closing;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      closing = new ArrayList<Idle>(idle);
+      idle.clear();
+      notifyAll();
+    }
+    for (Idle i: closing) destroy(i.connection);
+  }
+
+  /** @see javax.sql.CommonDataSource#getLogWriter() */
+  public synchronized PrintWriter getLogWriter() throws SQLException {
+    return logWriter;
+  }
+
+  /** @see javax.sql.CommonDataSource#setLogWriter(java.io.PrintWriter) */
+  public synchronized void setLogWriter(PrintWriter out) throws SQLException {
+    logWriter = out;
+  }
+
+  /** @see javax.sql.CommonDataSource#setLoginTimeout(int) */
+  public void setLoginTimeout(int seconds) throws SQLException {
+    source.setLoginTimeout(seconds);
+  }
+
+  /** @see javax.sql.CommonDataSource#getLoginTimeout() */
+  public int getLoginTimeout() throws SQLException {
+    return source.getLoginTimeout();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) return (T)this;
+    throw new SQLException("scon does not implement: " + iface.getName());
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    return iface.isInstance(this);
+  }
+
+  /**
+   * Gets the source of physical connections, when it is the source for scon.
+   * @return The source of connections.
+   * @throws IllegalStateException If the pool was created over a different source of connections.
+   */
+  private ConnectionPoolDataSource sconSource() {
+    if (!(source instanceof ConnectionPoolDataSource)) throw new IllegalStateException("Connections are configured by their source");
+    return (ConnectionPoolDataSource)source;
+  }
+
+  /**
+   * Creates idle connections until there are as many as the minimum.
+   */
+  private void fill() throws SQLException {
+    while (true) {
+      synchronized (this) {
+        if (closed || total >= Math.min(minIdle, maxTotal)) return;
+        total++;
+      }
+      javax.sql.PooledConnection pc = create();
+      synchronized (this) {
+        idle.addLast(new Idle(pc));
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Creates a physical connection. A place for it must already be counted in the total.
+   * @return The new connection.
+   */
+  private javax.sql.PooledConnection create() throws SQLException {
+    try {
+      javax.sql.PooledConnection pc = source.getPooledConnection();
+      pc.addConnectionEventListener(listener);
+      return pc;
+    } catch (SQLException e) {
+      synchronized (this) {
+        total--;
+        notifyAll();
+      }
+      throw e;
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        total--;
+        notifyAll();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Hands out a physical connection.
+   * @param pc The physical connection.
+   * @return A logical connection over the physical connection.
+   */
+  private java.sql.Connection borrow(javax.sql.PooledConnection pc) throws SQLException {
+    synchronized (this) {
+      active.put(pc, new Borrow(leakThreshold > 0));
+    }
+    try {
+      return pc.getConnection();
+    } catch (SQLException e) {
+      synchronized (this) {
+        active.remove(pc);
+      }
+      destroy(pc);
+      throw e;
+    }
+  }
+
+  /**
+   * Tests if an idle physical connection can still reach the endpoint.
+   * @param pc The physical connection to test.
+   * @return <code>true</code> if the endpoint answered.
+   */
+  private boolean validate(javax.sql.PooledConnection pc) {
+    try {
+      // the pool is not listening for this connection, so closing it is not seen as a return
+      java.sql.Connection c = pc.getConnection();
+      try {
+        return c.isValid(getValidationTimeout());
+      } finally {
+        c.close();
+      }
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Takes a physical connection out of the pool, and closes it.
+   * @param pc The physical connection to close.
+   */
+  private void destroy(javax.sql.PooledConnection pc) {
+    pc.removeConnectionEventListener(listener);
+    synchronized (this) {
+      total--;
+      notifyAll();
+    }
+    try {
+      pc.close();
+    } catch (SQLException e) {
+      // the connection is no longer used
+    }
+  }
+
+  /**
+   * Removes idle connections that have been unused for longer than the idle timeout,
+   * keeping at least the minimum number idle. Must be called while synchronized.
+   * @return The connections to close.
+   */
+  private List<javax.sql.PooledConnection> expire() {
+    List<javax.sql.PooledConnection> expired = new ArrayList<javax.sql.PooledConnection>();
+    long now = System.currentTimeMillis();
+    while (idle.size() > minIdle && now - idle.getLast().since > idleTimeout) {
+      expired.add(idle.removeLast().connection);
+    }
+    return expired;
+  }
+
+  /**
+   * Reports connections that have been held for longer than the leak threshold.
+   * Each connection is only reported once per borrow. Must be called while synchronized.
+   */
+  private void detectLeaks() {
+    if (leakThreshold == 0) return;
+    long now = System.currentTimeMillis();
+    for (Iterator<Borrow> i = active.values().iterator(); i.hasNext(); ) {
+      Borrow b = i.next();
+      if (b.reported || b.where == null || now - b.since < leakThreshold) continue;
+      b.reported = true;
+      leaks++;
+      String msg = "Connection to " + describe() + " held for " + (now - b.since) + "ms, and may have leaked";
+      logger.log(Level.WARNING, msg, b.where);
+      if (logWriter != null) {
+        logWriter.println(msg);
+        b.where.printStackTrace(logWriter);
+      }
+    }
+  }
+
+  /**
+   * Describes the endpoint for log messages.
+   * @return The URL of the endpoint, if known.
+   */
+  private String describe() {
+    return source instanceof ConnectionPoolDataSource ? ((ConnectionPoolDataSource)source).getUrl() : "endpoint";
+  }
+
+  /**
+   * Returns physical connections to the pool when their logical connections are closed.
+   */
+  private class Listener implements ConnectionEventListener {
+
+    /** @see javax.sql.ConnectionEventListener#connectionClosed(javax.sql.ConnectionEvent) */
+    public void connectionClosed(ConnectionEvent event) {
+      javax.sql.PooledConnection pc = (javax.sql.PooledConnection)event.getSource();
+      synchronized (DataSource.this) {
+        if (active.remove(pc) == null) return;
+        if (!closed && idle.size() < maxIdle && reset(pc)) {
+          idle.addFirst(new Idle(pc));
+          DataSource.this.notifyAll();
+          return;
+        }
+      }
+      destroy(pc);
+    }
+
+    /** @see javax.sql.ConnectionEventListener#connectionErrorOccurred(javax.sql.ConnectionEvent) */
+    public void connectionErrorOccurred(ConnectionEvent event) {
+      javax.sql.PooledConnection pc = (javax.sql.PooledConnection)event.getSource();
+      synchronized (DataSource.this) {
+        active.remove(pc);
+      }
+      destroy(pc);
+    }
+
+    /**
+     * Restores the settings of a physical connection, so they do not affect the next borrower.
+     * @param pc The physical connection being returned.
+     * @return <code>true</code> if the connection can be used again.
+     */
+    private boolean reset(javax.sql.PooledConnection pc) {
+      if (!(pc instanceof PooledConnection)) return true;
+      PooledConnection p = (PooledConnection)pc;
+      if (p.getPhysicalConnection().isClosed()) return false;
+      p.reset();
+      return true;
+    }
+  }
+
+  /**
+   * A physical connection waiting in the pool.
+   */
+  private static class Idle {
+    /** The physical connection. */
+    final javax.sql.PooledConnection connection;
+
+    /** When the connection was returned to the pool. */
+    final long since = System.currentTimeMillis();
+
+    Idle(javax.sql.PooledConnection connection) {
+      this.connection = connection;
+    }
+  }
+
+  /**
+   * The record of a physical connection being borrowed.
+   */
+  private static class Borrow {
+    /** When the connection was borrowed. */
+    final long since = System.currentTimeMillis();
+
+    /** Where the connection was borrowed, or null if this was not recorded. */
+    final Exception where;
+
+    /** Set once the connection has been reported as a leak. */
+    boolean reported = false;
+
+    Borrow(boolean trace) {
+      where = trace ? new Exception("Connection borrowed here") : null;
+    }
+  }
+}
@@ -19,8 +19,14 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.sql.DriverPropertyInfo;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
+import org.mulgara.scon.impl.ConnectionPools;
+import org.mulgara.scon.impl.ReplicaSet;
+import org.mulgara.scon.transport.UrlConnectionTransport;
+
 /**
  * The Driver interface is the main entry point for a compliant JDBC implementation.
  */
@@ -29,19 +35,67 @@ public class Driver implements java.sql.Driver {
   /** The main protocol for SPARQL. */
   private static final String HTTP = "http";
 
+  /** The property for the maximum number of HTTP connections shared with other connections to a host. */
+  public static final String MAX_CONNECTIONS = "maxConnections";
+
+  /** The property for the maximum number of HTTP connections to the endpoint. */
+  public static final String MAX_CONNECTIONS_PER_ROUTE = "maxConnectionsPerRoute";
+
+  /** The property for the means of sending requests. */
+  public static final String TRANSPORT = "transport";
+
+  /** The transport using HttpClient. This is the default. */
+  public static final String TRANSPORT_HTTPCLIENT = "httpclient";
+
+  /** The transport using the HTTP support built into the JVM. */
+  public static final String TRANSPORT_URLCONNECTION = "urlconnection";
+
+  /** The property for the URLs of replicas of the endpoint, separated by commas or spaces. */
+  public static final String REPLICAS = "replicas";
+
+  /** The property for how replicas are chosen. */
+  public static final String BALANCING = "balancing";
+
+  /** Replicas are chosen by the fewest requests in flight. This is the default. */
+  public static final String BALANCING_LEAST_OUTSTANDING = "least-outstanding";
+
+  /** Replicas are chosen by their recent latency. */
+  public static final String BALANCING_LATENCY = "latency";
+
   /**
    * Creates a new connection. When username/passwords are supported then they
    * may be included in the info field.
    * @param url The URL of the endpoint.
-   * @param info The connection parameters. Currently unused.
+   * @param info The connection parameters. These may set {@link #MAX_CONNECTIONS} and
+   *        {@link #MAX_CONNECTIONS_PER_ROUTE} to limit the HTTP connection pool,
+   *        {@link #TRANSPORT} to choose how requests are sent, and {@link #REPLICAS}
+   *        and {@link #BALANCING} to spread requests across replicas of the endpoint.
    */
   @Override
   public Connection connect(String url, Properties info) throws SQLException {
-    try {
-      return new Connection(new URL(url));
-    } catch (MalformedURLException e) {
-      throw new IllegalArgumentException("Unable to locate endpoint: " + url);
+    List<URL> endpoints = new ArrayList<URL>();
+    endpoints.add(toUrl(url));
+    String replicas = info == null ? null : info.getProperty(REPLICAS);
+    if (replicas != null) {
+      for (String r: replicas.trim().split("[,\\s]+")) {
+        if (r.length() > 0) endpoints.add(toUrl(r));
+      }
     }
+    ReplicaSet.Balancing balancing = balancing(info == null ? null : info.getProperty(BALANCING));
+
+    Connection c;
+    String transport = info == null ? null : info.getProperty(TRANSPORT);
+    if (TRANSPORT_URLCONNECTION.equals(transport)) {
+      c = new Connection(endpoints, new UrlConnectionTransport());
+    } else if (transport != null && !TRANSPORT_HTTPCLIENT.equals(transport)) {
+      throw new IllegalArgumentException("Unknown transport: " + transport);
+    } else {
+      int maxTotal = intProperty(info, MAX_CONNECTIONS, ConnectionPools.DEFAULT_MAX_TOTAL);
+      int maxPerRoute = intProperty(info, MAX_CONNECTIONS_PER_ROUTE, ConnectionPools.DEFAULT_MAX_PER_ROUTE);
+      c = new Connection(endpoints, maxTotal, maxPerRoute);
+    }
+    if (c.getReplicaSet() != null) c.getReplicaSet().setBalancing(balancing);
+    return c;
   }
 
   /**
@@ -64,15 +118,29 @@ public class Driver implements java.sql.Driver {
 
   /**
    * Enquires about possible properties that may be needed for a successful
-   * connection to an endpoint. No properties are needed at the moment
-   * so an empty array is returned. The most obvious to consider will be
-   * username/password.
+   * connection to an endpoint. No properties are needed at the moment, but
+   * the limits on the HTTP connection pool may be set. The most obvious to
+   * consider in future will be username/password.
    * @param url The endpoint that will be queried.
    * @param info The proposed properties.
    */
   @Override
   public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
-    return new DriverPropertyInfo[0];
+    DriverPropertyInfo total = propertyInfo(info, MAX_CONNECTIONS, ConnectionPools.DEFAULT_MAX_TOTAL,
+        "Maximum HTTP connections, shared by all connections to the same host");
+    DriverPropertyInfo perRoute = propertyInfo(info, MAX_CONNECTIONS_PER_ROUTE, ConnectionPools.DEFAULT_MAX_PER_ROUTE,
+        "Maximum HTTP connections to the endpoint");
+    String transport = info == null ? null : info.getProperty(TRANSPORT);
+    DriverPropertyInfo transportInfo = new DriverPropertyInfo(TRANSPORT, transport != null ? transport : TRANSPORT_HTTPCLIENT);
+    transportInfo.description = "The means of sending requests";
+    transportInfo.choices = new String[] { TRANSPORT_HTTPCLIENT, TRANSPORT_URLCONNECTION };
+    DriverPropertyInfo replicas = new DriverPropertyInfo(REPLICAS, info == null ? null : info.getProperty(REPLICAS));
+    replicas.description = "URLs of identical replicas of the endpoint, separated by commas or spaces";
+    String balancing = info == null ? null : info.getProperty(BALANCING);
+    DriverPropertyInfo balancingInfo = new DriverPropertyInfo(BALANCING, balancing != null ? balancing : BALANCING_LEAST_OUTSTANDING);
+    balancingInfo.description = "How requests are spread across replicas";
+    balancingInfo.choices = new String[] { BALANCING_LEAST_OUTSTANDING, BALANCING_LATENCY };
+    return new DriverPropertyInfo[] { total, perRoute, transportInfo, replicas, balancingInfo };
   }
 
   /**
@@ -99,4 +167,63 @@ public class Driver implements java.sql.Driver {
     return false;
   }
 
+  /**
+   * Parses the URL of an endpoint.
+   * @param url The text of the URL.
+   * @return The URL.
+   * @throws IllegalArgumentException If the URL cannot be parsed.
+   */
+  private static URL toUrl(String url) {
+    try {
+      return new URL(url);
+    } catch (MalformedURLException e) {
+      throw new IllegalArgumentException("Unable to locate endpoint: " + url);
+    }
+  }
+
+  /**
+   * Reads the way replicas are chosen.
+   * @param value The value of the {@link #BALANCING} property, or <code>null</code> if it is not set.
+   * @return The way replicas are chosen.
+   * @throws IllegalArgumentException If the value is not recognized.
+   */
+  private static ReplicaSet.Balancing balancing(String value) {
+    if (value == null || BALANCING_LEAST_OUTSTANDING.equals(value)) return ReplicaSet.Balancing.LEAST_OUTSTANDING;
+    if (BALANCING_LATENCY.equals(value)) return ReplicaSet.Balancing.LATENCY;
+    throw new IllegalArgumentException("Unknown balancing: " + value);
+  }
+
+  /**
+   * Reads a positive integer from the connection properties.
+   * @param info The connection properties. May be <code>null</code>.
+   * @param name The name of the property.
+   * @param defaultValue The value to use if the property is not set.
+   * @return The value of the property.
+   * @throws IllegalArgumentException If the property is not a positive integer.
+   */
+  private static int intProperty(Properties info, String name, int defaultValue) {
+    String value = info == null ? null : info.getProperty(name);
+    if (value == null) return defaultValue;
+    try {
+      int result = Integer.parseInt(value.trim());
+      if (result > 0) return result;
+    } catch (NumberFormatException e) { }
+    throw new IllegalArgumentException("Property " + name + " must be a positive integer: " + value);
+  }
+
+  /**
+   * Describes an optional integer property.
+   * @param info The proposed properties. May be <code>null</code>.
+   * @param name The name of the property.
+   * @param defaultValue The value used if the property is not set.
+   * @param description A description of the property.
+   * @return The description of the property.
+   */
+  private static DriverPropertyInfo propertyInfo(Properties info, String name, int defaultValue, String description) {
+    String value = info == null ? null : info.getProperty(name);
+    DriverPropertyInfo result = new DriverPropertyInfo(name, value != null ? value : Integer.toString(defaultValue));
+    result.description = description;
+    return result;
+  }
+
 }
@@ -18,6 +18,10 @@ package org.mulgara.scon;
 
 import java.net.URL;
 import java.net.MalformedURLException;
+import java.util.List;
+
+import org.mulgara.scon.impl.ConnectionPools;
+import org.mulgara.scon.transport.Transport;
 
 public class DriverManager {
 
@@ -59,6 +63,36 @@ public class DriverManager {
     return new Connection(endpoint);
   }
 
+  /**
+   * Gets a connection that sends its requests through a given transport.
+   * @param endpoint The endpoint to connect to.
+   * @param transport The means of sending requests. This is closed with the connection.
+   * @return A new connection.
+   */
+  public static Connection getConnection(URL endpoint, Transport transport) {
+    return new Connection(endpoint, transport);
+  }
+
+  /**
+   * Gets a connection that spreads its requests across identical replicas.
+   * @param endpoints The endpoints of the replicas.
+   * @return A new connection.
+   */
+  public static Connection getConnection(List<URL> endpoints) {
+    return new Connection(endpoints, ConnectionPools.DEFAULT_MAX_TOTAL, ConnectionPools.DEFAULT_MAX_PER_ROUTE);
+  }
+
+  /**
+   * Gets a connection that spreads its requests across identical replicas, sending
+   * them through a given transport.
+   * @param endpoints The endpoints of the replicas.
+   * @param transport The means of sending requests. This is closed with the connection.
+   * @return A new connection.
+   */
+  public static Connection getConnection(List<URL> endpoints, Transport transport) {
+    return new Connection(endpoints, transport);
+  }
+
   public static Connection getConnection() {
     return new Connection(endpoint);
   }
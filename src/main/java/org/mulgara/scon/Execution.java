@@ -0,0 +1,199 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import org.mulgara.scon.cache.SingleFlight;
+
+/**
+ * A single execution of a query on a statement. This tracks the requests sent for the
+ * query, so they can be aborted when the statement is cancelled or the query runs past
+ * its deadline.
+ */
+class Execution implements SingleFlight.Guard {
+
+  /** The scheduler for query deadlines, shared by all executions. */
+  private static ScheduledExecutorService scheduler = null;
+
+  /** The deadline for the query, from {@link System#nanoTime()}. Only valid if there is a timeout. */
+  private final long deadline;
+
+  /** Indicates if the query has a deadline. */
+  private final boolean timed;
+
+  /** The requests in flight for the query. */
+  private final List<HttpUriRequest> requests = new ArrayList<HttpUriRequest>();
+
+  /** The task that aborts the query at its deadline. */
+  private ScheduledFuture<?> timer = null;
+
+  /** Set when the statement has been cancelled. */
+  private boolean cancelled = false;
+
+  /** Set when the deadline has passed. */
+  private boolean timedOut = false;
+
+  /**
+   * Starts an execution.
+   * @param timeout The time allowed for the query, in milliseconds. 0 for no limit.
+   */
+  Execution(long timeout) {
+    timed = timeout > 0;
+    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    if (timed) {
+      timer = getScheduler().schedule(new Runnable() {
+        public void run() { timeout(); }
+      }, timeout, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Records a request that is about to be sent for the query.
+   * @param request The request being sent.
+   * @throws SparqlException If the query has already been cancelled or timed out.
+   */
+  void track(HttpUriRequest request) throws SparqlException {
+    synchronized (this) {
+      check();
+      requests.add(request);
+    }
+  }
+
+  /**
+   * Records that all requests sent for the query are complete.
+   */
+  synchronized void untrackAll() {
+    requests.clear();
+  }
+
+  /**
+   * Cancels the query, aborting any requests in flight.
+   */
+  void cancel() {
+    synchronized (this) {
+      cancelled = true;
+      notifyAll();
+    }
+    abortAll();
+  }
+
+  /**
+   * Ends the query because its deadline has passed, aborting any requests in flight.
+   */
+  void timeout() {
+    synchronized (this) {
+      timedOut = true;
+      notifyAll();
+    }
+    abortAll();
+  }
+
+  /**
+   * Tests if the query can continue.
+   * @see org.mulgara.scon.cache.SingleFlight.Guard#check()
+   * @throws SparqlException If the query has been cancelled or timed out.
+   */
+  public synchronized void check() throws SparqlException {
+    if (timedOut) throw new QueryTimeoutException("Query exceeded its timeout");
+    if (cancelled) throw new CancelledException("Query was cancelled");
+  }
+
+  /**
+   * Waits before retrying a query. The wait ends early if the query is cancelled or times out.
+   * @param delay The time to wait, in milliseconds.
+   * @throws SparqlException If the query was cancelled or timed out, or the wait was interrupted.
+   */
+  synchronized void pause(long delay) throws SparqlException {
+    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+    try {
+      for (long left = delay; left > 0 && !cancelled && !timedOut; left = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime())) {
+        wait(left);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancelledException("Interrupted while waiting to retry query", e);
+    }
+    check();
+  }
+
+  /**
+   * Gets the time left before the deadline.
+   * @return The remaining time in milliseconds, or {@link Long#MAX_VALUE} if there is no deadline.
+   */
+  long remaining() {
+    if (!timed) return Long.MAX_VALUE;
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+  }
+
+  /**
+   * Describes a failure that was caused by the query being cancelled or timed out.
+   * @param cause The failure seen while executing the query.
+   * @return An exception explaining the failure, or <code>null</code> if the query
+   *         was not cancelled or timed out.
+   */
+  synchronized SparqlException explain(Exception cause) {
+    if (cause instanceof QueryTimeoutException || cause instanceof CancelledException) return (SparqlException)cause;
+    if (timedOut) return new QueryTimeoutException("Query exceeded its timeout", cause);
+    if (cancelled) return new CancelledException("Query was cancelled", cause);
+    return null;
+  }
+
+  /**
+   * Ends the execution, and stops the timer.
+   */
+  void end() {
+    if (timer != null) timer.cancel(false);
+  }
+
+  /**
+   * Aborts all of the requests in flight.
+   */
+  private void abortAll() {
+    List<HttpUriRequest> inFlight;
+    synchronized (this) {
+      inFlight = new ArrayList<HttpUriRequest>(requests);
+    }
+    for (HttpUriRequest r: inFlight) r.abort();
+  }
+
+  /**
+   * Gets the scheduler for deadlines, creating it on first use.
+   * @return The shared scheduler.
+   */
+  private static synchronized ScheduledExecutorService getScheduler() {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "scon-timeout");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return scheduler;
+  }
+}
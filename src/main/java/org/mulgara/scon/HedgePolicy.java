@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mulgara.scon.impl.LatencyTracker;
+
+/**
+ * Describes when a duplicate request is sent for a query that is slow to respond.
+ * The time taken for an endpoint to start responding is tracked, and if a request
+ * has not received a response by a percentile of this time, then an identical request
+ * is sent. The first response is used, and the other request is aborted.
+ * A policy tracks the latency of every connection it is set on, so connections to
+ * different endpoints should each have their own policy.
+ */
+public class HedgePolicy {
+
+  /** The default percentile of latency to wait for before hedging. */
+  public static final double DEFAULT_PERCENTILE = 95;
+
+  /** The number of samples needed before the tracked latency is used. */
+  private static final int MIN_SAMPLES = 20;
+
+  /** The percentile of latency to wait for before hedging. */
+  private final double percentile;
+
+  /** The shortest wait before hedging, in milliseconds. */
+  private final long minDelay;
+
+  /** The longest wait before hedging, in milliseconds. */
+  private final long maxDelay;
+
+  /** The recent latency of requests. */
+  private final LatencyTracker latency = new LatencyTracker();
+
+  /**
+   * Creates a policy that hedges at the default percentile.
+   * @param minDelay The shortest wait before hedging.
+   * @param maxDelay The longest wait before hedging. This is also used until
+   *        enough requests have been seen to estimate the percentile.
+   * @param unit The unit for the waits.
+   */
+  public HedgePolicy(long minDelay, long maxDelay, TimeUnit unit) {
+    this(DEFAULT_PERCENTILE, minDelay, maxDelay, unit);
+  }
+
+  /**
+   * Creates a policy.
+   * @param percentile The percentile of the time to a response to wait for before
+   *        hedging, between 0 and 100.
+   * @param minDelay The shortest wait before hedging.
+   * @param maxDelay The longest wait before hedging. This is also used until
+   *        enough requests have been seen to estimate the percentile.
+   * @param unit The unit for the waits.
+   */
+  public HedgePolicy(double percentile, long minDelay, long maxDelay, TimeUnit unit) {
+    if (percentile <= 0 || percentile > 100) throw new IllegalArgumentException("Percentile must be in the range (0, 100]");
+    if (minDelay < 0 || maxDelay < minDelay) throw new IllegalArgumentException("Invalid delay range");
+    this.percentile = percentile;
+    this.minDelay = unit.toMillis(minDelay);
+    this.maxDelay = unit.toMillis(maxDelay);
+  }
+
+  /**
+   * Gets the percentile of latency that is waited for before hedging.
+   * @return The percentile, between 0 and 100.
+   */
+  public double getPercentile() {
+    return percentile;
+  }
+
+  /**
+   * Gets the time to wait for a response before sending a duplicate request.
+   * @return The wait, in milliseconds.
+   */
+  public long getDelay() {
+    if (latency.getCount() < MIN_SAMPLES) return maxDelay;
+    return Math.max(minDelay, Math.min(maxDelay, latency.getPercentile(percentile)));
+  }
+
+  /**
+   * Records the time taken for a request to receive a response.
+   * @param millis The time to the response, in milliseconds.
+   */
+  void record(long millis) {
+    latency.record(millis);
+  }
+}
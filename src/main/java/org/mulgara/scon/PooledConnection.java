@@ -0,0 +1,180 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.StatementEventListener;
+
+/**
+ * A physical connection to an endpoint, held by a connection pool. The pool hands out
+ * lightweight logical connections over it, and is told when each one is closed so the
+ * physical connection can be used again.
+ */
+public class PooledConnection implements javax.sql.PooledConnection {
+
+  /** The physical connection. */
+  private final Connection connection;
+
+  /** The settings of the physical connection when it was created. */
+  private final Connection.Settings settings;
+
+  /** The listeners to tell when a logical connection is closed, or fails. */
+  private final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<ConnectionEventListener>();
+
+  /** The logical connection currently handed out, or null if there is none. */
+  private Handle current = null;
+
+  /**
+   * Creates a pooled connection.
+   * @param connection The physical connection to hand out.
+   */
+  PooledConnection(Connection connection) {
+    this.connection = connection;
+    this.settings = new Connection.Settings(connection);
+  }
+
+  /**
+   * Hands out a logical connection. Any logical connection handed out earlier is closed,
+   * without telling the listeners. Closing the logical connection leaves the physical
+   * connection open, and tells the listeners that it can be used again.
+   * The physical connection can be reached from the logical connection with
+   * <code>unwrap(org.mulgara.scon.Connection.class)</code>.
+   * @return A new logical connection.
+   * @throws SparqlException If the physical connection has been closed.
+   */
+  public synchronized java.sql.Connection getConnection() throws SQLException {
+    if (connection.isClosed()) throw new SparqlException("Pooled connection is closed");
+    if (current != null) current.closed = true;
+    current = new Handle();
+    return (java.sql.Connection)Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { java.sql.Connection.class, GraphURILists.class }, current);
+  }
+
+  /**
+   * Closes the physical connection, and any logical connection handed out.
+   */
+  public synchronized void close() throws SQLException {
+    if (current != null) current.closed = true;
+    current = null;
+    connection.close();
+  }
+
+  /** @see javax.sql.PooledConnection#addConnectionEventListener(javax.sql.ConnectionEventListener) */
+  public void addConnectionEventListener(ConnectionEventListener listener) {
+    listeners.add(listener);
+  }
+
+  /** @see javax.sql.PooledConnection#removeConnectionEventListener(javax.sql.ConnectionEventListener) */
+  public void removeConnectionEventListener(ConnectionEventListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Statements are not pooled, as they hold no resources, so there are no statement events.
+   * @see javax.sql.PooledConnection#addStatementEventListener(javax.sql.StatementEventListener)
+   */
+  public void addStatementEventListener(StatementEventListener listener) {
+  }
+
+  /** @see javax.sql.PooledConnection#removeStatementEventListener(javax.sql.StatementEventListener) */
+  public void removeStatementEventListener(StatementEventListener listener) {
+  }
+
+  /**
+   * Gets the physical connection.
+   * @return The connection that logical connections are handed out over.
+   */
+  Connection getPhysicalConnection() {
+    return connection;
+  }
+
+  /**
+   * Puts back the settings the physical connection was created with, undoing any
+   * changes made through a logical connection.
+   */
+  void reset() {
+    settings.restore(connection);
+  }
+
+  /**
+   * Closes a logical connection, and tells the listeners.
+   * @param handle The logical connection being closed.
+   */
+  private void closed(Handle handle) {
+    synchronized (this) {
+      if (handle.closed) return;
+      handle.closed = true;
+      if (current == handle) current = null;
+    }
+    ConnectionEvent event = new ConnectionEvent(this);
+    for (ConnectionEventListener l: listeners) l.connectionClosed(event);
+  }
+
+  /**
+   * Tells the listeners that the physical connection can no longer be used.
+   * @param e The error that the physical connection failed with.
+   */
+  private void failed(SQLException e) {
+    ConnectionEvent event = new ConnectionEvent(this, e);
+    for (ConnectionEventListener l: listeners) l.connectionErrorOccurred(event);
+  }
+
+  /**
+   * A logical connection. Calls are passed to the physical connection until this is closed.
+   */
+  private class Handle implements InvocationHandler {
+
+    /** Set when this logical connection is closed. */
+    volatile boolean closed = false;
+
+    /**
+     * Passes a call to the physical connection.
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (method.getDeclaringClass() == Object.class) {
+        if (name.equals("equals")) return proxy == args[0];
+        if (name.equals("hashCode")) return System.identityHashCode(proxy);
+        if (name.equals("toString")) return "Logical connection to " + connection.getMetaData().getURL();
+      }
+      if (name.equals("close") && method.getParameterTypes().length == 0) {
+        closed(this);
+        return null;
+      }
+      if (name.equals("isClosed") && method.getParameterTypes().length == 0) return closed || connection.isClosed();
+      if (closed) throw new SparqlException("Connection is closed");
+      try {
+        return method.invoke(connection, args);
+      } catch (InvocationTargetException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof SQLException && connection.isClosed()) failed((SQLException)cause);
+        throw cause;
+      }
+    }
+  }
+}
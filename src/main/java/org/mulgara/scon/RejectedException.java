@@ -0,0 +1,36 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon;
+
+/**
+ * Indicates that a query was refused by the client without being sent, to shed load
+ * from an endpoint that is failing or overloaded.
+ */
+public class RejectedException extends SparqlException {
+
+  private static final long serialVersionUID = 7716350921848209245L;
+
+  public RejectedException() { }
+
+  public RejectedException(String msg) { super(msg); }
+
+  public RejectedException(Throwable cause) { super(cause); }
+
+  public RejectedException(String msg, Throwable cause) { super(msg, cause); }
+
+}
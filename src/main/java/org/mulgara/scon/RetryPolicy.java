@@ -0,0 +1,221 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * Describes when and how queries are retried after a transient failure. A failed
+ * attempt is retried if the endpoint responded with a retryable status, or if the
+ * request failed with a retryable exception. Retries wait with exponential backoff
+ * and jitter, or for the time given in a Retry-After header. A retry is never started
+ * if its wait would pass the query timeout of the statement.
+ * A policy should be fully configured before it is given to a connection.
+ */
+public class RetryPolicy {
+
+  /** The default number of attempts at a query, including the first. */
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+  /** The default wait before the first retry, in milliseconds. */
+  public static final long DEFAULT_INITIAL_BACKOFF = 100;
+
+  /** The default longest wait before a retry, in milliseconds. */
+  public static final long DEFAULT_MAX_BACKOFF = 5000;
+
+  /** The status codes that are retried by default. */
+  private static final int[] DEFAULT_STATUS = { 429, 502, 503, 504 };
+
+  /** The source of jitter for backoff. */
+  private static final Random random = new Random();
+
+  /** The number of attempts at a query, including the first. */
+  private final int maxAttempts;
+
+  /** The wait before the first retry, in milliseconds. */
+  private final long initialBackoff;
+
+  /** The longest wait before a retry, in milliseconds. */
+  private final long maxBackoff;
+
+  /** The response codes that are retried. */
+  private Set<Integer> retryableStatus = new HashSet<Integer>();
+
+  /** The types of exception that are retried. */
+  private List<Class<?>> retryableExceptions = new ArrayList<Class<?>>();
+
+  /**
+   * Creates a policy with the default limits.
+   */
+  public RetryPolicy() {
+    this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Creates a policy. The wait before each retry doubles, up to the maximum, and a random
+   * amount of up to half the wait is taken off so that clients do not retry in step.
+   * @param maxAttempts The number of attempts at a query, including the first.
+   * @param initialBackoff The wait before the first retry.
+   * @param maxBackoff The longest wait before a retry. A Retry-After longer than this
+   *        is not waited for, and the failure is reported instead.
+   * @param unit The unit for the waits.
+   */
+  public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+    if (maxAttempts < 1) throw new IllegalArgumentException("At least one attempt is required");
+    if (initialBackoff < 0 || maxBackoff < initialBackoff) throw new IllegalArgumentException("Invalid backoff range");
+    this.maxAttempts = maxAttempts;
+    this.initialBackoff = unit.toMillis(initialBackoff);
+    this.maxBackoff = unit.toMillis(maxBackoff);
+    for (int s: DEFAULT_STATUS) retryableStatus.add(s);
+    retryableExceptions.add(NoHttpResponseException.class);
+    retryableExceptions.add(ConnectTimeoutException.class);
+    retryableExceptions.add(SocketException.class);
+  }
+
+  /**
+   * Sets the response codes that are retried. By default these are 429, 502, 503 and 504.
+   * @param codes The HTTP status codes to retry.
+   */
+  public void setRetryableStatus(int... codes) {
+    Set<Integer> status = new HashSet<Integer>();
+    for (int c: codes) status.add(c);
+    retryableStatus = status;
+  }
+
+  /**
+   * Sets the types of exception that are retried. Subclasses of these types are also retried.
+   * By default these are NoHttpResponseException, ConnectTimeoutException and SocketException,
+   * which includes connections that are refused or reset.
+   * @param types The subclasses of IOException to retry.
+   * @throws IllegalArgumentException If a type is not an IOException.
+   */
+  public void setRetryableExceptions(Class<?>... types) {
+    List<Class<?>> exceptions = new ArrayList<Class<?>>();
+    for (Class<?> t: types) {
+      if (!IOException.class.isAssignableFrom(t)) {
+        throw new IllegalArgumentException(t.getName() + " is not an IOException");
+      }
+      exceptions.add(t);
+    }
+    retryableExceptions = exceptions;
+  }
+
+  /**
+   * Gets the number of attempts at a query.
+   * @return The maximum number of attempts, including the first.
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Gets the wait before the first retry.
+   * @return The initial backoff, in milliseconds.
+   */
+  public long getInitialBackoff() {
+    return initialBackoff;
+  }
+
+  /**
+   * Gets the longest wait before a retry.
+   * @return The maximum backoff, in milliseconds.
+   */
+  public long getMaxBackoff() {
+    return maxBackoff;
+  }
+
+  /**
+   * Tests if a failed request can be retried.
+   * @param e The exception from the request.
+   * @return <code>true</code> if the exception is one of the retryable types.
+   */
+  public boolean isRetryable(IOException e) {
+    for (Class<?> t: retryableExceptions) {
+      if (t.isInstance(e)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Tests if a response can be retried.
+   * @param code The HTTP status code of the response.
+   * @return <code>true</code> if the status is retryable.
+   */
+  public boolean isRetryable(int code) {
+    return retryableStatus.contains(code);
+  }
+
+  /**
+   * Gets the wait before a retry, with jitter.
+   * @param attempt The number of the attempt that failed, starting at 1.
+   * @return The time to wait, in milliseconds.
+   */
+  public long getBackoff(int attempt) {
+    long backoff = initialBackoff << Math.min(attempt - 1, 30);
+    if (backoff > maxBackoff || backoff < 0) backoff = maxBackoff;
+    long half = backoff / 2;
+    return backoff - (half > 0 ? (long)(random.nextDouble() * half) : 0);
+  }
+
+  /**
+   * Gets the wait before retrying a response.
+   * @param code The HTTP status code of the response.
+   * @param retryAfter The value of the Retry-After header, or <code>null</code> if there was none.
+   * @param attempt The number of the attempt that failed, starting at 1.
+   * @return The time to wait, in milliseconds, or -1 if the response is not to be retried.
+   */
+  long getDelay(int code, String retryAfter, int attempt) {
+    if (!isRetryable(code)) return -1;
+    if (retryAfter == null) return getBackoff(attempt);
+    long delay = parseRetryAfter(retryAfter.trim());
+    if (delay < 0) return getBackoff(attempt);
+    return delay <= maxBackoff ? delay : -1;
+  }
+
+  /**
+   * Reads a Retry-After header, as either a number of seconds, or a date.
+   * @param retryAfter The value of the header.
+   * @return The time to wait in milliseconds, or -1 if the value cannot be read.
+   */
+  private static long parseRetryAfter(String retryAfter) {
+    try {
+      return Math.max(0, Long.parseLong(retryAfter) * 1000L);
+    } catch (NumberFormatException e) {
+      // not a number, so try for a date
+    }
+    try {
+      Date when = DateUtils.parseDate(retryAfter);
+      return Math.max(0, when.getTime() - System.currentTimeMillis());
+    } catch (DateParseException e) {
+      return -1;
+    }
+  }
+}
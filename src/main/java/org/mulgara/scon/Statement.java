@@ -21,9 +21,18 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.mulgara.scon.impl.ResultBuilder;
+import org.mulgara.scon.impl.TermDictionary;
 
 
 /**
@@ -44,12 +53,72 @@ public class Statement implements GraphURILists, java.sql.Statement {
   @SuppressWarnings("unused")
   private String lastOperation = null;
 
+  /** The type of result set to create. Forward only results are streamed from the endpoint. */
+  private final int resultSetType;
+
+  /** The result formats to request ahead of all others. */
+  private List<String> preferredFormats = Collections.emptyList();
+
+  /** The Accept header built from the preferred formats, or <code>null</code> to use the connection's. */
+  private String acceptHeader = null;
+
+  /** The direction that rows are expected to be read in. */
+  private int fetchDirection = java.sql.ResultSet.FETCH_FORWARD;
+
+  /** The time allowed for a query, in seconds. 0 for no limit. */
+  private volatile int queryTimeout = 0;
+
+  /** The queries currently executing on this statement. */
+  private final Set<Execution> executions = new HashSet<Execution>();
+
   /**
    * Creates a new statement to work on a connection.
    * @param connection The connection that this statements is associated with.
    */
   Statement(Connection connection) {
+    this(connection, java.sql.ResultSet.TYPE_SCROLL_INSENSITIVE);
+  }
+
+  /**
+   * Creates a new statement to work on a connection.
+   * @param connection The connection that this statements is associated with.
+   * @param resultSetType The type of result set to create, either
+   *        {@link java.sql.ResultSet#TYPE_FORWARD_ONLY} or
+   *        {@link java.sql.ResultSet#TYPE_SCROLL_INSENSITIVE}.
+   */
+  Statement(Connection connection, int resultSetType) {
     this.connection = connection;
+    this.resultSetType = resultSetType;
+  }
+
+  /**
+   * Sets the result formats to request ahead of all others, overriding any
+   * preferred formats on the connection. All other formats that can be parsed
+   * are still accepted, ranked by how quickly they can be parsed.
+   * @param mimeTypes The media types to prefer, most preferred first.
+   *        Use no types to return to the preferences of the connection.
+   * @throws IllegalArgumentException If one of the media types cannot be parsed.
+   */
+  public void setPreferredFormats(String... mimeTypes) {
+    List<String> formats = Arrays.asList(mimeTypes);
+    acceptHeader = formats.isEmpty() ? null : ResultBuilder.acceptHeader(formats);
+    preferredFormats = formats;
+  }
+
+  /**
+   * Get the result formats that this statement requests ahead of all others.
+   * @return The preferred media types, most preferred first.
+   */
+  public List<String> getPreferredFormats() {
+    return Collections.unmodifiableList(preferredFormats);
+  }
+
+  /**
+   * Gets the Accept header for the preferred formats of this statement.
+   * @return The header text, or <code>null</code> if the statement has no preferences.
+   */
+  String getAcceptHeader() {
+    return acceptHeader;
   }
 
   /**
@@ -202,20 +271,117 @@ public class Statement implements GraphURILists, java.sql.Statement {
     return Collections.unmodifiableList(namedGraphs);
   }
 
+  /**
+   * Indicates if results from this statement are read in a single pass.
+   * These results are streamed from the endpoint as the cursor moves,
+   * rather than being loaded in their entirety before the first row is available.
+   * @return <code>true</code> if results are forward only.
+   */
+  public boolean isForwardOnly() {
+    return resultSetType == java.sql.ResultSet.TYPE_FORWARD_ONLY;
+  }
+
+  /**
+   * Gets the dictionary that results from this statement share terms through.
+   * @return The dictionary for the connection, or <code>null</code> if each result has its own.
+   */
+  public TermDictionary getTermDictionary() {
+    return connection.getTermDictionary();
+  }
+
   /**
    * Executes a given query on a connection.
    * @param query The query to execute.
    * @return A result set with the results of the query.
    */
   public ResultSet executeQuery(String query) throws SparqlException {
+    return executeQuery(query, begin());
+  }
+
+  /**
+   * Executes a given query on a connection, as part of an execution already begun.
+   * @param query The query to execute.
+   * @param exec The execution of the query. This is ended when the query returns.
+   * @return A result set with the results of the query.
+   */
+  private ResultSet executeQuery(String query, Execution exec) throws SparqlException {
     this.lastOperation = query;
     try {
-      return connection.executeQuery(this, query);
+      return connection.executeQuery(this, query, exec);
     } catch (IOException e) {
       throw new SparqlException("Error connecting to SPARQL endpoint", e);
     }
   }
 
+  /**
+   * Executes a given query on a connection without waiting for the results.
+   * The query is run by the executor for the connection. Any error in executing
+   * the query is thrown from the future as the cause of an ExecutionException.
+   * Cancelling the future cancels the query, aborting any requests in flight, whether
+   * or not it may interrupt. Results that arrive after the future is cancelled are closed,
+   * releasing their connection. The query timeout runs from when the query is submitted.
+   * @param query The query to execute.
+   * @return A future holding the result set for the query.
+   */
+  public Future<ResultSet> executeQueryAsync(final String query) {
+    final Execution exec = begin();
+    FutureTask<ResultSet> result = new FutureTask<ResultSet>(new Callable<ResultSet>() {
+      public ResultSet call() throws SparqlException {
+        return executeQuery(query, exec);
+      }
+    }) {
+      protected void done() {
+        // a task cancelled before it runs would never end its execution
+        if (isCancelled()) {
+          exec.cancel();
+          end(exec);
+        }
+      }
+
+      protected void set(ResultSet rs) {
+        super.set(rs);
+        // results that arrive after the future is cancelled are never seen, so are closed here
+        if (isCancelled() && rs != null) {
+          try {
+            rs.close();
+          } catch (SQLException e) {
+            // the results are no longer wanted
+          }
+        }
+      }
+    };
+    try {
+      connection.getExecutor().execute(result);
+    } catch (RuntimeException e) {
+      end(exec);
+      throw e;
+    }
+    return result;
+  }
+
+  /**
+   * Starts an execution of a query on this statement, limited by the query timeout.
+   * @return The new execution, which can be cancelled through this statement.
+   */
+  Execution begin() {
+    Execution exec = new Execution(queryTimeout * 1000L);
+    synchronized (executions) {
+      executions.add(exec);
+    }
+    return exec;
+  }
+
+  /**
+   * Ends an execution of a query on this statement. Ending it again has no effect.
+   * @param exec The execution that is complete.
+   */
+  void end(Execution exec) {
+    synchronized (executions) {
+      executions.remove(exec);
+    }
+    exec.end();
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public <T> T unwrap(Class<T> iface) throws SQLException {
@@ -271,15 +437,34 @@ public class Statement implements GraphURILists, java.sql.Statement {
 
   @Override
   public int getQueryTimeout() throws SQLException {
-    return 0;
+    return queryTimeout;
   }
 
+  /**
+   * Sets the time allowed for each query. This covers connecting, waiting for the
+   * endpoint, and reading and parsing the results, up to the point where the result
+   * set is returned. A query that runs past this is aborted with a
+   * {@link QueryTimeoutException}.
+   * @param seconds The time allowed, in seconds. 0 for no limit.
+   */
   @Override
   public void setQueryTimeout(int seconds) throws SQLException {
+    if (seconds < 0) throw new SparqlException("Query timeout may not be negative");
+    queryTimeout = seconds;
   }
 
+  /**
+   * Cancels any queries executing on this statement, from another thread.
+   * Requests in flight are aborted, releasing their connections, and the
+   * queries fail with a {@link CancelledException}.
+   */
   @Override
   public void cancel() throws SQLException {
+    List<Execution> running;
+    synchronized (executions) {
+      running = new ArrayList<Execution>(executions);
+    }
+    for (Execution exec: running) exec.cancel();
   }
 
   @Override
@@ -317,11 +502,15 @@ public class Statement implements GraphURILists, java.sql.Statement {
 
   @Override
   public void setFetchDirection(int direction) throws SQLException {
+    if (direction != java.sql.ResultSet.FETCH_FORWARD && isForwardOnly()) {
+      throw new SparqlException("Forward only statements can only fetch forward");
+    }
+    fetchDirection = direction;
   }
 
   @Override
   public int getFetchDirection() throws SQLException {
-    return 0;
+    return fetchDirection;
   }
 
   @Override
@@ -335,12 +524,12 @@ public class Statement implements GraphURILists, java.sql.Statement {
 
   @Override
   public int getResultSetConcurrency() throws SQLException {
-    return 0;
+    return java.sql.ResultSet.CONCUR_READ_ONLY;
   }
 
   @Override
-  public int getResultSetType() throws SQLException {
-    return 0;
+  public int getResultSetType() {
+    return resultSetType;
   }
 
   @Override
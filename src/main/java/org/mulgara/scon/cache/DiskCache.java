@@ -0,0 +1,378 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mulgara.scon.InternalException;
+import org.mulgara.scon.impl.CachedResult;
+import org.mulgara.scon.impl.ResultCodec;
+
+/**
+ * A cache of query results stored in files, so they survive a restart of the JVM.
+ * Results are stored in a compact binary form, and read back through memory-mapped
+ * files without parsing the original response. The files are bounded by their total
+ * size, and the least recently used files are deleted first.
+ * <p>
+ * A disk cache is used as a second tier behind a {@link QueryCache}.
+ * Only one cache should use a directory at a time.
+ * </p>
+ */
+public class DiskCache {
+
+  /** The first bytes of every file written by this cache. */
+  private static final int MAGIC = 0x53434F4E;
+
+  /** The version of the file format. */
+  private static final int VERSION = 1;
+
+  /** The offset of the creation time in a file. */
+  private static final int CREATED_OFFSET = 8;
+
+  /** The extension of files written by this cache. */
+  private static final String EXTENSION = ".res";
+
+  /** The extension of files that are still being written. */
+  private static final String TEMP_EXTENSION = ".tmp";
+
+  /** The encoding for strings in the file header. */
+  private static final String UTF8 = "UTF-8";
+
+  /** The directory holding the files. */
+  private final File directory;
+
+  /** The maximum total size of the files, in bytes. */
+  private final long maxSize;
+
+  /** The size of each file, from least to most recently used. */
+  private final LinkedHashMap<String,Long> files = new LinkedHashMap<String,Long>(16, 0.75f, true);
+
+  /** The total size of the files. */
+  private long size = 0;
+
+  /**
+   * Creates a cache in a directory. Any files left in the directory by an earlier
+   * cache are used again, in the order they were last used.
+   * @param directory The directory to hold the files. This is created if it does not exist.
+   * @param maxSize The maximum total size of the files, in bytes.
+   * @throws IOException If the directory cannot be used.
+   */
+  public DiskCache(File directory, long maxSize) throws IOException {
+    if (maxSize <= 0) throw new IllegalArgumentException("Cache size must be positive");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create cache directory: " + directory);
+    }
+    this.directory = directory;
+    this.maxSize = maxSize;
+
+    File[] existing = directory.listFiles();
+    if (existing == null) throw new IOException("Unable to read cache directory: " + directory);
+    Arrays.sort(existing, new Comparator<File>() {
+      public int compare(File a, File b) {
+        long d = a.lastModified() - b.lastModified();
+        return d < 0 ? -1 : (d > 0 ? 1 : 0);
+      }
+    });
+    for (File f: existing) {
+      String name = f.getName();
+      if (name.endsWith(EXTENSION)) {
+        files.put(name, f.length());
+        size += f.length();
+      } else if (name.endsWith(TEMP_EXTENSION)) {
+        f.delete();
+      }
+    }
+    evict();
+  }
+
+  /**
+   * Reads the results of a query. The file is mapped and decoded without holding the
+   * lock on the cache, so other reads and writes are not held up. A file that is
+   * replaced or deleted while it is read is still read completely, as it was when opened.
+   * @param key The key for the query.
+   * @param cache The cache the entry will be used by.
+   * @return The entry for the query, or <code>null</code> if the results are not on disk.
+   */
+  QueryCache.Entry get(String key, QueryCache cache) {
+    String name = fileName(key);
+    Long length;
+    synchronized (this) {
+      // a lookup in the access ordered map marks the file as recently used
+      length = files.get(name);
+    }
+    if (length == null) return null;
+    File f = new File(directory, name);
+    try {
+      RandomAccessFile raf = new RandomAccessFile(f, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (data.getInt() != MAGIC || data.getInt() != VERSION) throw new InternalException("Not a cached result");
+        long created = data.getLong();
+        // a different key can only be found if the digests collide
+        if (!key.equals(readString(data))) return null;
+        String eTag = readString(data);
+        String lastModified = readString(data);
+        CachedResult result = ResultCodec.decode(data);
+        f.setLastModified(System.currentTimeMillis());
+        return cache.new Entry(result, created, eTag, lastModified);
+      } finally {
+        raf.close();
+      }
+    } catch (Exception e) {
+      discard(name, length);
+      return null;
+    }
+  }
+
+  /**
+   * Deletes a file that could not be read, unless it has been replaced since it was opened.
+   * @param name The name of the file.
+   * @param length The length recorded for the file when it was opened.
+   */
+  private synchronized void discard(String name, Long length) {
+    if (files.get(name) == length) removeFile(name);
+  }
+
+  /**
+   * Writes the results of a query. The results are encoded and written to a temporary
+   * file without holding the lock on the cache, so readers are not held up by the write.
+   * The file is written completely before it replaces any earlier results, so a file is
+   * never seen partially written.
+   * @param key The key for the query.
+   * @param entry The entry to write.
+   */
+  void put(String key, QueryCache.Entry entry) {
+    String name = fileName(key);
+    byte[] encoded = ResultCodec.encode(entry.getResult());
+    byte[] header = header(key, entry);
+    long length = header.length + encoded.length;
+    if (length > maxSize) return;
+    File temp = null;
+    try {
+      // each writer has its own file, as the same query may be written by several threads
+      temp = File.createTempFile(name, TEMP_EXTENSION, directory);
+      FileOutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(header);
+        out.write(encoded);
+      } finally {
+        out.close();
+      }
+      install(name, temp, length);
+    } catch (IOException e) {
+      // the results are still cached in memory
+      if (temp != null) temp.delete();
+    }
+  }
+
+  /**
+   * Replaces the file for a query with a file that has been completely written.
+   * @param name The name of the file for the query.
+   * @param temp The file holding the new results.
+   * @param length The length of the new file.
+   * @throws IOException If the file could not be renamed.
+   */
+  private synchronized void install(String name, File temp, long length) throws IOException {
+    removeFile(name);
+    if (!temp.renameTo(new File(directory, name))) throw new IOException("Unable to rename " + temp);
+    // a new object for each file, so a reader can tell if the file has been replaced
+    files.put(name, new Long(length));
+    size += length;
+    evict();
+  }
+
+  /**
+   * Updates the time that the results of a query were created, after they have been
+   * revalidated. The time is written in place through a memory mapping of the file.
+   * @param key The key for the query.
+   * @param created The new creation time, in milliseconds since the epoch.
+   */
+  synchronized void touch(String key, long created) {
+    String name = fileName(key);
+    if (!files.containsKey(name)) return;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(new File(directory, name), "rw");
+      try {
+        MappedByteBuffer data = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, CREATED_OFFSET, 8);
+        data.putLong(0, created);
+        data.force();
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      removeFile(name);
+    }
+  }
+
+  /**
+   * Removes the results of a query.
+   * @param key The key for the query.
+   */
+  synchronized void remove(String key) {
+    removeFile(fileName(key));
+  }
+
+  /**
+   * Removes all results.
+   */
+  public synchronized void clear() {
+    for (String name: files.keySet()) new File(directory, name).delete();
+    files.clear();
+    size = 0;
+  }
+
+  /**
+   * Gets the number of results on disk.
+   * @return The number of queries with results in files.
+   */
+  public synchronized int size() {
+    return files.size();
+  }
+
+  /**
+   * Gets the total size of the files.
+   * @return The number of bytes used by the files.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * Deletes a file.
+   * @param name The name of the file.
+   */
+  private void removeFile(String name) {
+    Long length = files.remove(name);
+    if (length != null) size -= length;
+    new File(directory, name).delete();
+  }
+
+  /**
+   * Deletes the least recently used files until the total size is within the limit.
+   */
+  private void evict() {
+    Iterator<Map.Entry<String,Long>> lru = files.entrySet().iterator();
+    while (size > maxSize && lru.hasNext()) {
+      Map.Entry<String,Long> e = lru.next();
+      size -= e.getValue();
+      new File(directory, e.getKey()).delete();
+      lru.remove();
+    }
+  }
+
+  /**
+   * Builds the header of a file.
+   * @param key The key for the query.
+   * @param entry The entry being written.
+   * @return The encoded header.
+   */
+  private static byte[] header(String key, QueryCache.Entry entry) {
+    byte[] k = utf8(key);
+    byte[] t = utf8(entry.getETag());
+    byte[] m = utf8(entry.getLastModified());
+    ByteBuffer b = ByteBuffer.allocate(16 + 12 + k.length + length(t) + length(m));
+    b.putInt(MAGIC).putInt(VERSION).putLong(entry.getCreated());
+    putString(b, k);
+    putString(b, t);
+    putString(b, m);
+    return b.array();
+  }
+
+  /**
+   * Writes a string with its length.
+   * @param b The buffer to write to.
+   * @param s The encoded string, or <code>null</code>.
+   */
+  private static void putString(ByteBuffer b, byte[] s) {
+    if (s == null) {
+      b.putInt(-1);
+    } else {
+      b.putInt(s.length);
+      b.put(s);
+    }
+  }
+
+  /**
+   * Gets the length of an encoded string.
+   * @param s The encoded string, or <code>null</code>.
+   * @return The number of bytes in the string.
+   */
+  private static int length(byte[] s) {
+    return s == null ? 0 : s.length;
+  }
+
+  /**
+   * Reads a string written by {@link #putString(ByteBuffer, byte[])}.
+   * @param b The buffer to read from.
+   * @return The string, or <code>null</code>.
+   */
+  private static String readString(ByteBuffer b) throws UnsupportedEncodingException {
+    int length = b.getInt();
+    if (length < 0) return null;
+    byte[] s = new byte[length];
+    b.get(s);
+    return new String(s, UTF8);
+  }
+
+  /**
+   * Encodes a string as UTF-8.
+   * @param s The string to encode. May be <code>null</code>.
+   * @return The encoded string, or <code>null</code>.
+   */
+  private static byte[] utf8(String s) {
+    if (s == null) return null;
+    try {
+      return s.getBytes(UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new Error("JVM unable to handle UTF-8");
+    }
+  }
+
+  /**
+   * Creates the name of the file for a query.
+   * @param key The key for the query.
+   * @return A file name made from a digest of the key.
+   */
+  private static String fileName(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(utf8(key));
+      StringBuilder sb = new StringBuilder(digest.length * 2 + EXTENSION.length());
+      for (byte b: digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.append(EXTENSION).toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error("JVM unable to create SHA-1 digests");
+    }
+  }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.cache;
+
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.mulgara.scon.ResultSet;
+import org.mulgara.scon.impl.CachedResult;
+
+/**
+ * A cache of query results held in memory. Results are keyed by the endpoint, the
+ * graphs they were queried against, and the text of the query. The cache is bounded
+ * by the estimated size of the results it holds, and evicts the least recently used
+ * results first. A cache may be shared by several connections.
+ * <p>
+ * Results are fresh for a fixed time after they are stored. After this they may still
+ * be used for a further period while they are refreshed in the background.
+ * </p>
+ * <p>
+ * A {@link DiskCache} may be added as a second tier. Results are then also written to
+ * disk, and results that are not in memory are read back from disk.
+ * </p>
+ * <p>
+ * Results that came with an ETag or Last-Modified validator are kept after they expire,
+ * until they are evicted. These can be revalidated with a conditional request, and used
+ * again if the endpoint reports that they have not been modified.
+ * </p>
+ */
+public class QueryCache {
+
+  /** The results in the cache, from least to most recently used. */
+  private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+  /** The maximum estimated size of all the results in the cache. */
+  private final long maxWeight;
+
+  /** The time that results are fresh for, in milliseconds. */
+  private final long ttl;
+
+  /** The time that stale results may be used for while being refreshed, in milliseconds. */
+  private final long staleTime;
+
+  /** The estimated size of all the results in the cache. */
+  private long weight = 0;
+
+  /** The queries being fetched for connections sharing this cache. */
+  private final SingleFlight flights = new SingleFlight();
+
+  /** The second tier of the cache, or null if there is none. */
+  private volatile DiskCache disk = null;
+
+  /**
+   * Creates a cache.
+   * @param maxWeight The maximum estimated number of bytes used by the results in the cache.
+   * @param ttl The time that results are fresh for.
+   * @param staleTime The time after results expire that they may still be used while
+   *        they are refreshed. 0 to always wait for expired results to be fetched again.
+   * @param unit The unit for the times.
+   */
+  public QueryCache(long maxWeight, long ttl, long staleTime, TimeUnit unit) {
+    if (maxWeight <= 0) throw new IllegalArgumentException("Cache size must be positive");
+    if (ttl <= 0) throw new IllegalArgumentException("Time to live must be positive");
+    if (staleTime < 0) throw new IllegalArgumentException("Stale time may not be negative");
+    this.maxWeight = maxWeight;
+    this.ttl = unit.toMillis(ttl);
+    this.staleTime = unit.toMillis(staleTime);
+  }
+
+  /**
+   * Sets a cache on disk to use as a second tier behind this cache.
+   * @param disk The disk cache to use, or <code>null</code> to only cache results in memory.
+   */
+  public void setDiskCache(DiskCache disk) {
+    this.disk = disk;
+  }
+
+  /**
+   * Gets the cache on disk that is used as a second tier behind this cache.
+   * @return The disk cache, or <code>null</code> if results are only cached in memory.
+   */
+  public DiskCache getDiskCache() {
+    return disk;
+  }
+
+  /**
+   * Gets the queries that are being fetched for the connections sharing this cache.
+   * Identical queries from these connections are collapsed into a single request.
+   * @return The queries in flight.
+   */
+  public SingleFlight getInFlight() {
+    return flights;
+  }
+
+  /**
+   * Creates the key for a query.
+   * @param endpoint The endpoint the query is sent to.
+   * @param graphs The encoded graph parameters for the query.
+   * @param query The text of the query.
+   * @return A key that is the same for all equivalent queries.
+   */
+  public static String key(URL endpoint, String graphs, String query) {
+    return endpoint.toString() + '\n' + graphs + '\n' + normalize(query);
+  }
+
+  /**
+   * Finds the cached results for a query, in memory or else on disk. Results that are
+   * stale, can no longer be used while they are refreshed, and cannot be revalidated
+   * are removed.
+   * @param key The key for the query.
+   * @return The entry for the query, or <code>null</code> if there are no usable results.
+   */
+  public Entry get(String key) {
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (!entry.isExpired() || entry.hasValidator()) return entry;
+        removeFromMemory(key);
+      }
+    }
+    DiskCache d = disk;
+    if (d == null) return null;
+    Entry entry = d.get(key, this);
+    if (entry == null) return null;
+    if (entry.isExpired() && !entry.hasValidator()) {
+      d.remove(key);
+      return null;
+    }
+    putInMemory(key, entry);
+    return entry;
+  }
+
+  /**
+   * Stores the results of a query. Results that are not held in memory are not stored.
+   * The result set is not moved, and may still be used after it has been stored.
+   * @param key The key for the query.
+   * @param rs The results of the query.
+   * @return <code>true</code> if the results were stored.
+   */
+  public boolean put(String key, ResultSet rs) {
+    return put(key, rs, null, null);
+  }
+
+  /**
+   * Stores the results of a query, with the validators that the endpoint sent for them.
+   * Results that are not held in memory are not stored.
+   * The result set is not moved, and may still be used after it has been stored.
+   * @param key The key for the query.
+   * @param rs The results of the query.
+   * @param eTag The ETag header for the results. May be <code>null</code>.
+   * @param lastModified The Last-Modified header for the results. May be <code>null</code>.
+   * @return <code>true</code> if the results were stored in memory.
+   */
+  public boolean put(String key, ResultSet rs, String eTag, String lastModified) {
+    CachedResult result = CachedResult.of(rs);
+    if (result == null) return false;
+    return put(key, new Entry(result, System.currentTimeMillis(), eTag, lastModified));
+  }
+
+  /**
+   * Stores the results of a query. Results larger than the cache are not stored
+   * in memory, but may still be stored on disk.
+   * @param key The key for the query.
+   * @param result The results of the query.
+   * @return <code>true</code> if the results were stored in memory.
+   */
+  public boolean put(String key, CachedResult result) {
+    return put(key, new Entry(result, System.currentTimeMillis(), null, null));
+  }
+
+  /**
+   * Stores an entry in memory and on disk.
+   * @param key The key for the query.
+   * @param entry The entry to store.
+   * @return <code>true</code> if the entry was stored in memory.
+   */
+  private boolean put(String key, Entry entry) {
+    boolean stored = putInMemory(key, entry);
+    DiskCache d = disk;
+    if (d != null) d.put(key, entry);
+    return stored;
+  }
+
+  /**
+   * Stores an entry in memory, evicting the least recently used entries if the cache is full.
+   * @param key The key for the query.
+   * @param entry The entry to store.
+   * @return <code>true</code> if the entry was stored.
+   */
+  private synchronized boolean putInMemory(String key, Entry entry) {
+    removeFromMemory(key);
+    if (entry.result.getWeight() > maxWeight) return false;
+    entries.put(key, entry);
+    weight += entry.result.getWeight();
+    Iterator<Entry> lru = entries.values().iterator();
+    while (weight > maxWeight) {
+      weight -= lru.next().result.getWeight();
+      lru.remove();
+    }
+    return true;
+  }
+
+  /**
+   * Records that the endpoint has confirmed that cached results are unchanged.
+   * The results are fresh again, and are restored if they were evicted.
+   * @param key The key for the query.
+   * @param entry The entry that was revalidated.
+   */
+  public void revalidated(String key, Entry entry) {
+    long now = System.currentTimeMillis();
+    putInMemory(key, new Entry(entry.result, now, entry.eTag, entry.lastModified));
+    DiskCache d = disk;
+    if (d != null) d.touch(key, now);
+  }
+
+  /**
+   * Removes the results of a query, from memory and disk.
+   * @param key The key for the query.
+   */
+  public void remove(String key) {
+    removeFromMemory(key);
+    DiskCache d = disk;
+    if (d != null) d.remove(key);
+  }
+
+  /**
+   * Removes the results of a query from memory.
+   * @param key The key for the query.
+   */
+  private synchronized void removeFromMemory(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) weight -= entry.result.getWeight();
+  }
+
+  /**
+   * Removes all results, from memory and disk.
+   */
+  public void clear() {
+    synchronized (this) {
+      entries.clear();
+      weight = 0;
+    }
+    DiskCache d = disk;
+    if (d != null) d.clear();
+  }
+
+  /**
+   * Gets the number of results in memory.
+   * @return The number of queries with cached results in memory.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Gets the estimated size of the results in memory.
+   * @return The estimated number of bytes used by the cached results.
+   */
+  public synchronized long getWeight() {
+    return weight;
+  }
+
+  /**
+   * Reduces the text of a query to a form that is the same for equivalent queries.
+   * Comments and whitespace outside of strings and IRIs are reduced to a single space,
+   * and removed from the start and end of the query. Strings, including long strings,
+   * IRIs and escaped characters are kept exactly as they are. A comment only ends at a
+   * line break, so text that follows a comment on the same line is part of the comment.
+   * @param query The query to normalize.
+   * @return The normalized query.
+   */
+  static String normalize(String query) {
+    int len = query.length();
+    StringBuilder sb = new StringBuilder(len);
+    boolean space = false;
+    int i = 0;
+    while (i < len) {
+      char c = query.charAt(i);
+      if (Character.isWhitespace(c)) {
+        space = true;
+        i++;
+        continue;
+      }
+      if (c == '#') {
+        // a comment is whitespace, up to the end of the line
+        while (i < len && query.charAt(i) != '\n' && query.charAt(i) != '\r') i++;
+        space = true;
+        continue;
+      }
+      if (space && sb.length() > 0) sb.append(' ');
+      space = false;
+      int end;
+      if (c == '"' || c == '\'') end = stringEnd(query, i);
+      else if (c == '<') end = iriEnd(query, i);
+      else if (c == '\\') end = Math.min(len, i + 2);
+      else end = i + 1;
+      sb.append(query, i, end);
+      i = end;
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Finds the end of a string in a query. Strings may be quoted with single or double
+   * quotes, or with three of either for a long string, and may contain escaped characters.
+   * @param query The text of the query.
+   * @param start The position of the opening quote.
+   * @return The position after the closing quote, or the end of the query if the string is not closed.
+   */
+  private static int stringEnd(String query, int start) {
+    int len = query.length();
+    char quote = query.charAt(start);
+    boolean isLong = start + 2 < len && query.charAt(start + 1) == quote && query.charAt(start + 2) == quote;
+    int i = start + (isLong ? 3 : 1);
+    while (i < len) {
+      char c = query.charAt(i);
+      if (c == '\\') {
+        i += 2;
+      } else if (c != quote) {
+        i++;
+      } else if (!isLong) {
+        return i + 1;
+      } else if (i + 2 < len && query.charAt(i + 1) == quote && query.charAt(i + 2) == quote) {
+        return i + 3;
+      } else {
+        i++;
+      }
+    }
+    return len;
+  }
+
+  /**
+   * Finds the end of an IRI in a query. A <code>&lt;</code> is only the start of an IRI if
+   * it is followed by characters that may appear in an IRI and then a <code>&gt;</code>.
+   * Otherwise it is a comparison, and stands alone.
+   * @param query The text of the query.
+   * @param start The position of the <code>&lt;</code>.
+   * @return The position after the IRI, or after the <code>&lt;</code> if this is not an IRI.
+   */
+  private static int iriEnd(String query, int start) {
+    for (int i = start + 1; i < query.length(); i++) {
+      char c = query.charAt(i);
+      if (c == '>') return i + 1;
+      if (c <= ' ' || "<\"{}|^`\\".indexOf(c) >= 0) break;
+    }
+    return start + 1;
+  }
+
+  /**
+   * Cached results, and the time they were stored.
+   */
+  public class Entry {
+
+    /** The results of the query. */
+    private final CachedResult result;
+
+    /** The time the results were stored, in milliseconds since the epoch. */
+    private final long created;
+
+    /** The ETag header sent with the results, or null if there was none. */
+    private final String eTag;
+
+    /** The Last-Modified header sent with the results, or null if there was none. */
+    private final String lastModified;
+
+    /** Set while the results are being refreshed. */
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    Entry(CachedResult result, long created, String eTag, String lastModified) {
+      this.result = result;
+      this.created = created;
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+    }
+
+    /**
+     * Gets the results of the query.
+     * @return The cached results.
+     */
+    public CachedResult getResult() {
+      return result;
+    }
+
+    /**
+     * Gets the time these results were stored, or last revalidated.
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getCreated() {
+      return created;
+    }
+
+    /**
+     * Tests if these results have expired, and should be refreshed.
+     * @return <code>true</code> if the results are stale.
+     */
+    public boolean isStale() {
+      return System.currentTimeMillis() - created >= ttl;
+    }
+
+    /**
+     * Tests if these results are too old to be used while they are refreshed.
+     * Expired results may only be used after they have been revalidated.
+     * @return <code>true</code> if the results have expired.
+     */
+    public boolean isExpired() {
+      return System.currentTimeMillis() - created >= ttl + staleTime;
+    }
+
+    /**
+     * Tests if these results can be revalidated with a conditional request.
+     * @return <code>true</code> if the endpoint sent a validator with the results.
+     */
+    public boolean hasValidator() {
+      return eTag != null || lastModified != null;
+    }
+
+    /**
+     * Gets the ETag header that was sent with these results.
+     * @return The entity tag, or <code>null</code> if there was none.
+     */
+    public String getETag() {
+      return eTag;
+    }
+
+    /**
+     * Gets the Last-Modified header that was sent with these results.
+     * @return The date of the last modification, or <code>null</code> if there was none.
+     */
+    public String getLastModified() {
+      return lastModified;
+    }
+
+    /**
+     * Claims the refresh of these results. Only one caller can claim a refresh
+     * until it has ended.
+     * @return <code>true</code> if the caller should refresh the results.
+     */
+    public boolean startRefresh() {
+      return refreshing.compareAndSet(false, true);
+    }
+
+    /**
+     * Ends a claim to refresh these results, so another caller may refresh them
+     * if they are still stale.
+     */
+    public void endRefresh() {
+      refreshing.set(false);
+    }
+  }
+}
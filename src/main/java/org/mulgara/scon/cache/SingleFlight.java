@@ -0,0 +1,227 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.cache;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.mulgara.scon.InternalException;
+import org.mulgara.scon.SparqlException;
+import org.mulgara.scon.impl.CachedResult;
+
+/**
+ * Collapses identical queries that are in flight at the same time into a single request.
+ * The first caller for a key starts the query, and every caller that arrives before it
+ * is complete waits for the same result. A query that is run on an executor belongs to
+ * none of its callers, so each caller can stop waiting without affecting the others, and
+ * the query is only abandoned once every caller has stopped waiting for it.
+ */
+public class SingleFlight {
+
+  /** The time between checks on a caller that is waiting for another caller's query, in milliseconds. */
+  private static final long WAIT_SLICE = 50;
+
+  /** The queries currently being executed, by key. */
+  private final ConcurrentMap<String,Flight> flights = new ConcurrentHashMap<String,Flight>();
+
+  /**
+   * Executes a query, or waits for an identical query that is already executing.
+   * @param key The key for the query.
+   * @param query The operation that executes the query.
+   * @return The results of the query, shared by every caller with the same key.
+   * @throws SparqlException If the query failed, or the wait for it was interrupted.
+   * @throws IOException If there was a communications error during the query.
+   */
+  public CachedResult execute(String key, Callable<CachedResult> query) throws SparqlException, IOException {
+    return execute(key, query, null, null, null);
+  }
+
+  /**
+   * Executes a query, or waits for an identical query that is already executing.
+   * While waiting, the guard is checked regularly, so the caller can give up on the
+   * wait without affecting the query being executed for other callers. The guard only
+   * applies to this caller, so the query itself should not be tied to any one caller.
+   * @param key The key for the query.
+   * @param query The operation that executes the query.
+   * @param guard A check on whether the caller can continue to wait, or <code>null</code>.
+   * @param executor The executor to run the query on, or <code>null</code> to run it on
+   *        the thread of the first caller. If the executor rejects the query then it is
+   *        run by the first caller.
+   * @param abandon The operation that stops the query when every caller has stopped
+   *        waiting for it before it is complete, or <code>null</code>.
+   * @return The results of the query, shared by every caller with the same key.
+   * @throws SparqlException If the query failed, the guard failed, or the wait was interrupted.
+   * @throws IOException If there was a communications error during the query.
+   */
+  public CachedResult execute(String key, Callable<CachedResult> query, Guard guard,
+                              Executor executor, Runnable abandon) throws SparqlException, IOException {
+    Flight flight;
+    while (true) {
+      Flight created = new Flight(key, query);
+      flight = flights.putIfAbsent(key, created);
+      if (flight == null) {
+        flight = created;
+        start(flight, executor);
+        break;
+      }
+      if (flight.join()) break;
+      // the query was abandoned by all of its callers, or has just completed, so make way for a new one
+      flights.remove(key, flight);
+    }
+
+    try {
+      return await(flight, guard);
+    } finally {
+      if (flight.leave()) {
+        flights.remove(key, flight);
+        if (abandon != null) abandon.run();
+      }
+    }
+  }
+
+  /**
+   * Gets the number of queries being executed.
+   * @return The number of distinct queries in flight.
+   */
+  public int size() {
+    return flights.size();
+  }
+
+  /**
+   * Starts a query.
+   * @param flight The query to start.
+   * @param executor The executor to run the query on, or <code>null</code> to run it on this thread.
+   */
+  private static void start(Flight flight, Executor executor) {
+    if (executor != null) {
+      try {
+        executor.execute(flight);
+        return;
+      } catch (RejectedExecutionException e) {
+        // no room on the executor, so fall through and run the query here
+      }
+    }
+    flight.run();
+  }
+
+  /**
+   * Waits for the results of a query.
+   * @param flight The query to wait for.
+   * @param guard A check on whether the caller can continue to wait, or <code>null</code>.
+   * @return The results of the query.
+   * @throws SparqlException If the query failed, the guard failed, or the wait was interrupted.
+   * @throws IOException If there was a communications error during the query.
+   */
+  private static CachedResult await(Flight flight, Guard guard) throws SparqlException, IOException {
+    try {
+      if (guard == null) return flight.get();
+      while (true) {
+        guard.check();
+        try {
+          return flight.get(WAIT_SLICE, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          // check the guard again
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SparqlException("Interrupted while waiting for query results", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SparqlException) throw (SparqlException)cause;
+      if (cause instanceof IOException) throw (IOException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new InternalException("Unexpected error executing query", cause);
+    }
+  }
+
+  /**
+   * A query in flight, along with a count of the callers waiting for it.
+   */
+  private class Flight extends FutureTask<CachedResult> {
+
+    /** The key for the query. */
+    private final String key;
+
+    /** The number of callers waiting for the query. The caller that starts it is the first. */
+    private int waiters = 1;
+
+    /** Set when every caller stopped waiting before the query was complete. */
+    private boolean abandoned = false;
+
+    /**
+     * Creates a query for the caller that will start it.
+     * @param key The key for the query.
+     * @param query The operation that executes the query.
+     */
+    Flight(String key, Callable<CachedResult> query) {
+      super(query);
+      this.key = key;
+    }
+
+    /**
+     * Adds a caller to the query.
+     * @return <code>false</code> if the query has been abandoned or is already complete,
+     *         and cannot be joined.
+     */
+    synchronized boolean join() {
+      if (abandoned || isDone()) return false;
+      waiters++;
+      return true;
+    }
+
+    /**
+     * Removes a caller from the query.
+     * @return <code>true</code> if this was the last caller, and the query is not complete.
+     */
+    synchronized boolean leave() {
+      if (--waiters > 0 || isDone()) return false;
+      abandoned = true;
+      return true;
+    }
+
+    /**
+     * Removes the query from those in flight once it is complete.
+     * @see java.util.concurrent.FutureTask#done()
+     */
+    protected void done() {
+      flights.remove(key, this);
+    }
+  }
+
+  /**
+   * A check on whether a caller may continue to wait for a query.
+   */
+  public interface Guard {
+
+    /**
+     * Tests if the caller may continue.
+     * @throws SparqlException If the caller must stop waiting.
+     */
+    void check() throws SparqlException;
+  }
+}
@@ -20,8 +20,11 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringBufferInputStream;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.Clob;
@@ -37,6 +40,7 @@ import java.sql.Timestamp;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
 
 import org.mulgara.scon.ResultSet;
 import org.mulgara.scon.ResultSetHeader;
@@ -46,7 +50,6 @@ import org.mulgara.scon.SparqlException;
 
 import org.mulgara.mrg.Node;
 import org.mulgara.mrg.Uri;
-import org.mulgara.mrg.Literal;
 import org.mulgara.mrg.vocab.uri.XSD;
 
 /**
@@ -55,14 +58,17 @@ import org.mulgara.mrg.vocab.uri.XSD;
 @SuppressWarnings("deprecation")
 public class BindingsResultSet implements ResultSet {
 
+  /** The text of the datatype for URI literals. */
+  private static final String ANY_URI = XSD.ANY_URI.toString();
+
   /** An offset to indicate the before-first condition */
   private static final int BEFORE_FIRST = -1;
 
   /** The parsed header data for this result set */
   private final ResultSetHeader header;
 
-  /** The bindings for this result set. */
-  private final List<Node[]> values;
+  /** The bindings for this result set, held by column. */
+  private final ColumnarRows values;
 
   /** The statement used to create this result set. */
   private final Statement statement;
@@ -73,16 +79,52 @@ public class BindingsResultSet implements ResultSet {
   /** The cursor pointer. */
   private int cursor = BEFORE_FIRST;
 
+  /** Set when the last value read was unbound. */
+  private boolean lastNull = false;
+
   /**
-   * Creates this result set with a header and boolean value.
+   * Creates this result set with a header and rows of bindings.
+   * @param header The header describing the columns in each row.
+   * @param values The rows of bindings. These are copied into columns unless
+   *        they are already a {@link ColumnarRows}.
+   * @param statement The statement used to create this result set.
    */
-  public BindingsResultSet(ResultSetHeader header, List<Node[]> values, Statement statement) {
+  public BindingsResultSet(ResultSetHeader header, List<Term[]> values, Statement statement) {
     this.header = header;
-    this.values = values;
+    this.values = ColumnarRows.of(header.getVariables().length, values);
     this.statement = statement;
     afterLast = values.size();
   }
 
+  /**
+   * Creates a result set whose rows are not held in memory.
+   * Subclasses using this constructor must provide their own cursor movement
+   * and override {@link #currentRow()}, {@link #term(int)} and {@link #lexical(int)}.
+   */
+  protected BindingsResultSet(ResultSetHeader header, Statement statement) {
+    this.header = header;
+    this.values = null;
+    this.statement = statement;
+    afterLast = 0;
+  }
+
+  /**
+   * Gets the parsed header data for this result set.
+   * @return The header for the results.
+   */
+  ResultSetHeader getHeader() {
+    return header;
+  }
+
+  /**
+   * Gets all of the rows in this result set. Result sets that are not held
+   * in memory have no rows to return.
+   * @return The rows of bindings, or <code>null</code> if the rows are not in memory.
+   */
+  ColumnarRows getRows() {
+    return values;
+  }
+
   /**
    * Returns the type of this result set as being with bindings.
    */
@@ -194,12 +236,54 @@ public class BindingsResultSet implements ResultSet {
 
 
   public Object getObject(int column) throws SparqlException {
-    return values.get(cursor)[column - 1];
+    return node(read(column - 1));
   }
 
 
   public Object getObject(String name) throws SparqlException {
-    return values.get(cursor)[header.getColumnIndex(name)];
+    return node(read(header.getColumnIndex(name)));
+  }
+
+
+  /**
+   * Gets a value converted to a Java type. Numbers, booleans, dates and times are
+   * converted as they are by the getter for that type. Other types are only
+   * available when the node for the value is an instance of the type.
+   * @param columnIndex The column of the value, starting at 1.
+   * @param type The class of the value to return.
+   * @return The value, or <code>null</code> if it is unbound.
+   * @throws SparqlException If the value cannot be converted to the type.
+   */
+  public <T> T getObject(int columnIndex, Class<T> type) throws SQLException {
+    Term t = read(columnIndex - 1);
+    if (t == null) return null;
+    Object value;
+    if (type == String.class) value = t.getLexical();
+    else if (type == Long.class) value = Long.valueOf(getLong(columnIndex));
+    else if (type == Integer.class) value = Integer.valueOf(getInt(columnIndex));
+    else if (type == Short.class) value = Short.valueOf(getShort(columnIndex));
+    else if (type == Byte.class) value = Byte.valueOf(getByte(columnIndex));
+    else if (type == Double.class) value = Double.valueOf(getDouble(columnIndex));
+    else if (type == Float.class) value = Float.valueOf(getFloat(columnIndex));
+    else if (type == Boolean.class) value = Boolean.valueOf(getBoolean(columnIndex));
+    else if (type == BigDecimal.class) value = getBigDecimal(columnIndex);
+    else if (type == BigInteger.class) value = getBigDecimal(columnIndex).toBigInteger();
+    else if (type == Date.class) value = getDate(columnIndex);
+    else if (type == Time.class) value = getTime(columnIndex);
+    else if (type == Timestamp.class || type == java.util.Date.class) value = getTimestamp(columnIndex);
+    else if (type == URI.class) value = getUri(columnIndex);
+    else value = t.toNode();
+    if (!type.isInstance(value)) throw new SparqlException("Data cannot be converted to " + type.getName());
+    return type.cast(value);
+  }
+
+
+  /**
+   * Gets a value converted to a Java type.
+   * @see #getObject(int, Class)
+   */
+  public <T> T getObject(String columnLabel, Class<T> type) throws SQLException {
+    return getObject(findColumn(columnLabel), type);
   }
 
 
@@ -208,14 +292,13 @@ public class BindingsResultSet implements ResultSet {
    * a Literal with datatype of anyURI.
    */
   public URI getUri(int column) throws SparqlException {
-    Node v = values.get(cursor)[column - 1];
-    if (v instanceof Uri) return ((Uri)v).getURI();
-    if (v instanceof Literal) {
-      Literal l = (Literal)v;
+    Term t = read(column - 1);
+    if (t != null && t.getKind() == Term.Kind.URI) return ((Uri)t.toNode()).getURI();
+    if (t != null && t.getKind() == Term.Kind.LITERAL && ANY_URI.equals(t.getDatatype())) {
       try {
-        if (l.getType() == XSD.ANY_URI) return (URI)l.getValue();
-      } catch (ClassCastException e) {
-        throw new SparqlException("Data is marked as a URI but is not: " + l.getValue());
+        return new URI(t.getLexical());
+      } catch (URISyntaxException e) {
+        throw new SparqlException("Data is marked as a URI but is not: " + t.getLexical());
       }
     }
     throw new SparqlException("Data is not a URI");
@@ -223,36 +306,41 @@ public class BindingsResultSet implements ResultSet {
 
 
   public URI getUri(String name) throws SparqlException {
-    return getUri(header.getColumnIndex(name));
+    return getUri(findColumn(name));
   }
 
 
   // java.io does not provide any tools to do this properly, so use the deprecated StringBufferInputStream
   public InputStream getAsciiStream(int column) throws SparqlException {
-    try {
-      return new StringBufferInputStream(((Literal)values.get(cursor)[column - 1]).getText());
-    } catch (ClassCastException e) {
-      throw new SparqlException("Data cannot be serialized to ASCII");
-    }
+    Term t = read(column - 1);
+    if (t == null || t.getKind() != Term.Kind.LITERAL) throw new SparqlException("Data cannot be serialized to ASCII");
+    return new StringBufferInputStream(t.getLexical());
   }
 
 
   public InputStream getAsciiStream(String name) throws SparqlException {
-    return getAsciiStream(header.getColumnIndex(name));
+    return getAsciiStream(findColumn(name));
   }
 
 
+  /**
+   * Reads a number from the lexical form of a value.
+   */
   public BigDecimal getBigDecimal(int column) throws SparqlException {
+    int index = column - 1;
+    if (readsLong(index)) return lastNull ? null : BigDecimal.valueOf(values.getLong(cursor, index));
+    String s = readLexical(index);
+    if (s == null) return null;
     try {
-      return (BigDecimal)((Literal)values.get(cursor)[column - 1]).getValue();
-    } catch (ClassCastException e) {
-      throw new SparqlException("Data is not a BigDecimal");
+      return new BigDecimal(s.trim());
+    } catch (NumberFormatException e) {
+      throw new SparqlException("Data is not a BigDecimal: " + s);
     }
   }
 
 
   public BigDecimal getBigDecimal(String name) throws SparqlException {
-    return getBigDecimal(header.getColumnIndex(name));
+    return getBigDecimal(findColumn(name));
   }
 
 
@@ -261,65 +349,223 @@ public class BindingsResultSet implements ResultSet {
   }
 
 
+  /**
+   * Gets the bindings at the current cursor position.
+   * @return The row of bindings that the cursor is on.
+   * @throws SparqlException If the cursor is not on a row.
+   */
+  protected Term[] currentRow() throws SparqlException {
+    return values.get(cursor);
+  }
+
+
+  /**
+   * Gets a single binding at the current cursor position, without building the whole row.
+   * @param index The offset of the column, starting at 0.
+   * @return The binding, or <code>null</code> if it is unbound.
+   * @throws SparqlException If the cursor is not on a row.
+   */
+  protected Term term(int index) throws SparqlException {
+    return values.get(cursor, index);
+  }
+
+
+  /**
+   * Gets the lexical form of a single binding at the current cursor position.
+   * @param index The offset of the column, starting at 0.
+   * @return The lexical form of the binding, or <code>null</code> if it is unbound.
+   * @throws SparqlException If the cursor is not on a row.
+   */
+  protected String lexical(int index) throws SparqlException {
+    return values.getLexical(cursor, index);
+  }
+
+
+  /**
+   * Gets a binding at the current cursor position, and records if it was unbound.
+   * @param index The offset of the column, starting at 0.
+   * @return The binding, or <code>null</code> if it is unbound.
+   */
+  private Term read(int index) throws SparqlException {
+    Term t = term(index);
+    lastNull = t == null;
+    return t;
+  }
+
+
+  /**
+   * Gets the lexical form of a binding at the current cursor position, and records if it was unbound.
+   * @param index The offset of the column, starting at 0.
+   * @return The lexical form of the binding, or <code>null</code> if it is unbound.
+   */
+  private String readLexical(int index) throws SparqlException {
+    String s = lexical(index);
+    lastNull = s == null;
+    return s;
+  }
+
+
+  /**
+   * Tests if a column is held as longs, so the current value can be read without
+   * parsing. If so, records if the value on the current row is unbound.
+   * @param index The offset of the column, starting at 0.
+   * @return <code>true</code> if the column holds longs.
+   */
+  private boolean readsLong(int index) {
+    if (values == null || !values.holdsLongs(index)) return false;
+    lastNull = !values.isBound(cursor, index);
+    return true;
+  }
+
+
+  /**
+   * Tests if a column is held as numbers, so the current value can be read without
+   * parsing. If so, records if the value on the current row is unbound.
+   * @param index The offset of the column, starting at 0.
+   * @return <code>true</code> if the column holds numbers.
+   */
+  private boolean readsNumber(int index) {
+    if (values == null || !values.holdsNumbers(index)) return false;
+    lastNull = !values.isBound(cursor, index);
+    return true;
+  }
+
+
+  /**
+   * Reads a binding at the current cursor position as a long.
+   * @param index The offset of the column, starting at 0.
+   * @return The value, or 0 if it is unbound.
+   * @throws SparqlException If the value is not a number, or does not fit in a long.
+   */
+  private long longValue(int index) throws SparqlException {
+    try {
+      if (readsLong(index)) return values.getLong(cursor, index);
+      if (readsNumber(index)) return XsdValues.toLong(values.getDouble(cursor, index));
+      String s = readLexical(index);
+      return s == null ? 0 : XsdValues.parseLong(s);
+    } catch (NumberFormatException e) {
+      throw new SparqlException("Data is not a long", e);
+    }
+  }
+
+
+  /**
+   * Reads a binding at the current cursor position as a double.
+   * @param index The offset of the column, starting at 0.
+   * @return The value, or 0 if it is unbound.
+   * @throws SparqlException If the value is not a number.
+   */
+  private double doubleValue(int index) throws SparqlException {
+    if (readsNumber(index)) return values.getDouble(cursor, index);
+    String s = readLexical(index);
+    try {
+      return s == null ? 0 : XsdValues.parseDouble(s);
+    } catch (NumberFormatException e) {
+      throw new SparqlException("Data is not a double: " + s);
+    }
+  }
+
+
+  /**
+   * Checks that a value fits in a smaller type.
+   * @param value The value to check.
+   * @param min The smallest value of the type.
+   * @param max The largest value of the type.
+   * @param type The name of the type, for reporting.
+   * @return The value.
+   * @throws SparqlException If the value does not fit.
+   */
+  private static long narrow(long value, long min, long max, String type) throws SparqlException {
+    if (value < min || value > max) throw new SparqlException("Data is too large for " + type + ": " + value);
+    return value;
+  }
+
+
+  /**
+   * Reads a date or time.
+   * @param s The lexical form of the value.
+   * @param fields The fields of the value to use.
+   * @param cal The calendar with the time zone for values that do not have one.
+   *        The default time zone is used if this is <code>null</code>.
+   * @return The milliseconds since the epoch.
+   * @throws SparqlException If the value is not a date or time.
+   */
+  private static long millis(String s, int fields, Calendar cal) throws SparqlException {
+    try {
+      return XsdValues.parseMillis(s, fields, cal == null ? TimeZone.getDefault() : cal.getTimeZone());
+    } catch (NumberFormatException e) {
+      throw new SparqlException("Data is not a date or time: " + s);
+    }
+  }
+
+
+  /**
+   * Gets the node for a value, building it if it has not been needed before.
+   * @param t The value. May be <code>null</code> if unbound.
+   * @return The node for the value, or <code>null</code> if unbound.
+   */
+  private static Node node(Term t) throws SparqlException {
+    return t == null ? null : t.toNode();
+  }
+
+
   @Override
   public boolean wasNull() throws SQLException {
-    // TODO Auto-generated method stub
-    return false;
+    return lastNull;
   }
 
   @Override
   public String getString(int columnIndex) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    return readLexical(columnIndex - 1);
   }
 
   @Override
   public boolean getBoolean(int columnIndex) throws SQLException {
-    // TODO Auto-generated method stub
-    return false;
+    int index = columnIndex - 1;
+    if (readsNumber(index)) return values.getDouble(cursor, index) != 0;
+    String s = readLexical(index);
+    try {
+      return s != null && XsdValues.parseBoolean(s);
+    } catch (NumberFormatException e) {
+      throw new SparqlException("Data is not a boolean: " + s);
+    }
   }
 
   @Override
   public byte getByte(int columnIndex) throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return (byte)narrow(longValue(columnIndex - 1), Byte.MIN_VALUE, Byte.MAX_VALUE, "a byte");
   }
 
   @Override
   public short getShort(int columnIndex) throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return (short)narrow(longValue(columnIndex - 1), Short.MIN_VALUE, Short.MAX_VALUE, "a short");
   }
 
   @Override
   public int getInt(int columnIndex) throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return (int)narrow(longValue(columnIndex - 1), Integer.MIN_VALUE, Integer.MAX_VALUE, "an int");
   }
 
   @Override
   public long getLong(int columnIndex) throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return longValue(columnIndex - 1);
   }
 
   @Override
   public float getFloat(int columnIndex) throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return (float)doubleValue(columnIndex - 1);
   }
 
   @Override
   public double getDouble(int columnIndex) throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return doubleValue(columnIndex - 1);
   }
 
   @Override
   public BigDecimal getBigDecimal(int columnIndex, int scale)
       throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    BigDecimal value = getBigDecimal(columnIndex);
+    return value == null ? null : value.setScale(scale, RoundingMode.HALF_UP);
   }
 
   @Override
@@ -330,20 +576,17 @@ public class BindingsResultSet implements ResultSet {
 
   @Override
   public Date getDate(int columnIndex) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    return getDate(columnIndex, null);
   }
 
   @Override
   public Time getTime(int columnIndex) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    return getTime(columnIndex, null);
   }
 
   @Override
   public Timestamp getTimestamp(int columnIndex) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    return getTimestamp(columnIndex, null);
   }
 
   @Override
@@ -360,57 +603,48 @@ public class BindingsResultSet implements ResultSet {
 
   @Override
   public String getString(String columnLabel) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    return getString(findColumn(columnLabel));
   }
 
   @Override
   public boolean getBoolean(String columnLabel) throws SQLException {
-    // TODO Auto-generated method stub
-    return false;
+    return getBoolean(findColumn(columnLabel));
   }
 
   @Override
   public byte getByte(String columnLabel) throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return getByte(findColumn(columnLabel));
   }
 
   @Override
   public short getShort(String columnLabel) throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return getShort(findColumn(columnLabel));
   }
 
   @Override
   public int getInt(String columnLabel) throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return getInt(findColumn(columnLabel));
   }
 
   @Override
   public long getLong(String columnLabel) throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return getLong(findColumn(columnLabel));
   }
 
   @Override
   public float getFloat(String columnLabel) throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return getFloat(findColumn(columnLabel));
   }
 
   @Override
   public double getDouble(String columnLabel) throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return getDouble(findColumn(columnLabel));
   }
 
   @Override
   public BigDecimal getBigDecimal(String columnLabel, int scale)
       throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    return getBigDecimal(findColumn(columnLabel), scale);
   }
 
   @Override
@@ -421,20 +655,17 @@ public class BindingsResultSet implements ResultSet {
 
   @Override
   public Date getDate(String columnLabel) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    return getDate(findColumn(columnLabel), null);
   }
 
   @Override
   public Time getTime(String columnLabel) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    return getTime(findColumn(columnLabel), null);
   }
 
   @Override
   public Timestamp getTimestamp(String columnLabel) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    return getTimestamp(findColumn(columnLabel), null);
   }
 
   @Override
@@ -505,8 +736,7 @@ public class BindingsResultSet implements ResultSet {
 
   @Override
   public int getType() throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    return TYPE_SCROLL_INSENSITIVE;
   }
 
   @Override
@@ -878,40 +1108,40 @@ public class BindingsResultSet implements ResultSet {
 
   @Override
   public Date getDate(int columnIndex, Calendar cal) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    String s = readLexical(columnIndex - 1);
+    return s == null ? null : new Date(millis(s, XsdValues.DATE, cal));
   }
 
   @Override
   public Date getDate(String columnLabel, Calendar cal) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    return getDate(findColumn(columnLabel), cal);
   }
 
   @Override
   public Time getTime(int columnIndex, Calendar cal) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    String s = readLexical(columnIndex - 1);
+    return s == null ? null : new Time(millis(s, XsdValues.TIME, cal));
   }
 
   @Override
   public Time getTime(String columnLabel, Calendar cal) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    return getTime(findColumn(columnLabel), cal);
   }
 
   @Override
   public Timestamp getTimestamp(int columnIndex, Calendar cal)
       throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    String s = readLexical(columnIndex - 1);
+    if (s == null) return null;
+    Timestamp value = new Timestamp(millis(s, XsdValues.TIMESTAMP, cal));
+    value.setNanos(XsdValues.parseNanos(s));
+    return value;
   }
 
   @Override
   public Timestamp getTimestamp(String columnLabel, Calendar cal)
       throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    return getTimestamp(findColumn(columnLabel), cal);
   }
 
   @Override
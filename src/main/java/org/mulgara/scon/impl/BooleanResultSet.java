@@ -74,6 +74,14 @@ public class BooleanResultSet implements ResultSet {
     this.statement = statement;
   }
 
+  /**
+   * Gets the parsed header data for this result set.
+   * @return The header for the result.
+   */
+  ResultSetHeader getHeader() {
+    return header;
+  }
+
   /**
    * Returns the type of this result set as being boolean.
    */
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.impl;
+
+import java.net.URI;
+import java.util.List;
+
+import org.mulgara.scon.ResultSet;
+import org.mulgara.scon.ResultSetHeader;
+import org.mulgara.scon.Statement;
+
+import org.mulgara.mrg.Bnode;
+import org.mulgara.mrg.Graph;
+import org.mulgara.mrg.Literal;
+import org.mulgara.mrg.Node;
+import org.mulgara.mrg.Triple;
+import org.mulgara.mrg.Uri;
+
+/**
+ * An immutable copy of the results of a query. Any number of result sets can be
+ * created over the same results, each with its own independent cursor.
+ */
+public abstract class CachedResult {
+
+  /** The estimated size of an object header and a reference to it, in bytes. */
+  private static final int OBJECT_OVERHEAD = 16;
+
+  /** The estimated size of a String, not including its characters. */
+  private static final int STRING_OVERHEAD = 40;
+
+  /** The estimated size of a reference. */
+  private static final int REFERENCE = 4;
+
+  /** The estimated number of bytes used by the results. Negative until it is calculated. */
+  private volatile long weight = -1;
+
+  /**
+   * Copies the results of a query. Only results held entirely in memory can be copied.
+   * The result set is not moved, and may still be used after it has been copied.
+   * @param rs The results to copy.
+   * @return The copied results, or <code>null</code> if the results are not in memory.
+   */
+  public static CachedResult of(ResultSet rs) {
+    if (rs instanceof BindingsResultSet) {
+      BindingsResultSet bindings = (BindingsResultSet)rs;
+      ColumnarRows rows = bindings.getRows();
+      return rows == null ? null : new Bindings(bindings.getHeader(), rows);
+    }
+    if (rs instanceof BooleanResultSet) {
+      BooleanResultSet bool = (BooleanResultSet)rs;
+      return new Bool(bool.getHeader(), bool.getValue());
+    }
+    if (rs instanceof GraphResultSet) return new Triples(((GraphResultSet)rs).getGraph());
+    return null;
+  }
+
+  /**
+   * Creates a new result set over these results, positioned before the first row.
+   * @param statement The statement the new result set is for.
+   * @return A new result set.
+   */
+  public abstract ResultSet newResultSet(Statement statement);
+
+  /**
+   * Gets the estimated memory used by these results. This is only calculated
+   * the first time it is needed, since it visits all of the results.
+   * @return The estimated number of bytes used by the results.
+   */
+  public long getWeight() {
+    long w = weight;
+    if (w < 0) weight = w = weigh();
+    return w;
+  }
+
+  /**
+   * Estimates the memory used by these results.
+   * @return The estimated number of bytes used by the results.
+   */
+  abstract long weigh();
+
+  /**
+   * Estimates the memory used by a node.
+   * @param n The node to weigh. May be <code>null</code> for an unbound value.
+   * @return The estimated number of bytes used by the node.
+   */
+  static long weighNode(Node n) {
+    if (n == null) return 0;
+    if (n instanceof Literal) {
+      Literal l = (Literal)n;
+      long w = OBJECT_OVERHEAD + weighString(l.getText());
+      // the type and language are usually shared with other literals
+      if (l.getType() != null) w += REFERENCE;
+      if (l.getLang() != null) w += REFERENCE;
+      return w;
+    }
+    if (n instanceof Uri) return OBJECT_OVERHEAD + OBJECT_OVERHEAD + weighString(((Uri)n).getURI().toString());
+    if (n instanceof Bnode) return OBJECT_OVERHEAD + weighString(((Bnode)n).getLabel());
+    return OBJECT_OVERHEAD;
+  }
+
+  /**
+   * Estimates the memory used by a term. Nodes are not built just to be weighed.
+   * @param t The term to weigh. May be <code>null</code> for an unbound value.
+   * @return The estimated number of bytes used by the term.
+   */
+  static long weighTerm(Term t) {
+    if (t == null) return 0;
+    // the datatype and language are usually shared with other terms
+    return OBJECT_OVERHEAD + 4 * REFERENCE + weighString(t.getLexical());
+  }
+
+  /**
+   * Estimates the memory used by a string.
+   * @param s The string to weigh.
+   * @return The estimated number of bytes used by the string.
+   */
+  private static long weighString(String s) {
+    return s == null ? 0 : STRING_OVERHEAD + 2L * s.length();
+  }
+
+  /**
+   * Cached variable bindings.
+   */
+  static class Bindings extends CachedResult {
+    final ResultSetHeader header;
+    final ColumnarRows rows;
+
+    Bindings(ResultSetHeader header, List<Term[]> rows) {
+      this.header = header;
+      this.rows = ColumnarRows.of(header.getVariables().length, rows);
+    }
+
+    public ResultSet newResultSet(Statement statement) {
+      return new BindingsResultSet(header, rows, statement);
+    }
+
+    long weigh() {
+      long w = OBJECT_OVERHEAD;
+      int width = rows.getWidth();
+      for (int r = 0; r < rows.size(); r++) {
+        w += REFERENCE * width;
+        for (int c = 0; c < width; c++) w += weighTerm(rows.get(r, c));
+      }
+      return w;
+    }
+  }
+
+  /**
+   * A cached boolean result.
+   */
+  static class Bool extends CachedResult {
+    final ResultSetHeader header;
+    final boolean value;
+
+    Bool(ResultSetHeader header, boolean value) {
+      this.header = header;
+      this.value = value;
+    }
+
+    public ResultSet newResultSet(Statement statement) {
+      return new BooleanResultSet(header, value, statement);
+    }
+
+    long weigh() {
+      long w = OBJECT_OVERHEAD;
+      for (URI u: header.getLinks()) w += OBJECT_OVERHEAD + weighString(u.toString());
+      return w;
+    }
+  }
+
+  /**
+   * A cached graph.
+   */
+  static class Triples extends CachedResult {
+    final Graph graph;
+
+    Triples(Graph graph) {
+      this.graph = graph;
+    }
+
+    public ResultSet newResultSet(Statement statement) {
+      return new GraphResultSet(graph, statement);
+    }
+
+    long weigh() {
+      long w = OBJECT_OVERHEAD;
+      // triples are indexed several ways in a graph
+      for (Triple t: graph.getTriples()) {
+        w += 3 * (OBJECT_OVERHEAD + 3 * REFERENCE);
+        w += weighNode(t.getSubject()) + weighNode(t.getPredicate()) + weighNode(t.getObject());
+      }
+      return w;
+    }
+  }
+}
@@ -0,0 +1,595 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.impl;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Holds the rows of a bindings result by column rather than by row. Each column
+ * is a single array, so a row costs one slot in each column instead of an array
+ * of its own. Columns in which every bound value is an integer or double literal,
+ * all with the same datatype and all written so that they can be written back
+ * exactly, are held in a primitive array rather than as terms. Other columns hold
+ * references to their terms, which are already shared between rows by the
+ * {@link TermDictionary}.
+ * <p>
+ * A column of numbers keeps the terms it was given for up to {@link #MAX_SHARED}
+ * distinct values, so repeated numbers are still read as the same term. Terms for
+ * any other values are built again when they are read, with the same lexical form.
+ * Nothing is written to a column when it is read, so rows that have been fully
+ * added may be read from several threads.
+ * </p>
+ * <p>
+ * Rows may only be appended. Reading a row as an array builds a new array, so
+ * readers that only need some of the values should use {@link #get(int, int)}.
+ * </p>
+ */
+public class ColumnarRows extends AbstractList<Term[]> implements RandomAccess {
+
+  /** The number of rows each column has room for when it is created. */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** The most distinct values a column of numbers keeps the terms for. */
+  static final int MAX_SHARED = 1024;
+
+  /** The datatypes that may be held in a column of longs. */
+  private static final List<String> INTEGER_TYPES = Arrays.asList(
+      "http://www.w3.org/2001/XMLSchema#integer",
+      "http://www.w3.org/2001/XMLSchema#long",
+      "http://www.w3.org/2001/XMLSchema#int",
+      "http://www.w3.org/2001/XMLSchema#short",
+      "http://www.w3.org/2001/XMLSchema#byte");
+
+  /** The datatype that may be held in a column of doubles. */
+  private static final String DOUBLE_TYPE = "http://www.w3.org/2001/XMLSchema#double";
+
+  /** The columns of terms. A column is <code>null</code> while it is held as numbers. */
+  private final Term[][] terms;
+
+  /** The columns of numbers. A column is <code>null</code> once it is held as terms. */
+  private final NumberColumn[] numbers;
+
+  /** The number of rows. */
+  private int size = 0;
+
+  /** The number of rows the columns have room for. */
+  private int capacity = 0;
+
+  /**
+   * Creates an empty set of rows.
+   * @param width The number of columns in each row.
+   */
+  public ColumnarRows(int width) {
+    if (width < 0) throw new IllegalArgumentException("Negative number of columns: " + width);
+    terms = new Term[width][];
+    numbers = new NumberColumn[width];
+    for (int c = 0; c < width; c++) numbers[c] = new LongColumn(null);
+  }
+
+  /**
+   * Gets rows in columnar form, trimmed to their size.
+   * @param width The number of columns in each row.
+   * @param rows The rows. These are copied unless they are already columnar.
+   * @return The columnar rows.
+   */
+  public static ColumnarRows of(int width, List<Term[]> rows) {
+    ColumnarRows columnar;
+    if (rows instanceof ColumnarRows && ((ColumnarRows)rows).getWidth() == width) {
+      columnar = (ColumnarRows)rows;
+    } else {
+      columnar = new ColumnarRows(width);
+      columnar.addAll(rows);
+    }
+    columnar.trimToSize();
+    return columnar;
+  }
+
+  /**
+   * Gets the number of columns in each row.
+   */
+  public int getWidth() {
+    return terms.length;
+  }
+
+  /**
+   * Gets the number of rows.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Appends a row. Columns missing from the end of the row are unbound.
+   * @param row The values for the row, with <code>null</code> for unbound values.
+   * @return <code>true</code>
+   */
+  public boolean add(Term[] row) {
+    int width = terms.length;
+    if (row.length > width) throw new IllegalArgumentException("Row of " + row.length + " values for " + width + " columns");
+    if (size == capacity) resize(Math.max(INITIAL_CAPACITY, size + (size >> 1)));
+    for (int c = 0; c < width; c++) {
+      Term t = c < row.length ? row[c] : null;
+      while (terms[c] == null && !numbers[c].add(size, t)) widen(c);
+      if (terms[c] != null) terms[c][size] = t;
+    }
+    size++;
+    modCount++;
+    return true;
+  }
+
+  /**
+   * Builds a row as an array.
+   * @param row The offset of the row.
+   * @return A new array holding the values of the row.
+   */
+  public Term[] get(int row) {
+    checkRow(row);
+    Term[] result = new Term[terms.length];
+    for (int c = 0; c < result.length; c++) {
+      Term[] column = terms[c];
+      result[c] = column != null ? column[row] : numbers[c].get(row);
+    }
+    return result;
+  }
+
+  /**
+   * Gets a single value.
+   * @param row The offset of the row.
+   * @param column The offset of the column.
+   * @return The value, or <code>null</code> if it is unbound.
+   */
+  public Term get(int row, int column) {
+    checkRow(row);
+    Term[] values = terms[column];
+    return values != null ? values[row] : numbers[column].get(row);
+  }
+
+  /**
+   * Gets the lexical form of a single value, without building a term for a number.
+   * @param row The offset of the row.
+   * @param column The offset of the column.
+   * @return The lexical form of the value, or <code>null</code> if it is unbound.
+   */
+  public String getLexical(int row, int column) {
+    checkRow(row);
+    Term[] values = terms[column];
+    if (values == null) return numbers[column].lexical(row);
+    Term t = values[row];
+    return t == null ? null : t.getLexical();
+  }
+
+  /**
+   * Tests if a column is held as numbers, so that {@link #getDouble(int, int)} may be used.
+   * @param column The offset of the column.
+   * @return <code>true</code> if every bound value in the column is a long or a double.
+   */
+  public boolean holdsNumbers(int column) {
+    return numbers[column] != null;
+  }
+
+  /**
+   * Tests if a column is held as longs, so that {@link #getLong(int, int)} may be used.
+   * @param column The offset of the column.
+   * @return <code>true</code> if every bound value in the column is an integer that fits in a long.
+   */
+  public boolean holdsLongs(int column) {
+    return numbers[column] instanceof LongColumn;
+  }
+
+  /**
+   * Tests if a value in a column of numbers is bound.
+   * @param row The offset of the row.
+   * @param column The offset of a column that {@link #holdsNumbers(int) holds numbers}.
+   * @return <code>false</code> if the value is unbound.
+   */
+  public boolean isBound(int row, int column) {
+    checkRow(row);
+    return !numbers[column].isUnbound(row);
+  }
+
+  /**
+   * Gets a value from a column of longs.
+   * @param row The offset of the row.
+   * @param column The offset of a column that {@link #holdsLongs(int) holds longs}.
+   * @return The value, or 0 if it is unbound.
+   */
+  public long getLong(int row, int column) {
+    checkRow(row);
+    return ((LongColumn)numbers[column]).values[row];
+  }
+
+  /**
+   * Gets a value from a column of numbers.
+   * @param row The offset of the row.
+   * @param column The offset of a column that {@link #holdsNumbers(int) holds numbers}.
+   * @return The value, or 0 if it is unbound.
+   */
+  public double getDouble(int row, int column) {
+    checkRow(row);
+    return numbers[column].doubleValue(row);
+  }
+
+  /**
+   * Releases the space reserved for rows that have not been added.
+   */
+  public void trimToSize() {
+    if (size < capacity) resize(size);
+  }
+
+  /**
+   * Changes the number of rows that the columns have room for.
+   * @param newCapacity The number of rows to make room for. Must be at least the current size.
+   */
+  private void resize(int newCapacity) {
+    for (int c = 0; c < terms.length; c++) {
+      if (terms[c] != null) terms[c] = Arrays.copyOf(terms[c], newCapacity);
+      else numbers[c].resize(newCapacity);
+    }
+    capacity = newCapacity;
+  }
+
+  /**
+   * Moves a column of numbers to a form that can hold more kinds of value.
+   * A column that has only seen unbound values may still hold doubles,
+   * otherwise it becomes a column of terms.
+   * @param c The offset of the column.
+   */
+  private void widen(int c) {
+    NumberColumn column = numbers[c];
+    if (column instanceof LongColumn && column.datatype == null) {
+      numbers[c] = new DoubleColumn(column.unbound, capacity);
+    } else {
+      Term[] values = new Term[capacity];
+      for (int r = 0; r < size; r++) values[r] = column.get(r);
+      terms[c] = values;
+      numbers[c] = null;
+    }
+  }
+
+  /**
+   * Checks that a row exists.
+   * @param row The offset of the row.
+   * @throws IndexOutOfBoundsException If there is no such row.
+   */
+  private void checkRow(int row) {
+    if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+  }
+
+  /**
+   * Tests if a string is a long written in canonical form, with no leading zeros or plus sign.
+   * @param s The string to test.
+   * @return <code>true</code> if the string can be parsed as a long and written back unchanged.
+   */
+  static boolean isCanonicalLong(String s) {
+    int len = s.length();
+    int start = len > 0 && s.charAt(0) == '-' ? 1 : 0;
+    int digits = len - start;
+    if (digits == 0 || digits > 19) return false;
+    if (s.charAt(start) == '0') return len == 1;
+    for (int i = start; i < len; i++) {
+      char ch = s.charAt(i);
+      if (ch < '0' || ch > '9') return false;
+    }
+    if (digits < 19) return true;
+    return s.substring(start).compareTo(start == 0 ? "9223372036854775807" : "9223372036854775808") <= 0;
+  }
+
+  /**
+   * A column of numeric literals that all have the same datatype.
+   */
+  private static abstract class NumberColumn {
+    /** The datatype of the values. <code>null</code> until a value is bound. */
+    String datatype = null;
+
+    /** The rows where the value is unbound. <code>null</code> if all values are bound. */
+    BitSet unbound;
+
+    /**
+     * The terms that were added for distinct values, in a table indexed by a hash of
+     * the bits of the value. <code>null</code> until a value is bound.
+     */
+    private Term[] shared = null;
+
+    /** The bits of the value of each term in {@link #shared}. */
+    private long[] sharedBits = null;
+
+    /** The number of terms in {@link #shared}. */
+    private int sharedCount = 0;
+
+    /**
+     * Creates a column.
+     * @param unbound The rows that are unbound, or <code>null</code> if there are none.
+     */
+    NumberColumn(BitSet unbound) {
+      this.unbound = unbound;
+    }
+
+    /**
+     * Tests if a value is unbound.
+     * @param row The offset of the row.
+     * @return <code>true</code> if the value is unbound.
+     */
+    boolean isUnbound(int row) {
+      return unbound != null && unbound.get(row);
+    }
+
+    /**
+     * Gets a value.
+     * @param row The offset of the row.
+     * @return The value, or <code>null</code> if it is unbound.
+     */
+    Term get(int row) {
+      if (isUnbound(row)) return null;
+      Term t = find(bits(row));
+      return t != null ? t : Term.literal(format(row), datatype, null);
+    }
+
+    /**
+     * Gets the lexical form of a value.
+     * @param row The offset of the row.
+     * @return The lexical form, or <code>null</code> if it is unbound.
+     */
+    String lexical(int row) {
+      if (isUnbound(row)) return null;
+      Term t = find(bits(row));
+      return t != null ? t.getLexical() : format(row);
+    }
+
+    /**
+     * Stores a value.
+     * @param row The offset of the row being added. There is room for this row.
+     * @param t The value, or <code>null</code> if it is unbound.
+     * @return <code>false</code> if this column cannot hold the value.
+     */
+    boolean add(int row, Term t) {
+      if (t == null) {
+        if (unbound == null) unbound = new BitSet();
+        unbound.set(row);
+        return true;
+      }
+      if (t.getKind() != Term.Kind.LITERAL || t.getLang() != null) return false;
+      String type = t.getDatatype();
+      if (datatype == null ? !accepts(type) : !datatype.equals(type)) return false;
+      if (!put(row, t.getLexical())) return false;
+      datatype = type;
+      share(bits(row), t);
+      return true;
+    }
+
+    /**
+     * Finds the term that was added for a value.
+     * @param bits The bits of the value.
+     * @return The term, or <code>null</code> if the term for the value was not kept.
+     */
+    private Term find(long bits) {
+      Term[] table = shared;
+      if (table == null) return null;
+      int mask = table.length - 1;
+      for (int i = slot(bits, mask); table[i] != null; i = (i + 1) & mask) {
+        if (sharedBits[i] == bits) return table[i];
+      }
+      return null;
+    }
+
+    /**
+     * Keeps the term for a value, if there is room for it and no term is kept for the value.
+     * @param bits The bits of the value.
+     * @param t The term for the value.
+     */
+    private void share(long bits, Term t) {
+      if (shared == null) {
+        shared = new Term[INITIAL_CAPACITY];
+        sharedBits = new long[INITIAL_CAPACITY];
+      }
+      int mask = shared.length - 1;
+      int i = slot(bits, mask);
+      while (shared[i] != null) {
+        if (sharedBits[i] == bits) return;
+        i = (i + 1) & mask;
+      }
+      if (sharedCount == MAX_SHARED) return;
+      shared[i] = t;
+      sharedBits[i] = bits;
+      // keep the table no more than half full
+      if (++sharedCount * 2 > shared.length) {
+        Term[] oldTerms = shared;
+        long[] oldBits = sharedBits;
+        shared = new Term[oldTerms.length * 2];
+        sharedBits = new long[oldTerms.length * 2];
+        sharedCount = 0;
+        for (int j = 0; j < oldTerms.length; j++) {
+          if (oldTerms[j] != null) share(oldBits[j], oldTerms[j]);
+        }
+      }
+    }
+
+    /**
+     * Gets the first slot to look in for a value.
+     * @param bits The bits of the value.
+     * @param mask The size of the table, less 1.
+     * @return The offset of the slot.
+     */
+    private static int slot(long bits, int mask) {
+      int h = (int)(bits ^ (bits >>> 32)) * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Tests if this column can hold values of a datatype.
+     * @param type The datatype of a value. May be <code>null</code>.
+     */
+    abstract boolean accepts(String type);
+
+    /**
+     * Stores a value, if it can be written back exactly as it was.
+     * @param row The offset of the row.
+     * @param lexical The text of the value.
+     * @return <code>false</code> if the value cannot be held by this column.
+     */
+    abstract boolean put(int row, String lexical);
+
+    /**
+     * Writes a value as text.
+     * @param row The offset of a row that is bound.
+     * @return The lexical form of the value.
+     */
+    abstract String format(int row);
+
+    /**
+     * Gets the bits of a value, which are equal only when the values are equal.
+     * @param row The offset of a row that is bound.
+     * @return The bits of the value.
+     */
+    abstract long bits(int row);
+
+    /**
+     * Gets a value as a double.
+     * @param row The offset of the row.
+     * @return The value, or 0 if it is unbound.
+     */
+    abstract double doubleValue(int row);
+
+    /**
+     * Changes the number of rows this column has room for.
+     * @param capacity The number of rows to make room for.
+     */
+    abstract void resize(int capacity);
+  }
+
+  /**
+   * A column of integers that fit in a long.
+   */
+  private static class LongColumn extends NumberColumn {
+    /** The values. Unbound rows are 0. */
+    private long[] values = new long[0];
+
+    LongColumn(BitSet unbound) {
+      super(unbound);
+    }
+
+    boolean accepts(String type) {
+      return INTEGER_TYPES.contains(type);
+    }
+
+    boolean put(int row, String lexical) {
+      if (!isCanonicalLong(lexical)) return false;
+      values[row] = Long.parseLong(lexical);
+      return true;
+    }
+
+    String format(int row) {
+      return Long.toString(values[row]);
+    }
+
+    long bits(int row) {
+      return values[row];
+    }
+
+    double doubleValue(int row) {
+      return values[row];
+    }
+
+    void resize(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+  }
+
+  /**
+   * A column of doubles. Values may be written as Java writes them, such as <code>15.0</code>,
+   * or in the canonical XSD form, such as <code>1.5E1</code>, but all the values in a column
+   * must be written the same way.
+   */
+  private static class DoubleColumn extends NumberColumn {
+    /** The values have only been written in ways that Java and XSD share. */
+    private static final int EITHER = 0;
+
+    /** The values are written as Java writes them. */
+    private static final int JAVA = 1;
+
+    /** The values are written in the canonical XSD form. */
+    private static final int XSD = 2;
+
+    /** The values. Unbound rows are 0. */
+    private double[] values;
+
+    /** How the values are written. */
+    private int style = EITHER;
+
+    DoubleColumn(BitSet unbound, int capacity) {
+      super(unbound);
+      values = new double[capacity];
+    }
+
+    boolean accepts(String type) {
+      return DOUBLE_TYPE.equals(type);
+    }
+
+    boolean put(int row, String lexical) {
+      double d;
+      try {
+        d = XsdValues.parseDouble(lexical);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      String java = javaForm(d);
+      // the forms only differ when Java writes the value without an exponent
+      boolean same = java.indexOf('E') >= 0 || Double.isNaN(d) || Double.isInfinite(d);
+      if (lexical.equals(java)) {
+        if (!same) {
+          if (style == XSD) return false;
+          style = JAVA;
+        }
+      } else {
+        if (same || style == JAVA || !lexical.equals(XsdValues.formatDouble(d))) return false;
+        style = XSD;
+      }
+      values[row] = d;
+      return true;
+    }
+
+    String format(int row) {
+      return style == XSD ? XsdValues.formatDouble(values[row]) : javaForm(values[row]);
+    }
+
+    long bits(int row) {
+      return Double.doubleToLongBits(values[row]);
+    }
+
+    double doubleValue(int row) {
+      return values[row];
+    }
+
+    void resize(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+
+    /**
+     * Writes a double as Java does, with the XSD forms of infinity and NaN.
+     * @param d The value to write.
+     * @return The lexical form of the value.
+     */
+    private static String javaForm(double d) {
+      if (Double.isNaN(d) || Double.isInfinite(d)) return XsdValues.formatDouble(d);
+      return Double.toString(d);
+    }
+  }
+
+}
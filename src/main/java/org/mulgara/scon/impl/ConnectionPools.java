@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.impl;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * A registry of HTTP connection pools that is shared across the JVM. Connections to
+ * the same scheme, host and port borrow the same pool, so sockets are reused between
+ * them. Each pool is reference counted, and shut down when the last borrower releases it.
+ */
+public class ConnectionPools {
+
+  /** The default maximum number of connections in a pool. */
+  public static final int DEFAULT_MAX_TOTAL = 200;
+
+  /** The default maximum number of connections to the endpoint of a pool. */
+  public static final int DEFAULT_MAX_PER_ROUTE = 50;
+
+  /** The maximum number of connections to any other route. */
+  private static final int OTHER_ROUTE_MAX = 20;
+
+  /** The pools that are in use, keyed by scheme, host and port. */
+  private static final Map<String,Pool> pools = new HashMap<String,Pool>();
+
+  /** The pools that have been borrowed, mapped back to their entries. */
+  private static final Map<ClientConnectionManager,Pool> borrowed = new HashMap<ClientConnectionManager,Pool>();
+
+  /** This class is only used statically. */
+  private ConnectionPools() { }
+
+  /**
+   * Borrows the pool for an endpoint, creating it if it is not already in use.
+   * The limits are only applied when the pool is created. A pool that is already
+   * shared keeps the limits of its first borrower.
+   * @param endpoint The endpoint to be connected to.
+   * @param maxTotal The maximum number of connections in a new pool.
+   * @param maxPerRoute The maximum number of connections to the endpoint in a new pool.
+   * @return A connection manager for the endpoint. This must be given back to
+   *         {@link #release(ClientConnectionManager)} when it is no longer needed.
+   */
+  public static synchronized ClientConnectionManager acquire(URL endpoint, int maxTotal, int maxPerRoute) {
+    if (maxTotal < 1 || maxPerRoute < 1) throw new IllegalArgumentException("Connection limits must be positive");
+    HttpHost host = hostOf(endpoint);
+    String key = host.toURI();
+    Pool pool = pools.get(key);
+    if (pool == null) {
+      pool = new Pool(key, createManager(host, maxTotal, maxPerRoute));
+      pools.put(key, pool);
+      borrowed.put(pool.manager, pool);
+    }
+    pool.references++;
+    return pool.manager;
+  }
+
+  /**
+   * Gives back a pool that was borrowed with {@link #acquire(URL, int, int)}.
+   * The pool is shut down once every borrower has released it.
+   * @param manager The connection manager that was borrowed.
+   */
+  public static synchronized void release(ClientConnectionManager manager) {
+    Pool pool = borrowed.get(manager);
+    if (pool == null) throw new IllegalStateException("Connection pool is not in use");
+    if (--pool.references == 0) {
+      pools.remove(pool.key);
+      borrowed.remove(manager);
+      manager.shutdown();
+    }
+  }
+
+  /**
+   * Gets the number of borrowers of the pool for an endpoint.
+   * @param endpoint The endpoint to check.
+   * @return The number of times the pool has been borrowed and not released.
+   */
+  public static synchronized int references(URL endpoint) {
+    Pool pool = pools.get(hostOf(endpoint).toURI());
+    return pool == null ? 0 : pool.references;
+  }
+
+  /**
+   * Gets the key that identifies the pool for an endpoint. Endpoints with the same key
+   * borrow the same pool.
+   * @param endpoint The endpoint to be connected to.
+   * @return The scheme, host and port of the endpoint, with an explicit port.
+   */
+  public static String keyOf(URL endpoint) {
+    return hostOf(endpoint).toURI();
+  }
+
+  /**
+   * Creates the host that a pool is shared by.
+   * @param endpoint The endpoint to be connected to.
+   * @return A host with an explicit port.
+   */
+  private static HttpHost hostOf(URL endpoint) {
+    int port = endpoint.getPort();
+    if (port == -1) port = endpoint.getDefaultPort();
+    return new HttpHost(endpoint.getHost().toLowerCase(), port, endpoint.getProtocol().toLowerCase());
+  }
+
+  /**
+   * Set up some basic properties for a thread-safe client connection factory.
+   * @param host The host that the connections are mostly made to.
+   * @param maxTotal The maximum number of connections.
+   * @param maxPerRoute The maximum number of connections to the host.
+   * @return A new connection manager
+   */
+  private static ClientConnectionManager createManager(HttpHost host, int maxTotal, int maxPerRoute) {
+    HttpParams params = new BasicHttpParams();
+    ConnManagerParams.setMaxTotalConnections(params, maxTotal);
+    ConnPerRouteBean connPerRoute = new ConnPerRouteBean(Math.min(OTHER_ROUTE_MAX, maxPerRoute));
+    connPerRoute.setMaxForRoute(new HttpRoute(host), maxPerRoute);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, connPerRoute);
+    SchemeRegistry schemeRegistry = new SchemeRegistry();
+    schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+    return new ThreadSafeClientConnManager(params, schemeRegistry);
+  }
+
+  /**
+   * A shared connection manager, and the number of borrowers it has.
+   */
+  private static class Pool {
+    /** The key for this pool in the registry. */
+    final String key;
+
+    /** The connection manager being shared. */
+    final ClientConnectionManager manager;
+
+    /** The number of borrowers that have not released the pool. */
+    int references = 0;
+
+    Pool(String key, ClientConnectionManager manager) {
+      this.key = key;
+      this.manager = manager;
+    }
+  }
+}
@@ -103,6 +103,14 @@ public class GraphResultSet extends AbstractGraphExt implements ResultSet, Graph
     afterLast = (int)graph.size();
   }
 
+  /**
+   * Gets the graph these results come from.
+   * @return The graph constructed from the query.
+   */
+  Graph getGraph() {
+    return graph;
+  }
+
   /**
    * Returns the type of this result set as being with bindings.
    */
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.impl;
+
+import java.util.Arrays;
+
+/**
+ * Tracks recent latencies, to estimate percentiles of the latency of an endpoint.
+ * A fixed window of the most recent samples is kept, and percentiles are only
+ * recalculated after several new samples have been recorded.
+ */
+public class LatencyTracker {
+
+  /** The default number of samples to keep. */
+  public static final int DEFAULT_WINDOW = 256;
+
+  /** The number of samples recorded between calculations of a percentile. */
+  private static final int RECALCULATE = 16;
+
+  /** The most recent samples, in a ring. */
+  private final long[] samples;
+
+  /** The number of samples recorded. */
+  private long count = 0;
+
+  /** The percentile last calculated. */
+  private double lastPercentile = -1;
+
+  /** The value last calculated for the percentile. */
+  private long lastValue = 0;
+
+  /** The number of samples when the percentile was last calculated. */
+  private long lastCount = 0;
+
+  /**
+   * Creates a tracker with the default window.
+   */
+  public LatencyTracker() {
+    this(DEFAULT_WINDOW);
+  }
+
+  /**
+   * Creates a tracker.
+   * @param window The number of recent samples to keep.
+   */
+  public LatencyTracker(int window) {
+    if (window < 1) throw new IllegalArgumentException("Window must hold at least one sample");
+    samples = new long[window];
+  }
+
+  /**
+   * Records a latency.
+   * @param latency The latency of a request.
+   */
+  public synchronized void record(long latency) {
+    samples[(int)(count++ % samples.length)] = latency;
+  }
+
+  /**
+   * Gets the number of latencies recorded.
+   * @return The number of samples ever recorded.
+   */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * Estimates a percentile of the recent latencies.
+   * @param percentile The percentile to find, between 0 and 100.
+   * @return The latency at the percentile, or 0 if nothing has been recorded.
+   */
+  public synchronized long getPercentile(double percentile) {
+    if (count == 0) return 0;
+    if (percentile == lastPercentile && count - lastCount < RECALCULATE) return lastValue;
+    int n = (int)Math.min(count, samples.length);
+    long[] sorted = Arrays.copyOf(samples, n);
+    Arrays.sort(sorted);
+    int index = (int)Math.ceil(percentile / 100 * n) - 1;
+    lastValue = sorted[Math.max(0, Math.min(n - 1, index))];
+    lastPercentile = percentile;
+    lastCount = count;
+    return lastValue;
+  }
+}
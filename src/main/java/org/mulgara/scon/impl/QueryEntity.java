@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import org.mulgara.util.Strings;
+
+/**
+ * An entity for sending the text of a query directly in the body of a POST request.
+ * The query is encoded as UTF-8 while it is written to the connection, so the body is
+ * never held in memory as a separate block of bytes.
+ */
+public class QueryEntity extends AbstractHttpEntity {
+
+  /** The media type for a query sent directly. */
+  public static final String SPARQL_QUERY = "application/sparql-query; charset=UTF-8";
+
+  /** The size of the buffer for encoding the query. */
+  private static final int BUFFER_SIZE = 4096;
+
+  /** The byte written in place of a surrogate that is not part of a pair. */
+  private static final byte UNPAIRED = '?';
+
+  /** The query to send. */
+  private final String query;
+
+  /** The length of the query once it is encoded. */
+  private final long length;
+
+  /**
+   * Creates an entity for a query.
+   * @param query The text of the query.
+   */
+  public QueryEntity(String query) {
+    this.query = query;
+    this.length = utf8Length(query);
+    setContentType(SPARQL_QUERY);
+  }
+
+  /**
+   * The query may be written any number of times.
+   * @return <code>true</code>
+   */
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  /**
+   * Gets the length of the encoded query.
+   * @return The number of bytes in the body.
+   */
+  public long getContentLength() {
+    return length;
+  }
+
+  /**
+   * Gets the encoded query as a stream. This is not used when sending the request.
+   * @return A new stream of the encoded query.
+   */
+  public InputStream getContent() {
+    return new ByteArrayInputStream(Strings.toUtf8Bytes(query));
+  }
+
+  /**
+   * Writes the query to a stream as UTF-8.
+   * @param out The stream to write to.
+   * @throws IOException If the stream cannot be written to.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    if (out == null) throw new IllegalArgumentException("Output stream may not be null");
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int pos = 0;
+    int len = query.length();
+    for (int i = 0; i < len; i++) {
+      if (pos > BUFFER_SIZE - 4) {
+        out.write(buffer, 0, pos);
+        pos = 0;
+      }
+      int c = query.charAt(i);
+      if (c < 0x80) {
+        buffer[pos++] = (byte)c;
+      } else if (c < 0x800) {
+        buffer[pos++] = (byte)(0xC0 | (c >> 6));
+        buffer[pos++] = (byte)(0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate((char)c) && i + 1 < len && Character.isLowSurrogate(query.charAt(i + 1))) {
+        int cp = Character.toCodePoint((char)c, query.charAt(++i));
+        buffer[pos++] = (byte)(0xF0 | (cp >> 18));
+        buffer[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+        buffer[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+        buffer[pos++] = (byte)(0x80 | (cp & 0x3F));
+      } else if (isSurrogate((char)c)) {
+        buffer[pos++] = UNPAIRED;
+      } else {
+        buffer[pos++] = (byte)(0xE0 | (c >> 12));
+        buffer[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+        buffer[pos++] = (byte)(0x80 | (c & 0x3F));
+      }
+    }
+    out.write(buffer, 0, pos);
+    out.flush();
+  }
+
+  /**
+   * The query is not read from a stream.
+   * @return <code>false</code>
+   */
+  public boolean isStreaming() {
+    return false;
+  }
+
+  /**
+   * Counts the bytes needed to encode text as UTF-8, using the same
+   * substitution for unpaired surrogates as {@link #writeTo(OutputStream)}.
+   * @param s The text to measure.
+   * @return The number of bytes in the encoded text.
+   */
+  static long utf8Length(String s) {
+    long length = 0;
+    int len = s.length();
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) length += 1;
+      else if (c < 0x800) length += 2;
+      else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else if (isSurrogate(c)) length += 1;
+      else length += 3;
+    }
+    return length;
+  }
+
+  /**
+   * Tests if a character is half of a surrogate pair.
+   * @param c The character to test.
+   * @return <code>true</code> if the character is a high or low surrogate.
+   */
+  private static boolean isSurrogate(char c) {
+    return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+  }
+}
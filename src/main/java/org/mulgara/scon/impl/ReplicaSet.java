@@ -0,0 +1,336 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.impl;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of identical endpoints that queries are spread across. Each request is sent
+ * to the replica that looks least loaded, and replicas that keep failing are ejected
+ * for a time. Once its time is up an ejected replica is sent a single request as a
+ * probe, and it is brought back if that succeeds, or ejected for longer if it fails.
+ * If every replica is ejected, the one due back soonest is used.
+ */
+public class ReplicaSet {
+
+  /** The ways of choosing a replica for a request. */
+  public enum Balancing {
+    /** Use the replica with the fewest requests in flight. */
+    LEAST_OUTSTANDING,
+    /** Use the replica with the lowest recent latency, weighted by its requests in flight. */
+    LATENCY
+  };
+
+  /** The default number of consecutive failures before a replica is ejected. */
+  public static final int DEFAULT_MAX_FAILURES = 3;
+
+  /** The default time a replica is first ejected for, in milliseconds. */
+  public static final long DEFAULT_EJECTION = 1000;
+
+  /** The default longest time a replica is ejected for, in milliseconds. */
+  public static final long DEFAULT_MAX_EJECTION = 30000;
+
+  /** The weight given to each new latency in the moving average. */
+  private static final double DECAY = 0.3;
+
+  /** The replicas in the set. */
+  private final List<Replica> replicas;
+
+  /** Rotates the starting point of each choice, so that ties are spread out. */
+  private final AtomicInteger rotation = new AtomicInteger();
+
+  /** How replicas are chosen. */
+  private volatile Balancing balancing = Balancing.LEAST_OUTSTANDING;
+
+  /** The number of consecutive failures before a replica is ejected. */
+  private volatile int maxFailures = DEFAULT_MAX_FAILURES;
+
+  /** The time a replica is first ejected for, in nanoseconds. */
+  private volatile long ejection = TimeUnit.MILLISECONDS.toNanos(DEFAULT_EJECTION);
+
+  /** The longest time a replica is ejected for, in nanoseconds. */
+  private volatile long maxEjection = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_EJECTION);
+
+  /**
+   * Creates a set of replicas.
+   * @param endpoints The endpoints of the replicas.
+   */
+  public ReplicaSet(List<URL> endpoints) {
+    if (endpoints.isEmpty()) throw new IllegalArgumentException("At least one endpoint is required");
+    List<Replica> r = new ArrayList<Replica>(endpoints.size());
+    for (URL u: endpoints) r.add(new Replica(u));
+    replicas = Collections.unmodifiableList(r);
+  }
+
+  /**
+   * Sets how replicas are chosen for each request.
+   * @param balancing The way to choose replicas.
+   */
+  public void setBalancing(Balancing balancing) {
+    if (balancing == null) throw new IllegalArgumentException("Balancing may not be null");
+    this.balancing = balancing;
+  }
+
+  /**
+   * Gets how replicas are chosen for each request.
+   * @return The way replicas are chosen.
+   */
+  public Balancing getBalancing() {
+    return balancing;
+  }
+
+  /**
+   * Sets when replicas are ejected, and for how long. Each time a replica is ejected
+   * again without recovering, its ejection is doubled, up to the maximum.
+   * @param maxFailures The number of consecutive failures before a replica is ejected.
+   * @param ejection The time a replica is first ejected for.
+   * @param maxEjection The longest time a replica is ejected for.
+   * @param unit The unit for the ejection times.
+   */
+  public void setEjection(int maxFailures, long ejection, long maxEjection, TimeUnit unit) {
+    if (maxFailures < 1) throw new IllegalArgumentException("Replicas must be allowed to fail at least once");
+    if (ejection < 0 || maxEjection < ejection) throw new IllegalArgumentException("Invalid ejection range");
+    this.maxFailures = maxFailures;
+    this.ejection = unit.toNanos(ejection);
+    this.maxEjection = unit.toNanos(maxEjection);
+  }
+
+  /**
+   * Gets the replicas in this set.
+   * @return The replicas, in the order they were given.
+   */
+  public List<Replica> getReplicas() {
+    return replicas;
+  }
+
+  /**
+   * Chooses the replica for a request. The caller must report the request to the
+   * replica with {@link Replica#started()} when it is sent, and then report its outcome
+   * with {@link Replica#succeeded(long)}, {@link Replica#failed()} or {@link Replica#abandoned()}.
+   * @return The replica to send the request to.
+   */
+  public Replica choose() {
+    return choose(null);
+  }
+
+  /**
+   * Chooses a replica for a request, other than a given replica. This is used for a
+   * duplicate request, which should not go to the replica that is already slow to respond.
+   * Requests are reported in the same way as for {@link #choose()}.
+   * @param exclude The replica not to choose, or <code>null</code> if any replica may be chosen.
+   * @return The replica to send the request to. If a replica was excluded then this is
+   *         <code>null</code> when no other replica is available.
+   */
+  public Replica choose(Replica exclude) {
+    long now = System.nanoTime();
+    int n = replicas.size();
+    int start = (rotation.getAndIncrement() & Integer.MAX_VALUE) % n;
+    Balancing b = balancing;
+    Replica best = null;
+    double bestScore = Double.MAX_VALUE;
+    Replica soonest = null;
+    for (int i = 0; i < n; i++) {
+      Replica r = replicas.get((start + i) % n);
+      if (r == exclude) continue;
+      if (r.isEjected(now)) {
+        if (soonest == null || r.ejectedUntil() - soonest.ejectedUntil() < 0) soonest = r;
+        continue;
+      }
+      if (r.isDue(now)) {
+        // a replica due back is probed ahead of the others
+        if (r.startProbe()) return r;
+        continue;
+      }
+      double score = r.score(b);
+      if (score < bestScore) {
+        best = r;
+        bestScore = score;
+      }
+    }
+    if (best == null && exclude == null) best = soonest != null ? soonest : replicas.get(start);
+    return best;
+  }
+
+  /**
+   * Gets the replicas that are currently available for requests.
+   * @return The endpoints of the replicas that are not ejected.
+   */
+  public List<URL> getHealthy() {
+    long now = System.nanoTime();
+    List<URL> healthy = new ArrayList<URL>();
+    for (Replica r: replicas) {
+      if (!r.isEjected(now)) healthy.add(r.getEndpoint());
+    }
+    return healthy;
+  }
+
+  /**
+   * One of the endpoints in a replica set, and its health.
+   */
+  public class Replica {
+
+    /** The endpoint of the replica. */
+    private final URL endpoint;
+
+    /** The number of requests in flight to this replica. */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /** The moving average of latency, in milliseconds. Negative until there is a sample. */
+    private double latency = -1;
+
+    /** The number of consecutive failures. */
+    private int failures = 0;
+
+    /** The number of times this replica has been ejected without recovering. */
+    private int ejections = 0;
+
+    /** The time this replica is ejected until, from {@link System#nanoTime()}. */
+    private long ejectedUntil = 0;
+
+    /** Set while a probe is in flight after an ejection. */
+    private boolean probing = false;
+
+    /**
+     * Creates a replica.
+     * @param endpoint The endpoint of the replica.
+     */
+    Replica(URL endpoint) {
+      this.endpoint = endpoint;
+    }
+
+    /**
+     * Gets the endpoint of this replica.
+     * @return The URL of the endpoint.
+     */
+    public URL getEndpoint() {
+      return endpoint;
+    }
+
+    /**
+     * Gets the number of requests in flight to this replica.
+     * @return The number of requests that have been sent and not reported.
+     */
+    public int getOutstanding() {
+      return outstanding.get();
+    }
+
+    /**
+     * Gets the moving average of latency for this replica.
+     * @return The average latency in milliseconds, or -1 if no request has succeeded.
+     */
+    public synchronized double getLatency() {
+      return latency;
+    }
+
+    /**
+     * Reports that a request is being sent to this replica.
+     */
+    public void started() {
+      outstanding.incrementAndGet();
+    }
+
+    /**
+     * Reports that a request to this replica succeeded, bringing it back if it was ejected.
+     * @param millis The time taken to respond, in milliseconds.
+     */
+    public synchronized void succeeded(long millis) {
+      outstanding.decrementAndGet();
+      latency = latency < 0 ? millis : latency + DECAY * (millis - latency);
+      failures = 0;
+      ejections = 0;
+      probing = false;
+    }
+
+    /**
+     * Reports that a request to this replica failed, ejecting it if it has failed too often,
+     * or if the request was a probe.
+     */
+    public synchronized void failed() {
+      outstanding.decrementAndGet();
+      if (probing || ++failures >= maxFailures) {
+        long time = ejection << Math.min(ejections, 20);
+        if (time > maxEjection || time < 0) time = maxEjection;
+        ejectedUntil = System.nanoTime() + time;
+        ejections++;
+        failures = 0;
+        probing = false;
+      }
+    }
+
+    /**
+     * Reports that a request to this replica was abandoned, without learning anything about the replica.
+     */
+    public synchronized void abandoned() {
+      outstanding.decrementAndGet();
+      probing = false;
+    }
+
+    /**
+     * Tests if this replica is ejected.
+     * @param now The current time, from {@link System#nanoTime()}.
+     * @return <code>true</code> if this replica is ejected, or is being probed.
+     */
+    synchronized boolean isEjected(long now) {
+      return ejections > 0 && (probing || now - ejectedUntil < 0);
+    }
+
+    /**
+     * Tests if this replica is due to be probed.
+     * @param now The current time, from {@link System#nanoTime()}.
+     * @return <code>true</code> if this replica was ejected, and its time is up.
+     */
+    synchronized boolean isDue(long now) {
+      return ejections > 0 && !probing && now - ejectedUntil >= 0;
+    }
+
+    /**
+     * Starts a probe of this replica.
+     * @return <code>true</code> if the probe was started, or <code>false</code> if another caller started it.
+     */
+    synchronized boolean startProbe() {
+      if (probing || ejections == 0) return false;
+      probing = true;
+      return true;
+    }
+
+    /**
+     * Gets the time this replica is ejected until.
+     * @return The end of the ejection, from {@link System#nanoTime()}.
+     */
+    synchronized long ejectedUntil() {
+      return ejectedUntil;
+    }
+
+    /**
+     * Scores this replica for choosing. Lower scores are preferred.
+     * @param balancing The way replicas are being chosen.
+     * @return The score for this replica.
+     */
+    synchronized double score(Balancing balancing) {
+      int load = outstanding.get();
+      if (balancing == Balancing.LEAST_OUTSTANDING) return load;
+      // replicas without a sample are tried before the others
+      return latency < 0 ? load - 1e9 : (latency + 1) * (load + 1);
+    }
+  }
+}
@@ -17,8 +17,16 @@
 package org.mulgara.scon.impl;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -35,12 +43,45 @@ import org.mulgara.scon.parser.N3Factory;
 import org.mulgara.scon.parser.RdfXmlFactory;
 import org.mulgara.scon.parser.SparqlXmlFactory;
 import org.mulgara.scon.parser.SparqlJsonFactory;
+import org.mulgara.scon.parser.SparqlTsvFactory;
+import org.mulgara.scon.parser.SparqlCsvFactory;
 
 /**
  * A class for building a result out of an HTTP response.
  */
 public class ResultBuilder {
 
+  /** The maximum quality in an Accept header, as a percentage. */
+  private static final int MAX_QUALITY = 100;
+
+  /** The content codings that can be decompressed, for use in an Accept-Encoding header. */
+  public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  /** The gzip content coding. */
+  private static final String GZIP = "gzip";
+
+  /** An old name for the gzip content coding. */
+  private static final String X_GZIP = "x-gzip";
+
+  /** The deflate content coding. */
+  private static final String DEFLATE = "deflate";
+
+  /** The content coding for uncompressed data. */
+  private static final String IDENTITY = "identity";
+
+  /** The size of the buffer used for decompressing data. */
+  private static final int BUFFER_SIZE = 8192;
+
+  /** The Accept header to use when no formats are preferred. */
+  private static final String DEFAULT_ACCEPT;
+  static {
+    StringBuilder accept = new StringBuilder();
+    for (ResponseType type: ResponseType.values()) {
+      if (type.quality > 0) appendType(accept, type, type.quality);
+    }
+    DEFAULT_ACCEPT = accept.toString();
+  }
+
   /** The response from the server to build a result from. */
   private final HttpResponse response;
 
@@ -71,10 +112,47 @@ public class ResultBuilder {
 
     ResponseType type = ResponseType.forMime(stripParams(header.getValue()));
     if (type == null) throw new UnhandledException("Unable to deal with a response of: " + header.getValue());
-    ResultParser parser = type.getFactory().createParser(entity.getContent(), statement);
+    ResultParser parser = type.getFactory().createParser(decodedContent(entity), statement);
     return parser.getResultSet();
   }
 
+  /**
+   * Gets the content of an entity, decompressing it as it is read if the
+   * server has used a content coding.
+   * @param entity The entity containing the data.
+   * @return A stream of the uncompressed data.
+   * @throws IOException If there is a communications fault while getting data.
+   * @throws UnhandledException If the data is compressed in an unknown way.
+   */
+  private static InputStream decodedContent(HttpEntity entity) throws IOException, UnhandledException {
+    InputStream content = entity.getContent();
+    Header header = entity.getContentEncoding();
+    if (header == null) return content;
+    String coding = header.getValue().trim().toLowerCase();
+    if (coding.length() == 0 || coding.equals(IDENTITY)) return content;
+    if (coding.equals(GZIP) || coding.equals(X_GZIP)) return new GZIPInputStream(content, BUFFER_SIZE);
+    if (coding.equals(DEFLATE)) return inflate(content);
+    content.close();
+    throw new UnhandledException("Unable to deal with a response encoded as: " + header.getValue());
+  }
+
+  /**
+   * Decompresses deflated data. This should be wrapped in the zlib format, but some
+   * servers send the raw deflate format, so the first bytes are checked for a zlib header.
+   * @param content The compressed data.
+   * @return A stream of the uncompressed data.
+   * @throws IOException If there is a communications fault while getting data.
+   */
+  private static InputStream inflate(InputStream content) throws IOException {
+    PushbackInputStream in = new PushbackInputStream(content, 2);
+    int b0 = in.read();
+    int b1 = b0 < 0 ? -1 : in.read();
+    if (b1 >= 0) in.unread(b1);
+    if (b0 >= 0) in.unread(b0);
+    boolean zlib = b1 >= 0 && (b0 & 0x0F) == Deflater.DEFLATED && ((b0 << 8) | b1) % 31 == 0;
+    return new InflaterInputStream(in, new Inflater(!zlib), BUFFER_SIZE);
+  }
+
   /**
    * Strips the parameters from the end of a mediaType description.
    * @param mediaType The text in a Content-Type header.
@@ -87,21 +165,80 @@ public class ResultBuilder {
   }
 
 
+  /**
+   * Builds the value of an Accept header listing the formats that can be parsed.
+   * Formats are weighted by how cheaply they can be parsed, so the endpoint returns
+   * the fastest format it supports. Any preferred formats are listed first, and
+   * weighted above all the others, in the order given. Formats with no quality are
+   * only listed when they are preferred.
+   * @param preferred The media types to favor, most preferred first. May be empty.
+   * @return The text of an Accept header.
+   * @throws IllegalArgumentException If a preferred media type cannot be parsed.
+   */
+  public static String acceptHeader(List<String> preferred) {
+    if (preferred.isEmpty()) return DEFAULT_ACCEPT;
+    List<ResponseType> listed = new ArrayList<ResponseType>();
+    StringBuilder accept = new StringBuilder();
+    int q = MAX_QUALITY;
+    for (String mime: preferred) {
+      ResponseType type = ResponseType.forMime(mime);
+      if (type == null) throw new IllegalArgumentException("Unable to parse results of type: " + mime);
+      if (listed.contains(type)) continue;
+      listed.add(type);
+      appendType(accept, type, q--);
+    }
+    for (ResponseType type: ResponseType.values()) {
+      if (type.quality > 0 && !listed.contains(type)) appendType(accept, type, type.quality * 9 / 10);
+    }
+    return accept.toString();
+  }
+
+  /**
+   * Tests if a media type can be parsed.
+   * @param mimeText The media type, without parameters.
+   * @return <code>true</code> if results in this type can be parsed.
+   */
+  public static boolean isSupported(String mimeText) {
+    return ResponseType.forMime(mimeText) != null;
+  }
+
+  /**
+   * Adds a media type to an Accept header.
+   * @param accept The header being built.
+   * @param type The type to add.
+   * @param q The quality for the type, as a percentage.
+   */
+  private static void appendType(StringBuilder accept, ResponseType type, int q) {
+    if (accept.length() > 0) accept.append(", ");
+    accept.append(type.mimeText);
+    if (q < MAX_QUALITY) accept.append(";q=0.").append(q / 10).append(q % 10);
+  }
+
   /**
    * An enumeration describing the types of responses that can come back from a SPARQL endpoint.
-   * Each member also holds a factory for a parser that can deal with that format.
+   * Each member also holds a factory for a parser that can deal with that format, and a
+   * quality, as a percentage, reflecting how quickly the format can be parsed relative
+   * to other formats for the same kind of result. A quality of 0 means the format is
+   * only requested when it is preferred. CSV has no quality, as it loses the datatypes
+   * and languages of literals, and cannot tell URIs from strings.
    */
   enum ResponseType {
-    SPARQL_XML("application/sparql-results+xml", new SparqlXmlFactory()),
-    SPARQL_JSON("application/sparql-results+json", new SparqlJsonFactory()),
-    RDF_XML("application/rdf+xml", new RdfXmlFactory()),
-    RDF_N3("text/rdf+n3", new N3Factory());
+    SPARQL_TSV("text/tab-separated-values", 100, new SparqlTsvFactory()),
+    SPARQL_JSON("application/sparql-results+json", 90, new SparqlJsonFactory()),
+    SPARQL_XML("application/sparql-results+xml", 80, new SparqlXmlFactory()),
+    SPARQL_CSV("text/csv", 0, new SparqlCsvFactory()),
+    RDF_NTRIPLES("application/n-triples", 100, new N3Factory()),
+    RDF_TURTLE("text/turtle", 90, new N3Factory()),
+    RDF_N3("text/rdf+n3", 80, new N3Factory()),
+    RDF_XML("application/rdf+xml", 70, new RdfXmlFactory());
 
     private String mimeText;
+    private int quality;
     private ParserFactory factory;
 
-    private ResponseType(String mimeText, ParserFactory factory) {
+    private ResponseType(String mimeText, int quality, ParserFactory factory) {
       this.mimeText = mimeText;
+      this.quality = quality;
       this.factory = factory;
     }
     public ParserFactory getFactory() { return factory; }
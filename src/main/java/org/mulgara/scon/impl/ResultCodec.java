@@ -0,0 +1,419 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mulgara.scon.InternalException;
+import org.mulgara.scon.ResultSetHeader;
+
+import org.mulgara.mrg.Bnode;
+import org.mulgara.mrg.GraphImpl;
+import org.mulgara.mrg.Literal;
+import org.mulgara.mrg.Node;
+import org.mulgara.mrg.Triple;
+import org.mulgara.mrg.Uri;
+
+/**
+ * Converts cached results to and from a compact binary form. Every distinct string
+ * is written once to a table at the start of the data, and nodes refer to strings
+ * by their position in the table. All numbers are written as variable length integers.
+ */
+public class ResultCodec {
+
+  /** The kind of data for variable bindings. */
+  private static final int BINDINGS = 0;
+
+  /** The kind of data for a boolean result. */
+  private static final int BOOLEAN = 1;
+
+  /** The kind of data for a graph. */
+  private static final int GRAPH = 2;
+
+  /** The tag for an unbound value. */
+  private static final int UNBOUND = 0;
+
+  /** The tag for a URI. */
+  private static final int URI_NODE = 1;
+
+  /** The tag for a blank node. */
+  private static final int BNODE = 2;
+
+  /** The tag for a literal with no language or type. */
+  private static final int PLAIN = 3;
+
+  /** The tag for a literal with a language. */
+  private static final int LANG = 4;
+
+  /** The tag for a literal with a datatype. */
+  private static final int TYPED = 5;
+
+  /** The tag for a literal with a language and a datatype. */
+  private static final int LANG_TYPED = 6;
+
+  /** The encoding for all strings. */
+  private static final String UTF8 = "UTF-8";
+
+  /** The table of strings, in the order they were first seen. */
+  private final List<String> strings = new ArrayList<String>();
+
+  /** The position of each string in the table. */
+  private final Map<String,Integer> positions = new HashMap<String,Integer>();
+
+  /** The encoded structure of the result. */
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+  /** This class is only instantiated to encode. */
+  private ResultCodec() { }
+
+  /**
+   * Encodes cached results.
+   * @param result The results to encode.
+   * @return The encoded results.
+   */
+  public static byte[] encode(CachedResult result) {
+    ResultCodec codec = new ResultCodec();
+    if (result instanceof CachedResult.Bindings) {
+      CachedResult.Bindings bindings = (CachedResult.Bindings)result;
+      codec.writeInt(BINDINGS);
+      codec.writeHeader(bindings.header);
+      int width = bindings.header.getVariables().length;
+      codec.writeInt(bindings.rows.size());
+      for (int r = 0; r < bindings.rows.size(); r++) {
+        for (int c = 0; c < width; c++) codec.writeTerm(bindings.rows.get(r, c));
+      }
+    } else if (result instanceof CachedResult.Bool) {
+      CachedResult.Bool bool = (CachedResult.Bool)result;
+      codec.writeInt(BOOLEAN);
+      codec.writeHeader(bool.header);
+      codec.writeInt(bool.value ? 1 : 0);
+    } else if (result instanceof CachedResult.Triples) {
+      List<Triple> triples = ((CachedResult.Triples)result).graph.getTriples();
+      codec.writeInt(GRAPH);
+      codec.writeInt(triples.size());
+      for (Triple t: triples) {
+        codec.writeNode(t.getSubject());
+        codec.writeNode(t.getPredicate());
+        codec.writeNode(t.getObject());
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown kind of result: " + result.getClass().getName());
+    }
+    return codec.toByteArray();
+  }
+
+  /**
+   * Decodes cached results. The buffer is read from its current position.
+   * @param data The encoded results.
+   * @return The decoded results.
+   * @throws InternalException If the data is not correctly encoded.
+   */
+  public static CachedResult decode(ByteBuffer data) throws InternalException {
+    try {
+      String[] table = new String[readInt(data)];
+      for (int i = 0; i < table.length; i++) table[i] = readString(data);
+      switch (readInt(data)) {
+      case BINDINGS:
+        ResultSetHeader header = readHeader(data, table);
+        int width = header.getVariables().length;
+        int rows = readInt(data);
+        TermDictionary terms = new TermDictionary();
+        ColumnarRows values = new ColumnarRows(width);
+        for (int r = 0; r < rows; r++) {
+          Term[] row = new Term[width];
+          for (int c = 0; c < width; c++) row[c] = readTerm(data, table, terms);
+          values.add(row);
+        }
+        return new CachedResult.Bindings(header, values);
+      case BOOLEAN:
+        ResultSetHeader boolHeader = readHeader(data, table);
+        return new CachedResult.Bool(boolHeader, readInt(data) != 0);
+      case GRAPH:
+        int size = readInt(data);
+        TermDictionary nodes = new TermDictionary();
+        List<Triple> triples = new ArrayList<Triple>(size);
+        for (int t = 0; t < size; t++) {
+          Node s = nodes.node(readNode(data, table));
+          Node p = nodes.node(readNode(data, table));
+          triples.add(new Triple(s, p, nodes.node(readNode(data, table))));
+        }
+        return new CachedResult.Triples(new GraphImpl(triples));
+      default:
+        throw new InternalException("Unknown kind of cached result");
+      }
+    } catch (BufferUnderflowException e) {
+      throw new InternalException("Cached result is truncated", e);
+    } catch (IndexOutOfBoundsException e) {
+      throw new InternalException("Cached result refers to missing data", e);
+    } catch (URISyntaxException e) {
+      throw new InternalException("Cached result contains an invalid URI", e);
+    }
+  }
+
+  /**
+   * Writes the variables and links of a header.
+   * @param header The header to write.
+   */
+  private void writeHeader(ResultSetHeader header) {
+    String[] vars = header.getVariables();
+    writeInt(vars.length);
+    for (String v: vars) writeInt(position(v));
+    List<URI> links = header.getLinks();
+    writeInt(links.size());
+    for (URI u: links) writeInt(position(u.toString()));
+  }
+
+  /**
+   * Writes a term, without building its node.
+   * @param t The term to write. <code>null</code> for an unbound value.
+   */
+  private void writeTerm(Term t) {
+    if (t == null) {
+      writeInt(UNBOUND);
+    } else if (t.getKind() == Term.Kind.URI) {
+      writeInt(URI_NODE);
+      writeInt(position(t.getLexical()));
+    } else if (t.getKind() == Term.Kind.BNODE) {
+      writeInt(BNODE);
+      writeInt(position(t.getLexical()));
+    } else {
+      writeLiteral(t.getLexical(), t.getLang(), t.getDatatype());
+    }
+  }
+
+  /**
+   * Writes a node.
+   * @param n The node to write. <code>null</code> for an unbound value.
+   */
+  private void writeNode(Node n) {
+    if (n == null) {
+      writeInt(UNBOUND);
+    } else if (n instanceof Uri) {
+      writeInt(URI_NODE);
+      writeInt(position(((Uri)n).getURI().toString()));
+    } else if (n instanceof Bnode) {
+      writeInt(BNODE);
+      writeInt(position(((Bnode)n).getLabel()));
+    } else if (n instanceof Literal) {
+      Literal l = (Literal)n;
+      URI type = l.getType();
+      writeLiteral(l.getText(), l.getLang(), type == null ? null : type.toString());
+    } else {
+      throw new IllegalArgumentException("Unknown kind of node: " + n.getClass().getName());
+    }
+  }
+
+  /**
+   * Writes a literal.
+   * @param text The text of the literal.
+   * @param lang The language of the literal, or <code>null</code>.
+   * @param type The datatype of the literal, or <code>null</code>.
+   */
+  private void writeLiteral(String text, String lang, String type) {
+    if (lang == null && type == null) {
+      writeInt(PLAIN);
+    } else if (type == null) {
+      writeInt(LANG);
+    } else if (lang == null) {
+      writeInt(TYPED);
+    } else {
+      writeInt(LANG_TYPED);
+    }
+    writeInt(position(text));
+    if (lang != null) writeInt(position(lang));
+    if (type != null) writeInt(position(type));
+  }
+
+  /**
+   * Finds the position of a string in the table, adding it if it is not already there.
+   * @param s The string to find.
+   * @return The position of the string.
+   */
+  private int position(String s) {
+    Integer p = positions.get(s);
+    if (p == null) {
+      p = strings.size();
+      strings.add(s);
+      positions.put(s, p);
+    }
+    return p;
+  }
+
+  /**
+   * Writes an unsigned number, 7 bits at a time.
+   * @param value The number to write.
+   */
+  private void writeInt(int value) {
+    writeInt(body, value);
+  }
+
+  /**
+   * Builds the complete encoding, with the string table ahead of the structure.
+   * @return The encoded data.
+   */
+  private byte[] toByteArray() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.size() + 16 * strings.size());
+    writeInt(out, strings.size());
+    try {
+      for (String s: strings) {
+        byte[] bytes = s.getBytes(UTF8);
+        writeInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new Error("JVM unable to handle UTF-8");
+    }
+    byte[] structure = body.toByteArray();
+    out.write(structure, 0, structure.length);
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes an unsigned number, 7 bits at a time, lowest bits first.
+   * @param out The stream to write to.
+   * @param value The number to write.
+   */
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   * Reads an unsigned number written by {@link #writeInt(ByteArrayOutputStream, int)}.
+   * @param data The buffer to read from.
+   * @return The number.
+   */
+  private static int readInt(ByteBuffer data) throws InternalException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = data.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new InternalException("Cached result contains an invalid number");
+  }
+
+  /**
+   * Reads a string from the string table.
+   * @param data The buffer to read from.
+   * @return The string.
+   */
+  private static String readString(ByteBuffer data) throws InternalException {
+    int length = readInt(data);
+    byte[] bytes = new byte[length];
+    data.get(bytes);
+    try {
+      return new String(bytes, UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new Error("JVM unable to handle UTF-8");
+    }
+  }
+
+  /**
+   * Reads the variables and links of a header.
+   * @param data The buffer to read from.
+   * @param table The string table.
+   * @return The header.
+   */
+  private static ResultSetHeader readHeader(ByteBuffer data, String[] table) throws InternalException, URISyntaxException {
+    int count = readInt(data);
+    List<String> vars = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) vars.add(table[readInt(data)]);
+    count = readInt(data);
+    List<URI> links = new ArrayList<URI>(count);
+    for (int i = 0; i < count; i++) links.add(new URI(table[readInt(data)]));
+    return new ResultSetHeader(vars, links);
+  }
+
+  /**
+   * Reads a term. The node for the term is not built until it is needed.
+   * @param data The buffer to read from.
+   * @param table The string table.
+   * @param terms The dictionary that shares identical terms.
+   * @return The term, or <code>null</code> for an unbound value.
+   */
+  private static Term readTerm(ByteBuffer data, String[] table, TermDictionary terms) throws InternalException {
+    int tag = readInt(data);
+    switch (tag) {
+    case UNBOUND:
+      return null;
+    case URI_NODE:
+      return terms.uri(table[readInt(data)]);
+    case BNODE:
+      return terms.bnode(table[readInt(data)]);
+    case PLAIN:
+      return terms.literal(table[readInt(data)], null, null);
+    case LANG:
+      String text = table[readInt(data)];
+      return terms.literal(text, null, table[readInt(data)]);
+    case TYPED:
+      String typedText = table[readInt(data)];
+      return terms.literal(typedText, table[readInt(data)], null);
+    case LANG_TYPED:
+      String langText = table[readInt(data)];
+      String lang = table[readInt(data)];
+      return terms.literal(langText, table[readInt(data)], lang);
+    default:
+      throw new InternalException("Unknown kind of term in cached result: " + tag);
+    }
+  }
+
+  /**
+   * Reads a node.
+   * @param data The buffer to read from.
+   * @param table The string table.
+   * @return The node, or <code>null</code> for an unbound value.
+   */
+  private static Node readNode(ByteBuffer data, String[] table) throws InternalException, URISyntaxException {
+    int tag = readInt(data);
+    switch (tag) {
+    case UNBOUND:
+      return null;
+    case URI_NODE:
+      return new Uri(new URI(table[readInt(data)]));
+    case BNODE:
+      return new Bnode(table[readInt(data)]);
+    case PLAIN:
+      return new Literal(table[readInt(data)]);
+    case LANG:
+      String text = table[readInt(data)];
+      return new Literal(text, table[readInt(data)]);
+    case TYPED:
+      String typedText = table[readInt(data)];
+      return new Literal(typedText, new URI(table[readInt(data)]));
+    case LANG_TYPED:
+      String langText = table[readInt(data)];
+      String lang = table[readInt(data)];
+      return new Literal(langText, lang, new URI(table[readInt(data)]));
+    default:
+      throw new InternalException("Unknown kind of node in cached result: " + tag);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.impl;
+
+import org.mulgara.scon.SparqlException;
+
+/**
+ * A source of result rows that are read on demand, rather than all at once.
+ */
+public interface RowSource {
+
+  /**
+   * Reads the next row of bindings from the source.
+   * @return The next row, or <code>null</code> if there are no more rows.
+   * @throws SparqlException If the row could not be read or was malformed.
+   */
+  public Term[] nextRow() throws SparqlException;
+
+  /**
+   * Releases any resources held by the source. Further rows cannot be read after this.
+   * @throws SparqlException If there was an error releasing the resources.
+   */
+  public void close() throws SparqlException;
+
+}
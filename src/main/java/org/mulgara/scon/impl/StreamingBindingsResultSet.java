@@ -0,0 +1,203 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.impl;
+
+import java.sql.SQLException;
+
+import org.mulgara.scon.ResultSetHeader;
+import org.mulgara.scon.Statement;
+import org.mulgara.scon.SparqlException;
+
+/**
+ * A forward-only result set that reads each row from its source as the cursor
+ * moves onto it. Only the current row is held in memory, so the time to the
+ * first row and the memory used are independent of the size of the result.
+ */
+public class StreamingBindingsResultSet extends BindingsResultSet {
+
+  /** The position before the first row. */
+  private static final int BEFORE_FIRST = -1;
+
+  /** The source of rows for this result set. */
+  private final RowSource source;
+
+  /** The row the cursor is currently on. <code>null</code> when not on a row. */
+  private Term[] row = null;
+
+  /** The offset of the current row. */
+  private int cursor = BEFORE_FIRST;
+
+  /** Set when the source has no more rows. */
+  private boolean exhausted = false;
+
+  /**
+   * Creates a streaming result set over a source of rows.
+   * @param header The header describing the columns in each row.
+   * @param source The source to read the rows from.
+   * @param statement The statement used to create this result set.
+   */
+  public StreamingBindingsResultSet(ResultSetHeader header, RowSource source, Statement statement) {
+    super(header, statement);
+    this.source = source;
+  }
+
+
+  /**
+   * The rows are read from the source, and are not held in memory.
+   * @return <code>null</code>
+   */
+  ColumnarRows getRows() {
+    return null;
+  }
+
+
+  public void close() throws SparqlException {
+    row = null;
+    exhausted = true;
+    source.close();
+  }
+
+
+  public boolean isBeforeFirst() throws SparqlException {
+    return cursor == BEFORE_FIRST && !exhausted;
+  }
+
+
+  public boolean isAfterLast() throws SparqlException {
+    return exhausted;
+  }
+
+
+  public boolean isFirst() throws SparqlException {
+    return cursor == 0 && !exhausted;
+  }
+
+
+  public boolean isLast() throws SparqlException {
+    throw forwardOnly("isLast()");
+  }
+
+
+  public void beforeFirst() throws SparqlException {
+    if (cursor != BEFORE_FIRST) throw forwardOnly("beforeFirst()");
+  }
+
+
+  public void afterLast() throws SparqlException {
+    while (!exhausted) next();
+  }
+
+
+  public boolean first() throws SparqlException {
+    if (cursor == BEFORE_FIRST) return next();
+    if (cursor == 0 && !exhausted) return true;
+    throw forwardOnly("first()");
+  }
+
+
+  public boolean last() throws SparqlException {
+    throw forwardOnly("last()");
+  }
+
+
+  public int getRow() throws SparqlException {
+    return exhausted ? 0 : cursor;
+  }
+
+
+  public boolean absolute(int row) throws SparqlException {
+    if (row <= cursor) throw forwardOnly("absolute(" + row + ")");
+    return relative(row - 1 - cursor);
+  }
+
+
+  public boolean relative(int rows) throws SparqlException {
+    if (rows < 0) throw forwardOnly("relative(" + rows + ")");
+    boolean onRow = row != null;
+    for (int i = 0; i < rows && !exhausted; i++) onRow = next();
+    return onRow;
+  }
+
+
+  public boolean next() throws SparqlException {
+    if (exhausted) throw new SparqlException("next() moved beyond the end of the results");
+    row = source.nextRow();
+    if (row == null) {
+      exhausted = true;
+      source.close();
+      return false;
+    }
+    cursor++;
+    return true;
+  }
+
+
+  public boolean previous() throws SparqlException {
+    throw forwardOnly("previous()");
+  }
+
+
+  @Override
+  public int getType() throws SQLException {
+    return TYPE_FORWARD_ONLY;
+  }
+
+
+  /**
+   * Reads the row that the cursor is currently on.
+   * @return The current row.
+   * @throws SparqlException If the cursor is not on a row.
+   */
+  protected Term[] currentRow() throws SparqlException {
+    if (row == null) throw new SparqlException("Cursor is not on a row");
+    return row;
+  }
+
+
+  /**
+   * Gets a single binding from the row that the cursor is currently on.
+   * @param index The offset of the column, starting at 0.
+   * @return The binding, or <code>null</code> if it is unbound.
+   * @throws SparqlException If the cursor is not on a row.
+   */
+  protected Term term(int index) throws SparqlException {
+    return currentRow()[index];
+  }
+
+
+  /**
+   * Gets the lexical form of a single binding from the row that the cursor is currently on.
+   * @param index The offset of the column, starting at 0.
+   * @return The lexical form of the binding, or <code>null</code> if it is unbound.
+   * @throws SparqlException If the cursor is not on a row.
+   */
+  protected String lexical(int index) throws SparqlException {
+    Term t = currentRow()[index];
+    return t == null ? null : t.getLexical();
+  }
+
+
+  /**
+   * Creates an exception for an operation that needs to move the cursor backwards.
+   * @param op The operation that was attempted.
+   * @return An exception describing the problem.
+   */
+  private static SparqlException forwardOnly(String op) {
+    return new SparqlException("Result set is forward only. Unable to perform " + op);
+  }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.impl;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mulgara.scon.InternalException;
+
+import org.mulgara.mrg.Bnode;
+import org.mulgara.mrg.Literal;
+import org.mulgara.mrg.Node;
+import org.mulgara.mrg.Uri;
+import org.mulgara.mrg.vocab.uri.XSD;
+
+/**
+ * A value in a row of bindings, held in the lexical form it was read in. Building an
+ * RDF node means parsing URIs and mapping datatypes, which is wasted on the many
+ * values that are never asked for, or are only read as strings. So the node for
+ * a term is only built the first time it is needed, and is then kept with the term.
+ * Terms are shared between threads, such as in cached results, so the node is published
+ * safely. Two threads may build the node at once, but they build equal nodes.
+ */
+public final class Term {
+
+  /** The kinds of RDF term. */
+  public enum Kind { URI, BNODE, LITERAL };
+
+  /** Datatypes that have a shared URI, indexed by their text. */
+  private static final Map<String,URI> KNOWN_TYPES = new HashMap<String,URI>();
+  static {
+    URI[] types = {
+      XSD.STRING, XSD.BOOLEAN, XSD.INTEGER, XSD.DECIMAL, XSD.DOUBLE, XSD.FLOAT, XSD.LONG, XSD.INT,
+      XSD.SHORT, XSD.BYTE, XSD.NON_POSITIVE_INTEGER, XSD.NEGATIVE_INTEGER, XSD.NON_NEGATIVE_INTEGER,
+      XSD.POSITIVE_INTEGER, XSD.UNSIGNED_LONG, XSD.UNSIGNED_INT, XSD.UNSIGNED_SHORT, XSD.UNSIGNED_BYTE,
+      XSD.DATE, XSD.DATE_TIME, XSD.TIME, XSD.DURATION, XSD.G_YEAR, XSD.G_YEAR_MONTH, XSD.ANY_URI
+    };
+    for (URI t: types) KNOWN_TYPES.put(t.toString(), t);
+  }
+
+  /** The kind of term. */
+  private final Kind kind;
+
+  /** The lexical form of the term. For a blank node, this is the label. */
+  private final String lexical;
+
+  /** The datatype of a literal. <code>null</code> if the term is not a typed literal. */
+  private final String datatype;
+
+  /** The language of a literal. <code>null</code> if the term is not a literal with a language. */
+  private final String lang;
+
+  /** The node for the term, once it has been built. */
+  private volatile Node node;
+
+  /**
+   * Creates a term.
+   * @param kind The kind of term.
+   * @param lexical The lexical form of the term.
+   * @param datatype The datatype of a literal, or <code>null</code>.
+   * @param lang The language of a literal, or <code>null</code>.
+   * @param node The node for the term, if it has already been built.
+   */
+  private Term(Kind kind, String lexical, String datatype, String lang, Node node) {
+    if (lexical == null) throw new IllegalArgumentException("Terms must have a lexical form");
+    this.kind = kind;
+    this.lexical = lexical;
+    this.datatype = datatype;
+    this.lang = lang;
+    this.node = node;
+  }
+
+  /**
+   * Creates a term for a URI. The URI is not checked until the node is built.
+   * @param uri The text of the URI.
+   * @return A new term.
+   */
+  public static Term uri(String uri) {
+    return new Term(Kind.URI, uri, null, null, null);
+  }
+
+  /**
+   * Creates a term for a blank node.
+   * @param label The label of the blank node.
+   * @return A new term.
+   */
+  public static Term bnode(String label) {
+    return new Term(Kind.BNODE, label, null, null, null);
+  }
+
+  /**
+   * Creates a term for a literal.
+   * @param lexical The lexical form of the literal.
+   * @param datatype The datatype URI of the literal, or <code>null</code> if it is not typed.
+   * @param lang The language of the literal, or <code>null</code> if it has none.
+   * @return A new term.
+   */
+  public static Term literal(String lexical, String datatype, String lang) {
+    return new Term(Kind.LITERAL, lexical, datatype, lang, null);
+  }
+
+  /**
+   * Creates a term for a node that has already been built.
+   * @param n The node. May be <code>null</code>.
+   * @return A term for the node, or <code>null</code> if there was no node.
+   */
+  public static Term of(Node n) {
+    if (n == null) return null;
+    if (n instanceof Uri) return new Term(Kind.URI, ((Uri)n).getURI().toString(), null, null, n);
+    if (n instanceof Bnode) return new Term(Kind.BNODE, ((Bnode)n).getLabel(), null, null, n);
+    if (n instanceof Literal) {
+      Literal l = (Literal)n;
+      URI type = l.getType();
+      return new Term(Kind.LITERAL, l.getText(), type == null ? null : type.toString(), l.getLang(), n);
+    }
+    throw new IllegalArgumentException("Unknown kind of node: " + n.getClass().getName());
+  }
+
+  /**
+   * Gets the kind of this term.
+   */
+  public Kind getKind() {
+    return kind;
+  }
+
+  /**
+   * Gets the lexical form of this term: the text of a URI, the label of a
+   * blank node, or the text of a literal.
+   */
+  public String getLexical() {
+    return lexical;
+  }
+
+  /**
+   * Gets the datatype of a literal.
+   * @return The text of the datatype URI, or <code>null</code> if this is not a typed literal.
+   */
+  public String getDatatype() {
+    return datatype;
+  }
+
+  /**
+   * Gets the language of a literal.
+   * @return The language code, or <code>null</code> if this is not a literal with a language.
+   */
+  public String getLang() {
+    return lang;
+  }
+
+  /**
+   * Gets the node for this term, building it if this is the first time it has been needed.
+   * @return The node.
+   * @throws InternalException If the URI or datatype of the term is not a valid URI.
+   */
+  public Node toNode() throws InternalException {
+    Node n = node;
+    if (n == null) node = n = buildNode();
+    return n;
+  }
+
+  /**
+   * Builds the node for this term.
+   */
+  private Node buildNode() throws InternalException {
+    switch (kind) {
+      case URI:
+        return new Uri(toUri(lexical));
+      case BNODE:
+        return new Bnode(lexical);
+      default:
+        if (datatype == null) return lang == null ? new Literal(lexical) : new Literal(lexical, lang);
+        URI type = KNOWN_TYPES.get(datatype);
+        if (type == null) type = toUri(datatype);
+        try {
+          return lang == null ? new Literal(lexical, type) : new Literal(lexical, lang, type);
+        } catch (IllegalArgumentException e) {
+          // the datatype is not understood, or the lexical form is invalid, so keep the text as the value
+          return new Literal(lexical, (Object)lexical, type);
+        }
+    }
+  }
+
+  /**
+   * Tests if this term has the same form as another object.
+   */
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof Term)) return false;
+    Term t = (Term)o;
+    return kind == t.kind && lexical.equals(t.lexical) && same(datatype, t.datatype) && same(lang, t.lang);
+  }
+
+  /**
+   * Calculates a hashcode consistent with {@link #equals(Object)}.
+   */
+  public int hashCode() {
+    int h = kind.ordinal() * 31 + lexical.hashCode();
+    if (datatype != null) h = h * 31 + datatype.hashCode();
+    if (lang != null) h = h * 31 + lang.hashCode();
+    return h;
+  }
+
+  /**
+   * Shows this term the way it is written in N-Triples.
+   */
+  public String toString() {
+    switch (kind) {
+      case URI:
+        return "<" + lexical + ">";
+      case BNODE:
+        return "_:" + lexical;
+      default:
+        if (datatype != null) return "\"" + lexical + "\"^^<" + datatype + ">";
+        return lang != null ? "\"" + lexical + "\"@" + lang : "\"" + lexical + "\"";
+    }
+  }
+
+  /**
+   * Parses the text of a URI.
+   */
+  private static URI toUri(String u) throws InternalException {
+    try {
+      return new URI(u);
+    } catch (URISyntaxException e) {
+      throw new InternalException("Invalid URI found in result: <" + u + ">");
+    }
+  }
+
+  private static boolean same(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mulgara.scon.Statement;
+
+import org.mulgara.mrg.AppendableGraph;
+import org.mulgara.mrg.GraphFactory;
+import org.mulgara.mrg.GraphImpl;
+import org.mulgara.mrg.Node;
+import org.mulgara.mrg.ObjectNode;
+import org.mulgara.mrg.PredicateNode;
+import org.mulgara.mrg.SubjectNode;
+import org.mulgara.mrg.Triple;
+
+/**
+ * Shares a single instance between identical values in query results. The same
+ * predicates, datatypes and language tags usually appear in every row of a result,
+ * and would otherwise be held once for every row they appear in.
+ * <p>
+ * A dictionary holds a bounded number of values. Once it is full, values that are
+ * already in the dictionary are still shared, but new values are not added. Each
+ * result has its own dictionary while it is being read, unless a dictionary has
+ * been set on the connection, in which case it is shared by all the results of
+ * that connection and lives as long as the connection does.
+ * </p>
+ */
+public class TermDictionary {
+
+  /** The default number of values held by the dictionary for a single result. */
+  public static final int DEFAULT_SIZE = 65536;
+
+  /** The shared values, mapped to themselves. */
+  private final ConcurrentMap<Object,Object> entries = new ConcurrentHashMap<Object,Object>();
+
+  /** The number of values held, which is slow to count in the map itself. */
+  private final AtomicInteger size = new AtomicInteger();
+
+  /** The maximum number of values to hold. */
+  private final int maxSize;
+
+  /** The number of values that were replaced by a shared instance. */
+  private final AtomicLong hits = new AtomicLong();
+
+  /**
+   * Creates a dictionary with the default size.
+   */
+  public TermDictionary() {
+    this(DEFAULT_SIZE);
+  }
+
+  /**
+   * Creates a dictionary.
+   * @param maxSize The maximum number of values to hold. A size of 0 shares nothing.
+   */
+  public TermDictionary(int maxSize) {
+    if (maxSize < 0) throw new IllegalArgumentException("Dictionary size may not be negative");
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Gets the dictionary to use for a result.
+   * @param statement The statement the result is for. May be <code>null</code>.
+   * @return The dictionary for the connection of the statement, or a new dictionary
+   *         for just this result if the connection does not have one.
+   */
+  public static TermDictionary of(Statement statement) {
+    TermDictionary shared = statement == null ? null : statement.getTermDictionary();
+    return shared != null ? shared : new TermDictionary();
+  }
+
+  /**
+   * Gets a term for a URI.
+   * @param uri The text of the URI.
+   * @return The shared term for the URI.
+   */
+  public Term uri(String uri) {
+    return share(Term.uri(uri));
+  }
+
+  /**
+   * Gets a term for a blank node. Blank node labels are only meaningful within a
+   * single result, so these are never shared.
+   * @param label The label of the blank node.
+   * @return A new term for the blank node.
+   */
+  public Term bnode(String label) {
+    return Term.bnode(label);
+  }
+
+  /**
+   * Gets a term for a literal.
+   * @param lexical The lexical form of the literal.
+   * @param datatype The datatype URI of the literal, or <code>null</code> if it is not typed.
+   * @param lang The language of the literal, or <code>null</code> if it has none.
+   * @return The shared term for the literal.
+   */
+  public Term literal(String lexical, String datatype, String lang) {
+    if (datatype != null) datatype = share(datatype);
+    if (lang != null) lang = share(lang);
+    return share(Term.literal(lexical, datatype, lang));
+  }
+
+  /**
+   * Gets the shared instance of a node.
+   * @param n The node to share. May be <code>null</code>.
+   * @return The shared node that is equal to <code>n</code>.
+   */
+  public Node node(Node n) {
+    return n == null ? null : share(n);
+  }
+
+  /**
+   * Gets a factory for graphs that share identical nodes as triples are inserted.
+   * Parsers that build their graph from this factory have their nodes shared as they
+   * emit them, without holding a second copy of the graph.
+   * @return A factory for new, empty graphs.
+   */
+  public GraphFactory graphFactory() {
+    return new GraphFactory() {
+      public AppendableGraph createGraph() {
+        return new GraphImpl() {
+          public boolean insert(SubjectNode s, PredicateNode p, ObjectNode o) {
+            return super.insert((SubjectNode)node(s), (PredicateNode)node(p), (ObjectNode)node(o));
+          }
+          public boolean insert(Triple t) {
+            return insert(t.getSubject(), t.getPredicate(), t.getObject());
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Gets the number of values held in this dictionary.
+   */
+  public int getSize() {
+    return size.get();
+  }
+
+  /**
+   * Gets the maximum number of values this dictionary will hold.
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Gets the number of times a value was replaced by one already in the dictionary.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Empties the dictionary.
+   */
+  public void clear() {
+    entries.clear();
+    size.set(0);
+  }
+
+  /**
+   * Finds the shared instance of a value, adding the value if there is room for it.
+   * @param value The value to share.
+   * @return The shared value, or the value itself if it could not be added.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> T share(T value) {
+    Object shared = entries.get(value);
+    if (shared == null) {
+      if (size.get() >= maxSize) return value;
+      shared = entries.putIfAbsent(value, value);
+      if (shared == null) {
+        size.incrementAndGet();
+        return value;
+      }
+    }
+    hits.incrementAndGet();
+    return (T)shared;
+  }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.impl;
+
+import java.util.TimeZone;
+
+/**
+ * Reads values directly from the lexical forms of XSD literals, without building
+ * a literal or boxing the value. Surrounding whitespace is ignored, as XSD
+ * collapses it for all of these types.
+ */
+final class XsdValues {
+
+  /** Selects the date fields of a date or time. */
+  static final int DATE = 1;
+
+  /** Selects the time of day fields of a date or time. */
+  static final int TIME = 2;
+
+  /** Selects all the fields of a date or time. */
+  static final int TIMESTAMP = DATE | TIME;
+
+  /** The number of milliseconds in a day. */
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  /** The largest number of decimal digits that always fit in a long. */
+  private static final int SAFE_DIGITS = 18;
+
+  /** The largest magnitude a double can hold exactly as an integer. */
+  private static final long EXACT_DOUBLE = 1L << 53;
+
+  /** The most decimal places in a double that is written without the general algorithm. */
+  private static final int FAST_DECIMALS = 3;
+
+  /** The powers of ten up to {@link #FAST_DECIMALS}. */
+  private static final double[] TENS = { 1, 10, 100, 1000 };
+
+  private XsdValues() { }
+
+  /**
+   * Reads an integer. Decimals and doubles are truncated, and booleans are 1 or 0.
+   * @param s The lexical form.
+   * @return The value.
+   * @throws NumberFormatException If the value is not a number or does not fit in a long.
+   */
+  static long parseLong(String s) {
+    int start = start(s);
+    int end = end(s, start);
+    int i = start;
+    boolean negative = false;
+    if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) negative = s.charAt(i++) == '-';
+    // accumulate as a negative number, which has the larger range
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long value = 0;
+    int first = i;
+    while (i < end) {
+      int d = s.charAt(i) - '0';
+      if (d < 0 || d > 9) break;
+      if (value < (limit + d) / 10) throw new NumberFormatException("Out of range for a long: " + s);
+      value = value * 10 - d;
+      i++;
+    }
+    if (i == end && i > first) return negative ? value : -value;
+    return toLong(parseDouble(s));
+  }
+
+  /**
+   * Truncates a double to a long.
+   * @param d The value to truncate.
+   * @return The integer part of the value.
+   * @throws NumberFormatException If the value does not fit in a long.
+   */
+  static long toLong(double d) {
+    if (Double.isNaN(d) || d < Long.MIN_VALUE || d >= -(double)Long.MIN_VALUE) {
+      throw new NumberFormatException("Out of range for a long: " + d);
+    }
+    return (long)d;
+  }
+
+  /**
+   * Reads a double, including the XSD forms of infinity. Booleans are 1 or 0.
+   * @param s The lexical form.
+   * @return The value.
+   * @throws NumberFormatException If the value is not a number.
+   */
+  static double parseDouble(String s) {
+    int start = start(s);
+    int end = end(s, start);
+    int len = end - start;
+    if (len > 0 && len <= SAFE_DIGITS) {
+      // plain integers are common, and are converted without the general parser
+      int i = start;
+      boolean negative = false;
+      if (s.charAt(i) == '-' || s.charAt(i) == '+') negative = s.charAt(i++) == '-';
+      long value = 0;
+      int first = i;
+      while (i < end) {
+        int d = s.charAt(i) - '0';
+        if (d < 0 || d > 9) break;
+        value = value * 10 + d;
+        i++;
+      }
+      if (i == end && i > first && value < EXACT_DOUBLE) return negative ? -value : value;
+    }
+    if (len == 3 && s.regionMatches(start, "INF", 0, 3)) return Double.POSITIVE_INFINITY;
+    if (len == 4 && s.regionMatches(start, "+INF", 0, 4)) return Double.POSITIVE_INFINITY;
+    if (len == 4 && s.regionMatches(start, "-INF", 0, 4)) return Double.NEGATIVE_INFINITY;
+    if (len == 4 && s.regionMatches(start, "true", 0, 4)) return 1;
+    if (len == 5 && s.regionMatches(start, "false", 0, 5)) return 0;
+    if (len == 3 && s.regionMatches(start, "NaN", 0, 3)) return Double.NaN;
+    // Java accepts type suffixes, hexadecimal forms and Infinity, which XSD does not
+    for (int i = start; i < end; i++) {
+      char ch = s.charAt(i);
+      if ((ch < '0' || ch > '9') && ch != '.' && ch != '-' && ch != '+' && ch != 'e' && ch != 'E') {
+        throw new NumberFormatException("Not a number: " + s);
+      }
+    }
+    return Double.parseDouble(s);
+  }
+
+  /**
+   * Writes a double as {@link Double#toString(double)} does. Values with no more than
+   * {@link #FAST_DECIMALS} decimal places, and no exponent, are written without the
+   * general algorithm.
+   * @param d The value to write.
+   * @return The value as text.
+   */
+  static String toString(double d) {
+    double magnitude = Math.abs(d);
+    if (magnitude >= 1e-3 && magnitude < 1e7) {
+      for (int places = 0; places <= FAST_DECIMALS; places++) {
+        long scaled = Math.round(magnitude * TENS[places]);
+        if (scaled / TENS[places] != magnitude) continue;
+        long unit = (long)TENS[places];
+        StringBuilder sb = new StringBuilder(24);
+        if (d < 0) sb.append('-');
+        sb.append(scaled / unit).append('.');
+        long fraction = scaled % unit;
+        if (fraction == 0) return sb.append('0').toString();
+        for (long u = unit / 10; u > fraction; u /= 10) sb.append('0');
+        while (fraction % 10 == 0) fraction /= 10;
+        return sb.append(fraction).toString();
+      }
+    }
+    return Double.toString(d);
+  }
+
+  /**
+   * Writes a double in the canonical form for xsd:double. This has one non-zero digit
+   * before the decimal point, at least one digit after it, and an exponent with no
+   * leading zeros, such as <code>1.5E1</code>. Zero is <code>0.0E0</code>.
+   * @param d The value to write.
+   * @return The canonical lexical form of the value.
+   */
+  static String formatDouble(double d) {
+    if (Double.isNaN(d)) return "NaN";
+    if (Double.isInfinite(d)) return d > 0 ? "INF" : "-INF";
+    String s = toString(d);
+    // Java already writes large and small values in this form
+    if (s.indexOf('E') >= 0) return s;
+    int sign = d < 0 || (d == 0 && 1 / d < 0) ? 1 : 0;
+    int point = s.indexOf('.');
+    int first = sign;
+    while (first < s.length() && (s.charAt(first) == '0' || s.charAt(first) == '.')) first++;
+    if (first == s.length()) return sign == 0 ? "0.0E0" : "-0.0E0";
+    int last = s.length() - 1;
+    while (s.charAt(last) == '0' || s.charAt(last) == '.') last--;
+    StringBuilder sb = new StringBuilder(last - first + 8);
+    if (sign != 0) sb.append('-');
+    sb.append(s.charAt(first)).append('.');
+    int digits = 0;
+    for (int i = first + 1; i <= last; i++) {
+      if (i != point) {
+        sb.append(s.charAt(i));
+        digits++;
+      }
+    }
+    if (digits == 0) sb.append('0');
+    return sb.append('E').append(first < point ? point - first - 1 : point - first).toString();
+  }
+
+  /**
+   * Reads a boolean. Numbers are <code>true</code> when they are not zero.
+   * @param s The lexical form.
+   * @return The value.
+   * @throws NumberFormatException If the value is neither a boolean nor a number.
+   */
+  static boolean parseBoolean(String s) {
+    int start = start(s);
+    int len = end(s, start) - start;
+    if (len == 4 && s.regionMatches(start, "true", 0, 4)) return true;
+    if (len == 5 && s.regionMatches(start, "false", 0, 5)) return false;
+    if (len == 1 && s.charAt(start) == '1') return true;
+    if (len == 1 && s.charAt(start) == '0') return false;
+    return parseDouble(s) != 0;
+  }
+
+  /**
+   * Reads an xsd:date, xsd:dateTime or xsd:time as milliseconds since the epoch.
+   * A value with no time zone is read in the given zone. A time with no date is
+   * on 1970-01-01, and a date with no time is at midnight.
+   * @param s The lexical form.
+   * @param fields The fields to keep, from {@link #DATE}, {@link #TIME} or {@link #TIMESTAMP}.
+   *        Fields that are not kept are read as if they were absent.
+   * @param zone The time zone for values that do not have one.
+   * @return The milliseconds since 1970-01-01T00:00:00Z.
+   * @throws NumberFormatException If the value is not a date or time.
+   */
+  static long parseMillis(String s, int fields, TimeZone zone) {
+    int i = start(s);
+    int end = end(s, i);
+    long days = 0;
+    long millis = 0;
+    boolean hasTime = true;
+    if (end - i < 3 || s.charAt(i + 2) != ':') {
+      // a date, with a year of at least 4 digits
+      boolean negative = i < end && s.charAt(i) == '-';
+      if (negative) i++;
+      int dash = s.indexOf('-', i);
+      if (dash - i < 4 || dash + 6 > end) throw notDate(s);
+      long year = digits(s, i, dash);
+      int month = (int)digits(s, dash + 1, dash + 3);
+      int day = (int)digits(s, dash + 4, dash + 6);
+      if (s.charAt(dash + 3) != '-' || month < 1 || month > 12 || day < 1 || day > 31) throw notDate(s);
+      if ((fields & DATE) != 0) days = daysFromCivil(negative ? -year : year, month, day);
+      i = dash + 6;
+      hasTime = i < end && s.charAt(i) == 'T';
+      if (hasTime) i++;
+    }
+    if (hasTime) {
+      if (i + 8 > end || s.charAt(i + 2) != ':' || s.charAt(i + 5) != ':') throw notDate(s);
+      long hour = digits(s, i, i + 2);
+      long minute = digits(s, i + 3, i + 5);
+      long second = digits(s, i + 6, i + 8);
+      if (hour > 24 || minute > 59 || second > 60) throw notDate(s);
+      i += 8;
+      long fraction = 0;
+      if (i < end && s.charAt(i) == '.') {
+        int digits = 0;
+        while (++i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+          if (digits++ < 3) fraction = fraction * 10 + s.charAt(i) - '0';
+        }
+        if (digits == 0) throw notDate(s);
+        while (digits++ < 3) fraction *= 10;
+      }
+      if ((fields & TIME) != 0) millis = ((hour * 60 + minute) * 60 + second) * 1000 + fraction;
+    }
+    long local = days * DAY_MILLIS + millis;
+    if (i == end) {
+      int offset = zone.getOffset(local);
+      int actual = zone.getOffset(local - offset);
+      return local - actual;
+    }
+    if (s.charAt(i) == 'Z' && i + 1 == end) return local;
+    if (i + 6 != end || (s.charAt(i) != '+' && s.charAt(i) != '-') || s.charAt(i + 3) != ':') throw notDate(s);
+    long offset = (digits(s, i + 1, i + 3) * 60 + digits(s, i + 4, i + 6)) * 60 * 1000;
+    return s.charAt(i) == '+' ? local - offset : local + offset;
+  }
+
+  /**
+   * Reads the fraction of a second in a time as nanoseconds.
+   * @param s The lexical form of an xsd:dateTime or xsd:time.
+   * @return The nanoseconds, truncated to 9 digits.
+   */
+  static int parseNanos(String s) {
+    int colon = s.lastIndexOf(':', s.indexOf('.'));
+    int i = s.indexOf('.');
+    if (i < 0 || colon < 0) return 0;
+    int nanos = 0;
+    int digits = 0;
+    while (++i < s.length() && digits < 9 && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+      nanos = nanos * 10 + s.charAt(i) - '0';
+      digits++;
+    }
+    while (digits++ < 9) nanos *= 10;
+    return nanos;
+  }
+
+  /**
+   * Counts the days from 1970-01-01 to a date in the proleptic Gregorian calendar.
+   * @param year The year.
+   * @param month The month, from 1 to 12.
+   * @param day The day of the month.
+   * @return The number of days since the epoch.
+   */
+  private static long daysFromCivil(long year, int month, int day) {
+    if (month <= 2) year--;
+    long era = (year >= 0 ? year : year - 399) / 400;
+    long yearOfEra = year - era * 400;
+    long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  /**
+   * Reads a run of decimal digits.
+   * @param s The string containing the digits.
+   * @param from The offset of the first digit.
+   * @param to The offset after the last digit.
+   * @return The value of the digits.
+   * @throws NumberFormatException If any of the characters are not digits.
+   */
+  private static long digits(String s, int from, int to) {
+    if (to - from > SAFE_DIGITS) throw new NumberFormatException("Too many digits: " + s);
+    long value = 0;
+    for (int i = from; i < to; i++) {
+      int d = s.charAt(i) - '0';
+      if (d < 0 || d > 9) throw new NumberFormatException("Not a digit at " + i + ": " + s);
+      value = value * 10 + d;
+    }
+    return value;
+  }
+
+  /**
+   * Finds the first character that is not whitespace.
+   */
+  private static int start(String s) {
+    int i = 0;
+    while (i < s.length() && s.charAt(i) <= ' ') i++;
+    return i;
+  }
+
+  /**
+   * Finds the end of a string, without any trailing whitespace.
+   */
+  private static int end(String s, int start) {
+    int i = s.length();
+    while (i > start && s.charAt(i - 1) <= ' ') i--;
+    return i;
+  }
+
+  /**
+   * Creates an exception for a value that is not a date or time.
+   */
+  private static NumberFormatException notDate(String s) {
+    return new NumberFormatException("Not a date or time: " + s);
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.parser;
+
+import org.mulgara.scon.Statement;
+import org.mulgara.scon.InternalException;
+import org.mulgara.scon.impl.Term;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import static org.mulgara.util.Strings.toUtf8Bytes;
+
+/**
+ * Parses SPARQL results in comma separated values format. This format only carries
+ * the lexical form of each term, so blank nodes are recognized by their <code>_:</code>
+ * prefix, and every other value is returned as an untyped literal.
+ */
+public class CsvResultSetParser extends DelimitedResultSetParser {
+
+  /**
+   * Create a result from a string.
+   * @param s The string containing the result set.
+   * @param statement The statement that created this data.
+   */
+  public CsvResultSetParser(String s, Statement statement) throws InternalException, IOException {
+    this(new ByteArrayInputStream(toUtf8Bytes(s)), statement);
+  }
+
+  /**
+   * Create a result set from an InputStream.
+   * @param is The input stream with the results.
+   * @param statement The statement that created this data.
+   */
+  public CsvResultSetParser(InputStream is, Statement statement) throws InternalException, IOException {
+    super(is, statement, (byte)',', true);
+  }
+
+  /**
+   * Decodes a variable name, which may be quoted.
+   */
+  protected String decodeVariable(byte[] data, int start, int end) throws InternalException {
+    String name = field(data, start, end);
+    if (name.length() == 0) throw new InternalException("Empty variable name in result header");
+    return name;
+  }
+
+  /**
+   * Decodes a field as a blank node or untyped literal.
+   */
+  protected Term decodeTerm(byte[] data, int start, int end) throws InternalException {
+    if (start == end) return null;
+    String value = field(data, start, end);
+    if (value.startsWith("_:")) return terms.bnode(value.substring(2));
+    return terms.literal(value, null, null);
+  }
+
+  /**
+   * Decodes the text of a field, removing any quotes.
+   */
+  private static String field(byte[] data, int start, int end) throws InternalException {
+    if (data[start] != '"') return utf8(data, start, end);
+    if (end - start < 2 || data[end - 1] != '"') throw new InternalException("Unterminated quoted value in results: " + utf8(data, start, end));
+    String value = utf8(data, start + 1, end - 1);
+    return value.indexOf('"') < 0 ? value : value.replace("\"\"", "\"");
+  }
+
+}
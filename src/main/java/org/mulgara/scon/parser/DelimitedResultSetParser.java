@@ -0,0 +1,296 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.parser;
+
+import org.mulgara.scon.ResultSet;
+import org.mulgara.scon.ResultSetHeader;
+import org.mulgara.scon.Statement;
+import org.mulgara.scon.InternalException;
+import org.mulgara.scon.SparqlException;
+import org.mulgara.scon.impl.BindingsResultSet;
+import org.mulgara.scon.impl.ColumnarRows;
+import org.mulgara.scon.impl.RowSource;
+import org.mulgara.scon.impl.StreamingBindingsResultSet;
+import org.mulgara.scon.impl.Term;
+import org.mulgara.scon.impl.TermDictionary;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses SPARQL results that are written as delimited text, with one line per row.
+ * Records are scanned as raw bytes, and only the bytes of each field are decoded
+ * into characters, so there is no general purpose tokenizer between the socket and the rows.
+ * Forward only statements receive a result set that reads each line as the cursor moves.
+ */
+public abstract class DelimitedResultSetParser implements ResultParser, RowSource {
+
+  /** The encoding of all delimited results. */
+  protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** The size of the buffer for reading bytes. */
+  private static final int BUFFER_SIZE = 65536;
+
+  /** The stream the data is read from. */
+  private final InputStream input;
+
+  /** Shares identical terms between the rows of the result. */
+  protected final TermDictionary terms;
+
+  /** The byte that separates fields in a record. */
+  private final byte delimiter;
+
+  /** Indicates that fields may be quoted, protecting delimiters and line ends. */
+  private final boolean quoted;
+
+  /** The buffered bytes from the input. */
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+
+  /** The position of the next byte in the buffer. */
+  private int pos = 0;
+
+  /** The number of valid bytes in the buffer. */
+  private int limit = 0;
+
+  /** The bytes of the current record. */
+  private byte[] record = new byte[256];
+
+  /** The number of bytes in the current record. */
+  private int recordLength = 0;
+
+  /** The header of the result set. */
+  private final ResultSetHeader header;
+
+  /** The number of variables in each row. */
+  private final int width;
+
+  /** The ResultSet object built by this parser. */
+  private final ResultSet resultSet;
+
+  /** Number of rows read so far. */
+  private int rows = 0;
+
+  /** Set once the input has been released. */
+  private boolean closed = false;
+
+  /**
+   * Reads the header of delimited results, and either all of the rows, or none of them
+   * if the statement is forward only.
+   * @param is The input stream with the results.
+   * @param statement The statement that created this data.
+   * @param delimiter The byte that separates fields.
+   * @param quoted <code>true</code> if fields may be enclosed in double quotes.
+   */
+  protected DelimitedResultSetParser(InputStream is, Statement statement, byte delimiter, boolean quoted) throws InternalException, IOException {
+    this.input = is;
+    this.terms = TermDictionary.of(statement);
+    this.delimiter = delimiter;
+    this.quoted = quoted;
+
+    skipByteOrderMark();
+    List<String> vars = new ArrayList<String>();
+    if (readRecord()) {
+      int start = 0;
+      while (true) {
+        int end = nextField(start);
+        vars.add(decodeVariable(record, start, end));
+        if (end == recordLength) break;
+        start = end + 1;
+      }
+    }
+    header = new ResultSetHeader(vars, Collections.<URI>emptyList());
+    width = vars.size();
+
+    if (statement != null && statement.isForwardOnly()) {
+      resultSet = new StreamingBindingsResultSet(header, this, statement);
+    } else {
+      ColumnarRows results = new ColumnarRows(width);
+      Term[] row;
+      while ((row = nextRow()) != null) results.add(row);
+      resultSet = new BindingsResultSet(header, results, statement);
+    }
+  }
+
+  /**
+   * Retrieves the ResultSet that this parser built.
+   */
+  public ResultSet getResultSet() {
+    return resultSet;
+  }
+
+  /**
+   * Return the number of rows parsed.
+   */
+  public int getProcessedRows() {
+    return rows;
+  }
+
+  /**
+   * Reads the next record and decodes each of its fields.
+   * @return The next row, or <code>null</code> if there are no more records.
+   */
+  public Term[] nextRow() throws InternalException {
+    if (closed) return null;
+    try {
+      while (readRecord()) {
+        // an empty line is a row of nothing but unbound values when there is one variable
+        if (recordLength == 0 && width != 1) continue;
+        Term[] row = new Term[width];
+        int column = 0;
+        int start = 0;
+        while (true) {
+          if (column == width) throw new InternalException("Too many values in row " + (rows + 1));
+          int end = nextField(start);
+          row[column++] = decodeTerm(record, start, end);
+          if (end == recordLength) break;
+          start = end + 1;
+        }
+        rows++;
+        return row;
+      }
+      close();
+      return null;
+    } catch (IOException e) {
+      closed = true;
+      throw new InternalException("Error reading results", e);
+    }
+  }
+
+  /**
+   * Releases the input stream.
+   */
+  public void close() throws InternalException {
+    if (closed) return;
+    closed = true;
+    try {
+      input.close();
+    } catch (IOException e) {
+      throw new InternalException("Error closing result stream", e);
+    }
+  }
+
+  /**
+   * Decodes the name of a variable in the header.
+   * @param data The bytes of the header.
+   * @param start The offset of the first byte of the field.
+   * @param end The offset after the last byte of the field.
+   * @return The variable name.
+   */
+  protected abstract String decodeVariable(byte[] data, int start, int end) throws InternalException;
+
+  /**
+   * Decodes a field into an RDF term.
+   * @param data The bytes of the record.
+   * @param start The offset of the first byte of the field.
+   * @param end The offset after the last byte of the field.
+   * @return The term, or <code>null</code> if the field is empty.
+   */
+  protected abstract Term decodeTerm(byte[] data, int start, int end) throws InternalException;
+
+  /**
+   * Decodes a range of bytes into a string.
+   * @param data The bytes to decode.
+   * @param start The offset of the first byte.
+   * @param end The offset after the last byte.
+   * @return The decoded string.
+   */
+  protected static String utf8(byte[] data, int start, int end) {
+    return new String(data, start, end - start, UTF8);
+  }
+
+  /**
+   * Finds the end of the field starting at a given offset in the current record.
+   * @param start The offset of the start of the field.
+   * @return The offset of the delimiter after the field, or the end of the record.
+   */
+  private int nextField(int start) {
+    boolean inQuotes = false;
+    for (int i = start; i < recordLength; i++) {
+      byte b = record[i];
+      if (b == delimiter && !inQuotes) return i;
+      if (quoted && b == '"') inQuotes = !inQuotes;
+    }
+    return recordLength;
+  }
+
+  /**
+   * Reads the next line of input into the record buffer, without the line terminator.
+   * @return <code>false</code> if the end of the input was reached with no more data.
+   */
+  private boolean readRecord() throws IOException {
+    recordLength = 0;
+    boolean inQuotes = false;
+    boolean data = false;
+    while (pos < limit || fill()) {
+      data = true;
+      int start = pos;
+      while (pos < limit) {
+        byte b = buffer[pos];
+        if (b == '\n' && !inQuotes) break;
+        if (quoted && b == '"') inQuotes = !inQuotes;
+        pos++;
+      }
+      append(start, pos);
+      if (pos < limit) {
+        pos++;
+        if (recordLength > 0 && record[recordLength - 1] == '\r') recordLength--;
+        return true;
+      }
+    }
+    return data;
+  }
+
+  /**
+   * Copies bytes from the input buffer to the end of the record.
+   */
+  private void append(int start, int end) {
+    int len = end - start;
+    if (recordLength + len > record.length) {
+      byte[] r = new byte[Math.max(record.length * 2, recordLength + len)];
+      System.arraycopy(record, 0, r, 0, recordLength);
+      record = r;
+    }
+    System.arraycopy(buffer, start, record, recordLength, len);
+    recordLength += len;
+  }
+
+  /**
+   * Refills the input buffer.
+   * @return <code>false</code> if the input is exhausted.
+   */
+  private boolean fill() throws IOException {
+    if (closed) return false;
+    int n = input.read(buffer, 0, buffer.length);
+    if (n <= 0) return false;
+    pos = 0;
+    limit = n;
+    return true;
+  }
+
+  /**
+   * Skips a UTF-8 byte order mark, if one is present.
+   */
+  private void skipByteOrderMark() throws IOException {
+    if (fill() && limit >= 3 && buffer[0] == (byte)0xEF && buffer[1] == (byte)0xBB && buffer[2] == (byte)0xBF) pos = 3;
+  }
+
+}
@@ -25,7 +25,9 @@ import org.mulgara.scon.ResultSet;
 import org.mulgara.scon.Statement;
 import org.mulgara.scon.InternalException;
 import org.mulgara.scon.impl.GraphResultSet;
+import org.mulgara.scon.impl.TermDictionary;
 import org.mulgara.mrg.Graph;
+import org.mulgara.mrg.GraphFactory;
 import org.mulgara.mrg.parser.ParseException;
 
 import static org.mulgara.util.Strings.toUtf8Bytes;
@@ -72,7 +74,8 @@ public abstract class GraphParser implements ResultParser {
     this.statement = statement;
 
     try {
-      org.mulgara.mrg.parser.GraphParser parser = parserFactory.createParser(is);
+      // nodes are shared as the parser inserts them, rather than in a copy of the parsed graph
+      org.mulgara.mrg.parser.GraphParser parser = parserFactory.createParser(is, TermDictionary.of(statement).graphFactory());
       graph = parser.getGraph();
       triples = parser.getProcessedRows();
     } catch (ParseException e) {
@@ -98,6 +101,11 @@ public abstract class GraphParser implements ResultParser {
    * Describes a function for creating a graph parser.
    */
   protected interface RdfParserFactory {
-    org.mulgara.mrg.parser.GraphParser createParser(InputStream is) throws ParseException, IOException;
+    /**
+     * Creates a parser that reads a graph from a stream.
+     * @param is The input stream with the graph data.
+     * @param graphs The factory for the graph to parse into.
+     */
+    org.mulgara.mrg.parser.GraphParser createParser(InputStream is, GraphFactory graphs) throws ParseException, IOException;
   }
 }
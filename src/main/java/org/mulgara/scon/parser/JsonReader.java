@@ -0,0 +1,331 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.mulgara.scon.InternalException;
+
+/**
+ * A minimal pull tokenizer for JSON text. Values are read directly from a character
+ * buffer without building a document tree. Object member names are held in a reusable
+ * buffer so they can be compared against expected names without creating strings.
+ */
+class JsonReader {
+
+  /** The size of the buffer for reading characters. */
+  private static final int BUFFER_SIZE = 8192;
+
+  /** Marks the end of the input. */
+  private static final int EOF = -1;
+
+  /** The source of the characters. */
+  private final Reader in;
+
+  /** The buffered characters. */
+  private final char[] buffer = new char[BUFFER_SIZE];
+
+  /** The position of the next character in the buffer. */
+  private int pos = 0;
+
+  /** The number of valid characters in the buffer. */
+  private int limit = 0;
+
+  /** Holds the most recently read name or string. */
+  private char[] text = new char[64];
+
+  /** The length of the data in <code>text</code>. */
+  private int textLength = 0;
+
+  /**
+   * Creates a tokenizer for UTF-8 encoded JSON.
+   * @param input The stream to read.
+   */
+  JsonReader(InputStream input) throws IOException {
+    this(new InputStreamReader(input, "UTF-8"));
+  }
+
+  /**
+   * Creates a tokenizer over a character stream.
+   * @param in The characters to read.
+   */
+  JsonReader(Reader in) {
+    this.in = in;
+  }
+
+  /**
+   * Consumes the start of an object.
+   */
+  void beginObject() throws IOException, InternalException {
+    expect('{');
+  }
+
+  /**
+   * Consumes the end of an object.
+   */
+  void endObject() throws IOException, InternalException {
+    expect('}');
+  }
+
+  /**
+   * Consumes the start of an array.
+   */
+  void beginArray() throws IOException, InternalException {
+    expect('[');
+  }
+
+  /**
+   * Consumes the end of an array.
+   */
+  void endArray() throws IOException, InternalException {
+    expect(']');
+  }
+
+  /**
+   * Tests if the current object or array has another element, consuming any separating comma.
+   * @return <code>true</code> if another member or element follows.
+   */
+  boolean hasNext() throws IOException, InternalException {
+    int c = peekToken();
+    if (c == ',') {
+      pos++;
+      c = peekToken();
+    }
+    if (c == EOF) throw new InternalException("Unexpected end of JSON data");
+    return c != '}' && c != ']';
+  }
+
+  /**
+   * Reads the name of the next object member, and the separating colon.
+   * The name is available through {@link #nameIs(String)} and {@link #name()}.
+   */
+  void nextName() throws IOException, InternalException {
+    readString();
+    expect(':');
+  }
+
+  /**
+   * Tests the most recently read name without creating a string.
+   * @param name The name to compare to.
+   * @return <code>true</code> if the name matches.
+   */
+  boolean nameIs(String name) {
+    if (name.length() != textLength) return false;
+    for (int i = 0; i < textLength; i++) if (text[i] != name.charAt(i)) return false;
+    return true;
+  }
+
+  /**
+   * Gets the most recently read name.
+   * @return A new string containing the name.
+   */
+  String name() {
+    return new String(text, 0, textLength);
+  }
+
+  /**
+   * Reads a string value.
+   * @return The unescaped string.
+   */
+  String nextString() throws IOException, InternalException {
+    readString();
+    return new String(text, 0, textLength);
+  }
+
+  /**
+   * Reads a boolean value.
+   * @return The value that was read.
+   */
+  boolean nextBoolean() throws IOException, InternalException {
+    int c = peekToken();
+    if (c == 't') {
+      expectWord("true");
+      return true;
+    }
+    if (c == 'f') {
+      expectWord("false");
+      return false;
+    }
+    throw syntax("Expected a boolean");
+  }
+
+  /**
+   * Skips over the next value, including any nested structure.
+   */
+  void skipValue() throws IOException, InternalException {
+    int c = peekToken();
+    switch (c) {
+      case '{':
+        beginObject();
+        while (hasNext()) {
+          nextName();
+          skipValue();
+        }
+        endObject();
+        break;
+      case '[':
+        beginArray();
+        while (hasNext()) skipValue();
+        endArray();
+        break;
+      case '"':
+        readString();
+        break;
+      case 't':
+        expectWord("true");
+        break;
+      case 'f':
+        expectWord("false");
+        break;
+      case 'n':
+        expectWord("null");
+        break;
+      default:
+        if (c != '-' && (c < '0' || c > '9')) throw syntax("Unexpected character");
+        do {
+          pos++;
+          c = peek();
+        } while (c != EOF && c != ',' && c != '}' && c != ']' && !isWhitespace(c));
+    }
+  }
+
+  /**
+   * Releases the underlying stream.
+   */
+  void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Reads a string token into the text buffer, processing escapes.
+   */
+  private void readString() throws IOException, InternalException {
+    expect('"');
+    textLength = 0;
+    while (true) {
+      if (pos == limit && !fill()) throw new InternalException("Unterminated string in JSON data");
+      char c = buffer[pos++];
+      if (c == '"') return;
+      if (c == '\\') c = readEscape();
+      if (textLength == text.length) {
+        char[] t = new char[text.length * 2];
+        System.arraycopy(text, 0, t, 0, textLength);
+        text = t;
+      }
+      text[textLength++] = c;
+    }
+  }
+
+  /**
+   * Reads the character following a backslash in a string.
+   * @return The escaped character.
+   */
+  private char readEscape() throws IOException, InternalException {
+    int c = read();
+    switch (c) {
+      case '"': case '\\': case '/': return (char)c;
+      case 'b': return '\b';
+      case 'f': return '\f';
+      case 'n': return '\n';
+      case 'r': return '\r';
+      case 't': return '\t';
+      case 'u':
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+          int d = Character.digit(read(), 16);
+          if (d < 0) throw syntax("Bad unicode escape");
+          v = (v << 4) | d;
+        }
+        return (char)v;
+      default:
+        throw syntax("Bad escape sequence");
+    }
+  }
+
+  /**
+   * Consumes a keyword.
+   * @param word The expected keyword.
+   */
+  private void expectWord(String word) throws IOException, InternalException {
+    peekToken();
+    for (int i = 0; i < word.length(); i++) {
+      if (read() != word.charAt(i)) throw syntax("Expected " + word);
+    }
+  }
+
+  /**
+   * Consumes a structural character, skipping any whitespace before it.
+   * @param c The expected character.
+   */
+  private void expect(char c) throws IOException, InternalException {
+    if (peekToken() != c) throw syntax("Expected '" + c + "'");
+    pos++;
+  }
+
+  /**
+   * Skips whitespace and returns the next character without consuming it.
+   * @return The next significant character, or EOF.
+   */
+  private int peekToken() throws IOException {
+    int c = peek();
+    while (c != EOF && isWhitespace(c)) {
+      pos++;
+      c = peek();
+    }
+    return c;
+  }
+
+  /**
+   * Returns the next character without consuming it.
+   */
+  private int peek() throws IOException {
+    if (pos == limit && !fill()) return EOF;
+    return buffer[pos];
+  }
+
+  /**
+   * Consumes the next character.
+   */
+  private int read() throws IOException {
+    if (pos == limit && !fill()) return EOF;
+    return buffer[pos++];
+  }
+
+  /**
+   * Refills the buffer from the source.
+   * @return <code>false</code> if the source is exhausted.
+   */
+  private boolean fill() throws IOException {
+    int n = in.read(buffer, 0, buffer.length);
+    if (n <= 0) return false;
+    pos = 0;
+    limit = n;
+    return true;
+  }
+
+  private static boolean isWhitespace(int c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+  }
+
+  private InternalException syntax(String msg) {
+    return new InternalException("Malformed JSON data: " + msg);
+  }
+
+}
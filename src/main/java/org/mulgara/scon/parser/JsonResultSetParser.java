@@ -0,0 +1,357 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.parser;
+
+import org.mulgara.scon.ResultSet;
+import org.mulgara.scon.ResultSetHeader;
+import org.mulgara.scon.Statement;
+import org.mulgara.scon.InternalException;
+import org.mulgara.scon.SparqlException;
+import org.mulgara.scon.impl.BindingsResultSet;
+import org.mulgara.scon.impl.ColumnarRows;
+import org.mulgara.scon.impl.BooleanResultSet;
+import org.mulgara.scon.impl.RowSource;
+import org.mulgara.scon.impl.StreamingBindingsResultSet;
+import org.mulgara.scon.impl.Term;
+import org.mulgara.scon.impl.TermDictionary;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mulgara.util.Strings.toUtf8Bytes;
+
+/**
+ * Parses a SPARQL JSON result document. No document tree is built: the JSON is read
+ * as a stream of tokens and converted directly into rows. Forward only statements
+ * receive a result set that reads each row from the stream as the cursor moves.
+ */
+public class JsonResultSetParser implements ResultParser, RowSource {
+
+  private static final String HEAD = "head";
+  private static final String VARS = "vars";
+  private static final String LINK = "link";
+  private static final String RESULTS = "results";
+  private static final String BINDINGS = "bindings";
+  private static final String BOOLEAN = "boolean";
+  private static final String TYPE = "type";
+  private static final String VALUE = "value";
+  private static final String LANG = "xml:lang";
+  private static final String DATATYPE = "datatype";
+
+  private static final String URI_TYPE = "uri";
+  private static final String BNODE_TYPE = "bnode";
+  private static final String LITERAL_TYPE = "literal";
+  private static final String TYPED_LITERAL_TYPE = "typed-literal";
+
+  /** The tokenizer for the document. */
+  private final JsonReader json;
+
+  /** The statement used to generate the results being parsed. */
+  private final Statement statement;
+
+  /** Shares identical terms between the rows of the result. */
+  private final TermDictionary terms;
+
+  /** An ordered list of variables in this result */
+  private final List<String> vars = new ArrayList<String>();
+
+  /** A list of links in the header */
+  private final List<URI> links = new ArrayList<URI>();
+
+  /** The header of the result set. Set once the head has been read. */
+  private ResultSetHeader header = null;
+
+  /** The ResultSet object built by this parser. */
+  private ResultSet resultSet = null;
+
+  /** Number of rows read so far. */
+  private int rows = 0;
+
+  /** Set once the input has been released. */
+  private boolean closed = false;
+
+  /**
+   * Create a result from a string.
+   * @param s The string containing the result set.
+   * @param statement The statement that created this data.
+   */
+  public JsonResultSetParser(String s, Statement statement) throws InternalException, IOException {
+    this(new ByteArrayInputStream(toUtf8Bytes(s)), statement);
+  }
+
+  /**
+   * Create a result set from an InputStream.
+   * @param is The input stream with the results.
+   * @param statement The statement that created this data.
+   */
+  public JsonResultSetParser(InputStream is, Statement statement) throws InternalException, IOException {
+    this.json = new JsonReader(is);
+    this.statement = statement;
+    this.terms = TermDictionary.of(statement);
+    boolean streaming = statement != null && statement.isForwardOnly();
+
+    json.beginObject();
+    List<Map<String,Term>> unordered = null;
+    while (json.hasNext()) {
+      json.nextName();
+      if (json.nameIs(HEAD)) {
+        readHead();
+      } else if (json.nameIs(BOOLEAN)) {
+        resultSet = new BooleanResultSet(getHeader(), json.nextBoolean(), statement);
+      } else if (json.nameIs(RESULTS)) {
+        json.beginObject();
+        while (json.hasNext()) {
+          json.nextName();
+          if (!json.nameIs(BINDINGS)) {
+            json.skipValue();
+          } else if (header == null) {
+            // bindings before the head, so column order is not yet known
+            unordered = readUnorderedBindings();
+          } else if (streaming) {
+            json.beginArray();
+            resultSet = new StreamingBindingsResultSet(header, this, statement);
+            return;
+          } else {
+            resultSet = new BindingsResultSet(header, readBindings(), statement);
+          }
+        }
+        json.endObject();
+      } else {
+        json.skipValue();
+      }
+    }
+    json.endObject();
+    closed = true;
+    json.close();
+
+    if (unordered != null) resultSet = new BindingsResultSet(getHeader(), orderBindings(unordered), statement);
+    if (resultSet == null) throw new InternalException("No results found in JSON document");
+  }
+
+  /**
+   * Retrieves the ResultSet that this parser built.
+   */
+  public ResultSet getResultSet() {
+    return resultSet;
+  }
+
+  /**
+   * Retrieves the variables for a result set.
+   */
+  public List<String> getVariables() {
+    return Collections.unmodifiableList(vars);
+  }
+
+  /**
+   * Return the number of rows parsed.
+   */
+  public int getProcessedRows() {
+    return rows;
+  }
+
+  /**
+   * Reads the next binding object from the stream. Only used when streaming.
+   * @return The next row, or <code>null</code> at the end of the bindings.
+   */
+  public Term[] nextRow() throws SparqlException {
+    if (closed) return null;
+    try {
+      if (!json.hasNext()) {
+        close();
+        return null;
+      }
+      return readRow();
+    } catch (IOException e) {
+      close();
+      throw new SparqlException("Error reading results", e);
+    } catch (InternalException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Releases the input stream.
+   */
+  public void close() throws SparqlException {
+    if (closed) return;
+    closed = true;
+    try {
+      json.close();
+    } catch (IOException e) {
+      throw new SparqlException("Error closing result stream", e);
+    }
+  }
+
+  /**
+   * Gets the header, creating an empty one if the document did not have a head.
+   */
+  private ResultSetHeader getHeader() {
+    if (header == null) header = new ResultSetHeader(vars, links);
+    return header;
+  }
+
+  /**
+   * Reads the head object.
+   */
+  private void readHead() throws IOException, InternalException {
+    json.beginObject();
+    while (json.hasNext()) {
+      json.nextName();
+      if (json.nameIs(VARS)) {
+        json.beginArray();
+        while (json.hasNext()) vars.add(json.nextString());
+        json.endArray();
+      } else if (json.nameIs(LINK)) {
+        json.beginArray();
+        while (json.hasNext()) {
+          String link = json.nextString();
+          try {
+            links.add(new URI(link));
+          } catch (URISyntaxException e) {
+            throw new InternalException("Bad Metadata link: " + link, e);
+          }
+        }
+        json.endArray();
+      } else {
+        json.skipValue();
+      }
+    }
+    json.endObject();
+    header = new ResultSetHeader(vars, links);
+  }
+
+  /**
+   * Reads the entire bindings array.
+   * @return All the rows in the array.
+   */
+  private List<Term[]> readBindings() throws IOException, InternalException {
+    List<Term[]> results = new ColumnarRows(vars.size());
+    json.beginArray();
+    while (json.hasNext()) results.add(readRow());
+    json.endArray();
+    return results;
+  }
+
+  /**
+   * Reads a single binding object into a row.
+   * @return The row of bindings.
+   */
+  private Term[] readRow() throws IOException, InternalException {
+    Term[] row = new Term[vars.size()];
+    json.beginObject();
+    while (json.hasNext()) {
+      json.nextName();
+      int column = columnOf();
+      if (column < 0) throw new InternalException("Binding variable not present in header: " + json.name());
+      row[column] = readNode();
+    }
+    json.endObject();
+    rows++;
+    return row;
+  }
+
+  /**
+   * Finds the column for the most recently read name, without creating a string for it.
+   * @return The column index, or -1 if the name is not a variable.
+   */
+  private int columnOf() {
+    for (int i = 0; i < vars.size(); i++) if (json.nameIs(vars.get(i))) return i;
+    return -1;
+  }
+
+  /**
+   * Reads a bindings array when the variables are not yet known.
+   * @return A list of rows, mapping variable names to values.
+   */
+  private List<Map<String,Term>> readUnorderedBindings() throws IOException, InternalException {
+    List<Map<String,Term>> results = new ArrayList<Map<String,Term>>();
+    json.beginArray();
+    while (json.hasNext()) {
+      Map<String,Term> row = new HashMap<String,Term>();
+      json.beginObject();
+      while (json.hasNext()) {
+        json.nextName();
+        String var = json.name();
+        row.put(var, readNode());
+      }
+      json.endObject();
+      results.add(row);
+      rows++;
+    }
+    json.endArray();
+    return results;
+  }
+
+  /**
+   * Converts rows of named bindings into rows ordered by the header.
+   * @param unordered The rows to convert.
+   * @return The ordered rows.
+   */
+  private List<Term[]> orderBindings(List<Map<String,Term>> unordered) throws InternalException {
+    List<Term[]> results = new ColumnarRows(vars.size());
+    for (Map<String,Term> named: unordered) {
+      Term[] row = new Term[vars.size()];
+      for (Map.Entry<String,Term> binding: named.entrySet()) {
+        if (!header.defines(binding.getKey())) throw new InternalException("Binding variable not present in header: " + binding.getKey());
+        row[header.getColumnIndex(binding.getKey())] = binding.getValue();
+      }
+      results.add(row);
+    }
+    return results;
+  }
+
+  /**
+   * Reads an RDF term object.
+   * @return The term described by the object.
+   */
+  private Term readNode() throws IOException, InternalException {
+    String type = null;
+    String value = null;
+    String lang = null;
+    String datatype = null;
+    json.beginObject();
+    while (json.hasNext()) {
+      json.nextName();
+      if (json.nameIs(TYPE)) type = json.nextString();
+      else if (json.nameIs(VALUE)) value = json.nextString();
+      else if (json.nameIs(LANG)) lang = json.nextString();
+      else if (json.nameIs(DATATYPE)) datatype = json.nextString();
+      else json.skipValue();
+    }
+    json.endObject();
+    if (type == null || value == null) throw new InternalException("RDF term missing a type or value");
+
+    if (URI_TYPE.equals(type)) {
+      return terms.uri(value);
+    } else if (BNODE_TYPE.equals(type)) {
+      return terms.bnode(value);
+    } else if (LITERAL_TYPE.equals(type) || TYPED_LITERAL_TYPE.equals(type)) {
+      return terms.literal(value, datatype, datatype == null ? lang : null);
+    }
+    throw new InternalException("Unknown RDF term type: " + type);
+  }
+
+}
@@ -18,9 +18,15 @@ package org.mulgara.scon.parser;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.util.logging.Logger;
 
 import org.mulgara.scon.Statement;
 import org.mulgara.scon.InternalException;
+import org.mulgara.jena.n3.turtle.TurtleEventHandler;
+import org.mulgara.jena.n3.turtle.parser.TurtleParser;
+import org.mulgara.mrg.GraphFactory;
+import org.mulgara.mrg.Triple;
+import org.mulgara.mrg.WritableGraph;
 import org.mulgara.mrg.parser.ParseException;
 
 /**
@@ -28,6 +34,9 @@ import org.mulgara.mrg.parser.ParseException;
  */
 public class N3GraphParser extends GraphParser {
 
+  /** Logging for this class. */
+  private static final Logger logger = Logger.getLogger(N3GraphParser.class.getName());
+
   /**
    * Create a graph from a string.
    * @param s The string containing the RDF/XML.
@@ -51,9 +60,70 @@ public class N3GraphParser extends GraphParser {
    */
   private static RdfParserFactory createFactory() {
     return new RdfParserFactory() {
-      public org.mulgara.mrg.parser.GraphParser createParser(InputStream is) throws ParseException, IOException {
-        return new org.mulgara.mrg.parser.N3GraphParser(is);
+      public org.mulgara.mrg.parser.GraphParser createParser(InputStream is, GraphFactory graphs) throws ParseException, IOException {
+        return new TurtleGraphParser(is, graphs);
       }
     };
   }
+
+  /**
+   * Parses N3 into a graph from a given factory. This does the same job as
+   * {@link org.mulgara.mrg.parser.N3GraphParser}, which always parses into a graph of its own.
+   */
+  private static class TurtleGraphParser implements org.mulgara.mrg.parser.GraphParser, TurtleEventHandler {
+
+    /** The graph being parsed into. */
+    private final WritableGraph graph;
+
+    /** The number of triples parsed. */
+    private long triples = 0;
+
+    /**
+     * Parses a graph from a stream.
+     * @param is The input stream with the graph data.
+     * @param graphs The factory for the graph to parse into.
+     * @throws ParseException If the data could not be parsed.
+     */
+    TurtleGraphParser(InputStream is, GraphFactory graphs) throws ParseException {
+      graph = (WritableGraph)graphs.createGraph();
+      try {
+        TurtleParser parser = new TurtleParser(is);
+        parser.setEventHandler(this);
+        parser.parse();
+      } catch (Exception e) {
+        throw new ParseException("Error reading N3 from stream", e);
+      }
+    }
+
+    /** @see org.mulgara.mrg.parser.GraphParser#getGraph() */
+    public WritableGraph getGraph() {
+      return graph;
+    }
+
+    /** @see org.mulgara.mrg.parser.GraphParser#getProcessedRows() */
+    public long getProcessedRows() {
+      return triples;
+    }
+
+    /** @see org.mulgara.jena.n3.turtle.TurtleEventHandler#triple(int, int, org.mulgara.mrg.Triple) */
+    public void triple(int line, int col, Triple triple) {
+      try {
+        graph.insert(triple);
+        triples++;
+      } catch (ClassCastException e) {
+        logger.warning("Bad triple at line: " + line + ", column: " + col + ": " + triple);
+      }
+    }
+
+    /** @see org.mulgara.jena.n3.turtle.TurtleEventHandler#prefix(int, int, java.lang.String, java.lang.String) */
+    public void prefix(int line, int col, String prefix, String iri) { }
+
+    /** @see org.mulgara.jena.n3.turtle.TurtleEventHandler#startFormula(int, int) */
+    public void startFormula(int line, int col) {
+      logger.warning("Unsupported formula at line: " + line + ", column: " + col);
+    }
+
+    /** @see org.mulgara.jena.n3.turtle.TurtleEventHandler#endFormula(int, int) */
+    public void endFormula(int line, int col) { }
+  }
 }
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.parser;
+
+import org.mulgara.scon.ResultSet;
+import org.mulgara.scon.ResultSetHeader;
+import org.mulgara.scon.Statement;
+import org.mulgara.scon.InternalException;
+import org.mulgara.scon.SparqlException;
+import org.mulgara.scon.impl.BindingsResultSet;
+import org.mulgara.scon.impl.ColumnarRows;
+import org.mulgara.scon.impl.BooleanResultSet;
+import org.mulgara.scon.impl.RowSource;
+import org.mulgara.scon.impl.StreamingBindingsResultSet;
+import org.mulgara.scon.impl.Term;
+import org.mulgara.scon.impl.TermDictionary;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mulgara.util.Strings.toUtf8Bytes;
+import static org.mulgara.scon.parser.XmlScanner.*;
+
+/**
+ * Parses a UTF-8 encoded SPARQL XML result document by scanning its bytes directly,
+ * rather than through a general purpose XML parser. Apart from the terms themselves,
+ * very little is allocated per row: element names are matched as bytes, binding names
+ * are compared to the variables in place, and the datatype and language of the most
+ * recent literal are reused while they keep repeating. Forward only statements receive
+ * a result set that reads each row from the stream as the cursor moves.
+ */
+public class ScanningXMLResultSetParser implements ResultParser, RowSource {
+
+  /** The tokenizer for the document. */
+  private final XmlScanner xml;
+
+  /** The statement used to generate the results being parsed. */
+  private final Statement statement;
+
+  /** Shares identical terms between the rows of the result. */
+  private final TermDictionary terms;
+
+  /** An ordered list of variables in this result */
+  private final List<String> vars = new ArrayList<String>();
+
+  /** A list of links in the header */
+  private final List<URI> links = new ArrayList<URI>();
+
+  /** The variables, in column order. */
+  private String[] columns;
+
+  /** The header of the result set. */
+  private final ResultSetHeader header;
+
+  /** The ResultSet object built by this parser. */
+  private final ResultSet resultSet;
+
+  /** The most recent literal datatype. */
+  private String lastType = null;
+
+  /** The most recent literal language. */
+  private String lastLang = null;
+
+  /** Number of rows read so far. */
+  private int rows = 0;
+
+  /** Set once the input has been released. */
+  private boolean closed = false;
+
+  /**
+   * Create a result from a string.
+   * @param s The string containing the result set.
+   * @param statement The statement that created this data.
+   */
+  public ScanningXMLResultSetParser(String s, Statement statement) throws InternalException, IOException {
+    this(new ByteArrayInputStream(toUtf8Bytes(s)), statement);
+  }
+
+  /**
+   * Create a result set from an InputStream. The stream must be encoded in UTF-8.
+   * @param is The input stream with the results.
+   * @param statement The statement that created this data.
+   */
+  public ScanningXMLResultSetParser(InputStream is, Statement statement) throws InternalException, IOException {
+    this.xml = new XmlScanner(is);
+    this.statement = statement;
+    this.terms = TermDictionary.of(statement);
+    try {
+      if (!xml.nextTag() || xml.tag() != SPARQL) throw new InternalException("Expected <sparql> but found: " + xml.tagName());
+      if (!xml.nextTag()) throw new InternalException("No results found in XML document");
+      if (xml.tag() == HEAD) {
+        readHead();
+        if (!xml.nextTag()) throw new InternalException("No results found in XML document");
+      }
+      header = new ResultSetHeader(vars, links);
+      columns = vars.toArray(new String[vars.size()]);
+
+      if (xml.tag() == BOOLEAN) {
+        resultSet = new BooleanResultSet(header, Boolean.valueOf(xml.text().trim()), statement);
+        finish();
+      } else if (xml.tag() == RESULTS) {
+        if (statement != null && statement.isForwardOnly()) {
+          resultSet = new StreamingBindingsResultSet(header, this, statement);
+        } else {
+          ColumnarRows results = new ColumnarRows(columns.length);
+          Term[] row;
+          while ((row = readRow()) != null) results.add(row);
+          resultSet = new BindingsResultSet(header, results, statement);
+          finish();
+        }
+      } else {
+        throw new InternalException("Expected results or boolean after the header, found: " + xml.tagName());
+      }
+    } catch (InternalException e) {
+      closeQuietly();
+      throw e;
+    } catch (IOException e) {
+      closeQuietly();
+      throw e;
+    }
+  }
+
+  /**
+   * Retrieves the ResultSet that this parser built.
+   */
+  public ResultSet getResultSet() {
+    return resultSet;
+  }
+
+  /**
+   * Retrieves the variables for a result set.
+   */
+  public List<String> getVariables() {
+    return Collections.unmodifiableList(vars);
+  }
+
+  /**
+   * Return the number of rows parsed so far.
+   */
+  public int getProcessedRows() {
+    return rows;
+  }
+
+  /**
+   * Reads the next result element from the stream. Only used when streaming.
+   * @return The next row, or <code>null</code> at the end of the results.
+   */
+  public Term[] nextRow() throws SparqlException {
+    if (closed) return null;
+    try {
+      Term[] row = readRow();
+      if (row == null) close();
+      return row;
+    } catch (IOException e) {
+      closeQuietly();
+      throw new SparqlException("Error reading results", e);
+    } catch (InternalException e) {
+      closeQuietly();
+      throw e;
+    }
+  }
+
+  /**
+   * Releases the input stream. This is called automatically when the end of the results is reached.
+   */
+  public void close() throws SparqlException {
+    if (closed) return;
+    closed = true;
+    try {
+      xml.close();
+    } catch (IOException e) {
+      throw new SparqlException("Error closing result stream", e);
+    }
+  }
+
+  /**
+   * Releases the input stream once the whole document has been read.
+   */
+  private void finish() throws IOException {
+    closed = true;
+    xml.close();
+  }
+
+  /**
+   * Releases the input stream after an error, when a further error would hide the first.
+   */
+  private void closeQuietly() {
+    try {
+      close();
+    } catch (SparqlException e) {
+      // already reporting a problem with the stream
+    }
+  }
+
+  /**
+   * Reads the variables and links from the header, up to the end of the header.
+   */
+  private void readHead() throws IOException, InternalException {
+    while (xml.nextTag()) {
+      if (xml.tag() == VARIABLE) {
+        if (!links.isEmpty()) throw new InternalException("Metadata links must appear after all variable definitions");
+        vars.add(xml.attribute(NAME));
+      } else if (xml.tag() == LINK) {
+        String href = xml.attribute(HREF);
+        if (href == null) throw new InternalException("Metadata link without an href");
+        try {
+          links.add(new URI(href));
+        } catch (URISyntaxException ue) {
+          throw new InternalException("Bad Metadata link", ue);
+        }
+      } else {
+        throw new InternalException("Unexpected element in the document header: " + xml.tagName());
+      }
+      if (xml.nextTag()) throw new InternalException("Unexpected element in <" + xml.tagName() + ">");
+    }
+  }
+
+  /**
+   * Reads a single result element into a row.
+   * @return The row of bindings, or <code>null</code> at the end of the results.
+   */
+  private Term[] readRow() throws IOException, InternalException {
+    if (!xml.nextTag()) return null;
+    if (xml.tag() != RESULT) throw new InternalException("Expected <result> but found: " + xml.tagName());
+    Term[] row = new Term[columns.length];
+    while (xml.nextTag()) {
+      if (xml.tag() != BINDING) throw new InternalException("Expected <binding> but found: " + xml.tagName());
+      int column = columnOf();
+      if (column < 0) throw new InternalException("Binding variable not present in header: " + xml.attribute(NAME));
+      if (!xml.nextTag()) throw new InternalException("No value for binding of '" + columns[column] + "'");
+      row[column] = readValue(column);
+      if (xml.nextTag()) throw new InternalException("Multiple values for binding of '" + columns[column] + "'");
+    }
+    rows++;
+    return row;
+  }
+
+  /**
+   * Finds the column for the current binding, without creating a string for its name.
+   * @return The column index, or -1 if the name is not a variable.
+   */
+  private int columnOf() {
+    for (int i = 0; i < columns.length; i++) if (xml.attributeIs(NAME, columns[i])) return i;
+    return -1;
+  }
+
+  /**
+   * Reads the value of a binding, up to the end of the value.
+   * @param column The column being bound, for error reporting.
+   */
+  private Term readValue(int column) throws IOException, InternalException {
+    switch (xml.tag()) {
+      case URI:
+        return terms.uri(xml.text().trim());
+      case BNODE:
+        return terms.bnode(xml.text().trim());
+      case LITERAL:
+        String type = datatype();
+        String lang = language();
+        return terms.literal(xml.text(), type, type == null ? lang : null);
+      default:
+        throw new InternalException("Encountered unknown element in binding for '" + columns[column] + "': " + xml.tagName());
+    }
+  }
+
+  /**
+   * Gets the datatype of the current literal, reusing the previous datatype if it is the same.
+   * @return The datatype, or <code>null</code> if the literal is untyped.
+   */
+  private String datatype() {
+    if (lastType != null && xml.attributeIs(DATATYPE, lastType)) return lastType;
+    String type = xml.attribute(DATATYPE);
+    if (type != null) lastType = type;
+    return type;
+  }
+
+  /**
+   * Gets the language of the current literal, reusing the previous language if it is the same.
+   * @return The language code, or <code>null</code> if the literal has no language.
+   */
+  private String language() {
+    if (lastLang != null && xml.attributeIs(LANG, lastLang)) return lastLang;
+    String lang = xml.attribute(LANG);
+    if (lang != null) lastLang = lang;
+    return lang;
+  }
+
+}
@@ -17,7 +17,9 @@
 package org.mulgara.scon.parser;
 
 import java.io.InputStream;
+import java.io.IOException;
 import org.mulgara.scon.Statement;
+import org.mulgara.scon.InternalException;
 
 /**
  * A factory for creating a result set parser.
@@ -30,8 +32,8 @@ public class SparqlJsonFactory implements ParserFactory {
    * @param stmt The statement used to generate the results.
    * @return a specific parser type for handling the data.
    */
-  public ResultParser createParser(InputStream input, Statement stmt) {
-    throw new UnsupportedOperationException("JSON result parsing not yet implemented");
+  public ResultParser createParser(InputStream input, Statement stmt) throws IOException, InternalException {
+    return new JsonResultSetParser(input, stmt);
   }
 
 }
@@ -16,6 +16,7 @@
 
 package org.mulgara.scon.parser;
 
+import java.io.BufferedInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 
@@ -28,13 +29,19 @@ import org.mulgara.scon.InternalException;
 public class SparqlXmlFactory implements ParserFactory {
 
   /**
-   * Creates a parser.
+   * Creates a parser. UTF-8 documents, which is almost all of them, are read by a scanner
+   * dedicated to the result format. Documents in any other encoding are handed to a general
+   * XML parser. Forward-only statements get a parser that streams rows on demand, while all
+   * others have the entire result read up front.
    * @param input The data to parse the results from.
    * @param stmt The statement used to generate the results.
    * @return a specific parser type for handling the data.
    */
   public ResultParser createParser(InputStream input, Statement stmt) throws IOException, InternalException{
-    return new XMLResultSetParser(input, stmt);
+    BufferedInputStream in = new BufferedInputStream(input);
+    if (XmlScanner.isUtf8(in)) return new ScanningXMLResultSetParser(in, stmt);
+    if (stmt != null && stmt.isForwardOnly()) return new StreamingXMLResultSetParser(in, stmt);
+    return new XMLResultSetParser(in, stmt);
   }
 
 }
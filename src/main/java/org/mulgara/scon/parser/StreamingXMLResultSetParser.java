@@ -0,0 +1,255 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.parser;
+
+import org.mulgara.scon.ResultSet;
+import org.mulgara.scon.ResultSetHeader;
+import org.mulgara.scon.Statement;
+import org.mulgara.scon.InternalException;
+import org.mulgara.scon.SparqlException;
+import org.mulgara.scon.impl.BooleanResultSet;
+import org.mulgara.scon.impl.RowSource;
+import org.mulgara.scon.impl.StreamingBindingsResultSet;
+import org.mulgara.scon.impl.Term;
+import org.mulgara.scon.impl.TermDictionary;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static org.mulgara.util.Strings.toUtf8Bytes;
+
+/**
+ * Parses a SPARQL XML result document with a pull parser. The header is read when
+ * the parser is created, while the rows of a bindings result are only read as the
+ * cursor of the result set is moved onto them.
+ */
+public class StreamingXMLResultSetParser implements ResultParser, RowSource {
+
+  private static final String SPARQL_TAG = "sparql";
+  private static final String HEAD_TAG = "head";
+  private static final String VARIABLE_TAG = "variable";
+  private static final String LINK_TAG = "link";
+  private static final String RESULTS_TAG = "results";
+  private static final String RESULT_TAG = "result";
+  private static final String BINDING_TAG = "binding";
+  private static final String URI_TAG = "uri";
+  private static final String LITERAL_TAG = "literal";
+  private static final String BNODE_TAG = "bnode";
+  private static final String BOOLEAN_TAG = "boolean";
+
+  private static final String VAR_NAME = "name";
+  private static final String HREF = "href";
+  private static final String LANG = "lang";
+  private static final String DATATYPE = "datatype";
+
+  /** Creates the pull parsers. Thread safe once configured. */
+  private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+  /** The stream the document is read from. */
+  private final InputStream input;
+
+  /** Shares identical terms between the rows of the result. */
+  private final TermDictionary terms;
+
+  /** The pull parser reading the document. */
+  private final XMLStreamReader reader;
+
+  /** The header of the result set. */
+  private final ResultSetHeader header;
+
+  /** The ResultSet object built by this parser. */
+  private final ResultSet resultSet;
+
+  /** The number of variables defined in this result. */
+  private final int width;
+
+  /** Number of rows read so far. */
+  private int rows = 0;
+
+  /** Set once the input has been released. */
+  private boolean closed = false;
+
+  /**
+   * Create a result from a string.
+   * @param s The string containing the result set.
+   * @param statement The statement that created this data.
+   */
+  public StreamingXMLResultSetParser(String s, Statement statement) throws InternalException, IOException {
+    this(new ByteArrayInputStream(toUtf8Bytes(s)), statement);
+  }
+
+  /**
+   * Create a result set from an InputStream. Only the header is read at this point.
+   * @param is The input stream with the results.
+   * @param statement The statement that created this data.
+   */
+  public StreamingXMLResultSetParser(InputStream is, Statement statement) throws InternalException, IOException {
+    this.input = is;
+    this.terms = TermDictionary.of(statement);
+    try {
+      reader = inputFactory.createXMLStreamReader(is);
+      reader.nextTag();
+      expectStart(SPARQL_TAG);
+
+      List<String> vars = new ArrayList<String>();
+      List<URI> links = new ArrayList<URI>();
+      reader.nextTag();
+      if (HEAD_TAG.equals(reader.getLocalName())) {
+        readHead(vars, links);
+        reader.nextTag();
+      }
+      header = new ResultSetHeader(vars, links);
+      width = vars.size();
+
+      String section = reader.getLocalName();
+      if (reader.isStartElement() && BOOLEAN_TAG.equals(section)) {
+        resultSet = new BooleanResultSet(header, Boolean.valueOf(reader.getElementText().trim()), statement);
+        closed = true;
+        reader.close();
+        is.close();
+      } else if (reader.isStartElement() && RESULTS_TAG.equals(section)) {
+        resultSet = new StreamingBindingsResultSet(header, this, statement);
+      } else {
+        throw new InternalException("Expected results or boolean after the header, found: " + section);
+      }
+    } catch (XMLStreamException e) {
+      throw new InternalException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Retrieves the ResultSet that this parser built.
+   */
+  public ResultSet getResultSet() {
+    return resultSet;
+  }
+
+  /**
+   * Return the number of rows parsed so far.
+   */
+  public int getProcessedRows() {
+    return rows;
+  }
+
+  /**
+   * Reads the next result element from the document.
+   * @return The bindings of the next result, or <code>null</code> at the end of the results.
+   */
+  public Term[] nextRow() throws SparqlException {
+    if (closed) return null;
+    try {
+      reader.nextTag();
+      if (reader.isEndElement()) {
+        close();
+        return null;
+      }
+      expectStart(RESULT_TAG);
+      rows++;
+      Term[] bindings = new Term[width];
+      while (reader.nextTag() != END_ELEMENT) {
+        expectStart(BINDING_TAG);
+        String var = reader.getAttributeValue(null, VAR_NAME);
+        if (!header.defines(var)) throw new InternalException("Binding variable not present in header: " + var);
+        reader.nextTag();
+        bindings[header.getColumnIndex(var)] = readValue(var);
+        reader.nextTag();
+      }
+      return bindings;
+    } catch (XMLStreamException e) {
+      close();
+      throw new InternalException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Releases the input stream. This is called automatically when the end of the results is reached.
+   */
+  public void close() throws SparqlException {
+    if (closed) return;
+    closed = true;
+    try {
+      reader.close();
+      input.close();
+    } catch (XMLStreamException e) {
+      throw new InternalException("Error closing result stream", e);
+    } catch (IOException e) {
+      throw new SparqlException("Error closing result stream", e);
+    }
+  }
+
+  /**
+   * Reads the variables and links from the header. The reader is left on the end of the header.
+   */
+  private void readHead(List<String> vars, List<URI> links) throws XMLStreamException, InternalException {
+    while (reader.nextTag() != END_ELEMENT) {
+      String name = reader.getLocalName();
+      if (VARIABLE_TAG.equals(name)) {
+        if (!links.isEmpty()) throw new InternalException("Metadata links must appear after all variable definitions");
+        vars.add(reader.getAttributeValue(null, VAR_NAME));
+      } else if (LINK_TAG.equals(name)) {
+        try {
+          links.add(new URI(reader.getAttributeValue(null, HREF)));
+        } catch (URISyntaxException ue) {
+          throw new InternalException("Bad Metadata link", ue);
+        }
+      } else {
+        throw new InternalException("Unexpected element in the document header: " + name);
+      }
+      reader.nextTag();
+    }
+  }
+
+  /**
+   * Reads the value of a binding. The reader is left on the end of the value.
+   * @param var The variable being bound, for error reporting.
+   */
+  private Term readValue(String var) throws XMLStreamException, InternalException {
+    String name = reader.getLocalName();
+    if (URI_TAG.equals(name)) {
+      return terms.uri(reader.getElementText().trim());
+    } else if (BNODE_TAG.equals(name)) {
+      return terms.bnode(reader.getElementText().trim());
+    } else if (LITERAL_TAG.equals(name)) {
+      String lang = reader.getAttributeValue(XMLConstants.XML_NS_URI, LANG);
+      String typeStr = reader.getAttributeValue(null, DATATYPE);
+      return terms.literal(reader.getElementText(), typeStr, typeStr == null ? lang : null);
+    }
+    throw new InternalException("Encountered unknown element in binding for '" + var + "': " + name);
+  }
+
+  /**
+   * Checks that the reader is at the start of an expected element.
+   * @param name The local name of the expected element.
+   */
+  private void expectStart(String name) throws InternalException {
+    if (!reader.isStartElement() || !name.equals(reader.getLocalName())) {
+      throw new InternalException("Expected <" + name + "> but found: " + reader.getLocalName());
+    }
+  }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.parser;
+
+import org.mulgara.scon.Statement;
+import org.mulgara.scon.InternalException;
+import org.mulgara.scon.impl.Term;
+import org.mulgara.mrg.vocab.uri.XSD;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import static org.mulgara.util.Strings.toUtf8Bytes;
+
+/**
+ * Parses SPARQL results in tab separated values format. Each field holds a term
+ * written in the Turtle syntax, so datatypes and language tags are preserved.
+ */
+public class TsvResultSetParser extends DelimitedResultSetParser {
+
+  private static final String BOOLEAN = XSD.BOOLEAN.toString();
+  private static final String INTEGER = XSD.INTEGER.toString();
+  private static final String DECIMAL = XSD.DECIMAL.toString();
+  private static final String DOUBLE = XSD.DOUBLE.toString();
+
+  /**
+   * Create a result from a string.
+   * @param s The string containing the result set.
+   * @param statement The statement that created this data.
+   */
+  public TsvResultSetParser(String s, Statement statement) throws InternalException, IOException {
+    this(new ByteArrayInputStream(toUtf8Bytes(s)), statement);
+  }
+
+  /**
+   * Create a result set from an InputStream.
+   * @param is The input stream with the results.
+   * @param statement The statement that created this data.
+   */
+  public TsvResultSetParser(InputStream is, Statement statement) throws InternalException, IOException {
+    super(is, statement, (byte)'\t', false);
+  }
+
+  /**
+   * Decodes a variable name, removing the leading ? or $.
+   */
+  protected String decodeVariable(byte[] data, int start, int end) throws InternalException {
+    if (start < end && (data[start] == '?' || data[start] == '$')) start++;
+    if (start == end) throw new InternalException("Empty variable name in result header");
+    return utf8(data, start, end);
+  }
+
+  /**
+   * Decodes a term written as an IRI, blank node, quoted literal, or abbreviated number or boolean.
+   */
+  protected Term decodeTerm(byte[] data, int start, int end) throws InternalException {
+    if (start == end) return null;
+    switch (data[start]) {
+      case '<':
+        if (data[end - 1] != '>') throw new InternalException("Unterminated IRI in results: " + utf8(data, start, end));
+        return terms.uri(utf8(data, start + 1, end - 1));
+      case '_':
+        if (end - start < 3 || data[start + 1] != ':') throw new InternalException("Bad blank node in results: " + utf8(data, start, end));
+        return terms.bnode(utf8(data, start + 2, end));
+      case '"':
+        return decodeLiteral(data, start, end);
+      default:
+        return decodeAbbreviated(data, start, end);
+    }
+  }
+
+  /**
+   * Decodes a quoted literal, with an optional language tag or datatype.
+   */
+  private Term decodeLiteral(byte[] data, int start, int end) throws InternalException {
+    int close = start + 1;
+    boolean escaped = false;
+    while (close < end && data[close] != '"') {
+      if (data[close] == '\\') {
+        escaped = true;
+        close++;
+      }
+      close++;
+    }
+    if (close >= end) throw new InternalException("Unterminated literal in results: " + utf8(data, start, end));
+    String lexical = utf8(data, start + 1, close);
+    if (escaped) lexical = unescape(lexical);
+
+    int suffix = close + 1;
+    if (suffix == end) return terms.literal(lexical, null, null);
+    if (data[suffix] == '@') return terms.literal(lexical, null, utf8(data, suffix + 1, end));
+    if (end - suffix > 4 && data[suffix] == '^' && data[suffix + 1] == '^' && data[suffix + 2] == '<' && data[end - 1] == '>') {
+      return terms.literal(lexical, utf8(data, suffix + 3, end - 1), null);
+    }
+    throw new InternalException("Bad literal in results: " + utf8(data, start, end));
+  }
+
+  /**
+   * Decodes a number or boolean written without quotes, determining the datatype from its form.
+   */
+  private Term decodeAbbreviated(byte[] data, int start, int end) throws InternalException {
+    String lexical = utf8(data, start, end);
+    if ("true".equals(lexical) || "false".equals(lexical)) return terms.literal(lexical, BOOLEAN, null);
+    String type = INTEGER;
+    for (int i = start; i < end; i++) {
+      byte b = data[i];
+      if (b == 'e' || b == 'E') {
+        type = DOUBLE;
+      } else if (b == '.') {
+        if (type == INTEGER) type = DECIMAL;
+      } else if ((b < '0' || b > '9') && b != '+' && b != '-') {
+        throw new InternalException("Unrecognized term in results: " + lexical);
+      }
+    }
+    return terms.literal(lexical, type, null);
+  }
+
+  /**
+   * Replaces the escape sequences in a string.
+   * @param s The string with escapes.
+   * @return The string with the escapes replaced by the characters they represent.
+   */
+  private static String unescape(String s) throws InternalException {
+    StringBuilder sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c != '\\' || ++i == s.length()) {
+        sb.append(c);
+        continue;
+      }
+      c = s.charAt(i);
+      switch (c) {
+        case 't': sb.append('\t'); break;
+        case 'b': sb.append('\b'); break;
+        case 'n': sb.append('\n'); break;
+        case 'r': sb.append('\r'); break;
+        case 'f': sb.append('\f'); break;
+        case 'u':
+        case 'U':
+          int digits = c == 'u' ? 4 : 8;
+          if (i + digits >= s.length()) throw new InternalException("Bad unicode escape in literal: " + s);
+          try {
+            sb.appendCodePoint(Integer.parseInt(s.substring(i + 1, i + 1 + digits), 16));
+          } catch (NumberFormatException e) {
+            throw new InternalException("Bad unicode escape in literal: " + s);
+          }
+          i += digits;
+          break;
+        default: sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+}
@@ -18,9 +18,28 @@ package org.mulgara.scon.parser;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.logging.Logger;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXParseException;
 
 import org.mulgara.scon.Statement;
 import org.mulgara.scon.InternalException;
+import org.mulgara.jena.rdf.arp.ALiteral;
+import org.mulgara.jena.rdf.arp.ARP;
+import org.mulgara.jena.rdf.arp.AResource;
+import org.mulgara.jena.rdf.arp.StatementHandler;
+import org.mulgara.mrg.Bnode;
+import org.mulgara.mrg.GraphFactory;
+import org.mulgara.mrg.Literal;
+import org.mulgara.mrg.Node;
+import org.mulgara.mrg.ObjectNode;
+import org.mulgara.mrg.PredicateNode;
+import org.mulgara.mrg.SubjectNode;
+import org.mulgara.mrg.Uri;
+import org.mulgara.mrg.WritableGraph;
 import org.mulgara.mrg.parser.ParseException;
 
 /**
@@ -28,6 +47,9 @@ import org.mulgara.mrg.parser.ParseException;
  */
 public class XMLGraphParser extends GraphParser {
 
+  /** Logging for this class. */
+  private static final Logger logger = Logger.getLogger(XMLGraphParser.class.getName());
+
   /**
    * Create a graph from a string.
    * @param s The string containing the RDF/XML.
@@ -51,9 +73,130 @@ public class XMLGraphParser extends GraphParser {
    */
   private static RdfParserFactory createFactory() {
     return new RdfParserFactory() {
-      public org.mulgara.mrg.parser.GraphParser createParser(InputStream is) throws ParseException, IOException {
-        return new org.mulgara.mrg.parser.XMLGraphParser(is);
+      public org.mulgara.mrg.parser.GraphParser createParser(InputStream is, GraphFactory graphs) throws ParseException, IOException {
+        return new RdfXmlGraphParser(is, graphs);
       }
     };
   }
+
+  /**
+   * Parses RDF/XML into a graph from a given factory. This does the same job as
+   * {@link org.mulgara.mrg.parser.XMLGraphParser}, which always parses into a graph of its own.
+   */
+  private static class RdfXmlGraphParser implements org.mulgara.mrg.parser.GraphParser, StatementHandler, ErrorHandler {
+
+    /** The graph being parsed into. */
+    private final WritableGraph graph;
+
+    /** The number of triples parsed. */
+    private long triples = 0;
+
+    /**
+     * Parses a graph from a stream.
+     * @param is The input stream with the graph data.
+     * @param graphs The factory for the graph to parse into.
+     * @throws ParseException If the data could not be parsed.
+     * @throws IOException If the data could not be read.
+     */
+    RdfXmlGraphParser(InputStream is, GraphFactory graphs) throws ParseException, IOException {
+      graph = (WritableGraph)graphs.createGraph();
+      ARP arp = new ARP();
+      arp.getOptions().setEmbedding(true);
+      arp.getOptions().setLaxErrorMode();
+      arp.getHandlers().setErrorHandler(this);
+      arp.getHandlers().setStatementHandler(this);
+      try {
+        arp.load(is);
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new ParseException(e);
+      }
+    }
+
+    /** @see org.mulgara.mrg.parser.GraphParser#getGraph() */
+    public WritableGraph getGraph() {
+      return graph;
+    }
+
+    /** @see org.mulgara.mrg.parser.GraphParser#getProcessedRows() */
+    public long getProcessedRows() {
+      return triples;
+    }
+
+    /** @see org.mulgara.jena.rdf.arp.StatementHandler#statement(AResource, AResource, ALiteral) */
+    public void statement(AResource s, AResource p, ALiteral o) {
+      insert(toNode(s), toNode(p), toNode(o));
+    }
+
+    /** @see org.mulgara.jena.rdf.arp.StatementHandler#statement(AResource, AResource, AResource) */
+    public void statement(AResource s, AResource p, AResource o) {
+      insert(toNode(s), toNode(p), toNode(o));
+    }
+
+    /** @see org.xml.sax.ErrorHandler#error(org.xml.sax.SAXParseException) */
+    public void error(SAXParseException e) {
+      logger.warning(describe("Graph parse error", e));
+    }
+
+    /** @see org.xml.sax.ErrorHandler#fatalError(org.xml.sax.SAXParseException) */
+    public void fatalError(SAXParseException e) throws SAXParseException {
+      logger.warning(describe("Graph parse error", e));
+      throw e;
+    }
+
+    /** @see org.xml.sax.ErrorHandler#warning(org.xml.sax.SAXParseException) */
+    public void warning(SAXParseException e) {
+      logger.warning(describe("Graph parse warning", e));
+    }
+
+    /**
+     * Adds a parsed triple to the graph.
+     */
+    private void insert(Node s, Node p, Node o) {
+      graph.insert((SubjectNode)s, (PredicateNode)p, (ObjectNode)o);
+      triples++;
+    }
+
+    /**
+     * Converts a parsed literal to a node. A datatype that is not a valid URI is ignored.
+     * @param lit The parsed literal.
+     * @return The literal node.
+     */
+    private static Node toNode(ALiteral lit) {
+      String lex = lit.toString();
+      URI datatype = null;
+      try {
+        if (lit.getDatatypeURI() != null) datatype = new URI(lit.getDatatypeURI());
+      } catch (URISyntaxException e) {
+        // treat the literal as untyped
+      }
+      if (datatype != null) return new Literal(lex, datatype);
+      String lang = lit.getLang();
+      return lang == null || lang.equals("") ? new Literal(lex) : new Literal(lex, lang);
+    }
+
+    /**
+     * Converts a parsed resource to a node.
+     * @param r The parsed resource.
+     * @return A blank node or a URI.
+     */
+    private static Node toNode(AResource r) {
+      try {
+        return r.isAnonymous() ? new Bnode(r.getAnonymousID()) : new Uri(r.getURI());
+      } catch (URISyntaxException e) {
+        throw new InternalError("Parsed URI could not be constructed");
+      }
+    }
+
+    /**
+     * Describes a problem found by the XML parser.
+     * @param kind The kind of problem.
+     * @param e The problem.
+     * @return A message with the location of the problem.
+     */
+    private static String describe(String kind, SAXParseException e) {
+      return kind + ": line " + e.getLineNumber() + ", column " + e.getColumnNumber() + ": " + e.getMessage();
+    }
+  }
 }
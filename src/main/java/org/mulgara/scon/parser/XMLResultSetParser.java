@@ -22,10 +22,9 @@ import org.mulgara.scon.Statement;
 import org.mulgara.scon.InternalException;
 import org.mulgara.scon.impl.BooleanResultSet;
 import org.mulgara.scon.impl.BindingsResultSet;
-import org.mulgara.mrg.Bnode;
-import org.mulgara.mrg.Node;
-import org.mulgara.mrg.Literal;
-import org.mulgara.mrg.Uri;
+import org.mulgara.scon.impl.ColumnarRows;
+import org.mulgara.scon.impl.Term;
+import org.mulgara.scon.impl.TermDictionary;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
@@ -34,7 +33,9 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -63,6 +64,26 @@ public class XMLResultSetParser extends DefaultHandler implements ResultParser {
   private static final String LANG = "xml:lang";
   private static final String DATATYPE = "datatype";
 
+  /** The elements, indexed by their names in the document. */
+  private static final Map<String,Element> ELEMENTS = new HashMap<String,Element>();
+  static {
+    for (Element e: Element.values()) ELEMENTS.put(e.name().toLowerCase(), e);
+  }
+
+  /** Creates parsers, which are reused by each thread since they are not thread safe. */
+  private static final ThreadLocal<SAXParser> parsers = new ThreadLocal<SAXParser>() {
+    private final SAXParserFactory factory = SAXParserFactory.newInstance();
+    protected synchronized SAXParser initialValue() {
+      try {
+        return factory.newSAXParser();
+      } catch (ParserConfigurationException e) {
+        throw new InternalError("Internal configuration of XML Parser failed: " + e.getMessage());
+      } catch (SAXException e) {
+        throw new InternalError("Internal configuration of XML Parser failed: " + e.getMessage());
+      }
+    }
+  };
+
   /** The state of the parser */
   private ParseState state = STOPPED;
 
@@ -75,8 +96,8 @@ public class XMLResultSetParser extends DefaultHandler implements ResultParser {
   /** The header of the result set. Initialized at the end of the "header" section. */
   private ResultSetHeader header = null;
 
-  /** The list of all the bindings for this result set. */
-  private List<Node[]> results = new ArrayList<Node[]>();
+  /** All the bindings for this result set. Initialized at the end of the "head" section. */
+  private ColumnarRows results = null;
 
   /** The ResultSet object being built by this parser. */
   private ResultSet resultSet = null;
@@ -91,10 +112,13 @@ public class XMLResultSetParser extends DefaultHandler implements ResultParser {
   private String literalLang = null;
 
   /** The datatype of the literal being scanned. Only valid during a "literal" section. */
-  private URI literalType = null;
+  private String literalType = null;
+
+  /** Accumulates the text of the current element, which may be delivered in several pieces. */
+  private final StringBuilder text = new StringBuilder();
 
   /** The current set of bindings being scanned. Only valid during a "result" section. */
-  private Node[] currentBindings = null;
+  private Term[] currentBindings = null;
 
   /** The number of variables defined in this result. Initialized when the header is finalized. */
   private int width = 0;
@@ -102,6 +126,9 @@ public class XMLResultSetParser extends DefaultHandler implements ResultParser {
   /** The statement used to generate the results being parsed. */
   private final Statement statement;
 
+  /** Shares identical terms between the rows of the result. */
+  private final TermDictionary terms;
+
   /**
    * Create a result from a string.
    * @param s The string containing the result set.
@@ -118,13 +145,14 @@ public class XMLResultSetParser extends DefaultHandler implements ResultParser {
    */
   public XMLResultSetParser(InputStream is, Statement statement) throws InternalException, IOException {
     this.statement = statement;
+    this.terms = TermDictionary.of(statement);
+    SAXParser parser = parsers.get();
     try {
-      SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
       parser.parse(is, this);
     } catch (SAXException e) {
       throw new InternalException(e.getMessage(), e);
-    } catch (ParserConfigurationException e) {
-      throw new InternalError("Internal configuration of XML Parser failed: " + e.getMessage());
+    } finally {
+      parser.reset();
     }
   }
 
@@ -158,7 +186,9 @@ public class XMLResultSetParser extends DefaultHandler implements ResultParser {
    * @param attr The attributes of the element.
    */
   public void startElement(String uri, String localName, String qName, Attributes attr) throws SAXException {
-    Element e = Enum.valueOf(Element.class, qName.toUpperCase());
+    Element e = ELEMENTS.get(qName);
+    if (e == null) throw new SAXException("Encountered unknown element: " + qName);
+    text.setLength(0);
     switch (e) {
       case SPARQL:
         if (state != STOPPED) throw new SAXException("SPARQL document embedded in another document.");
@@ -192,7 +222,7 @@ public class XMLResultSetParser extends DefaultHandler implements ResultParser {
       case RESULT:
         if (state != RESULTS_SECT) throw new SAXException("Result outside of a results section.");
         rows++;
-        currentBindings = new Node[width];
+        currentBindings = new Term[width];
         state = RESULT_SECT;
         break;
       case BINDING:
@@ -212,12 +242,7 @@ public class XMLResultSetParser extends DefaultHandler implements ResultParser {
       case LITERAL:
         if (state != RESULT_BINDING) throw new SAXException("Literal declared outside of a result binding.");
         literalLang = attr.getValue(LANG);
-        String typeStr = attr.getValue(DATATYPE);
-        try {
-          if (typeStr != null) literalType = new URI(typeStr);
-        } catch (URISyntaxException ue) {
-          throw new SAXException("Bad datatype for literal in '" + bindingVar + "': " + typeStr);
-        }
+        literalType = attr.getValue(DATATYPE);
         state = LITERAL_BINDING;
         break;
       default:
@@ -232,7 +257,8 @@ public class XMLResultSetParser extends DefaultHandler implements ResultParser {
    * @param qName The qName of the element. This is usually where the information is found.
    */
   public void endElement(String uri, String localName, String qName) throws SAXException {
-    Element e = Enum.valueOf(Element.class, qName.toUpperCase());
+    Element e = ELEMENTS.get(qName);
+    if (e == null) throw new SAXException("Closing unknown element: " + qName);
     switch (e) {
       case SPARQL:
         if (state != STARTED) throw new SAXException("SPARQL document ended without starting.");
@@ -242,11 +268,12 @@ public class XMLResultSetParser extends DefaultHandler implements ResultParser {
         if (state != HEAD_SECT) throw new SAXException("Ended a HEAD section without starting.");
         header = new ResultSetHeader(vars, links);
         width = vars.size();
+        results = new ColumnarRows(width);
         state = AFTER_HEAD;
         break;
       case BOOLEAN:
         if (state != READING_BOOLEAN) throw new SAXException("Ended a boolean result without starting.");
-        assert resultSet != null;
+        resultSet = new BooleanResultSet(header, Boolean.valueOf(text.toString().trim()), statement);
         state = STARTED;
         break;
       case RESULTS:
@@ -267,14 +294,20 @@ public class XMLResultSetParser extends DefaultHandler implements ResultParser {
         break;
       case URI:
         if (state != URI_BINDING) throw new SAXException("Ended a URI without defining it.");
+        currentBindings[header.getColumnIndex(bindingVar)] = terms.uri(text.toString().trim());
         state = RESULT_BINDING;
         break;
       case BNODE:
         if (state != BNODE_BINDING) throw new SAXException("Ended a Blank Node without defining it.");
+        currentBindings[header.getColumnIndex(bindingVar)] = terms.bnode(text.toString().trim());
         state = RESULT_BINDING;
         break;
       case LITERAL:
         if (state != LITERAL_BINDING) throw new SAXException("Ended a Literal without defining it.");
+        assert literalType == null || literalLang == null : "Literals cannot have a language code and datatype";
+        currentBindings[header.getColumnIndex(bindingVar)] = terms.literal(text.toString(), literalType, literalLang);
+        literalType = null;
+        literalLang = null;
         state = RESULT_BINDING;
         break;
       case LINK:
@@ -289,40 +322,19 @@ public class XMLResultSetParser extends DefaultHandler implements ResultParser {
   }
 
   /**
-   * This reads the text between element tags.
+   * This collects the text between element tags. SAX may split the text of a single
+   * element across several calls, so it is only processed when the element ends.
    * @param ch A character array containing the text.
    * @param start The beginning of the characters containing the text.
    * @param length The size of the characters containing the text.
    */
   public void characters(char[] ch, int start, int length) throws SAXException {
-    String data = new String(ch, start, length).trim();
     switch (state) {
       case READING_BOOLEAN:
-        resultSet = new BooleanResultSet(header, Boolean.valueOf(data), statement);
-        break;
       case URI_BINDING:
-        try {
-          currentBindings[header.getColumnIndex(bindingVar)] = new Uri(new URI(data));
-        } catch (URISyntaxException e) {
-          throw new SAXException("Invalid URI found in result: <" + data + ">");
-        }
-        break;
       case BNODE_BINDING:
-        currentBindings[header.getColumnIndex(bindingVar)] = new Bnode(data);
-        break;
       case LITERAL_BINDING:
-        assert literalType == null || literalLang == null : "Literals cannot have a language code and datatype";
-        Literal literal = null;
-        if (literalType != null) {
-          literal = new Literal(data, literalType);
-        } else if (literalLang != null) {
-          literal = new Literal(data, literalLang);
-        } else {
-          literal = new Literal(data);
-        }
-        currentBindings[header.getColumnIndex(bindingVar)] = literal;
-        literalType = null;
-        literalLang = null;
+        text.append(ch, start, length);
         break;
       default:
         // ignore whitespace
@@ -0,0 +1,618 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mulgara.scon.parser;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.mulgara.scon.InternalException;
+
+/**
+ * A pull tokenizer for SPARQL XML result documents that works directly on UTF-8 bytes.
+ * Element names are matched against the fixed vocabulary of the result format without
+ * creating strings, and the few attributes the format uses are held in reusable buffers.
+ * Character data is accumulated across buffer refills, so text is never split, and the
+ * predefined and numeric character entities are expanded as the text is read.
+ * Namespace prefixes on elements are ignored, and DTDs are skipped without being processed.
+ */
+class XmlScanner {
+
+  /** Code for an element outside the result vocabulary. */
+  static final int UNKNOWN = -1;
+
+  static final int SPARQL = 0;
+  static final int HEAD = 1;
+  static final int VARIABLE = 2;
+  static final int LINK = 3;
+  static final int RESULTS = 4;
+  static final int RESULT = 5;
+  static final int BINDING = 6;
+  static final int URI = 7;
+  static final int LITERAL = 8;
+  static final int BNODE = 9;
+  static final int BOOLEAN = 10;
+
+  /** The element names, indexed by their codes. */
+  private static final String[] TAG_NAMES = {
+    "sparql", "head", "variable", "link", "results", "result", "binding", "uri", "literal", "bnode", "boolean"
+  };
+
+  static final int NAME = 0;
+  static final int HREF = 1;
+  static final int LANG = 2;
+  static final int DATATYPE = 3;
+
+  /** The attribute names, indexed by their codes. */
+  private static final String[] ATTRIBUTE_NAMES = { "name", "href", "xml:lang", "datatype" };
+
+  /** The element names as bytes. */
+  private static final byte[][] TAGS = toBytes(TAG_NAMES);
+
+  /** The attribute names as bytes. */
+  private static final byte[][] ATTRIBUTES = toBytes(ATTRIBUTE_NAMES);
+
+  /** The size of the buffer for reading bytes. */
+  private static final int BUFFER_SIZE = 8192;
+
+  /** The number of bytes examined when looking for an encoding declaration. */
+  private static final int PROLOG_SIZE = 256;
+
+  /** Marks the end of the input. */
+  private static final int EOF = -1;
+
+  /** The source of the bytes. */
+  private final InputStream in;
+
+  /** The buffered bytes. */
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+
+  /** The position of the next byte in the buffer. */
+  private int pos = 0;
+
+  /** The number of valid bytes in the buffer. */
+  private int limit = 0;
+
+  /** Set until the first bytes have been read, so a byte order mark can be skipped. */
+  private boolean first = true;
+
+  /** Holds the most recently read element or attribute name. */
+  private byte[] name = new byte[32];
+
+  /** The length of the data in <code>name</code>. */
+  private int nameLength = 0;
+
+  /** Holds the most recently read character data. */
+  private char[] text = new char[256];
+
+  /** The length of the data in <code>text</code>. */
+  private int textLength = 0;
+
+  /** The values of the known attributes on the current start tag. */
+  private final char[][] values = new char[ATTRIBUTE_NAMES.length][32];
+
+  /** The lengths of the attribute values. Negative when an attribute is not present. */
+  private final int[] valueLengths = new int[ATTRIBUTE_NAMES.length];
+
+  /** The codes of the currently open elements. */
+  private int[] open = new int[16];
+
+  /** The number of currently open elements. */
+  private int depth = 0;
+
+  /** The code of the current tag. */
+  private int tag = UNKNOWN;
+
+  /** The name of the current tag, when it is not in the vocabulary. */
+  private String unknownName = null;
+
+  /** Set when the current start tag closed itself, and its end has not been reported. */
+  private boolean empty = false;
+
+  /**
+   * Creates a tokenizer for UTF-8 encoded XML.
+   * @param in The stream to read.
+   */
+  XmlScanner(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Tests if a document can be read by this tokenizer, by looking for a byte order mark
+   * or encoding declaration that is not UTF-8. The stream is left where it started.
+   * @param in The stream holding the document. Must support marking.
+   * @return <code>true</code> if the document is encoded in UTF-8 or a subset of it.
+   */
+  static boolean isUtf8(BufferedInputStream in) throws IOException {
+    byte[] prolog = new byte[PROLOG_SIZE];
+    in.mark(PROLOG_SIZE);
+    int length = 0;
+    int n;
+    while (length < PROLOG_SIZE && (n = in.read(prolog, length, PROLOG_SIZE - length)) > 0) length += n;
+    in.reset();
+    // UTF-16 and UTF-32 documents start with a byte order mark or a zero byte
+    if (length >= 2 && ((prolog[0] & 0xFF) == 0xFE || (prolog[0] & 0xFF) == 0xFF || prolog[0] == 0 || prolog[1] == 0)) return false;
+    String start = new String(prolog, 0, length, "ISO-8859-1");
+    if (!start.startsWith("<?xml", start.startsWith("\u00EF\u00BB\u00BF") ? 3 : 0)) return true;
+    int end = start.indexOf("?>");
+    int e = start.indexOf("encoding");
+    if (e < 0 || (end >= 0 && e > end)) return true;
+    int q = e + "encoding".length();
+    while (q < length && start.charAt(q) != '"' && start.charAt(q) != '\'') q++;
+    if (q == length) return false;
+    int close = start.indexOf(start.charAt(q), q + 1);
+    if (close < 0) return false;
+    String encoding = start.substring(q + 1, close).trim();
+    return encoding.equalsIgnoreCase("UTF-8") || encoding.equalsIgnoreCase("UTF8") ||
+           encoding.equalsIgnoreCase("US-ASCII") || encoding.equalsIgnoreCase("ASCII");
+  }
+
+  /**
+   * Reads up to the next start or end tag, skipping whitespace, comments, processing
+   * instructions and document type declarations.
+   * @return <code>true</code> for a start tag, or <code>false</code> for an end tag.
+   */
+  boolean nextTag() throws IOException, InternalException {
+    if (empty) {
+      empty = false;
+      return false;
+    }
+    while (true) {
+      int c = read();
+      if (c == EOF) throw syntax("Unexpected end of document");
+      if (c == '<') {
+        c = read();
+        if (c == '/') {
+          readEndTag();
+          return false;
+        } else if (c == '?') {
+          skipPast("?>");
+        } else if (c == '!') {
+          skipDeclaration();
+        } else {
+          pos--;
+          readStartTag();
+          return true;
+        }
+      } else if (!isWhitespace(c)) {
+        throw syntax("Unexpected text in " + (depth == 0 ? "the prolog" : "<" + TAG_NAMES[open[depth - 1]] + ">"));
+      }
+    }
+  }
+
+  /**
+   * Gets the code of the current tag.
+   * @return One of the element codes, or {@link #UNKNOWN}.
+   */
+  int tag() {
+    return tag;
+  }
+
+  /**
+   * Gets the name of the current tag, for reporting.
+   */
+  String tagName() {
+    return tag == UNKNOWN ? unknownName : TAG_NAMES[tag];
+  }
+
+  /**
+   * Gets an attribute of the current start tag.
+   * @param attribute The code of the attribute.
+   * @return The value of the attribute, or <code>null</code> if it was not present.
+   */
+  String attribute(int attribute) {
+    int length = valueLengths[attribute];
+    return length < 0 ? null : new String(values[attribute], 0, length);
+  }
+
+  /**
+   * Tests an attribute of the current start tag without creating a string.
+   * @param attribute The code of the attribute.
+   * @param value The value to compare to.
+   * @return <code>true</code> if the attribute is present and has the given value.
+   */
+  boolean attributeIs(int attribute, String value) {
+    int length = valueLengths[attribute];
+    if (length != value.length()) return false;
+    char[] v = values[attribute];
+    for (int i = 0; i < length; i++) if (v[i] != value.charAt(i)) return false;
+    return true;
+  }
+
+  /**
+   * Reads the character content of the current element, up to and including its end tag.
+   * The element may not contain other elements.
+   * @return The unescaped text of the element.
+   */
+  String text() throws IOException, InternalException {
+    textLength = 0;
+    if (empty) {
+      empty = false;
+      return "";
+    }
+    int element = tag;
+    while (true) {
+      // copy runs of plain ASCII straight from the buffer
+      while (pos < limit) {
+        byte b = buffer[pos];
+        if (b < 0 || b == '<' || b == '&' || b == '\r') break;
+        if (textLength == text.length) grow(1);
+        text[textLength++] = (char)b;
+        pos++;
+      }
+      int c = read();
+      if (c == EOF) {
+        throw syntax("Unterminated element <" + tagName() + ">");
+      } else if (c == '<') {
+        c = read();
+        if (c == '/') {
+          readEndTag();
+          if (tag != element) throw syntax("Mismatched end tag </" + tagName() + ">");
+          return new String(text, 0, textLength);
+        } else if (c == '?') {
+          skipPast("?>");
+        } else if (c == '!' && peek() == '[') {
+          readCdata();
+        } else if (c == '!') {
+          skipDeclaration();
+        } else {
+          throw syntax("Unexpected element inside <" + tagName() + ">");
+        }
+      } else if (c == '\r') {
+        // line ends are normalized to a single newline
+        if (peek() == '\n') pos++;
+        append('\n');
+      } else {
+        appendCodePoint(decode(c));
+      }
+    }
+  }
+
+  /**
+   * Releases the underlying stream.
+   */
+  void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Reads a start tag and its attributes. The opening angle bracket has been consumed.
+   */
+  private void readStartTag() throws IOException, InternalException {
+    readName();
+    tag = lookupElement();
+    for (int i = 0; i < valueLengths.length; i++) valueLengths[i] = -1;
+    while (true) {
+      int c = skipWhitespace();
+      if (c == '>') break;
+      if (c == '/') {
+        if (read() != '>') throw syntax("Expected '>' after '/' in <" + tagName() + ">");
+        empty = true;
+        return;
+      }
+      if (c == EOF) throw syntax("Unterminated tag <" + tagName() + ">");
+      pos--;
+      readName();
+      int attribute = lookup(ATTRIBUTES, 0);
+      if (skipWhitespace() != '=') throw syntax("Expected '=' after attribute in <" + tagName() + ">");
+      int quote = skipWhitespace();
+      if (quote != '"' && quote != '\'') throw syntax("Attribute value not quoted in <" + tagName() + ">");
+      readAttributeValue(quote);
+      if (attribute != UNKNOWN) {
+        if (values[attribute].length < textLength) values[attribute] = new char[textLength];
+        System.arraycopy(text, 0, values[attribute], 0, textLength);
+        valueLengths[attribute] = textLength;
+      }
+    }
+    if (depth == open.length) {
+      int[] o = new int[depth * 2];
+      System.arraycopy(open, 0, o, 0, depth);
+      open = o;
+    }
+    open[depth++] = tag;
+  }
+
+  /**
+   * Reads an end tag, and checks that it closes the most recently opened element.
+   * The opening angle bracket and slash have been consumed.
+   */
+  private void readEndTag() throws IOException, InternalException {
+    readName();
+    tag = lookupElement();
+    if (skipWhitespace() != '>') throw syntax("Unterminated end tag </" + tagName() + ">");
+    if (depth == 0 || open[--depth] != tag) throw syntax("Mismatched end tag </" + tagName() + ">");
+  }
+
+  /**
+   * Reads a quoted attribute value into the text buffer. The opening quote has been consumed.
+   * @param quote The character that ends the value.
+   */
+  private void readAttributeValue(int quote) throws IOException, InternalException {
+    textLength = 0;
+    while (true) {
+      int c = read();
+      if (c == quote) return;
+      if (c == EOF || c == '<') throw syntax("Unterminated attribute value in <" + tagName() + ">");
+      if (isWhitespace(c)) append(' ');
+      else appendCodePoint(decode(c));
+    }
+  }
+
+  /**
+   * Reads a CDATA section into the text buffer. The "&lt;!" has been consumed.
+   */
+  private void readCdata() throws IOException, InternalException {
+    for (int i = 0; i < 7; i++) {
+      if (read() != "[CDATA[".charAt(i)) throw syntax("Bad CDATA section in <" + tagName() + ">");
+    }
+    int start = textLength;
+    while (true) {
+      int c = read();
+      if (c == EOF) throw syntax("Unterminated CDATA section in <" + tagName() + ">");
+      if (c == '>' && textLength - start >= 2 && text[textLength - 1] == ']' && text[textLength - 2] == ']') {
+        textLength -= 2;
+        return;
+      }
+      if (c < 0x80) append((char)c);
+      else appendCodePoint(decode(c));
+    }
+  }
+
+  /**
+   * Reads an element or attribute name into the name buffer.
+   */
+  private void readName() throws IOException, InternalException {
+    nameLength = 0;
+    while (true) {
+      int c = peek();
+      if (c == EOF || c == '>' || c == '/' || c == '=' || isWhitespace(c)) break;
+      if (nameLength == name.length) {
+        byte[] n = new byte[name.length * 2];
+        System.arraycopy(name, 0, n, 0, nameLength);
+        name = n;
+      }
+      name[nameLength++] = buffer[pos++];
+    }
+    if (nameLength == 0) throw syntax("Missing name in tag");
+  }
+
+  /**
+   * Finds the code for the element name in the name buffer, ignoring any namespace prefix.
+   * @return The code of the element, or {@link #UNKNOWN}.
+   */
+  private int lookupElement() throws IOException {
+    int start = 0;
+    for (int i = 0; i < nameLength; i++) if (name[i] == ':') start = i + 1;
+    int code = lookup(TAGS, start);
+    unknownName = code == UNKNOWN ? new String(name, start, nameLength - start, "UTF-8") : null;
+    return code;
+  }
+
+  /**
+   * Finds a name in a vocabulary by comparing bytes.
+   * @param names The vocabulary to search.
+   * @param start The offset of the name in the name buffer.
+   * @return The index of the name, or {@link #UNKNOWN}.
+   */
+  private int lookup(byte[][] names, int start) {
+    int length = nameLength - start;
+    for (int n = 0; n < names.length; n++) {
+      byte[] candidate = names[n];
+      if (candidate.length != length) continue;
+      int i = 0;
+      while (i < length && candidate[i] == name[start + i]) i++;
+      if (i == length) return n;
+    }
+    return UNKNOWN;
+  }
+
+  /**
+   * Skips a comment or declaration. The "&lt;!" has been consumed.
+   */
+  private void skipDeclaration() throws IOException, InternalException {
+    if (peek() == '-') {
+      pos++;
+      if (read() != '-') throw syntax("Bad comment");
+      skipPast("-->");
+      return;
+    }
+    // a document type declaration, possibly with an internal subset
+    int nesting = 0;
+    while (true) {
+      int c = read();
+      if (c == EOF) throw syntax("Unterminated declaration");
+      if (c == '[') nesting++;
+      else if (c == ']') nesting--;
+      else if (c == '>' && nesting <= 0) return;
+    }
+  }
+
+  /**
+   * Skips past a terminating sequence of up to three characters.
+   * @param end The sequence to find.
+   */
+  private void skipPast(String end) throws IOException, InternalException {
+    int n = end.length();
+    int last = EOF;
+    int secondLast = EOF;
+    while (true) {
+      int c = read();
+      if (c == EOF) throw syntax("Expected " + end);
+      if (c == end.charAt(n - 1) && (n < 2 || last == end.charAt(n - 2)) && (n < 3 || secondLast == end.charAt(n - 3))) return;
+      secondLast = last;
+      last = c;
+    }
+  }
+
+  /**
+   * Converts a byte from the input into a character code point, reading any entity
+   * reference or further bytes of a multi-byte UTF-8 sequence.
+   * @param c The byte that has been read.
+   * @return The code point.
+   */
+  private int decode(int c) throws IOException, InternalException {
+    if (c == '&') return readEntity();
+    if (c < 0x80) return c;
+    int remaining;
+    int codePoint;
+    if ((c & 0xE0) == 0xC0) {
+      remaining = 1;
+      codePoint = c & 0x1F;
+    } else if ((c & 0xF0) == 0xE0) {
+      remaining = 2;
+      codePoint = c & 0x0F;
+    } else if ((c & 0xF8) == 0xF0) {
+      remaining = 3;
+      codePoint = c & 0x07;
+    } else {
+      throw syntax("Invalid UTF-8 data");
+    }
+    while (remaining-- > 0) {
+      int b = read();
+      if ((b & 0xC0) != 0x80) throw syntax("Invalid UTF-8 data");
+      codePoint = (codePoint << 6) | (b & 0x3F);
+    }
+    return codePoint;
+  }
+
+  /**
+   * Reads an entity reference. The ampersand has been consumed.
+   * @return The code point of the referenced character.
+   */
+  private int readEntity() throws IOException, InternalException {
+    int c = read();
+    if (c == '#') {
+      int radix = 10;
+      c = read();
+      if (c == 'x') {
+        radix = 16;
+        c = read();
+      }
+      int value = 0;
+      int digits = 0;
+      for (; c != ';'; c = read(), digits++) {
+        int d = Character.digit(c, radix);
+        if (d < 0) throw syntax("Bad character reference");
+        value = value * radix + d;
+        if (value > Character.MAX_CODE_POINT) throw syntax("Bad character reference");
+      }
+      if (digits == 0) throw syntax("Bad character reference");
+      return value;
+    }
+    int a = c;
+    int b = read();
+    if (b == 't' && read() == ';') {
+      if (a == 'l') return '<';
+      if (a == 'g') return '>';
+    } else if (a == 'a' && b == 'm' && read() == 'p' && read() == ';') {
+      return '&';
+    } else if (a == 'q' && b == 'u' && read() == 'o' && read() == 't' && read() == ';') {
+      return '"';
+    } else if (a == 'a' && b == 'p' && read() == 'o' && read() == 's' && read() == ';') {
+      return '\'';
+    }
+    throw syntax("Unknown entity reference");
+  }
+
+  /**
+   * Adds a code point to the text buffer.
+   */
+  private void appendCodePoint(int codePoint) {
+    if (textLength + 2 > text.length) grow(2);
+    textLength += Character.toChars(codePoint, text, textLength);
+  }
+
+  /**
+   * Adds a character to the text buffer.
+   */
+  private void append(char c) {
+    if (textLength == text.length) grow(1);
+    text[textLength++] = c;
+  }
+
+  /**
+   * Increases the size of the text buffer.
+   * @param needed The number of extra characters required.
+   */
+  private void grow(int needed) {
+    char[] t = new char[Math.max(text.length * 2, textLength + needed)];
+    System.arraycopy(text, 0, t, 0, textLength);
+    text = t;
+  }
+
+  /**
+   * Skips whitespace and consumes the next byte.
+   * @return The first byte that is not whitespace, or EOF.
+   */
+  private int skipWhitespace() throws IOException {
+    int c = read();
+    while (c != EOF && isWhitespace(c)) c = read();
+    return c;
+  }
+
+  /**
+   * Returns the next byte without consuming it.
+   */
+  private int peek() throws IOException {
+    if (pos == limit && !fill()) return EOF;
+    return buffer[pos] & 0xFF;
+  }
+
+  /**
+   * Consumes the next byte.
+   */
+  private int read() throws IOException {
+    if (pos == limit && !fill()) return EOF;
+    return buffer[pos++] & 0xFF;
+  }
+
+  /**
+   * Refills the buffer from the source.
+   * @return <code>false</code> if the source is exhausted.
+   */
+  private boolean fill() throws IOException {
+    int n = in.read(buffer, 0, buffer.length);
+    if (n <= 0) return false;
+    pos = 0;
+    limit = n;
+    if (first) {
+      first = false;
+      // skip a UTF-8 byte order mark
+      if (n >= 3 && (buffer[0] & 0xFF) == 0xEF && (buffer[1] & 0xFF) == 0xBB && (buffer[2] & 0xFF) == 0xBF) pos = 3;
+      if (pos == limit) return fill();
+    }
+    return true;
+  }
+
+  private static boolean isWhitespace(int c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+  }
+
+  private static byte[][] toBytes(String[] names) {
+    byte[][] bytes = new byte[names.length][];
+    for (int i = 0; i < names.length; i++) {
+      bytes[i] = new byte[names[i].length()];
+      for (int j = 0; j < bytes[i].length; j++) bytes[i][j] = (byte)names[i].charAt(j);
+    }
+    return bytes;
+  }
+
+  private InternalException syntax(String msg) {
+    return new InternalException("Malformed XML results: " + msg);
+  }
+
+}
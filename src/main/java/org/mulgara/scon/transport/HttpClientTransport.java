@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.transport;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// HTTP Client 4.0
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+// HTTP Core 4.1-alpha1
+import org.apache.http.HttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.params.HttpParams;
+
+import org.mulgara.scon.impl.ConnectionPools;
+
+/**
+ * A transport using HttpClient 4. Connections are taken from a pool that is
+ * shared with every other transport for the same host. A transport for several
+ * replicas borrows a pool for each of their hosts.
+ */
+public class HttpClientTransport implements Transport {
+
+  /** The Connection Managers borrowed from the shared pools, by host. Once set, these will not change. */
+  private final Map<String,ClientConnectionManager> conManagers = new LinkedHashMap<String,ClientConnectionManager>();
+
+  /** The Connection Manager for the first host, used for requests to any other host. */
+  private final ClientConnectionManager conManager;
+
+  /** Continuations are not expected by default */
+  private boolean expectContinue = false;
+
+  /** The socket timeout, set to 5000 by default. */
+  private int soTimeout = 5000;
+
+  /** The connection timeout, set to 5000 by default. */
+  private int connectTimeout = 5000;
+
+  /** The clients for HTTP requests, by host. Rebuilt when the parameters for HTTP change. */
+  private final Map<String,HttpClient> httpClients = new HashMap<String,HttpClient>();
+
+  /** a flag to indicate if this transport is closed. */
+  private boolean closed = false;
+
+  /**
+   * Creates a transport for an endpoint, with limits on the shared connection pool.
+   * The limits only apply if no other transport is using the pool for this host.
+   * @param endpoint The endpoint that requests will be sent to.
+   * @param maxTotal The maximum number of HTTP connections in the pool.
+   * @param maxPerRoute The maximum number of HTTP connections to the endpoint.
+   */
+  public HttpClientTransport(URL endpoint, int maxTotal, int maxPerRoute) {
+    this(Collections.singletonList(endpoint), maxTotal, maxPerRoute);
+  }
+
+  /**
+   * Creates a transport for a set of replicas, borrowing a pool for each of their hosts,
+   * so that every replica has its own limits. The limits only apply to pools that no
+   * other transport is using.
+   * @param endpoints The endpoints that requests will be sent to.
+   * @param maxTotal The maximum number of HTTP connections in each pool.
+   * @param maxPerRoute The maximum number of HTTP connections to each endpoint.
+   */
+  public HttpClientTransport(List<URL> endpoints, int maxTotal, int maxPerRoute) {
+    for (URL endpoint: endpoints) {
+      String key = ConnectionPools.keyOf(endpoint);
+      if (!conManagers.containsKey(key)) conManagers.put(key, ConnectionPools.acquire(endpoint, maxTotal, maxPerRoute));
+    }
+    conManager = conManagers.values().iterator().next();
+  }
+
+  /**
+   * Sends a request with HttpClient, using the pool for the host of the request.
+   * @see org.mulgara.scon.transport.Transport#execute(org.apache.http.client.methods.HttpUriRequest)
+   */
+  public HttpResponse execute(HttpUriRequest request) throws IOException {
+    return getHttpClient(hostKey(request)).execute(request);
+  }
+
+  /** @see org.mulgara.scon.transport.Transport#setExpectContinue(boolean) */
+  public synchronized void setExpectContinue(boolean expectContinue) {
+    if (this.expectContinue != expectContinue) httpClients.clear();
+    this.expectContinue = expectContinue;
+  }
+
+  /** @see org.mulgara.scon.transport.Transport#setSoTimeout(int) */
+  public synchronized void setSoTimeout(int soTimeout) {
+    if (this.soTimeout != soTimeout) httpClients.clear();
+    this.soTimeout = soTimeout;
+  }
+
+  /** @see org.mulgara.scon.transport.Transport#setConnectTimeout(int) */
+  public synchronized void setConnectTimeout(int connectTimeout) {
+    if (this.connectTimeout != connectTimeout) httpClients.clear();
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Gives back the shared connection pools.
+   * @see org.mulgara.scon.transport.Transport#close()
+   */
+  public synchronized void close() {
+    if (closed) return;
+    closed = true;
+    httpClients.clear();
+    for (ClientConnectionManager m: conManagers.values()) ConnectionPools.release(m);
+  }
+
+  /**
+   * Gets the key for the pool that a request should use.
+   * @param request The request to be sent.
+   * @return The key for the host of the request, or <code>null</code> if it cannot be found.
+   */
+  private static String hostKey(HttpUriRequest request) {
+    try {
+      return ConnectionPools.keyOf(request.getURI().toURL());
+    } catch (MalformedURLException e) {
+      return null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Gets the client for HTTP requests to a host. The client is shared by all requests
+   * to the host on this transport, and is only created again after the HTTP parameters
+   * have changed. Hosts without a pool of their own use the pool of the first host.
+   * @param key The key for the host of the request.
+   * @return A client connection with parameters set for this object
+   */
+  private synchronized HttpClient getHttpClient(String key) {
+    if (closed) throw new IllegalStateException("Transport is closed");
+    ClientConnectionManager manager = conManagers.get(key);
+    if (manager == null) {
+      manager = conManager;
+      key = null;
+    }
+    HttpClient httpClient = httpClients.get(key);
+    if (httpClient == null) {
+      HttpParams params = new BasicHttpParams();
+      params.setBooleanParameter(CoreProtocolPNames.USE_EXPECT_CONTINUE, expectContinue);
+      params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, soTimeout);
+      params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, connectTimeout);
+      httpClient = new DefaultHttpClient(manager, params);
+      httpClients.put(key, httpClient);
+    }
+    return httpClient;
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// HTTP Client 4.0
+import org.apache.http.client.methods.HttpUriRequest;
+
+// HTTP Core 4.1-alpha1
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import org.mulgara.util.Strings;
+
+/**
+ * A transport that answers every request in-process with the same document.
+ * Nothing is sent over the network, so this is useful for measuring the cost of
+ * everything other than the network, and for testing.
+ */
+public class LoopbackTransport implements Transport {
+
+  /** The header for the entity tag of the document. */
+  private static final String ETAG = "ETag";
+
+  /** The header for a request conditional on an entity tag. */
+  private static final String IF_NONE_MATCH = "If-None-Match";
+
+  /** The time between checks for an aborted request during a delay, in milliseconds. */
+  private static final long PAUSE_SLICE = 10;
+
+  /** The media type of the document. */
+  private final String contentType;
+
+  /** The document returned for every request. */
+  private final byte[] body;
+
+  /** The number of requests executed. */
+  private final AtomicInteger requests = new AtomicInteger();
+
+  /** The number of requests answered as not modified. */
+  private final AtomicInteger notModified = new AtomicInteger();
+
+  /** The entity tag of the document, or null if the document has no tag. */
+  private volatile String eTag = null;
+
+  /** The number of requests that were aborted while waiting to respond. */
+  private final AtomicInteger aborted = new AtomicInteger();
+
+  /** The number of requests still to be stalled. */
+  private final AtomicInteger stalls = new AtomicInteger();
+
+  /** The time to stall a request for, in milliseconds. */
+  private volatile long stall = 0;
+
+  /** The number of requests still to be answered with a failure. */
+  private final AtomicInteger failures = new AtomicInteger();
+
+  /** The status for requests answered with a failure. */
+  private volatile int failureStatus = HttpStatus.SC_SERVICE_UNAVAILABLE;
+
+  /** The time to wait before responding, in milliseconds. */
+  private volatile long delay = 0;
+
+  /** The content coding the document is encoded with, or null if it is not encoded. */
+  private volatile String contentEncoding = null;
+
+  /**
+   * Creates a transport returning a document.
+   * @param contentType The media type of the document.
+   * @param body The text of the document.
+   */
+  public LoopbackTransport(String contentType, String body) {
+    this(contentType, Strings.toUtf8Bytes(body));
+  }
+
+  /**
+   * Creates a transport returning a document.
+   * @param contentType The media type of the document.
+   * @param body The encoded document. This is not copied, and must not be modified.
+   */
+  public LoopbackTransport(String contentType, byte[] body) {
+    this.contentType = contentType;
+    this.body = body;
+  }
+
+  /**
+   * Responds to a request with the document. If the document has an entity tag, then
+   * requests already holding the document are answered as not modified.
+   * @see org.mulgara.scon.transport.Transport#execute(org.apache.http.client.methods.HttpUriRequest)
+   */
+  public HttpResponse execute(HttpUriRequest request) throws IOException {
+    if (request.isAborted()) throw new IOException("Request aborted");
+    requests.incrementAndGet();
+    long wait = take(stalls) ? stall : delay;
+    if (wait > 0) pause(request, wait);
+    if (take(failures)) return new BasicHttpResponse(HttpVersion.HTTP_1_1, failureStatus, "Failure");
+    String tag = eTag;
+    if (tag != null) {
+      Header match = request.getFirstHeader(IF_NONE_MATCH);
+      if (match != null && match.getValue().equals(tag)) {
+        notModified.incrementAndGet();
+        return new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+      }
+    }
+    BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+    if (tag != null) response.addHeader(ETAG, tag);
+    BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setContent(new ByteArrayInputStream(body));
+    entity.setContentLength(body.length);
+    entity.setContentType(contentType);
+    String coding = contentEncoding;
+    if (coding != null) entity.setContentEncoding(coding);
+    response.setEntity(entity);
+    return response;
+  }
+
+  /**
+   * Waits before a response, stopping early if the request is aborted.
+   * @param request The request being answered.
+   * @param wait The time to wait, in milliseconds.
+   * @throws IOException If the request is aborted, or the wait is interrupted.
+   */
+  private void pause(HttpUriRequest request, long wait) throws IOException {
+    long end = System.currentTimeMillis() + wait;
+    try {
+      for (long left = wait; left > 0 && !request.isAborted(); left = end - System.currentTimeMillis()) {
+        Thread.sleep(Math.min(left, PAUSE_SLICE));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while responding");
+    }
+    if (request.isAborted()) {
+      aborted.incrementAndGet();
+      throw new IOException("Request aborted");
+    }
+  }
+
+  /**
+   * Uses up one of a number of requests that are to be treated differently.
+   * @param counter The number of requests still to be treated differently.
+   * @return <code>true</code> if this request is to be treated differently.
+   */
+  private static boolean take(AtomicInteger counter) {
+    while (true) {
+      int n = counter.get();
+      if (n <= 0) return false;
+      if (counter.compareAndSet(n, n - 1)) return true;
+    }
+  }
+
+  /**
+   * Gets the number of requests that have been answered.
+   * @return The number of requests executed.
+   */
+  public int getRequestCount() {
+    return requests.get();
+  }
+
+  /**
+   * Gets the number of requests that were answered as not modified.
+   * @return The number of requests answered without the document.
+   */
+  public int getNotModifiedCount() {
+    return notModified.get();
+  }
+
+  /**
+   * Sets a time to wait before each response, to simulate the latency of a network.
+   * @param delay The time to wait, in milliseconds.
+   */
+  public void setDelay(long delay) {
+    this.delay = delay;
+  }
+
+  /**
+   * Sets the content coding of the document, such as gzip or deflate. The document
+   * must already be encoded this way, since it is returned exactly as it was given.
+   * @param contentEncoding The value of the Content-Encoding header, or <code>null</code> for none.
+   */
+  public void setContentEncoding(String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
+
+  /**
+   * Gets the number of requests that were aborted while waiting to respond.
+   * @return The number of aborted requests.
+   */
+  public int getAbortedCount() {
+    return aborted.get();
+  }
+
+  /**
+   * Stalls the next requests for longer than the usual delay, to simulate a slow endpoint.
+   * @param count The number of requests to stall.
+   * @param stall The time to stall them for, in milliseconds.
+   */
+  public void setStalls(int count, long stall) {
+    this.stall = stall;
+    stalls.set(count);
+  }
+
+  /**
+   * Answers the next requests with a failure, to simulate an endpoint with problems.
+   * @param count The number of requests to fail.
+   * @param status The HTTP status to fail them with.
+   */
+  public void setFailures(int count, int status) {
+    failureStatus = status;
+    failures.set(count);
+  }
+
+  /**
+   * Sets the entity tag of the document.
+   * @param eTag The quoted entity tag, or <code>null</code> for the document to have no tag.
+   */
+  public void setETag(String eTag) {
+    this.eTag = eTag;
+  }
+
+  /** @see org.mulgara.scon.transport.Transport#setExpectContinue(boolean) */
+  public void setExpectContinue(boolean expectContinue) {
+  }
+
+  /** @see org.mulgara.scon.transport.Transport#setSoTimeout(int) */
+  public void setSoTimeout(int soTimeout) {
+  }
+
+  /** @see org.mulgara.scon.transport.Transport#setConnectTimeout(int) */
+  public void setConnectTimeout(int connectTimeout) {
+  }
+
+  /** @see org.mulgara.scon.transport.Transport#close() */
+  public void close() {
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.transport;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * The means of sending requests to an endpoint and receiving the responses.
+ * A Connection sends all of its requests through a single transport.
+ * Implementations must allow requests to be executed from several threads at once.
+ */
+public interface Transport {
+
+  /**
+   * Sends a request and waits for the start of the response. The entity of the
+   * response may be read as it arrives, and the request may be aborted while this
+   * is happening.
+   * @param request The request to send.
+   * @return The response from the endpoint.
+   * @throws IOException If there was a communications error.
+   */
+  HttpResponse execute(HttpUriRequest request) throws IOException;
+
+  /**
+   * Changes the expect-continue setting for subsequent requests.
+   * @param expectContinue The new value for the setting.
+   */
+  void setExpectContinue(boolean expectContinue);
+
+  /**
+   * Changes the socket timeout for subsequent requests.
+   * @param soTimeout The new socket timeout in milliseconds.
+   */
+  void setSoTimeout(int soTimeout);
+
+  /**
+   * Changes the timeout for establishing connections for subsequent requests.
+   * @param connectTimeout The new connection timeout in milliseconds.
+   */
+  void setConnectTimeout(int connectTimeout);
+
+  /**
+   * Releases any resources held by the transport. No more requests may be executed.
+   */
+  void close();
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 Paul Gearon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mulgara.scon.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+
+// HTTP Client 4.0
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+
+// HTTP Core 4.1-alpha1
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * A transport using the HTTP support built into the JVM. This needs no libraries,
+ * and relies on the JVM to keep connections alive between requests.
+ */
+public class UrlConnectionTransport implements Transport {
+
+  /** The smallest status code for an error. */
+  private static final int ERROR_MIN = 400;
+
+  /** The socket timeout, set to 5000 by default. */
+  private volatile int soTimeout = 5000;
+
+  /** The connection timeout, set to 5000 by default. */
+  private volatile int connectTimeout = 5000;
+
+  /**
+   * Sends a request with an HttpURLConnection. If the request can be aborted, then
+   * aborting it will disconnect the underlying connection.
+   * @see org.mulgara.scon.transport.Transport#execute(org.apache.http.client.methods.HttpUriRequest)
+   */
+  public HttpResponse execute(HttpUriRequest request) throws IOException {
+    final HttpURLConnection conn = (HttpURLConnection)request.getURI().toURL().openConnection();
+    if (request instanceof AbortableHttpRequest) {
+      ((AbortableHttpRequest)request).setReleaseTrigger(new ConnectionReleaseTrigger() {
+        public void releaseConnection() { }
+        public void abortConnection() { conn.disconnect(); }
+      });
+    }
+    conn.setRequestMethod(request.getMethod());
+    conn.setConnectTimeout(connectTimeout);
+    conn.setReadTimeout(soTimeout);
+    for (Header h: request.getAllHeaders()) conn.addRequestProperty(h.getName(), h.getValue());
+
+    if (request instanceof HttpEntityEnclosingRequest) {
+      HttpEntity entity = ((HttpEntityEnclosingRequest)request).getEntity();
+      if (entity != null) sendEntity(conn, entity);
+    }
+
+    int code = conn.getResponseCode();
+    BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, code, conn.getResponseMessage());
+    // header 0 is the status line
+    for (int i = 1; conn.getHeaderFieldKey(i) != null; i++) {
+      response.addHeader(conn.getHeaderFieldKey(i), conn.getHeaderField(i));
+    }
+    InputStream content = code >= ERROR_MIN ? conn.getErrorStream() : conn.getInputStream();
+    if (content != null) {
+      BasicHttpEntity entity = new BasicHttpEntity();
+      entity.setContent(content);
+      entity.setContentLength(conn.getContentLength());
+      entity.setContentType(conn.getContentType());
+      entity.setContentEncoding(conn.getContentEncoding());
+      response.setEntity(entity);
+    }
+    return response;
+  }
+
+  /**
+   * Continuations are managed by the JVM, so this setting is ignored.
+   * @see org.mulgara.scon.transport.Transport#setExpectContinue(boolean)
+   */
+  public void setExpectContinue(boolean expectContinue) {
+  }
+
+  /** @see org.mulgara.scon.transport.Transport#setSoTimeout(int) */
+  public void setSoTimeout(int soTimeout) {
+    this.soTimeout = soTimeout;
+  }
+
+  /** @see org.mulgara.scon.transport.Transport#setConnectTimeout(int) */
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Idle connections belong to the JVM, so there is nothing to release.
+   * @see org.mulgara.scon.transport.Transport#close()
+   */
+  public void close() {
+  }
+
+  /**
+   * Writes the body of a request.
+   * @param conn The connection to write to.
+   * @param entity The body of the request.
+   * @throws IOException If there was a communications error.
+   */
+  private static void sendEntity(HttpURLConnection conn, HttpEntity entity) throws IOException {
+    conn.setDoOutput(true);
+    Header type = entity.getContentType();
+    if (type != null) conn.setRequestProperty(HTTP.CONTENT_TYPE, type.getValue());
+    long length = entity.getContentLength();
+    if (length >= 0 && length <= Integer.MAX_VALUE) conn.setFixedLengthStreamingMode((int)length);
+    else conn.setChunkedStreamingMode(0);
+    OutputStream out = conn.getOutputStream();
+    try {
+      entity.writeTo(out);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -4,8 +4,37 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.mulgara.scon.cache.DiskCache;
+import org.mulgara.scon.cache.QueryCache;
+import org.mulgara.scon.impl.BooleanResultSet;
+import org.mulgara.scon.impl.ConnectionPools;
+import org.mulgara.scon.impl.ResultBuilder;
+import org.mulgara.scon.transport.LoopbackTransport;
+import org.mulgara.scon.transport.Transport;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
 
 import org.mulgara.mrg.Bnode;
 import org.mulgara.mrg.Literal;
@@ -13,6 +42,7 @@ import org.mulgara.mrg.Uri;
 import org.mulgara.mrg.Graph;
 import org.mulgara.mrg.SubjectNode;
 import org.mulgara.mrg.ObjectNode;
+import org.mulgara.util.Strings;
 
 /**
  * Unit test for simple App.
@@ -48,6 +78,670 @@ public class ConnectionTest extends TestCase {
     s.setDefaultGraph("test:data");
   }
 
+  public void testPreferredFormats() throws Exception {
+    Connection c = DriverManager.getConnection(ENDPOINT);
+    Statement s = c.createStatement();
+    assertNull(s.getAcceptHeader());
+    s.setPreferredFormats("application/sparql-results+json", "application/n-triples");
+    String accept = s.getAcceptHeader();
+    assertTrue(accept.startsWith("application/sparql-results+json, application/n-triples;q=0.99, "));
+    assertTrue(accept.contains("text/tab-separated-values;q=0.90"));
+    assertTrue(accept.contains("application/sparql-results+xml;q=0.72"));
+    assertFalse(accept.contains("text/csv"));
+    assertFalse(ResultBuilder.acceptHeader(Collections.<String>emptyList()).contains("text/csv"));
+    s.setPreferredFormats("text/csv");
+    assertTrue(s.getAcceptHeader().startsWith("text/csv, "));
+    try {
+      c.setPreferredFormats("text/html");
+      fail("Unparseable formats should not be accepted");
+    } catch (IllegalArgumentException e) { }
+    s.setPreferredFormats();
+    assertNull(s.getAcceptHeader());
+  }
+
+  public void testSharedPool() throws Exception {
+    URL url = new URL(ENDPOINT);
+    int base = ConnectionPools.references(url);
+    Properties info = new Properties();
+    info.setProperty(Driver.MAX_CONNECTIONS_PER_ROUTE, "4");
+    Connection c1 = new Driver().connect(ENDPOINT, info);
+    Connection c2 = DriverManager.getConnection("http://LOCALHOST:8080/other/");
+    assertEquals(base + 2, ConnectionPools.references(url));
+    c1.close();
+    c1.close();
+    assertEquals(base + 1, ConnectionPools.references(url));
+    ResultSet rs = c2.createStatement().executeQuery("ASK { ?s ?p ?o }");
+    rs.close();
+    c2.close();
+    assertEquals(base, ConnectionPools.references(url));
+
+    URL other = new URL("http://127.0.0.1:8080/sparql/");
+    int otherBase = ConnectionPools.references(other);
+    Connection c3 = DriverManager.getConnection(Arrays.asList(url, new URL("http://localhost:8080/other/"), other));
+    assertEquals(base + 1, ConnectionPools.references(url));
+    assertEquals(otherBase + 1, ConnectionPools.references(other));
+    c3.close();
+    assertEquals(base, ConnectionPools.references(url));
+    assertEquals(otherBase, ConnectionPools.references(other));
+    info.setProperty(Driver.MAX_CONNECTIONS, "none");
+    try {
+      new Driver().connect(ENDPOINT, info);
+      fail("Limits must be numbers");
+    } catch (IllegalArgumentException e) { }
+  }
+
+  public void testCompression() throws Exception {
+    StringBuilder doc = new StringBuilder("?x\t?y\n");
+    for (int i = 0; i < 500; i++) doc.append("<test:a").append(i).append(">\t\"chat ").append(i).append("\"@fr\n");
+    byte[] plain = Strings.toUtf8Bytes(doc.toString());
+    List<String> expected = rows(new LoopbackTransport("text/tab-separated-values", plain));
+    assertEquals(500, expected.size());
+
+    ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+    OutputStream out = new GZIPOutputStream(gzip);
+    out.write(plain);
+    out.close();
+    ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+    out = new DeflaterOutputStream(zlib, new Deflater(Deflater.DEFAULT_COMPRESSION, false));
+    out.write(plain);
+    out.close();
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    out = new DeflaterOutputStream(raw, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    out.write(plain);
+    out.close();
+
+    String[] codings = { "gzip", "x-gzip", "deflate", "deflate" };
+    byte[][] bodies = { gzip.toByteArray(), gzip.toByteArray(), zlib.toByteArray(), raw.toByteArray() };
+    for (int i = 0; i < codings.length; i++) {
+      assertTrue(bodies[i].length < plain.length);
+      LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", bodies[i]);
+      loopback.setContentEncoding(codings[i]);
+      assertEquals(codings[i], expected, rows(loopback));
+    }
+  }
+
+  /**
+   * Reads the rows of a query answered by a transport, with compression requested.
+   * @param transport The transport to answer the query.
+   * @return The values of each row, in order.
+   */
+  private static List<String> rows(Transport transport) throws Exception {
+    Connection c = DriverManager.getConnection(new URL(ENDPOINT), transport);
+    assertFalse(c.getCompression());
+    c.setCompression(true);
+    ResultSet rs = c.createStatement().executeQuery("SELECT ?x ?y WHERE { ?x ?p ?y }");
+    List<String> rows = new ArrayList<String>();
+    while (rs.next()) rows.add(rs.getObject(1) + " " + rs.getObject(2));
+    rs.close();
+    c.close();
+    return rows;
+  }
+
+  public void testPost() throws Exception {
+    Connection c = DriverManager.getConnection(ENDPOINT);
+    assertEquals(Connection.DEFAULT_GET_LIMIT, c.getGetLimit());
+    c.setGetLimit(0);
+    Statement s = c.createStatement();
+    s.setDefaultGraph("test:data");
+    String query = "PREFIX foaf: <http://xmlns.com/foaf/0.1/>\nCONSTRUCT { ?s foaf:name ?o } WHERE { ?s foaf:name ?o }";
+    ResultSet rs = s.executeQuery(query);
+    int i = 0;
+    while (rs.next()) i++;
+    assertEquals(EXPECTED.length, i);
+    rs.close();
+    c.setDirectPost(true);
+    rs = s.executeQuery(query);
+    i = 0;
+    while (rs.next()) i++;
+    assertEquals(EXPECTED.length, i);
+    rs.close();
+    c.close();
+  }
+
+  public void testAsyncQuery() throws Exception {
+    Connection c = DriverManager.getConnection(ENDPOINT);
+    Statement s = c.createStatement();
+    List<Future<ResultSet>> results = new ArrayList<Future<ResultSet>>();
+    for (int i = 0; i < 10; i++) results.add(s.executeQueryAsync("ASK { ?s ?p ?o }"));
+    for (Future<ResultSet> f: results) {
+      ResultSet rs = f.get();
+      assertTrue(rs instanceof BooleanResultSet);
+      rs.close();
+    }
+    c.close();
+    try {
+      s.executeQueryAsync("ASK { ?s ?p ?o }").get();
+      fail("Queries on a closed connection should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof SparqlException);
+    }
+  }
+
+  public void testUrlConnectionTransport() throws Exception {
+    Properties info = new Properties();
+    info.setProperty(Driver.TRANSPORT, Driver.TRANSPORT_URLCONNECTION);
+    Connection c = new Driver().connect(ENDPOINT, info);
+    c.setCompression(true);
+    Statement s = c.createStatement();
+    s.setDefaultGraph("test:data");
+    ResultSet rs = s.executeQuery("PREFIX foaf: <http://xmlns.com/foaf/0.1/>\nCONSTRUCT { ?s foaf:name ?o } WHERE { ?s foaf:name ?o }");
+    int i = 0;
+    while (rs.next()) i++;
+    assertEquals(EXPECTED.length, i);
+    rs.close();
+    c.setGetLimit(0);
+    c.setDirectPost(true);
+    rs = s.executeQuery("ASK { ?s ?p ?o }");
+    assertTrue(rs instanceof BooleanResultSet);
+    rs.close();
+    c.close();
+  }
+
+  public void testLoopbackTransport() throws Exception {
+    LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\n<test:a>\n<test:b>\n");
+    Connection c = DriverManager.getConnection(new URL(ENDPOINT), loopback);
+    ResultSet rs = c.createStatement().executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    assertTrue(rs.next());
+    assertEquals(new Uri(new URI("test:a")), rs.getObject(1));
+    assertTrue(rs.next());
+    assertFalse(rs.next());
+    assertEquals(1, loopback.getRequestCount());
+    c.close();
+  }
+
+  public void testCache() throws Exception {
+    LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\n<test:a>\n<test:b>\n");
+    Connection c = DriverManager.getConnection(new URL(ENDPOINT), loopback);
+    QueryCache cache = new QueryCache(1024 * 1024, 1, 0, TimeUnit.HOURS);
+    c.setCache(cache);
+    Statement s = c.createStatement();
+    ResultSet rs1 = s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    ResultSet rs2 = s.executeQuery("SELECT ?x\n  WHERE { ?x ?p ?o }  ");
+    assertEquals(1, loopback.getRequestCount());
+    assertEquals(1, cache.size());
+    assertTrue(cache.getWeight() > 0);
+    assertTrue(rs1.next());
+    assertTrue(rs1.next());
+    assertTrue(rs2.next());
+    assertEquals(new Uri(new URI("test:a")), rs2.getObject(1));
+    assertEquals(new Uri(new URI("test:b")), rs1.getObject(1));
+
+    s.executeQuery("SELECT ?x WHERE { ?x ?p \"o  o\" }").close();
+    s.executeQuery("SELECT ?x WHERE { ?x ?p \"o o\" }").close();
+    s.setDefaultGraph("test:data");
+    s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }").close();
+    assertEquals(4, loopback.getRequestCount());
+
+    QueryCache small = new QueryCache(cache.getWeight() / 3, 1, 0, TimeUnit.HOURS);
+    c.setCache(small);
+    s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }").close();
+    s.executeQuery("SELECT ?y WHERE { ?y ?p ?o }").close();
+    assertEquals(1, small.size());
+
+    QueryCache stale = new QueryCache(1024 * 1024, 1, 60000, TimeUnit.MILLISECONDS);
+    c.setCache(stale);
+    s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }").close();
+    int requests = loopback.getRequestCount();
+    Thread.sleep(5);
+    rs1 = s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    assertTrue(rs1.next());
+    for (int i = 0; i < 100 && loopback.getRequestCount() == requests; i++) Thread.sleep(10);
+    assertEquals(requests + 1, loopback.getRequestCount());
+    c.close();
+  }
+
+  public void testCacheKeys() throws Exception {
+    URL url = new URL(ENDPOINT);
+    assertEquals(QueryCache.key(url, "", "SELECT * {?s ?p ?o} LIMIT 1"),
+                 QueryCache.key(url, "", "SELECT *\t{?s ?p ?o}  #c\nLIMIT 1 # done"));
+    assertFalse(QueryCache.key(url, "", "SELECT * {?s ?p ?o} #c\nLIMIT 1").equals(
+                QueryCache.key(url, "", "SELECT * {?s ?p ?o} #c LIMIT 1")));
+    assertFalse(QueryCache.key(url, "", "SELECT * { ?s ?p \"\"\"a \" b\"\"\" }").equals(
+                QueryCache.key(url, "", "SELECT * { ?s ?p \"\"\"a \"  b\"\"\" }")));
+    assertFalse(QueryCache.key(url, "", "SELECT * { ?s ?p \"it's  \" . ?s ?q 'x' }").equals(
+                QueryCache.key(url, "", "SELECT * { ?s ?p \"it's \" . ?s ?q 'x' }")));
+    assertFalse(QueryCache.key(url, "", "SELECT * { ?s ?p \"#\" . ?s ?q ?o }").equals(
+                QueryCache.key(url, "", "SELECT * { ?s ?p \"#\" }")));
+    assertFalse(QueryCache.key(url, "", "SELECT * { <test:a#b> ?p ?o . ?s ?q ?r }").equals(
+                QueryCache.key(url, "", "SELECT * { <test:a#b> ?p ?o }")));
+    assertEquals(QueryCache.key(url, "", "SELECT * { ?s ?p ?o FILTER(?o < 3 && ?o > 1) }"),
+                 QueryCache.key(url, "", "SELECT * { ?s ?p ?o FILTER(?o  <  3 && ?o > 1) }"));
+  }
+
+  public void testRevalidation() throws Exception {
+    LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\n<test:a>\n<test:b>\n");
+    loopback.setETag("\"v1\"");
+    Connection c = DriverManager.getConnection(new URL(ENDPOINT), loopback);
+    QueryCache cache = new QueryCache(1024 * 1024, 1, 0, TimeUnit.MILLISECONDS);
+    c.setCache(cache);
+    Statement s = c.createStatement();
+    s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }").close();
+    Thread.sleep(5);
+    ResultSet rs = s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    assertEquals(2, loopback.getRequestCount());
+    assertEquals(1, loopback.getNotModifiedCount());
+    assertTrue(rs.next());
+    assertEquals(new Uri(new URI("test:a")), rs.getObject(1));
+    assertTrue(rs.next());
+    assertFalse(rs.next());
+
+    loopback.setETag("\"v2\"");
+    Thread.sleep(5);
+    s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }").close();
+    assertEquals(3, loopback.getRequestCount());
+    assertEquals(1, loopback.getNotModifiedCount());
+    assertEquals("\"v2\"", cache.get(QueryCache.key(new URL(ENDPOINT), "", "SELECT ?x WHERE { ?x ?p ?o }")).getETag());
+    c.close();
+  }
+
+  public void testDiskCache() throws Exception {
+    File dir = File.createTempFile("scon", "cache");
+    dir.delete();
+    LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\t?y\n<test:a>\t\"chat\"@fr\n_:b1\t\n<test:c>\t42\n");
+    Connection c = DriverManager.getConnection(new URL(ENDPOINT), loopback);
+    QueryCache cache = new QueryCache(1024 * 1024, 1, 0, TimeUnit.HOURS);
+    cache.setDiskCache(new DiskCache(dir, 1024 * 1024));
+    c.setCache(cache);
+    c.createStatement().executeQuery("SELECT * WHERE { ?x ?p ?y }").close();
+    assertEquals(1, cache.getDiskCache().size());
+
+    // a new cache over the same directory, as after a restart
+    cache = new QueryCache(1024 * 1024, 1, 0, TimeUnit.HOURS);
+    cache.setDiskCache(new DiskCache(dir, 1024 * 1024));
+    c.setCache(cache);
+    ResultSet rs = c.createStatement().executeQuery("SELECT * WHERE { ?x ?p ?y }");
+    assertEquals(1, loopback.getRequestCount());
+    assertTrue(rs.next());
+    assertEquals(new Uri(new URI("test:a")), rs.getObject("x"));
+    assertEquals(new Literal("chat", "fr"), rs.getObject("y"));
+    assertTrue(rs.next());
+    assertEquals(new Bnode("b1"), rs.getObject("x"));
+    assertNull(rs.getObject("y"));
+    assertTrue(rs.next());
+    assertEquals("42", ((Literal)rs.getObject("y")).getText());
+    assertFalse(rs.next());
+
+    cache.getDiskCache().clear();
+    assertEquals(0, cache.getDiskCache().getSize());
+
+    // reading a file makes it the most recently used, with nothing held in memory
+    cache = new QueryCache(1, 1, 0, TimeUnit.HOURS);
+    cache.setDiskCache(new DiskCache(dir, 1024 * 1024));
+    c.setCache(cache);
+    c.createStatement().executeQuery("SELECT * WHERE { ?a ?p ?y }").close();
+    long length = cache.getDiskCache().getSize();
+    cache.setDiskCache(new DiskCache(dir, length * 5 / 2));
+    c.createStatement().executeQuery("SELECT * WHERE { ?b ?p ?y }").close();
+    c.createStatement().executeQuery("SELECT * WHERE { ?a ?p ?y }").close();
+    assertEquals(3, loopback.getRequestCount());
+    c.createStatement().executeQuery("SELECT * WHERE { ?c ?p ?y }").close();
+    assertEquals(2, cache.getDiskCache().size());
+    c.createStatement().executeQuery("SELECT * WHERE { ?a ?p ?y }").close();
+    assertEquals(4, loopback.getRequestCount());
+    c.createStatement().executeQuery("SELECT * WHERE { ?b ?p ?y }").close();
+    assertEquals(5, loopback.getRequestCount());
+
+    cache.getDiskCache().clear();
+    dir.delete();
+    c.close();
+  }
+
+  public void testCoalescing() throws Exception {
+    LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\n<test:a>\n<test:b>\n");
+    loopback.setDelay(200);
+    Connection c = DriverManager.getConnection(new URL(ENDPOINT), loopback);
+    assertTrue(c.getCoalescing());
+    Statement s = c.createStatement();
+    List<Future<ResultSet>> results = new ArrayList<Future<ResultSet>>();
+    for (int i = 0; i < 10; i++) results.add(s.executeQueryAsync("SELECT ?x WHERE { ?x ?p ?o }"));
+    for (Future<ResultSet> f: results) {
+      ResultSet rs = f.get();
+      assertTrue(rs.next());
+      assertEquals(new Uri(new URI("test:a")), rs.getObject(1));
+      assertTrue(rs.next());
+      assertFalse(rs.next());
+    }
+    assertEquals(1, loopback.getRequestCount());
+
+    c.setCoalescing(false);
+    results.clear();
+    for (int i = 0; i < 3; i++) results.add(s.executeQueryAsync("SELECT ?x WHERE { ?x ?p ?o }"));
+    for (Future<ResultSet> f: results) f.get().close();
+    assertEquals(4, loopback.getRequestCount());
+    c.close();
+  }
+
+  public void testCoalescedCancel() throws Exception {
+    LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\n<test:a>\n");
+    loopback.setDelay(500);
+    Connection c = DriverManager.getConnection(new URL(ENDPOINT), loopback);
+    Statement first = c.createStatement();
+    Statement second = c.createStatement();
+    Future<ResultSet> cancelled = first.executeQueryAsync("SELECT ?x WHERE { ?x ?p ?o }");
+    Thread.sleep(100);
+    Future<ResultSet> waiting = second.executeQueryAsync("SELECT ?x WHERE { ?x ?p ?o }");
+    Thread.sleep(100);
+    first.cancel();
+    try {
+      cancelled.get();
+      fail("Query should have been cancelled");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CancelledException);
+    }
+    ResultSet rs = waiting.get();
+    assertTrue(rs.next());
+    assertEquals(new Uri(new URI("test:a")), rs.getObject(1));
+    assertEquals(1, loopback.getRequestCount());
+    assertEquals(0, loopback.getAbortedCount());
+
+    second.setQueryTimeout(1);
+    loopback.setDelay(3000);
+    try {
+      second.executeQuery("SELECT ?y WHERE { ?y ?p ?o }");
+      fail("Query should have timed out");
+    } catch (QueryTimeoutException e) { }
+    Thread.sleep(100);
+    assertEquals(1, loopback.getAbortedCount());
+    c.close();
+  }
+
+  public void testCancel() throws Exception {
+    LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\n<test:a>\n");
+    loopback.setDelay(3000);
+    Connection c = DriverManager.getConnection(new URL(ENDPOINT), loopback);
+    Statement s = c.createStatement();
+    s.setQueryTimeout(1);
+    assertEquals(1, s.getQueryTimeout());
+    long start = System.currentTimeMillis();
+    try {
+      s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+      fail("Query should have timed out");
+    } catch (QueryTimeoutException e) {
+      assertTrue(System.currentTimeMillis() - start < 2500);
+    }
+
+    s.setQueryTimeout(0);
+    Future<ResultSet> result = s.executeQueryAsync("SELECT ?y WHERE { ?y ?p ?o }");
+    Thread.sleep(200);
+    s.cancel();
+    try {
+      result.get();
+      fail("Query should have been cancelled");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CancelledException);
+    }
+
+    Thread.sleep(100);
+    int aborted = loopback.getAbortedCount();
+    result = s.executeQueryAsync("SELECT ?z WHERE { ?z ?p ?o }");
+    Thread.sleep(200);
+    assertTrue(result.cancel(false));
+    Thread.sleep(100);
+    assertEquals(aborted + 1, loopback.getAbortedCount());
+
+    loopback.setDelay(0);
+    ResultSet rs = s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    assertTrue(rs.next());
+    c.close();
+  }
+
+  public void testRetry() throws Exception {
+    LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\n<test:a>\n");
+    Connection c = DriverManager.getConnection(new URL(ENDPOINT), loopback);
+    Statement s = c.createStatement();
+    loopback.setFailures(1, 503);
+    try {
+      s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+      fail("Query should not have been retried");
+    } catch (ServerException e) { }
+    assertEquals(1, loopback.getRequestCount());
+
+    c.setRetryPolicy(new RetryPolicy(3, 10, 100, TimeUnit.MILLISECONDS));
+    loopback.setFailures(2, 503);
+    ResultSet rs = s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    assertTrue(rs.next());
+    assertEquals(4, loopback.getRequestCount());
+
+    loopback.setFailures(3, 502);
+    try {
+      s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+      fail("Query should have run out of attempts");
+    } catch (ServerException e) { }
+    assertEquals(7, loopback.getRequestCount());
+
+    loopback.setFailures(1, 400);
+    try {
+      s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+      fail("Client errors should not be retried");
+    } catch (ClientException e) { }
+    assertEquals(8, loopback.getRequestCount());
+    c.close();
+  }
+
+  public void testHedging() throws Exception {
+    LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\n<test:a>\n");
+    Connection c = DriverManager.getConnection(new URL(ENDPOINT), loopback);
+    c.setHedgePolicy(new HedgePolicy(50, 100, TimeUnit.MILLISECONDS));
+    Statement s = c.createStatement();
+    loopback.setStalls(1, 5000);
+    long start = System.currentTimeMillis();
+    ResultSet rs = s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    assertTrue(System.currentTimeMillis() - start < 2000);
+    assertTrue(rs.next());
+    assertEquals(2, loopback.getRequestCount());
+    Thread.sleep(100);
+    assertEquals(1, loopback.getAbortedCount());
+
+    rs = s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    assertTrue(rs.next());
+    assertEquals(3, loopback.getRequestCount());
+
+    // no duplicate is sent without a free place in the limit
+    c.setConcurrencyLimiter(new ConcurrencyLimiter(1));
+    loopback.setStalls(1, 300);
+    start = System.currentTimeMillis();
+    rs = s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    assertTrue(System.currentTimeMillis() - start >= 250);
+    assertTrue(rs.next());
+    assertEquals(4, loopback.getRequestCount());
+    assertEquals(0, c.getConcurrencyLimiter().getInFlight());
+    c.close();
+  }
+
+  public void testHedgingReplicas() throws Exception {
+    final LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\n<test:a>\n");
+    final List<String> hosts = new ArrayList<String>();
+    Transport recording = new Transport() {
+      public HttpResponse execute(HttpUriRequest request) throws IOException {
+        synchronized (hosts) {
+          hosts.add(request.getURI().getHost());
+        }
+        return loopback.execute(request);
+      }
+      public void setExpectContinue(boolean expectContinue) { }
+      public void setSoTimeout(int soTimeout) { }
+      public void setConnectTimeout(int connectTimeout) { }
+      public void close() { }
+    };
+    List<URL> endpoints = Arrays.asList(new URL("http://first/sparql"), new URL("http://second/sparql"));
+    Connection c = DriverManager.getConnection(endpoints, recording);
+    c.setHedgePolicy(new HedgePolicy(50, 100, TimeUnit.MILLISECONDS));
+    Statement s = c.createStatement();
+    for (int i = 0; i < 4; i++) {
+      loopback.setStalls(1, 2000);
+      ResultSet rs = s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+      assertTrue(rs.next());
+      synchronized (hosts) {
+        assertEquals(2, hosts.size());
+        assertFalse(hosts.get(0).equals(hosts.get(1)));
+        hosts.clear();
+      }
+    }
+    c.close();
+  }
+
+  public void testReplicas() throws Exception {
+    final LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\n<test:a>\n");
+    final Map<String,Integer> hits = new HashMap<String,Integer>();
+    Transport flaky = new Transport() {
+      public HttpResponse execute(HttpUriRequest request) throws IOException {
+        String host = request.getURI().getHost();
+        synchronized (hits) {
+          hits.put(host, hits.containsKey(host) ? hits.get(host) + 1 : 1);
+        }
+        if (host.equals("bad")) throw new ConnectException("Connection refused");
+        return loopback.execute(request);
+      }
+      public void setExpectContinue(boolean expectContinue) { }
+      public void setSoTimeout(int soTimeout) { }
+      public void setConnectTimeout(int connectTimeout) { }
+      public void close() { }
+    };
+    List<URL> endpoints = Arrays.asList(new URL("http://good1/sparql"), new URL("http://bad/sparql"), new URL("http://good2/sparql"));
+    Connection c = DriverManager.getConnection(endpoints, flaky);
+    c.setRetryPolicy(new RetryPolicy(3, 1, 10, TimeUnit.MILLISECONDS));
+    c.getReplicaSet().setEjection(3, 500, 1000, TimeUnit.MILLISECONDS);
+    Statement s = c.createStatement();
+    for (int i = 0; i < 30; i++) {
+      ResultSet rs = s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+      assertTrue(rs.next());
+    }
+    assertEquals(3, hits.get("bad").intValue());
+    assertEquals(30, hits.get("good1") + hits.get("good2"));
+    assertTrue(hits.get("good1") > 5 && hits.get("good2") > 5);
+    assertEquals(2, c.getReplicaSet().getHealthy().size());
+
+    // once the ejection is over, a single probe is sent, and it fails
+    Thread.sleep(600);
+    for (int i = 0; i < 5; i++) s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    assertEquals(4, hits.get("bad").intValue());
+    c.close();
+  }
+
+  public void testLoadShedding() throws Exception {
+    LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\n<test:a>\n");
+    Connection c = DriverManager.getConnection(new URL(ENDPOINT), loopback);
+    CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 4, 300, TimeUnit.MILLISECONDS);
+    c.setCircuitBreaker(breaker);
+    Statement s = c.createStatement();
+    loopback.setFailures(4, 503);
+    for (int i = 0; i < 4; i++) {
+      try {
+        s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+        fail("Query should have failed");
+      } catch (ServerException e) { }
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    try {
+      s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+      fail("Circuit should be open");
+    } catch (RejectedException e) { }
+    assertEquals(4, loopback.getRequestCount());
+    Thread.sleep(350);
+    assertTrue(s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }").next());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+    c.setConcurrencyLimiter(new ConcurrencyLimiter(1, 1, 1, 0, 100, TimeUnit.MILLISECONDS));
+    loopback.setDelay(300);
+    Future<ResultSet> first = s.executeQueryAsync("SELECT ?x WHERE { ?x ?p ?o }");
+    Thread.sleep(100);
+    try {
+      s.executeQuery("SELECT ?y WHERE { ?y ?p ?o }");
+      fail("Query over the limit should have been refused");
+    } catch (RejectedException e) { }
+    assertTrue(first.get().next());
+    assertEquals(0, c.getConcurrencyLimiter().getInFlight());
+    c.close();
+  }
+
+  public void testLimitHeldWhileReading() throws Exception {
+    StringBuilder body = new StringBuilder("?x\n");
+    for (int i = 0; i < 20000; i++) body.append("<test:a").append(i).append(">\n");
+    LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", body.toString());
+    Connection c = DriverManager.getConnection(new URL(ENDPOINT), loopback);
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0, 100, TimeUnit.MILLISECONDS);
+    c.setConcurrencyLimiter(limiter);
+    Statement s = c.createStatement(java.sql.ResultSet.TYPE_FORWARD_ONLY, java.sql.ResultSet.CONCUR_READ_ONLY);
+    ResultSet streamed = s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    assertTrue(streamed.next());
+    assertEquals(1, limiter.getInFlight());
+    try {
+      s.executeQuery("SELECT ?y WHERE { ?y ?p ?o }");
+      fail("Query over the limit should have been refused while results are streamed");
+    } catch (RejectedException e) { }
+    streamed.close();
+    assertEquals(0, limiter.getInFlight());
+
+    streamed = s.executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    int rows = 0;
+    while (streamed.next()) rows++;
+    assertEquals(20000, rows);
+    assertEquals(0, limiter.getInFlight());
+
+    ResultSet buffered = c.createStatement().executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    assertEquals(0, limiter.getInFlight());
+    assertTrue(buffered.next());
+    c.close();
+  }
+
+  public void testDataSource() throws Exception {
+    final LoopbackTransport loopback = new LoopbackTransport("text/tab-separated-values", "?x\n<test:a>\n");
+    DataSource ds = new DataSource(new ConnectionPoolDataSource(ENDPOINT) {
+      public PooledConnection getPooledConnection() throws java.sql.SQLException {
+        try {
+          return new PooledConnection(DriverManager.getConnection(new URL(ENDPOINT), loopback));
+        } catch (IOException e) {
+          throw new SparqlException(e);
+        }
+      }
+    });
+    ds.setMaxTotal(2);
+    ds.setMaxWait(100);
+    ds.setValidationInterval(0);
+    java.sql.Connection c1 = ds.getConnection();
+    assertTrue(c1.isValid(5));
+    Connection physical = c1.unwrap(Connection.class);
+    java.sql.Connection c2 = ds.getConnection();
+    assertEquals(2, ds.getActiveCount());
+    try {
+      ds.getConnection();
+      fail("Pool should be exhausted");
+    } catch (SparqlException e) { }
+
+    c1.close();
+    assertTrue(c1.isClosed());
+    assertEquals(1, ds.getIdleCount());
+    java.sql.Connection c3 = ds.getConnection();
+    assertSame(physical, c3.unwrap(Connection.class));
+    physical.setDefaultGraph("test:data");
+    physical.setCompression(true);
+    physical.setSoTimeout(1234);
+    physical.setCache(new QueryCache(1024 * 1024, 1, 0, TimeUnit.HOURS));
+    java.sql.ResultSet rs = c3.createStatement().executeQuery("SELECT ?x WHERE { ?x ?p ?o }");
+    assertTrue(rs.next());
+
+    c3.close();
+    java.sql.Connection c5 = ds.getConnection();
+    assertSame(physical, c5.unwrap(Connection.class));
+    assertTrue(physical.getDefaultGraphs().isEmpty());
+    assertFalse(physical.getCompression());
+    assertEquals(5000, physical.getSoTimeout());
+    assertNull(physical.getCache());
+    c5.close();
+    ds.setLeakThreshold(1);
+    java.sql.Connection c4 = ds.getConnection();
+    Thread.sleep(20);
+    try {
+      ds.getConnection();
+      fail("Pool should be exhausted");
+    } catch (SparqlException e) { }
+    assertEquals(1, ds.getLeakCount());
+    c4.close();
+    c2.close();
+    ds.close();
+    assertEquals(0, ds.getIdleCount());
+  }
+
   public void testQuery() throws Exception {
     Connection c = DriverManager.getConnection(ENDPOINT);
     Statement s = c.createStatement();
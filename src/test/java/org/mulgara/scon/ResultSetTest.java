@@ -8,6 +8,11 @@ import java.net.URI;
 
 import org.mulgara.scon.impl.*;
 import org.mulgara.scon.parser.XMLResultSetParser;
+import org.mulgara.scon.parser.StreamingXMLResultSetParser;
+import org.mulgara.scon.parser.ScanningXMLResultSetParser;
+import org.mulgara.scon.parser.JsonResultSetParser;
+import org.mulgara.scon.parser.TsvResultSetParser;
+import org.mulgara.scon.parser.CsvResultSetParser;
 import org.mulgara.scon.parser.XMLGraphParser;
 import org.mulgara.scon.parser.N3GraphParser;
 import org.mulgara.mrg.Bnode;
@@ -129,6 +134,364 @@ public class ResultSetTest extends TestCase {
     } catch (Exception e) { }
   }
 
+  /**
+   * Test that the byte scanner reads the same bindings as the SAX parser
+   */
+  public void testScannedBindings() throws Exception {
+    ResultSet rs = new ScanningXMLResultSetParser(bindingsDoc, null).getResultSet();
+    ResultSet expected = new XMLResultSetParser(bindingsDoc, null).getResultSet();
+    assertEquals(BINDINGS, rs.getSparqlType());
+    assertEquals(expected.findColumn("friend"), rs.findColumn("friend"));
+    expected.beforeFirst();
+    while (expected.next()) {
+      assertTrue(rs.next());
+      for (int c = 1; c <= 6; c++) assertEquals(expected.getObject(c), rs.getObject(c));
+    }
+    assertFalse(rs.next());
+
+    rs = new ScanningXMLResultSetParser(falseDoc, null).getResultSet();
+    assertEquals(BOOLEAN, rs.getSparqlType());
+    assertFalse(((BooleanResultSet)rs).getValue());
+    assertEquals(URI.create("foo:bar"), rs.getLinks().get(0));
+  }
+
+  /**
+   * Test that escaped and split text is read whole by both XML parsers
+   */
+  public void testXmlText() throws Exception {
+    StringBuilder longText = new StringBuilder();
+    while (longText.length() < 20000) longText.append("caf\u00e9 & \ud834\udd1e < ");
+    String doc = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+        "<!-- results -->\n" +
+        "<res:sparql xmlns:res=\"http://www.w3.org/2005/sparql-results#\">\n" +
+        "  <res:head><res:variable name='a'/><res:variable name=\"b\"></res:variable></res:head>\n" +
+        "  <res:results>\n" +
+        "    <res:result><res:binding name=\"b\"><res:literal>x &amp; y &lt;&#65;&#x42;&gt; &quot;z&apos;</res:literal></res:binding>" +
+        "<res:binding name=\"a\"><res:literal xml:lang=\"en\"> <![CDATA[<b>]]> </res:literal></res:binding></res:result>\n" +
+        "    <res:result><res:binding name=\"a\"><res:literal></res:literal></res:binding>" +
+        "<res:binding name=\"b\"><res:literal>" + longText.toString().replace("&", "&amp;").replace("<", "&lt;") + "</res:literal></res:binding></res:result>\n" +
+        "  </res:results>\n" +
+        "</res:sparql>\n";
+
+    ResultSet rs = new ScanningXMLResultSetParser(doc, null).getResultSet();
+    assertTrue(rs.next());
+    assertEquals(new Literal("x & y <AB> \"z'"), rs.getObject("b"));
+    assertEquals(new Literal(" <b> ", "en"), rs.getObject("a"));
+    assertTrue(rs.next());
+    assertEquals(new Literal(""), rs.getObject("a"));
+    assertEquals(new Literal(longText.toString()), rs.getObject("b"));
+    assertFalse(rs.next());
+
+    rs = new XMLResultSetParser(bindingsDoc.replace("Bob", "B&amp;o&#98;"), null).getResultSet();
+    assertTrue(rs.next());
+    assertEquals(new Literal("B&ob", "en"), rs.getObject("name"));
+  }
+
+  /**
+   * Test that nodes are only built for the values that are asked for
+   */
+  public void testLazyTerms() throws Exception {
+    String doc = bindingsDoc.replace("http://work.example.org/bob/", "not a uri")
+        .replace("XMLSchema#integer\">30", "XMLSchema#date\">2010-06-01");
+    ResultSet rs = new ScanningXMLResultSetParser(doc, null).getResultSet();
+    assertTrue(rs.next());
+    assertEquals("not a uri", rs.getString("hpage"));
+    try {
+      rs.getObject("hpage");
+      fail("Invalid URI should be reported when it is read");
+    } catch (SparqlException e) { }
+    Literal date = (Literal)rs.getObject("age");
+    assertEquals("2010-06-01", date.getText());
+    assertEquals(URI.create("http://www.w3.org/2001/XMLSchema#date"), date.getType());
+    assertSame(date, rs.getObject("age"));
+    assertEquals("Bob", rs.getString("name"));
+    assertTrue(rs.next());
+    assertNull(rs.getString("friend"));
+  }
+
+  /**
+   * Test that identical terms are shared between rows
+   */
+  public void testSharedTerms() throws Exception {
+    String doc = bindingsDoc.replace("XMLSchema#integer\">35", "XMLSchema#integer\">30");
+    ResultSet rs = new ScanningXMLResultSetParser(doc, null).getResultSet();
+    assertTrue(rs.next());
+    Object age = rs.getObject("age");
+    assertTrue(rs.next());
+    assertSame(age, rs.getObject("age"));
+
+    rs = new N3GraphParser("<test:a> <test:p> \"x\" .\n<test:b> <test:p> \"x\" .\n", null).getResultSet();
+    assertTrue(rs.next());
+    Object object = rs.getObject("object");
+    assertTrue(rs.next());
+    assertSame(object, rs.getObject("object"));
+    String xml = graphDoc.replace("rdf:datatype=\"&xsd;float\">9.5", ">Alice Smith");
+    rs = new XMLGraphParser(xml, null).getResultSet();
+    assertTrue(rs.next());
+    object = rs.getObject("object");
+    assertTrue(rs.next());
+    assertSame(object, rs.getObject("object"));
+
+    TermDictionary terms = new TermDictionary(2);
+    assertSame(terms.uri("http://example.org/a"), terms.uri("http://example.org/a"));
+    assertNotSame(terms.bnode("b0"), terms.bnode("b0"));
+    Term lit = terms.literal("x", "http://www.w3.org/2001/XMLSchema#string", null);
+    assertEquals(2, terms.getSize());
+    assertNotSame(lit, terms.literal("x", "http://www.w3.org/2001/XMLSchema#string", null));
+    assertEquals(2, terms.getHits());
+  }
+
+  /**
+   * Test that rows held by column return the values they were given
+   */
+  public void testColumnarRows() throws Exception {
+    String xsd = "http://www.w3.org/2001/XMLSchema#";
+    Term[][] rows = {
+      { null, Term.literal("2.5", xsd + "double", null), Term.literal("-42", xsd + "integer", null) },
+      { Term.literal("7", xsd + "integer", null), null, Term.literal("9223372036854775807", xsd + "integer", null) },
+      { Term.literal("007", xsd + "integer", null), Term.literal("1.0E0", xsd + "double", null), null },
+      { Term.uri("http://example.org/a"), Term.literal("x", null, "en"), Term.literal("0", xsd + "integer", null) }
+    };
+    ColumnarRows columns = new ColumnarRows(3);
+    for (Term[] row: rows) columns.add(row);
+    assertEquals(rows.length, columns.size());
+    for (int r = 0; r < rows.length; r++) {
+      for (int c = 0; c < 3; c++) assertSame(rows[r][c], columns.get(r, c));
+    }
+    assertEquals(java.util.Arrays.asList(rows[3]), java.util.Arrays.asList(columns.get(3)));
+    try {
+      columns.get(4, 0);
+      fail("Reading past the last row should fail");
+    } catch (IndexOutOfBoundsException e) { }
+    assertEquals("007", columns.getLexical(2, 0));
+    assertEquals("1.0E0", columns.getLexical(2, 1));
+    assertTrue(columns.holdsLongs(2));
+    assertEquals(Long.MAX_VALUE, columns.getLong(1, 2));
+    assertFalse(columns.isBound(2, 2));
+
+    String[] xsdForms = { "1.0E0", "1.5E1", "-2.5E-3", "-0.0E0", "INF", "1.0E10" };
+    String[] javaForms = { "1.0", "15.0", "-0.0025", "0.0", "NaN", "1.0E10" };
+    ColumnarRows doubles = new ColumnarRows(2);
+    for (int r = 0; r < xsdForms.length; r++) {
+      doubles.add(new Term[] { Term.literal(xsdForms[r], xsd + "double", null), Term.literal(javaForms[r], xsd + "double", null) });
+    }
+    assertTrue(doubles.holdsNumbers(0));
+    assertTrue(doubles.holdsNumbers(1));
+    for (int r = 0; r < xsdForms.length; r++) {
+      assertEquals(xsdForms[r], doubles.getLexical(r, 0));
+      assertEquals(javaForms[r], doubles.getLexical(r, 1));
+    }
+    assertEquals(15.0, doubles.getDouble(1, 0));
+    doubles.add(new Term[] { Term.literal("2.5", xsd + "double", null), null });
+    assertFalse(doubles.holdsNumbers(0));
+    assertEquals("1.5E1", doubles.getLexical(1, 0));
+
+    // terms past those kept for a column of numbers are built again as they were
+    ColumnarRows many = new ColumnarRows(1);
+    for (int i = 0; i < 2000; i++) many.add(new Term[] { Term.literal(Integer.toString(i * 7), xsd + "integer", null) });
+    assertTrue(many.holdsLongs(0));
+    for (int i = 0; i < 2000; i++) assertEquals(Term.literal(Integer.toString(i * 7), xsd + "integer", null), many.get(i, 0));
+    assertSame(many.get(0, 0), many.get(0, 0));
+
+    ResultSet rs = new BindingsResultSet(new ResultSetHeader(java.util.Arrays.asList("a", "b", "c"),
+        java.util.Collections.<URI>emptyList()), java.util.Arrays.asList(rows), null);
+    assertTrue(rs.absolute(2));
+    assertEquals("9223372036854775807", rs.getString("c"));
+    assertEquals(new Literal("7", new URI(xsd + "integer")), rs.getObject(1));
+    assertNull(rs.getObject("b"));
+  }
+
+  /**
+   * Test that typed values are read from the lexical form of the bindings
+   */
+  public void testTypedGetters() throws Exception {
+    String xsd = "http://www.w3.org/2001/XMLSchema#";
+    Term[][] rows = {
+      { Term.literal(" +42 ", xsd + "integer", null), Term.literal("1.5E1", xsd + "double", null),
+        Term.literal("true", xsd + "boolean", null), Term.literal("2010-06-01T12:30:15.25-05:00", xsd + "dateTime", null) },
+      { Term.literal("-7", xsd + "integer", null), Term.literal("INF", xsd + "double", null),
+        null, Term.literal("2010-06-01Z", xsd + "date", null) }
+    };
+    ResultSet rs = new BindingsResultSet(new ResultSetHeader(java.util.Arrays.asList("i", "d", "b", "t"),
+        java.util.Collections.<URI>emptyList()), java.util.Arrays.asList(rows), null);
+    assertTrue(rs.next());
+    assertEquals(42, rs.getInt("i"));
+    assertEquals(42L, rs.getLong(1));
+    assertEquals(new java.math.BigDecimal("42"), rs.getBigDecimal("i"));
+    assertEquals(15.0, rs.getDouble("d"));
+    assertEquals(15L, rs.getLong("d"));
+    assertEquals(Long.valueOf(15), rs.getObject("d", Long.class));
+    assertTrue(rs.getBoolean("b"));
+    assertFalse(rs.wasNull());
+    java.sql.Timestamp ts = rs.getTimestamp("t");
+    assertEquals(1275413415250L, ts.getTime());
+    assertEquals(250000000, ts.getNanos());
+    try {
+      rs.getInt("t");
+      fail("A date should not be read as a number");
+    } catch (SparqlException e) { }
+    assertTrue(rs.next());
+    assertEquals(-7, rs.getInt(1));
+    assertEquals(Double.POSITIVE_INFINITY, rs.getDouble("d"));
+    assertFalse(rs.getBoolean("b"));
+    assertTrue(rs.wasNull());
+    assertNull(rs.getObject("b", Boolean.class));
+    assertEquals(1275350400000L, rs.getDate("t").getTime());
+    assertFalse(rs.wasNull());
+
+    // a bare sign and Java's own number forms are not XSD numbers
+    for (String bad: new String[] { "-", "+", "0x1p3", "1.5d", "Infinity" }) {
+      rs = new BindingsResultSet(new ResultSetHeader(java.util.Arrays.asList("n"), java.util.Collections.<URI>emptyList()),
+          java.util.Collections.singletonList(new Term[] { Term.literal(bad, xsd + "double", null) }), null);
+      assertTrue(rs.next());
+      try {
+        rs.getDouble(1);
+        fail("Read a double from: " + bad);
+      } catch (SparqlException e) { }
+      try {
+        rs.getLong(1);
+        fail("Read a long from: " + bad);
+      } catch (SparqlException e) { }
+    }
+
+    rs = new StreamingXMLResultSetParser(bindingsDoc, null).getResultSet();
+    assertTrue(rs.next());
+    assertEquals(30, rs.getInt("age"));
+    assertEquals(URI.create("http://work.example.org/bob/"), rs.getUri("hpage"));
+    assertEquals("Bob", rs.getObject("name", String.class));
+    assertTrue(rs.next());
+    assertNull(rs.getString("friend"));
+    assertTrue(rs.wasNull());
+  }
+
+  /**
+   * Test that streamed bindings are read in order, and cannot be rewound
+   */
+  public void testStreamingBindings() throws Exception {
+    StreamingXMLResultSetParser parser = new StreamingXMLResultSetParser(bindingsDoc, null);
+    ResultSet rs = parser.getResultSet();
+    assertEquals(BINDINGS, rs.getSparqlType());
+    assertEquals(java.sql.ResultSet.TYPE_FORWARD_ONLY, rs.getType());
+    assertEquals(0, parser.getProcessedRows());
+    assertTrue(rs.isBeforeFirst());
+    assertTrue(rs.next());
+    assertEquals(1, parser.getProcessedRows());
+    assertEquals(new Bnode("r2"), rs.getObject("x"));
+    assertEquals(new Literal("Bob", "en"), rs.getObject("name"));
+    assertEquals(new Literal("30", new URI("http://www.w3.org/2001/XMLSchema#integer")), rs.getObject("age"));
+    assertEquals(new Uri("http://work.example.org/fred/#me"), rs.getObject(6));
+    try {
+      rs.previous();
+      fail("Streamed results should not move backwards");
+    } catch (SparqlException e) { }
+    assertTrue(rs.next());
+    assertEquals(new Bnode("r7"), rs.getObject("x"));
+    assertEquals(new Literal("Fred", "fr"), rs.getObject("name"));
+    assertEquals(null, rs.getObject("friend"));
+    assertFalse(rs.next());
+    assertTrue(rs.isAfterLast());
+    assertEquals(2, parser.getProcessedRows());
+  }
+
+  /**
+   * Test that boolean results parse in streaming mode
+   */
+  public void testStreamingBoolean() throws Exception {
+    ResultSet rs = new StreamingXMLResultSetParser(falseDoc, null).getResultSet();
+    assertEquals(BOOLEAN, rs.getSparqlType());
+    assertFalse(((BooleanResultSet)rs).getValue());
+    assertEquals(URI.create("foo:bar"), rs.getLinks().get(0));
+  }
+
+  /**
+   * Test that JSON bindings result sets contain appropriate data
+   */
+  public void testJsonBindings() throws Exception {
+    JsonResultSetParser parser = new JsonResultSetParser(jsonBindingsDoc, null);
+    ResultSet rs = parser.getResultSet();
+    assertEquals(BINDINGS, rs.getSparqlType());
+    assertEquals(2, parser.getProcessedRows());
+    assertEquals(URI.create("foo:bar"), rs.getLinks().get(0));
+    assertTrue(rs.next());
+    assertEquals(new Bnode("r2"), rs.getObject("x"));
+    assertEquals(new Uri("http://work.example.org/bob/"), rs.getObject("hpage"));
+    assertEquals(new Literal("Bob \"B\u00e9b\u00e9\"", "en"), rs.getObject("name"));
+    assertEquals(new Literal("30", new URI("http://www.w3.org/2001/XMLSchema#integer")), rs.getObject("age"));
+    assertTrue(rs.next());
+    assertEquals(new Literal("Fred"), rs.getObject("name"));
+    assertEquals(new Literal("35", new URI("http://www.w3.org/2001/XMLSchema#integer")), rs.getObject("age"));
+    assertEquals(null, rs.getObject("hpage"));
+    assertFalse(rs.next());
+    assertTrue(rs.previous());
+    assertEquals(new Bnode("r7"), rs.getObject("x"));
+  }
+
+  /**
+   * Test that JSON bindings can be read before the header
+   */
+  public void testJsonBindingsBeforeHead() throws Exception {
+    ResultSet rs = new JsonResultSetParser(
+        "{ \"results\": { \"bindings\": [ { \"b\": { \"type\": \"bnode\", \"value\": \"b0\" }, " +
+        "\"a\": { \"type\": \"literal\", \"value\": \"x\" } } ] }, " +
+        "\"head\": { \"vars\": [ \"a\", \"b\" ] } }", null).getResultSet();
+    assertTrue(rs.next());
+    assertEquals(new Literal("x"), rs.getObject(1));
+    assertEquals(new Bnode("b0"), rs.getObject(2));
+    assertFalse(rs.next());
+  }
+
+  /**
+   * Test that JSON boolean results parse
+   */
+  public void testJsonBoolean() throws Exception {
+    ResultSet rs = new JsonResultSetParser("{ \"head\": { }, \"boolean\": true }", null).getResultSet();
+    assertEquals(BOOLEAN, rs.getSparqlType());
+    assertTrue(((BooleanResultSet)rs).getValue());
+    rs = new JsonResultSetParser("{\"boolean\":false}", null).getResultSet();
+    assertFalse(((BooleanResultSet)rs).getValue());
+  }
+
+  /**
+   * Test that TSV results keep their term types
+   */
+  public void testTsvBindings() throws Exception {
+    TsvResultSetParser parser = new TsvResultSetParser(tsvDoc, null);
+    ResultSet rs = parser.getResultSet();
+    assertEquals(BINDINGS, rs.getSparqlType());
+    assertEquals(2, parser.getProcessedRows());
+    assertEquals("x", rs.getMetaData().getColumnName(1));
+    assertEquals("count", rs.getMetaData().getColumnName(5));
+    assertTrue(rs.next());
+    assertEquals(new Bnode("r2"), rs.getObject("x"));
+    assertEquals(new Uri("http://work.example.org/bob/"), rs.getObject("hpage"));
+    assertEquals(new Literal("Bob\t\"B\u00e9b\u00e9\"", "en"), rs.getObject("name"));
+    assertEquals(new Literal("30", new URI("http://www.w3.org/2001/XMLSchema#integer")), rs.getObject("age"));
+    assertEquals(new Literal("1.5e3", new URI("http://www.w3.org/2001/XMLSchema#double")), rs.getObject("count"));
+    assertTrue(rs.next());
+    assertEquals(null, rs.getObject("hpage"));
+    assertEquals(new Literal("Fred"), rs.getObject("name"));
+    assertEquals(new Literal("35", new URI("http://www.w3.org/2001/XMLSchema#int")), rs.getObject("age"));
+    assertEquals(new Literal("-2.50", new URI("http://www.w3.org/2001/XMLSchema#decimal")), rs.getObject("count"));
+    assertFalse(rs.next());
+  }
+
+  /**
+   * Test that CSV results are read as blank nodes and plain literals
+   */
+  public void testCsvBindings() throws Exception {
+    ResultSet rs = new CsvResultSetParser(csvDoc, null).getResultSet();
+    assertEquals("x", rs.getMetaData().getColumnName(1));
+    assertEquals("name", rs.getMetaData().getColumnName(2));
+    assertTrue(rs.next());
+    assertEquals(new Bnode("r2"), rs.getObject("x"));
+    assertEquals(new Literal("Bob, \"the\"\nbuilder"), rs.getObject("name"));
+    assertEquals(new Literal("30"), rs.getObject("age"));
+    assertTrue(rs.next());
+    assertEquals(new Literal("Fred"), rs.getObject("name"));
+    assertEquals(null, rs.getObject("age"));
+    assertFalse(rs.next());
+  }
+
   public void testMetadata() throws Exception {
     XMLResultSetParser parser = new XMLResultSetParser(bindingsDoc, null);
     ResultSet rs = parser.getResultSet();
@@ -290,6 +653,34 @@ public class ResultSetTest extends TestCase {
       "  </results>\n" +
       "</sparql>\n";
 
+  static final String jsonBindingsDoc = "{\n" +
+      "  \"head\": { \"vars\": [ \"x\", \"hpage\", \"name\", \"age\" ], \"link\": [ \"foo:bar\" ] },\n" +
+      "  \"results\": {\n" +
+      "    \"ordered\": false,\n" +
+      "    \"bindings\": [\n" +
+      "      {\n" +
+      "        \"x\": { \"type\": \"bnode\", \"value\": \"r2\" },\n" +
+      "        \"hpage\": { \"type\": \"uri\", \"value\": \"http:\\/\\/work.example.org\\/bob\\/\" },\n" +
+      "        \"name\": { \"type\": \"literal\", \"xml:lang\": \"en\", \"value\": \"Bob \\\"B\\u00e9b\u00e9\\\"\" },\n" +
+      "        \"age\": { \"type\": \"typed-literal\", \"datatype\": \"http://www.w3.org/2001/XMLSchema#integer\", \"value\": \"30\" }\n" +
+      "      },\n" +
+      "      {\n" +
+      "        \"x\": { \"type\": \"bnode\", \"value\": \"r7\" },\n" +
+      "        \"name\": { \"type\": \"literal\", \"value\": \"Fred\" },\n" +
+      "        \"age\": { \"datatype\": \"http://www.w3.org/2001/XMLSchema#integer\", \"type\": \"literal\", \"value\": \"35\" }\n" +
+      "      }\n" +
+      "    ]\n" +
+      "  }\n" +
+      "}\n";
+
+  static final String tsvDoc = "?x\t?hpage\t?name\t?age\t?count\n" +
+      "_:r2\t<http://work.example.org/bob/>\t\"Bob\\t\\\"B\u00e9b\\u00E9\\\"\"@en\t30\t1.5e3\n" +
+      "_:r7\t\t\"Fred\"\t\"35\"^^<http://www.w3.org/2001/XMLSchema#int>\t-2.50\n";
+
+  static final String csvDoc = "x,name,age\r\n" +
+      "_:r2,\"Bob, \"\"the\"\"\nbuilder\",30\r\n" +
+      "_:r7,Fred,\r\n";
+
   static final String graphDoc = "<?xml version=\"1.0\"?>\n" +
       "\n" +
       "<!DOCTYPE rdf:RDF [\n" +